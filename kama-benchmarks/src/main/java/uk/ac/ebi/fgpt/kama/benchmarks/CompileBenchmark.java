@@ -0,0 +1,51 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.fgpt.kama.CompiledDictionary;
+import uk.ac.ebi.fgpt.kama.MatchingEngine;
+import uk.ac.ebi.fgpt.kama.MonqException;
+
+/**
+ * How long it takes to compile a dictionary, which is what Kama.getDfa does the first time it sees a list of
+ * ontology accession ids, against the size of the dictionary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompileBenchmark {
+  @Param( {"100", "1000", "10000"})
+  public int terms;
+  
+  @Param( {"monq", "aho-corasick"})
+  public String engine;
+  
+  private String[] dictionary;
+  private MatchingEngine matchingEngine;
+  
+  @Setup
+  public void setUp() {
+    dictionary = new SyntheticData(17).terms(terms);
+    matchingEngine = Engines.get(engine);
+  }
+  
+  @Benchmark
+  public CompiledDictionary compile() throws MonqException {
+    return Engines.compile(matchingEngine, dictionary);
+  }
+}
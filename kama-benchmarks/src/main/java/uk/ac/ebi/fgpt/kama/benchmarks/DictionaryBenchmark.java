@@ -0,0 +1,73 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.fgpt.kama.Kama;
+import uk.ac.ebi.fgpt.kama.KamaCache;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+/**
+ * Kama.getDictionaryOfTermsFromOntologyIds on a small generated ontology, both with empty caches (the first
+ * call for a list of ids) and with the dictionary cached.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DictionaryBenchmark {
+  @Param( {"200", "2000"})
+  public int ontologyTerms;
+  
+  private File ontologyFile;
+  private Kama kama;
+  
+  /**
+   * The root, whose descendants are the whole ontology, and a term a few levels down
+   */
+  private List<String> ids = Arrays.asList(SyntheticData.getAccession(0), SyntheticData.getAccession(5));
+  
+  @Setup
+  public void setUp() throws IOException, OntologyServiceException {
+    ontologyFile = File.createTempFile("benchmark", ".obo");
+    new SyntheticData(17).writeOntology(ontologyTerms, ontologyFile);
+    kama = new Kama(ontologyFile);
+  }
+  
+  @TearDown
+  public void tearDown() {
+    kama.close();
+    ontologyFile.delete();
+  }
+  
+  @Benchmark
+  public String[] getDictionaryUncached() {
+    for (KamaCache<?,?> cache : kama.getCaches()) {
+      cache.clear();
+    }
+    return kama.getDictionaryOfTermsFromOntologyIds(ids);
+  }
+  
+  @Benchmark
+  public String[] getDictionaryCached() {
+    return kama.getDictionaryOfTermsFromOntologyIds(ids);
+  }
+}
@@ -0,0 +1,37 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import uk.ac.ebi.fgpt.kama.AhoCorasickEngine;
+import uk.ac.ebi.fgpt.kama.CompiledDictionary;
+import uk.ac.ebi.fgpt.kama.MatchingEngine;
+import uk.ac.ebi.fgpt.kama.MonqEngine;
+import uk.ac.ebi.fgpt.kama.MonqException;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+class Engines {
+  private Engines() {}
+  
+  /**
+   * Gets an engine by the name used in the engine parameter of the benchmarks
+   */
+  static MatchingEngine get(String name) {
+    if (MonqEngine.NAME.equals(name)) {
+      return new MonqEngine();
+    } else if (AhoCorasickEngine.NAME.equals(name)) {
+      return new AhoCorasickEngine();
+    }
+    throw new IllegalArgumentException("Unknown engine " + name);
+  }
+  
+  /**
+   * Compiles a plain count dictionary the way Kama does, with each term's index as its priority
+   */
+  static CompiledDictionary compile(MatchingEngine engine, String[] terms) throws MonqException {
+    int[] priorities = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      priorities[i] = i;
+    }
+    return engine.compile(terms, priorities, null);
+  }
+}
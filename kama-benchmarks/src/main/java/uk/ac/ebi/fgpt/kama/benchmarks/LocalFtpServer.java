@@ -0,0 +1,83 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.filesystem.DirectoryEntry;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystem;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+
+/**
+ * A local stand-in for the ArrayExpress FTP server. It serves a directory, ie one written by
+ * {@link MageTabCorpus}, under the same path as ftp.ebi.ac.uk to anonymous users. The files are held in
+ * memory, so the disk is not part of what is measured.
+ */
+public class LocalFtpServer {
+  public static final String ROOT = "/pub/databases/microarray/data/experiment/";
+  
+  private FakeFtpServer ftpServer;
+  
+  /**
+   * Loads a directory
+   * 
+   * @param directory
+   *          the directory to serve as ROOT
+   * @throws IOException
+   */
+  public LocalFtpServer(File directory) throws IOException {
+    FileSystem fileSystem = new UnixFakeFileSystem();
+    fileSystem.add(new DirectoryEntry(ROOT));
+    add(fileSystem, directory, ROOT);
+    
+    UserAccount anonymous = new UserAccount("anonymous", "", "/");
+    anonymous.setPasswordRequiredForLogin(false);
+    ftpServer = new FakeFtpServer();
+    ftpServer.setServerControlPort(0);
+    ftpServer.addUserAccount(anonymous);
+    ftpServer.setFileSystem(fileSystem);
+  }
+  
+  /**
+   * Starts the server on a free port
+   * 
+   * @return the port
+   */
+  public int start() {
+    ftpServer.start();
+    return ftpServer.getServerControlPort();
+  }
+  
+  public void stop() {
+    ftpServer.stop();
+  }
+  
+  /**
+   * Gets the address of the server in the form App's -ftp option takes
+   * 
+   * @return ie localhost:2121/pub/databases/microarray/data/experiment/
+   */
+  public String getAddress() {
+    return "localhost:" + ftpServer.getServerControlPort() + ROOT;
+  }
+  
+  private static void add(FileSystem fileSystem, File directory, String path) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        fileSystem.add(new DirectoryEntry(path + file.getName()));
+        add(fileSystem, file, path + file.getName() + "/");
+      } else {
+        FileEntry entry = new FileEntry(path + file.getName());
+        entry.setContents(FileUtils.readFileToByteArray(file));
+        fileSystem.add(entry);
+      }
+    }
+  }
+}
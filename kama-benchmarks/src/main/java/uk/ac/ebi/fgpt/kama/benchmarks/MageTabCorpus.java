@@ -0,0 +1,113 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a corpus of made up experiments in the directory layout of the ArrayExpress FTP server:
+ * root/PIPELINE/ACCESSION/ACCESSION.sdrf.txt and ACCESSION.idf.txt. The SDRFs are written with line breaks
+ * of " \n" like the real ones.
+ */
+public class MageTabCorpus {
+  private static final String[] PIPELINES = {"GEOD", "MEXP", "TABM"};
+  
+  private SyntheticData data;
+  private String[] terms;
+  private int rows = 50;
+  private int columns = 12;
+  private double termDensity = 0.1;
+  private int rowsPerArrayDataFile = 1;
+  private int protocols = 4;
+  
+  private long bytesWritten = 0;
+  
+  /**
+   * @param data
+   *          the generator of the text
+   * @param terms
+   *          the terms that are mentioned in the files, ie the labels of an ontology
+   */
+  public MageTabCorpus(SyntheticData data, String[] terms) {
+    this.data = data;
+    this.terms = terms;
+  }
+  
+  public void setRows(int rows) {
+    this.rows = rows;
+  }
+  
+  public void setColumns(int columns) {
+    this.columns = columns;
+  }
+  
+  /**
+   * @param termDensity
+   *          the share of the Characteristics cells and of the free text words that are terms
+   */
+  public void setTermDensity(double termDensity) {
+    this.termDensity = termDensity;
+  }
+  
+  /**
+   * @param rowsPerArrayDataFile
+   *          the number of SDRF rows that share each 'Array Data File'
+   */
+  public void setRowsPerArrayDataFile(int rowsPerArrayDataFile) {
+    this.rowsPerArrayDataFile = rowsPerArrayDataFile;
+  }
+  
+  public void setProtocols(int protocols) {
+    this.protocols = protocols;
+  }
+  
+  /**
+   * Writes the experiments
+   * 
+   * @param root
+   *          the directory that stands for /pub/databases/microarray/data/experiment/
+   * @param experiments
+   *          the number of experiments
+   * @return the accessions of the experiments
+   * @throws IOException
+   */
+  public List<String> write(File root, int experiments) throws IOException {
+    List<String> accessions = new ArrayList<String>();
+    for (int i = 0; i < experiments; i++) {
+      String pipeline = PIPELINES[i % PIPELINES.length];
+      String accession = "E-" + pipeline + "-" + (1000 + i);
+      File directory = new File(root, pipeline + "/" + accession);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory.getAbsolutePath());
+      }
+      write(new File(directory, accession + ".sdrf.txt"), data.sdrf(terms, rows, columns, termDensity,
+        rowsPerArrayDataFile).replace("\n", " \n"));
+      write(new File(directory, accession + ".idf.txt"), data.idf(terms, protocols));
+      accessions.add(accession);
+    }
+    return accessions;
+  }
+  
+  /**
+   * Gets the size of all the files written so far
+   * 
+   * @return the number of bytes written
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+  
+  private void write(File file, String text) throws IOException {
+    byte[] bytes = text.getBytes("UTF-8");
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+    bytesWritten += bytes.length;
+  }
+}
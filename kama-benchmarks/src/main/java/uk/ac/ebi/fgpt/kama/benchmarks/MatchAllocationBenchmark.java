@@ -0,0 +1,54 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.fgpt.kama.MonqException;
+import uk.ac.ebi.fgpt.kama.PassageScanner;
+
+/**
+ * Scans text in which every word is a term, so that the time goes into the match actions (DoCount) rather
+ * than into reading text. Run it with the GC profiler to see what each match allocates:
+ * 
+ * java -jar target/benchmarks.jar MatchAllocationBenchmark -prof gc
+ * 
+ * and read gc.alloc.rate.norm, the bytes allocated per scan of MATCHES matches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchAllocationBenchmark {
+  @Param( {"monq", "aho-corasick"})
+  public String engine;
+  
+  private String passage;
+  private PassageScanner scanner;
+  
+  @Setup
+  public void setUp() throws MonqException {
+    SyntheticData data = new SyntheticData(17);
+    String[] dictionary = data.terms(100);
+    scanner = new PassageScanner(Engines.compile(Engines.get(engine), dictionary));
+    passage = data.passage(dictionary, 64 * 1024, 1.0);
+  }
+  
+  @Benchmark
+  public int countMatches() throws IOException {
+    return scanner.scan(passage).getTotal();
+  }
+}
@@ -0,0 +1,77 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.ac.ebi.fgpt.kama.MonqException;
+import uk.ac.ebi.fgpt.kama.PassageScanner;
+import uk.ac.ebi.fgpt.kama.SdrfTable;
+import uk.ac.ebi.fgpt.kama.TermCounter;
+
+/**
+ * Scanning throughput, the path behind getCountFromPassage and the per sample methods. Every operation scans
+ * one MiB of text, so the operations per second are MiB per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+  public static final int PASSAGE_CHARS = 1024 * 1024;
+  
+  @Param( {"1000"})
+  public int terms;
+  
+  @Param( {"monq", "aho-corasick"})
+  public String engine;
+  
+  private String passage;
+  private CharSequence sdrfRows;
+  private PassageScanner scanner;
+  
+  @Setup
+  public void setUp() throws MonqException {
+    SyntheticData data = new SyntheticData(17);
+    String[] dictionary = data.terms(terms);
+    scanner = new PassageScanner(Engines.compile(Engines.get(engine), dictionary));
+    passage = data.passage(dictionary, PASSAGE_CHARS, 0.05);
+    
+    // An SDRF of about the same size
+    StringBuilder sdrf = new StringBuilder(data.sdrf(dictionary, 1000));
+    while (sdrf.length() < PASSAGE_CHARS) {
+      String more = data.sdrf(dictionary, 1000);
+      sdrf.append(more.substring(more.indexOf('\n') + 1));
+    }
+    sdrf.setLength(PASSAGE_CHARS);
+    sdrfRows = new SdrfTable(sdrf).getRows();
+  }
+  
+  @Benchmark
+  public int scanPassage() throws IOException {
+    return scanner.scan(passage).getTotal();
+  }
+  
+  @Benchmark
+  public void scanSdrfRows(final Blackhole blackhole) throws IOException {
+    scanner.scanRows(sdrfRows, new TermCounter.RowListener() {
+      public void endRow(int row, TermCounter counter) {
+        blackhole.consume(counter.getTotal());
+      }
+    });
+  }
+}
@@ -0,0 +1,75 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.ac.ebi.fgpt.kama.MappedPassage;
+import uk.ac.ebi.fgpt.kama.SdrfTable;
+import uk.ac.ebi.fgpt.kama.TabTokenizer;
+
+/**
+ * Reading and splitting SDRFs: tokenizing the text into cells, building the SdrfTable with its Array Data
+ * File groups, and doing both from a file on disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SdrfParsingBenchmark {
+  @Param( {"100", "1000", "10000"})
+  public int rows;
+  
+  private String sdrf;
+  private File sdrfFile;
+  
+  @Setup
+  public void setUp() throws IOException {
+    SyntheticData data = new SyntheticData(17);
+    sdrf = data.sdrf(data.terms(200), rows);
+    sdrfFile = File.createTempFile("benchmark", ".sdrf.txt");
+    Writer writer = new FileWriter(sdrfFile);
+    try {
+      writer.write(sdrf);
+    } finally {
+      writer.close();
+    }
+  }
+  
+  @TearDown
+  public void tearDown() {
+    sdrfFile.delete();
+  }
+  
+  @Benchmark
+  public int tokenize() {
+    return new TabTokenizer(sdrf).getRowCount();
+  }
+  
+  @Benchmark
+  public int parseTable() {
+    return new SdrfTable(sdrf).getArrayDataFiles().length;
+  }
+  
+  @Benchmark
+  public int parseFile() throws IOException {
+    return new SdrfTable(new MappedPassage(sdrfFile)).getArrayDataFiles().length;
+  }
+}
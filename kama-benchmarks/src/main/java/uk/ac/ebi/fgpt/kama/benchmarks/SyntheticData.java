@@ -0,0 +1,220 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generates the inputs of the benchmarks: dictionaries of terms, SDRF and IDF files and small ontologies. The
+ * same seed always gives the same data, so runs of different Kama versions can be compared.
+ */
+public class SyntheticData {
+  public static final String ONTOLOGY_PREFIX = "BENCH";
+  
+  private static final String[] SYLLABLES = {"ab", "bo", "cy", "de", "fa", "gen", "hem", "id", "ki", "lo",
+      "ma", "ne", "os", "pha", "qui", "ro", "sa", "thy", "ul", "ve", "xo", "zy", "blo", "cel", "mus", "pla",
+      "tin", "cor", "lym", "pho"};
+  
+  private static final String[] CHARACTERISTICS = {"OrganismPart", "DiseaseState", "CellType", "Organism",
+      "Sex", "Age", "StrainOrLine", "DevelopmentalStage"};
+  
+  private Random random;
+  
+  public SyntheticData(long seed) {
+    random = new Random(seed);
+  }
+  
+  /**
+   * @return a made up word of two to four syllables
+   */
+  public String word() {
+    StringBuilder word = new StringBuilder();
+    int syllables = 2 + random.nextInt(3);
+    for (int i = 0; i < syllables; i++) {
+      word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return word.toString();
+  }
+  
+  /**
+   * Makes a dictionary of distinct terms of one to three words
+   * 
+   * @param count
+   *          the number of terms
+   * @return the terms
+   */
+  public String[] terms(int count) {
+    Set<String> terms = new LinkedHashSet<String>();
+    while (terms.size() < count) {
+      int words = 1 + random.nextInt(3);
+      StringBuilder term = new StringBuilder(word());
+      for (int i = 1; i < words; i++) {
+        term.append(' ').append(word());
+      }
+      terms.add(term.toString());
+    }
+    return terms.toArray(new String[count]);
+  }
+  
+  /**
+   * Makes free text in which a share of the words are terms of the dictionary
+   * 
+   * @param terms
+   *          the dictionary
+   * @param chars
+   *          the length of the text
+   * @param termShare
+   *          the share of the words that are terms, between 0 and 1
+   * @return the text
+   */
+  public String passage(String[] terms, int chars, double termShare) {
+    StringBuilder passage = new StringBuilder(chars + 64);
+    while (passage.length() < chars) {
+      passage.append(random.nextDouble() < termShare ? terms[random.nextInt(terms.length)] : word());
+      passage.append(random.nextInt(10) == 0 ? ". " : " ");
+    }
+    passage.setLength(chars);
+    return passage.toString();
+  }
+  
+  /**
+   * Makes an SDRF of seven columns. Every two rows share an 'Array Data File', and about one cell in four
+   * mentions a term.
+   * 
+   * @param terms
+   *          the dictionary
+   * @param rows
+   *          the number of rows below the header
+   * @return the SDRF
+   */
+  public String sdrf(String[] terms, int rows) {
+    return sdrf(terms, rows, 7, 0.25, 2);
+  }
+  
+  /**
+   * Makes an SDRF. The columns are a Source Name, Characteristics, a Protocol REF, the Array Data File and a
+   * free text Comment at the end.
+   * 
+   * @param terms
+   *          the dictionary
+   * @param rows
+   *          the number of rows below the header
+   * @param columns
+   *          the number of columns, at least 4
+   * @param termDensity
+   *          the share of the Characteristics cells and of the words of the Comment that are terms
+   * @param rowsPerArrayDataFile
+   *          the number of rows that share each 'Array Data File'
+   * @return the SDRF
+   */
+  public String sdrf(String[] terms, int rows, int columns, double termDensity, int rowsPerArrayDataFile) {
+    columns = Math.max(4, columns);
+    String[] header = new String[columns];
+    header[0] = "Source Name";
+    for (int i = 1; i < columns - 3; i++) {
+      header[i] = "Characteristics [" + CHARACTERISTICS[(i - 1) % CHARACTERISTICS.length] + "]";
+    }
+    header[columns - 3] = "Protocol REF";
+    header[columns - 2] = "Array Data File";
+    header[columns - 1] = "Comment [Sample_description]";
+    
+    StringBuilder sdrf = new StringBuilder();
+    appendRow(sdrf, header);
+    String[] cells = new String[columns];
+    for (int row = 0; row < rows; row++) {
+      cells[0] = "sample " + row;
+      for (int i = 1; i < columns - 3; i++) {
+        cells[i] = random.nextDouble() < termDensity ? terms[random.nextInt(terms.length)] : word();
+      }
+      cells[columns - 3] = "P-MTAB-" + random.nextInt(100);
+      cells[columns - 2] = "GSM" + (100000 + row / Math.max(1, rowsPerArrayDataFile)) + ".CEL";
+      cells[columns - 1] = passage(terms, 40 + random.nextInt(80), termDensity);
+      appendRow(sdrf, cells);
+    }
+    return sdrf.toString();
+  }
+  
+  /**
+   * Makes an IDF with a title, a description and protocols that mention terms
+   * 
+   * @param terms
+   *          the dictionary
+   * @param protocols
+   *          the number of protocols
+   * @return the IDF
+   */
+  public String idf(String[] terms, int protocols) {
+    StringBuilder idf = new StringBuilder();
+    appendRow(idf, new String[] {"Investigation Title", passage(terms, 80, 0.2)});
+    appendRow(idf, new String[] {"Experiment Description", passage(terms, 1200, 0.1)});
+    String[] names = new String[protocols + 1];
+    String[] descriptions = new String[protocols + 1];
+    names[0] = "Protocol Name";
+    descriptions[0] = "Protocol Description";
+    for (int i = 1; i <= protocols; i++) {
+      names[i] = "P-MTAB-" + i;
+      descriptions[i] = passage(terms, 300, 0.1);
+    }
+    appendRow(idf, names);
+    appendRow(idf, descriptions);
+    return idf.toString();
+  }
+  
+  /**
+   * Writes an OBO ontology in which every term has a synonym and up to four children. The ontology is a
+   * tree, so the descendants of BENCH_0000000 are all the terms.
+   * 
+   * @param termCount
+   *          the number of terms
+   * @param file
+   *          the file to write
+   * @return the labels and synonyms of the terms
+   * @throws IOException
+   */
+  public String[] writeOntology(int termCount, File file) throws IOException {
+    String[] names = terms(termCount * 2);
+    Writer writer = new FileWriter(file);
+    try {
+      writer.write("format-version: 1.2\nontology: bench\n");
+      for (int i = 0; i < termCount; i++) {
+        writer.write("\n[Term]\nid: " + getOboId(i) + "\nname: " + names[i] + "\n");
+        writer.write("synonym: \"" + names[termCount + i] + "\" EXACT []\n");
+        if (i > 0) {
+          writer.write("is_a: " + getOboId((i - 1) / 4) + " ! " + names[(i - 1) / 4] + "\n");
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    return names;
+  }
+  
+  /**
+   * Gets the accession of a term of {@link #writeOntology(int, File)} as Kama uses it
+   * 
+   * @param term
+   *          the number of the term
+   * @return the accession ie BENCH_0000001
+   */
+  public static String getAccession(int term) {
+    return ONTOLOGY_PREFIX + "_" + String.format("%07d", term);
+  }
+  
+  private static String getOboId(int term) {
+    return ONTOLOGY_PREFIX + ":" + String.format("%07d", term);
+  }
+  
+  private static void appendRow(StringBuilder text, String[] cells) {
+    for (int i = 0; i < cells.length; i++) {
+      if (i > 0) {
+        text.append('\t');
+      }
+      text.append(cells[i]);
+    }
+    text.append('\n');
+  }
+}
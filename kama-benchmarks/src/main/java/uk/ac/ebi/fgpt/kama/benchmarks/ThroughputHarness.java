@@ -0,0 +1,195 @@
+package uk.ac.ebi.fgpt.kama.benchmarks;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import uk.ac.ebi.fgpt.kama.App;
+
+/**
+ * Runs App end to end without the network. It writes a corpus of made up experiments and a matching
+ * ontology, serves the corpus from a {@link LocalFtpServer}, and runs the summary and the sample mode of App
+ * against it at several thread counts. Every run starts with an empty MAGE-TAB cache and results store, so
+ * it downloads and scans the whole corpus. The compiled automata are kept between runs, after one untimed
+ * run to warm up.
+ * 
+ * For each run it reports experiments per second, corpus bytes per second and the peak heap.
+ * 
+ * java -cp target/benchmarks.jar uk.ac.ebi.fgpt.kama.benchmarks.ThroughputHarness -experiments 500
+ */
+public class ThroughputHarness {
+  private static final String[] MODES = {"summary", "sample"};
+  
+  public static void main(String[] args) throws Exception {
+    Options options = new Options();
+    options.addOption("h", "help", false, "help");
+    options.addOption("dir", true, "working directory. Defaults to target/harness");
+    options.addOption("experiments", true, "number of experiments. Defaults to 200");
+    options.addOption("rows", true, "SDRF rows per experiment. Defaults to 50");
+    options.addOption("columns", true, "SDRF columns. Defaults to 12");
+    options.addOption("density", true, "share of the cells and words that are terms. Defaults to 0.1");
+    options.addOption("rowsperfile", true, "SDRF rows per Array Data File. Defaults to 1");
+    options.addOption("terms", true, "number of ontology terms. Defaults to 500");
+    options.addOption("threads", true, "comma separated thread counts. Defaults to 1,2,4,8");
+    
+    CommandLine cmd;
+    try {
+      CommandLineParser parser = new PosixParser();
+      cmd = parser.parse(options, args);
+    } catch (ParseException e) {
+      new HelpFormatter().printHelp("ThroughputHarness", options, true);
+      return;
+    }
+    if (cmd.hasOption("h")) {
+      new HelpFormatter().printHelp("ThroughputHarness", options, true);
+      return;
+    }
+    File dir = new File(cmd.getOptionValue("dir", "target/harness"));
+    int experiments = Integer.parseInt(cmd.getOptionValue("experiments", "200"));
+    List<Integer> threadCounts = new ArrayList<Integer>();
+    for (String threads : cmd.getOptionValue("threads", "1,2,4,8").split(",")) {
+      threadCounts.add(Integer.parseInt(threads.trim()));
+    }
+    
+    // The corpus and the ontology it mentions
+    if (dir.exists()) {
+      FileUtils.deleteDirectory(dir);
+    }
+    File corpusDir = new File(dir, "ftp");
+    corpusDir.mkdirs();
+    SyntheticData data = new SyntheticData(17);
+    File ontologyFile = new File(dir, "ontology.obo");
+    String[] terms = data.writeOntology(Integer.parseInt(cmd.getOptionValue("terms", "500")), ontologyFile);
+    MageTabCorpus corpus = new MageTabCorpus(data, terms);
+    corpus.setRows(Integer.parseInt(cmd.getOptionValue("rows", "50")));
+    corpus.setColumns(Integer.parseInt(cmd.getOptionValue("columns", "12")));
+    corpus.setTermDensity(Double.parseDouble(cmd.getOptionValue("density", "0.1")));
+    corpus.setRowsPerArrayDataFile(Integer.parseInt(cmd.getOptionValue("rowsperfile", "1")));
+    List<String> accessions = corpus.write(corpusDir, experiments);
+    File accessionsFile = writeLines(new File(dir, "accessions.txt"), accessions);
+    // The root of the generated ontology has every term as a descendant
+    List<String> ids = new ArrayList<String>();
+    ids.add(SyntheticData.getAccession(0));
+    File idsFile = writeLines(new File(dir, "ids.txt"), ids);
+    System.out.println("Wrote " + experiments + " experiments, " + corpus.getBytesWritten() + " bytes");
+    
+    LocalFtpServer server = new LocalFtpServer(corpusDir);
+    server.start();
+    List<String> results = new ArrayList<String>();
+    try {
+      runApp(dir, "warmup", 1, server, ontologyFile, idsFile, accessionsFile, false);
+      for (String mode : MODES) {
+        for (int threads : threadCounts) {
+          resetPeakHeap();
+          long start = System.nanoTime();
+          runApp(dir, mode, threads, server, ontologyFile, idsFile, accessionsFile, mode.equals("summary"));
+          double seconds = (System.nanoTime() - start) / 1e9;
+          double mebibytes = corpus.getBytesWritten() / (1024.0 * 1024);
+          results.add(String.format("%-8s %8d %10.2f %14.1f %12.2f %14.1f", mode, threads, seconds,
+            experiments / seconds, mebibytes / seconds, getPeakHeap() / (1024.0 * 1024)));
+        }
+      }
+    } finally {
+      server.stop();
+    }
+    
+    System.out.println();
+    System.out.println(String.format("%-8s %8s %10s %14s %12s %14s", "mode", "threads", "seconds",
+      "experiments/s", "MiB/s", "peak heap MiB"));
+    for (String result : results) {
+      System.out.println(result);
+    }
+  }
+  
+  /**
+   * Runs App once with a fresh MAGE-TAB cache and results store. What App prints is thrown away.
+   */
+  private static void runApp(File dir,
+                             String name,
+                             int threads,
+                             LocalFtpServer server,
+                             File ontologyFile,
+                             File idsFile,
+                             File accessionsFile,
+                             boolean summary) throws Exception {
+    File cacheDir = new File(dir, "cache-" + name + "-" + threads);
+    File resultsDir = new File(dir, "results-" + name + "-" + threads);
+    List<String> args = new ArrayList<String>();
+    add(args, "-owlfile", ontologyFile.getPath());
+    add(args, "-ids", idsFile.getPath());
+    add(args, "-input", accessionsFile.getPath());
+    add(args, "-output", new File(dir, name + "-" + threads + ".tsv").getPath());
+    add(args, "-threads", Integer.toString(threads));
+    add(args, "-cache", cacheDir.getPath());
+    add(args, "-results", resultsDir.getPath());
+    add(args, "-dfacache", new File(dir, "dfa").getPath());
+    add(args, "-ftp", server.getAddress());
+    if (summary) {
+      args.add("-s");
+    }
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(new NullOutputStream()));
+    try {
+      App.main(args.toArray(new String[args.size()]));
+    } finally {
+      System.setOut(stdout);
+      FileUtils.deleteDirectory(cacheDir);
+      FileUtils.deleteDirectory(resultsDir);
+    }
+  }
+  
+  private static void add(List<String> args, String option, String value) {
+    args.add(option);
+    args.add(value);
+  }
+  
+  private static File writeLines(File file, List<String> lines) throws IOException {
+    Writer writer = new FileWriter(file);
+    try {
+      for (String line : lines) {
+        writer.write(line + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+  
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+  
+  /**
+   * Gets the sum of the peak usage of the heap pools since the last reset
+   */
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -0,0 +1,236 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+
+/**
+ * A dictionary compiled by the {@link AhoCorasickEngine}: a trie of the normalized terms with failure links,
+ * stored as flat arrays. State 0 is the root. The edges of state s are edgeLabels[edgeOffsets[s]] to
+ * edgeLabels[edgeOffsets[s + 1] - 1], sorted by label.
+ * 
+ * Passages are normalized the same way as the terms: lower case, and every run of whitespace read as one
+ * space.
+ */
+public class AhoCorasickDictionary extends CompiledDictionary {
+  // Stored on disk by DfaStore
+  private static final long serialVersionUID = 1L;
+  
+  private int[] edgeOffsets;
+  private char[] edgeLabels;
+  private int[] edgeTargets;
+  
+  /**
+   * The state of the longest proper suffix of each state that is in the trie
+   */
+  private int[] fail;
+  
+  /**
+   * The term that ends at each state, or -1
+   */
+  private int[] output;
+  
+  /**
+   * The next state down the failure links at which a term ends, or -1
+   */
+  private int[] dictionaryLink;
+  
+  /**
+   * The length of each normalized term, indexed by term id
+   */
+  private int[] termLength;
+  private int maxTermLength;
+  
+  AhoCorasickDictionary(String[] terms, String[][] termToOntologyAccessionIds, int[] edgeOffsets,
+                        char[] edgeLabels, int[] edgeTargets, int[] fail, int[] output, int[] dictionaryLink,
+                        int[] termLength, int maxTermLength) {
+    super(terms, termToOntologyAccessionIds);
+    this.edgeOffsets = edgeOffsets;
+    this.edgeLabels = edgeLabels;
+    this.edgeTargets = edgeTargets;
+    this.fail = fail;
+    this.output = output;
+    this.dictionaryLink = dictionaryLink;
+    this.termLength = termLength;
+    this.maxTermLength = maxTermLength;
+  }
+  
+  public Matcher newMatcher(TermCounter counter) {
+    return new AhoCorasickMatcher(counter);
+  }
+  
+  public int getStateCount() {
+    return fail.length;
+  }
+  
+  /**
+   * Normalizes a term the way passages are read
+   * 
+   * @param term
+   *          the term
+   * @return the term in lower case, with every run of whitespace replaced by one space and none at the ends
+   */
+  static String normalize(String term) {
+    StringBuilder normalized = new StringBuilder(term.length());
+    boolean space = false;
+    for (int i = 0; i < term.length(); i++) {
+      char c = term.charAt(i);
+      if (isSpace(c)) {
+        space = normalized.length() > 0;
+      } else {
+        if (space) {
+          normalized.append(' ');
+          space = false;
+        }
+        normalized.append(Character.toLowerCase(c));
+      }
+    }
+    return normalized.toString();
+  }
+  
+  static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == '\u000b';
+  }
+  
+  /**
+   * The characters of the whole word rule, "[A-Za-z0-9]+"
+   */
+  static boolean isWordChar(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+  
+  private int step(int state, char c) {
+    while (true) {
+      // Binary search of the edges of the state
+      int low = edgeOffsets[state];
+      int high = edgeOffsets[state + 1] - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        char label = edgeLabels[middle];
+        if (label < c) {
+          low = middle + 1;
+        } else if (label > c) {
+          high = middle - 1;
+        } else {
+          return edgeTargets[middle];
+        }
+      }
+      if (state == 0) {
+        return 0;
+      }
+      state = fail[state];
+    }
+  }
+  
+  /**
+   * Reads a passage once, and decides from left to right as monq does: at each position the longest term
+   * that is followed by something other than a letter or digit is counted, otherwise a word is skipped
+   * whole, otherwise one character is dropped.
+   * 
+   * The automaton runs ahead of that position by the length of the longest term, and the longest match
+   * starting at each position in between is kept in a ring buffer, so the memory used does not depend on the
+   * passage.
+   */
+  private class AhoCorasickMatcher implements Matcher {
+    private TermCounter counter;
+    private char[] window;
+    private int[] longest;
+    private int mask;
+    
+    private CharSequence passage;
+    private int next;
+    private int produced;
+    private int state;
+    private int position;
+    
+    public AhoCorasickMatcher(TermCounter counter) {
+      this.counter = counter;
+      int size = 1;
+      while (size < maxTermLength + 2) {
+        size <<= 1;
+      }
+      window = new char[size];
+      longest = new int[size];
+      mask = size - 1;
+    }
+    
+    public void match(CharSequence passage) throws IOException {
+      this.passage = passage;
+      next = 0;
+      produced = 0;
+      state = 0;
+      position = 0;
+      try {
+        while (true) {
+          // Every match that starts at the position has been seen once the longest term and the character
+          // after it have been read
+          while (produced <= position + maxTermLength && produce()) {}
+          if (position >= produced) {
+            break;
+          }
+          int term = longest[position & mask];
+          if (term >= 0) {
+            counter.increment(term);
+            position += termLength[term];
+            continue;
+          }
+          char c = window[position & mask];
+          if (isWordChar(c)) {
+            // Skip the rest of the word, as the whole word rule of the monq engine does
+            do {
+              position++;
+            } while ((position < produced || produce()) && isWordChar(window[position & mask]));
+          } else {
+            if (c == SdrfTable.ROW_SEPARATOR) {
+              counter.endRow();
+            }
+            position++;
+          }
+        }
+      } finally {
+        this.passage = null;
+      }
+    }
+    
+    /**
+     * Reads the next normalized character of the passage into the window and runs the automaton on it
+     * 
+     * @return false at the end of the passage
+     */
+    private boolean produce() {
+      int length = passage.length();
+      if (next >= length) {
+        return false;
+      }
+      char c = passage.charAt(next++);
+      if (isSpace(c)) {
+        while (next < length && isSpace(passage.charAt(next))) {
+          next++;
+        }
+        c = ' ';
+      } else {
+        c = Character.toLowerCase(c);
+      }
+      int index = produced++;
+      window[index & mask] = c;
+      longest[index & mask] = -1;
+      // The terms that ended at the character before are whole if this one is not a letter or digit
+      if (!isWordChar(c)) {
+        record(index - 1);
+      }
+      state = step(state, c);
+      return true;
+    }
+    
+    private void record(int end) {
+      int s = output[state] >= 0 ? state : dictionaryLink[state];
+      while (s != -1) {
+        int term = output[s];
+        int start = end - termLength[term] + 1;
+        // A match that ends later is longer, so it replaces any match from the same start
+        if (start >= position) {
+          longest[start & mask] = term;
+        }
+        s = dictionaryLink[s];
+      }
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An engine for plain term and synonym dictionaries. The terms are put into an Aho-Corasick automaton
+ * instead of being compiled into a DFA, so compiling takes time and memory in proportion to the total length
+ * of the terms, however many there are.
+ * 
+ * Matching is case insensitive and treats every run of whitespace as one space. Otherwise it follows the
+ * monq engine: whole words only, the longest term wins, and a term at the very end of a passage is not
+ * counted.
+ * 
+ * It is therefore not a drop-in for the monq engine. Monq only lets the first letter of a term differ in
+ * case, so a term in capitals, or with more than one space between its words, can be counted here and not
+ * by monq. Stored results are kept apart, as the engine is part of the dictionary fingerprint.
+ */
+public class AhoCorasickEngine implements MatchingEngine {
+  public static final String NAME = "aho-corasick";
+  
+  public String getName() {
+    return NAME;
+  }
+  
+  public CompiledDictionary compile(String[] terms, int[] priorities, String[][] termToOntologyAccessionIds) {
+    // Build the trie. Terms that are the same once normalized share a state, which counts the one with the
+    // highest priority as monq does.
+    List<Map<Character,Integer>> children = new ArrayList<Map<Character,Integer>>();
+    List<Integer> output = new ArrayList<Integer>();
+    children.add(new HashMap<Character,Integer>());
+    output.add(-1);
+    int[] termLength = new int[terms.length];
+    int maxTermLength = 0;
+    for (int i = 0; i < terms.length; i++) {
+      String term = AhoCorasickDictionary.normalize(terms[i]);
+      if (term.length() == 0) {
+        continue;
+      }
+      int state = 0;
+      for (int j = 0; j < term.length(); j++) {
+        Integer child = children.get(state).get(term.charAt(j));
+        if (child == null) {
+          child = children.size();
+          children.add(new HashMap<Character,Integer>());
+          output.add(-1);
+          children.get(state).put(term.charAt(j), child);
+        }
+        state = child;
+      }
+      int existing = output.get(state);
+      if (existing == -1 || priorities[i] > priorities[existing]) {
+        output.set(state, i);
+      }
+      termLength[i] = term.length();
+      maxTermLength = Math.max(maxTermLength, term.length());
+    }
+    
+    // Flatten the trie, with the edges of each state sorted by label
+    int stateCount = children.size();
+    int[] edgeOffsets = new int[stateCount + 1];
+    char[] edgeLabels = new char[stateCount - 1];
+    int[] edgeTargets = new int[stateCount - 1];
+    int[] outputs = new int[stateCount];
+    int edge = 0;
+    for (int state = 0; state < stateCount; state++) {
+      Character[] labels = children.get(state).keySet().toArray(new Character[0]);
+      Arrays.sort(labels);
+      for (Character label : labels) {
+        edgeLabels[edge] = label;
+        edgeTargets[edge] = children.get(state).get(label);
+        edge++;
+      }
+      edgeOffsets[state + 1] = edge;
+      outputs[state] = output.get(state);
+    }
+    
+    // Failure and dictionary links, breadth first so that every shorter suffix is done first
+    int[] fail = new int[stateCount];
+    int[] dictionaryLink = new int[stateCount];
+    dictionaryLink[0] = -1;
+    LinkedList<Integer> queue = new LinkedList<Integer>();
+    queue.add(0);
+    while (!queue.isEmpty()) {
+      int state = queue.removeFirst();
+      for (Map.Entry<Character,Integer> entry : children.get(state).entrySet()) {
+        int child = entry.getValue();
+        int target = 0;
+        if (state != 0) {
+          int f = fail[state];
+          while (f != 0 && !children.get(f).containsKey(entry.getKey())) {
+            f = fail[f];
+          }
+          Integer next = children.get(f).get(entry.getKey());
+          target = next == null ? 0 : next;
+        }
+        fail[child] = target;
+        dictionaryLink[child] = outputs[target] >= 0 ? target : dictionaryLink[target];
+        queue.add(child);
+      }
+    }
+    
+    return new AhoCorasickDictionary(terms, termToOntologyAccessionIds, edgeOffsets, edgeLabels, edgeTargets,
+        fail, outputs, dictionaryLink, termLength, maxTermLength);
+  }
+}
@@ -1,11 +1,19 @@
 package uk.ac.ebi.fgpt.kama;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -30,29 +38,127 @@ import uk.ac.ebi.ontocat.OntologyServiceException;
  */
 public class App {
   
+  /**
+   * The file name that stands for stdin as -input and for stdout as -output
+   */
+  private static final String STDIO = "-";
+  
+  /**
+   * The number of experiments whose files are fetched and counted together before their rows are written
+   */
+  private static final int BATCH_SIZE = 256;
+  
   public static void main(String[] args) throws OntologyServiceException, IOException, MonqException {
     boolean displaySummary = false;
     boolean export = false;
+    boolean precompile = false;
+    boolean pipeline = false;
     
     // Make options
     Options cliOptions = new Options();
     cliOptions.addOption("h", "help", false, "help");
     cliOptions.addOption("s", "summary", false, "display summary statistics on IDF/SDRF");
     cliOptions.addOption("x", "export", false, "display summary statistics, and save all files to directory");
+    cliOptions.addOption("p", "precompile", false,
+      "compile the automata for the given ontology accession ids and store them for later runs");
+    cliOptions.addOption("pipeline", false,
+      "download, scan and write the experiments at the same time instead of one step after the other");
+    cliOptions.addOption("r", "resume", false,
+      "continue the run that wrote the journal, reusing the rows of the experiments it completed");
+    cliOptions.addOption("offline", false,
+      "use the files in the MAGE-TAB cache as they are, without checking whether they changed on the FTP server. "
+          + "This is the default unless -recheck is given");
+    cliOptions.addOption("buildindex", false,
+      "index every MAGE-TAB file in the cache, so that later runs can use -fromindex");
+    cliOptions.addOption("fromindex", false,
+      "display summary statistics from the corpus index instead of downloading and scanning the files. "
+          + "Without -input, every experiment in the index is reported. The counts are those of the monq "
+          + "engine, except for terms whose words are split by punctuation or over two lines");
     
     Option output = OptionBuilder.withArgName("output.txt").hasArg().withDescription(
-      "use given file for output").isRequired().create("output");
+      "use given file for output, or - for stdout").create("output");
     Option ontologyFile = OptionBuilder.withArgName("file.owl").hasArg().withDescription(
       "use given ontology file. Defaults to EFOv142").create("owlfile");
     Option accessionIDS = OptionBuilder.withArgName("ontologyAccessions.txt").hasArg().withDescription(
-      "use the given list of Ontology accession ids").isRequired().create("ids");
+      "use the given list of Ontology accession ids").create("ids");
+    Option idSet = OptionBuilder.withArgName("name=ontologyAccessions.txt").hasArg().withDescription(
+      "use the given list of Ontology accession ids under a name, instead of -ids. Give it once for each list "
+          + "to count them all with one download, read and scan of every file. The rows of each list are "
+          + "written to the output file with the name before its extension, ie output.name.txt. Only the "
+          + "summary (-s) and the sample mode are supported, not -export or -pipeline").create("idset");
     Option input = OptionBuilder.withArgName("input.txt").hasArg().withDescription(
-      "use given file of accession ids").isRequired().create("input");
+      "use given file of accession ids, or - for stdin").create("input");
+    Option cacheDir = OptionBuilder.withArgName("directory").hasArg().withDescription(
+      "keep downloaded MAGE-TAB files in the given directory. Defaults to ~/.kama/magetab").create("cache");
+    Option recheck = OptionBuilder.withArgName("hours").hasArg().withDescription(
+      "check a file in the MAGE-TAB cache against the FTP server if it was downloaded or last checked more than "
+          + "the given number of hours ago, and download it again if it changed. 0 checks every file")
+        .create("recheck");
+    Option cacheSize = OptionBuilder.withArgName("megabytes").hasArg().withDescription(
+      "maximum size of the MAGE-TAB cache. Defaults to 4096").create("cachesize");
+    Option cacheMemory = OptionBuilder.withArgName("megabytes").hasArg().withDescription(
+      "memory the in-memory caches of dictionaries, automata and parsed SDRFs may use together. Without it "
+          + "each cache has a limit of its own").create("memory");
+    Option connections = OptionBuilder.withArgName("n").hasArg().withDescription(
+      "number of FTP sessions used to download files at the same time. Defaults to 4").create("connections");
+    Option threads = OptionBuilder.withArgName("n").hasArg().withDescription(
+      "number of experiments scanned at the same time. Defaults to the number of processors").create(
+      "threads");
+    Option snapshot = OptionBuilder.withArgName("file.snapshot").hasArg().withDescription(
+      "use the given ontology snapshot instead of parsing an ontology file").create("snapshot");
+    Option buildSnapshot = OptionBuilder.withArgName("file.snapshot").hasArg().withDescription(
+      "write a snapshot of the ontology to the given file, for fast startup with -snapshot").create(
+      "buildsnapshot");
+    Option dfaDir = OptionBuilder.withArgName("directory").hasArg().withDescription(
+      "keep compiled automata in the given directory. Defaults to ~/.kama/dfa").create("dfacache");
+    Option ftpServer = OptionBuilder.withArgName("host:port/path").hasArg().withDescription(
+      "download from the given FTP server and directory instead of ArrayExpress").create("ftp");
+    Option journalFile = OptionBuilder.withArgName("file.journal").hasArg().withDescription(
+      "record the completed experiments in the given file, so that the run can be resumed. Defaults to the "
+          + "output file with .journal appended").create("journal");
+    Option resultsDir = OptionBuilder.withArgName("directory").hasArg().withDescription(
+      "keep the rows of every experiment in the given directory, ie ~/.kama/results, so that later runs only "
+          + "scan the experiments whose files or dictionary changed. Without it every experiment is scanned")
+        .create("results");
+    Option indexDir = OptionBuilder.withArgName("directory").hasArg().withDescription(
+      "keep the corpus index in the given directory. Defaults to ~/.kama/index").create("index");
+    Option serverPort = OptionBuilder.withArgName("port").hasArg().withDescription(
+      "keep running, and answer summary and sample requests over HTTP on the given port of the local host. "
+          + "-ids, if given, are compiled before the first request").create("server");
+    Option serverRequests = OptionBuilder.withArgName("n").hasArg().withDescription(
+      "number of server requests answered at the same time. Defaults to "
+          + KamaServer.DEFAULT_CONCURRENT_REQUESTS).create("requests");
+    Option serverQueue = OptionBuilder.withArgName("n").hasArg().withDescription(
+      "number of server requests that may wait before the server answers 503. Defaults to "
+          + KamaServer.DEFAULT_QUEUE_CAPACITY).create("queue");
+    Option engineName = OptionBuilder.withArgName("name").hasArg().withDescription(
+      "match terms with the given engine, " + MonqEngine.NAME + " or " + AhoCorasickEngine.NAME
+          + ". Defaults to " + MonqEngine.NAME + ". " + AhoCorasickEngine.NAME + " is not a drop-in for "
+          + MonqEngine.NAME + ": it ignores case and reads a run of whitespace as one space, so it can count "
+          + "more").create("engine");
     
     cliOptions.addOption(output);
     cliOptions.addOption(ontologyFile);
     cliOptions.addOption(accessionIDS);
+    cliOptions.addOption(idSet);
     cliOptions.addOption(input);
+    cliOptions.addOption(cacheDir);
+    cliOptions.addOption(cacheSize);
+    cliOptions.addOption(cacheMemory);
+    cliOptions.addOption(recheck);
+    cliOptions.addOption(connections);
+    cliOptions.addOption(threads);
+    cliOptions.addOption(dfaDir);
+    cliOptions.addOption(engineName);
+    cliOptions.addOption(ftpServer);
+    cliOptions.addOption(journalFile);
+    cliOptions.addOption(resultsDir);
+    cliOptions.addOption(indexDir);
+    cliOptions.addOption(serverPort);
+    cliOptions.addOption(serverRequests);
+    cliOptions.addOption(serverQueue);
+    cliOptions.addOption(snapshot);
+    cliOptions.addOption(buildSnapshot);
     
     HelpFormatter formatter = new HelpFormatter();
     
@@ -63,6 +169,14 @@ public class App {
       String inputExperimentList = null;
       String outputFileString = null;
       String owlFileString = null;
+      String snapshotFileString = null;
+      String journalFileString = null;
+      File cacheRoot = MageTabCache.DEFAULT_ROOT;
+      long cacheBytes = MageTabCache.DEFAULT_MAX_BYTES;
+      File dfaRoot = DfaStore.DEFAULT_ROOT;
+      File resultsRoot = null;
+      File indexRoot = CorpusIndex.DEFAULT_ROOT;
+      MatchingEngine engine = new MonqEngine();
       
       CommandLine cmd = parser.parse(cliOptions, args);
       
@@ -71,47 +185,278 @@ public class App {
         return;
       }
       if (cmd.hasOption("owlfile")) owlFileString = cmd.getOptionValue("owlfile");
+      if (cmd.hasOption("snapshot")) snapshotFileString = cmd.getOptionValue("snapshot");
       if (cmd.hasOption("input")) inputExperimentList = cmd.getOptionValue("input");
       if (cmd.hasOption("ids")) inputOntologyAccessionIds = cmd.getOptionValue("ids");
       if (cmd.hasOption("output")) outputFileString = cmd.getOptionValue("output");
+      if (cmd.hasOption("journal")) journalFileString = cmd.getOptionValue("journal");
+      if (cmd.hasOption("cache")) cacheRoot = new File(cmd.getOptionValue("cache"));
+      if (cmd.hasOption("cachesize")) cacheBytes = Long.parseLong(cmd.getOptionValue("cachesize")) * 1024 * 1024;
+      if (cmd.hasOption("dfacache")) dfaRoot = new File(cmd.getOptionValue("dfacache"));
+      if (cmd.hasOption("results")) resultsRoot = new File(cmd.getOptionValue("results"));
+      if (cmd.hasOption("index")) indexRoot = new File(cmd.getOptionValue("index"));
+      if (cmd.hasOption("engine")) {
+        engine = getEngine(cmd.getOptionValue("engine"));
+        if (engine == null) {
+          System.err.println("Unknown engine " + cmd.getOptionValue("engine"));
+          formatter.printHelp("kama", cliOptions, true);
+          return;
+        }
+      }
+      if (cmd.hasOption("p")) precompile = true;
+      if (cmd.hasOption("pipeline")) pipeline = true;
       if (cmd.hasOption("s")) displaySummary = true;
       if (cmd.hasOption("x")) {
         displaySummary = true;
         export = true;
       }
       
+      // Building a snapshot only needs the ontology
+      if (cmd.hasOption("buildsnapshot")) {
+        File snapshotFile = new File(cmd.getOptionValue("buildsnapshot"));
+        OntologySnapshot ontologySnapshot = createKama(owlFileString, null, dfaRoot, engine)
+            .createOntologySnapshot();
+        ontologySnapshot.write(snapshotFile);
+        System.out.println("Wrote " + ontologySnapshot.getTermCount() + " terms to "
+                           + snapshotFile.getAbsolutePath());
+        return;
+      }
+      
+      // Precompiling only needs the ontology and the ids
+      if (precompile && cmd.hasOption("idset")) {
+        Map<String,List<String>> idSets = getIdSets(cmd.getOptionValues("idset"));
+        if (idSets == null) {
+          return;
+        }
+        Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        if (kamaInstance.getDfaStore() == null) {
+          return;
+        }
+        kamaInstance.precompile(idSets);
+        System.out.println("Stored automata in " + kamaInstance.getDfaStore().getRoot().getAbsolutePath());
+        return;
+      }
+      if (precompile && inputOntologyAccessionIds != null) {
+        Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        if (kamaInstance.getDfaStore() == null) {
+          return;
+        }
+        kamaInstance.precompile(FileManipulators.fileToArrayList(new File(inputOntologyAccessionIds)));
+        System.out.println("Stored automata in " + kamaInstance.getDfaStore().getRoot().getAbsolutePath());
+        return;
+      }
+      
+      // Building the index only needs the cache
+      if (cmd.hasOption("buildindex")) {
+        CorpusIndex corpusIndex = new CorpusIndex(indexRoot);
+        int experiments = corpusIndex.build(new MageTabCache(cacheRoot, cacheBytes));
+        System.out.println("Indexed " + experiments + " experiments in " + indexRoot.getAbsolutePath());
+        return;
+      }
+      
+      // Answering from the index needs neither the input nor the network
+      if (cmd.hasOption("fromindex") && inputOntologyAccessionIds != null && outputFileString != null) {
+        PrintStream stdout = System.out;
+        if (STDIO.equals(outputFileString)) {
+          System.setOut(System.err);
+        }
+        Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        List<String> listOfExperimentAccessions = null;
+        if (STDIO.equals(inputExperimentList)) {
+          listOfExperimentAccessions = readAccessions(new BufferedReader(new InputStreamReader(System.in)));
+        } else if (inputExperimentList != null) {
+          listOfExperimentAccessions = readAccessions(new BufferedReader(
+              new FileReader(inputExperimentList)));
+        }
+        TsvWriter writer;
+        if (STDIO.equals(outputFileString)) {
+          writer = new TsvWriter(stdout, false);
+        } else {
+          writer = new TsvWriter(new File(outputFileString));
+        }
+        try {
+          runIndexMode(kamaInstance, new CorpusIndex(indexRoot), writer, listOfExperimentAccessions,
+            FileManipulators.fileToArrayList(new File(inputOntologyAccessionIds)));
+        } finally {
+          writer.close();
+          kamaInstance.close();
+        }
+        System.out.println("Run summary:");
+        System.out.print(kamaInstance.getMetrics().getSummary());
+        System.setOut(stdout);
+        return;
+      }
+      
+      // The server answers every request with the same Kama instance until it is killed
+      if (cmd.hasOption("server")) {
+        final Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        setDownloadOptions(kamaInstance, cmd, cacheRoot, cacheBytes);
+        if (inputOntologyAccessionIds != null) {
+          kamaInstance.precompile(FileManipulators.fileToArrayList(new File(inputOntologyAccessionIds)));
+        }
+        int requests = KamaServer.DEFAULT_CONCURRENT_REQUESTS;
+        int queue = KamaServer.DEFAULT_QUEUE_CAPACITY;
+        if (cmd.hasOption("requests")) requests = Integer.parseInt(cmd.getOptionValue("requests"));
+        if (cmd.hasOption("queue")) queue = Integer.parseInt(cmd.getOptionValue("queue"));
+        final KamaServer server = new KamaServer(kamaInstance, Integer.parseInt(cmd.getOptionValue("server")),
+            requests, queue);
+        final KamaMetrics metrics = kamaInstance.getMetrics();
+        metrics.register();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() {
+            server.stop(10);
+            kamaInstance.close();
+            metrics.unregister();
+          }
+        });
+        int port = server.start();
+        System.out.println("Answering requests on http://localhost:" + port + "/summary and /sample");
+        return;
+      }
+      
+      // Several id sets share the downloads and the reads of the files, and each gets an output of its own
+      if (cmd.hasOption("idset") && inputExperimentList != null && outputFileString != null) {
+        Map<String,List<String>> idSets = getIdSets(cmd.getOptionValues("idset"));
+        if (idSets == null) {
+          return;
+        }
+        if (inputOntologyAccessionIds != null || STDIO.equals(outputFileString)) {
+          System.err.println("-idset writes a file for each list, so it cannot be used with -ids or -output -");
+          return;
+        }
+        if (export || pipeline) {
+          System.err.println("-idset only writes the summary of each list, so it cannot be used with -export or "
+                             + "-pipeline");
+          formatter.printHelp("kama", cliOptions, true);
+          return;
+        }
+        Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        setDownloadOptions(kamaInstance, cmd, cacheRoot, cacheBytes);
+        BufferedReader experimentReader;
+        if (STDIO.equals(inputExperimentList)) {
+          experimentReader = new BufferedReader(new InputStreamReader(System.in));
+        } else {
+          experimentReader = new BufferedReader(new FileReader(inputExperimentList));
+        }
+        KamaMetrics metrics = kamaInstance.getMetrics();
+        metrics.register();
+        try {
+          runIdSetMode(kamaInstance, experimentReader, outputFileString, journalFileString, cmd.hasOption("r"),
+            resultsRoot == null ? null : new ResultStore(resultsRoot), displaySummary, idSets);
+        } finally {
+          experimentReader.close();
+          kamaInstance.close();
+          metrics.unregister();
+        }
+        System.out.println("Run summary:");
+        System.out.print(metrics.getSummary());
+        System.out.println("Cache statistics:");
+        System.out.print(kamaInstance.getCacheStatistics());
+        return;
+      }
+      
       // Continue only if:
       // -input is not null
       // -output is not null
       // -ids is not null
       if (inputOntologyAccessionIds != null && inputExperimentList != null && outputFileString != null) {
-        Kama kamaInstance;
-        
-        // Determine is a custom Ontology was entered
-        if (owlFileString != null) {
-          kamaInstance = new Kama(new File(owlFileString));
-        } else {
-          kamaInstance = new Kama();
+        // When the rows go to stdout, everything else Kama prints goes to stderr
+        PrintStream stdout = System.out;
+        if (STDIO.equals(outputFileString)) {
+          System.setOut(System.err);
         }
+        Kama kamaInstance = createKama(owlFileString, snapshotFileString, dfaRoot, engine);
+        setDownloadOptions(kamaInstance, cmd, cacheRoot, cacheBytes);
         
-        // Turn files into java objects
-        List<String> listOfExperimentAccessions = FileManipulators.fileToArrayList(new File(
-            inputExperimentList));
+        // The experiment accessions are read as they are needed, and the rows are written as they are made
         List<String> listOfOntologyAccessionIds = FileManipulators.fileToArrayList(new File(
             inputOntologyAccessionIds));
         
+        // The journal is opened before the output is replaced, in case it cannot be resumed
+        if (journalFileString == null && !STDIO.equals(outputFileString)) {
+          journalFileString = outputFileString + ".journal";
+        }
+        boolean resume = cmd.hasOption("r");
+        if (resume && export) {
+          System.err.println("-export needs the files of every experiment, so -resume is ignored");
+          resume = false;
+        } else if (resume && journalFileString == null) {
+          System.err.println("-resume needs -journal when the output goes to stdout");
+        }
+        String[] signature = getReportSignature(kamaInstance, displaySummary, listOfOntologyAccessionIds);
+        RunJournal journal = null;
+        if (journalFileString != null) {
+          try {
+            journal = new RunJournal(new File(journalFileString), signature, resume);
+          } catch (IOException e) {
+            System.err.println(e.getMessage());
+            kamaInstance.close();
+            System.setOut(stdout);
+            return;
+          }
+          if (journal.getCompletedCount() > 0) {
+            System.out.println("Resuming after " + journal.getCompletedCount() + " experiments from "
+                               + journal.getFile().getAbsolutePath());
+          }
+        }
+        // The rows are only kept between runs if asked to, since a stored row is trusted for as long as the
+        // files it was made from are the ones Kama downloads
+        ResultStore.Results results = resultsRoot == null ? null : new ResultStore(resultsRoot).open(signature);
+        StoredRows stored = new StoredRows(kamaInstance, journal, results);
+        
+        BufferedReader experimentReader;
+        if (STDIO.equals(inputExperimentList)) {
+          experimentReader = new BufferedReader(new InputStreamReader(System.in));
+        } else {
+          experimentReader = new BufferedReader(new FileReader(inputExperimentList));
+        }
+        TsvWriter writer;
+        if (STDIO.equals(outputFileString)) {
+          writer = new TsvWriter(stdout, false);
+        } else {
+          writer = new TsvWriter(new File(outputFileString));
+        }
+        // The metrics can be watched over JMX, ie with jconsole, while the run is live
+        KamaMetrics metrics = kamaInstance.getMetrics();
+        writer.setMetrics(metrics);
+        metrics.register();
+        
         // Two modes
         // Summary Mode - display summary on the idf/sdrf level
         // and the default mode which is on the sample level
-        if (displaySummary) {
-          runSummaryMode(kamaInstance, outputFileString, export, listOfExperimentAccessions,
-            listOfOntologyAccessionIds);
-        } else {
-          runSampleMode(kamaInstance, outputFileString, listOfExperimentAccessions,
-            listOfOntologyAccessionIds);
+        boolean completed = false;
+        try {
+          if (pipeline && export) {
+            System.err.println("-export needs every experiment before it can start, so -pipeline is ignored");
+          }
+          if (pipeline && !export) {
+            runPipelineMode(kamaInstance, writer, experimentReader, stored, displaySummary,
+              listOfOntologyAccessionIds);
+          } else if (displaySummary) {
+            runSummaryMode(kamaInstance, writer, experimentReader, stored, outputFileString, export,
+              listOfOntologyAccessionIds);
+          } else {
+            runSampleMode(kamaInstance, writer, experimentReader, stored, listOfOntologyAccessionIds);
+          }
+          completed = true;
+        } finally {
+          writer.close();
+          experimentReader.close();
+          kamaInstance.close();
+          metrics.unregister();
+          // The journal of a run that completed is not needed anymore
+          stored.close(completed);
         }
+        System.out.println("Reused the rows of " + stored.getRowsFromJournal()
+                           + " experiments from the journal and " + stored.getRowsFromResults()
+                           + " from the results store");
+        System.out.println("Run summary:");
+        System.out.print(metrics.getSummary());
+        System.out.println("Cache statistics:");
+        System.out.print(kamaInstance.getCacheStatistics());
+        System.setOut(stdout);
       } else {
-
+        formatter.printHelp("kama", cliOptions, true);
       }
     } catch (ParseException e) {
       // System.err.println( "Parsing failed.  Reason: " + e.getMessage() );
@@ -119,176 +464,706 @@ public class App {
     }
   }
   
-  private static void runSampleMode(Kama kamaInstance,
-                                    String outputFileString,
-                                    List<String> listOfExperimentAccessions,
-                                    List<String> listOfOntologyAccessionIds) throws MonqException {
-    // Sample Level Output
+  private static Kama createKama(String owlFileString,
+                                 String snapshotFileString,
+                                 File dfaRoot,
+                                 MatchingEngine engine) throws OntologyServiceException, IOException {
+    Kama kamaInstance;
     
-    // Start by making the header
-    StringBuilder outString = new StringBuilder();
-    outString.append("#AccessionId\tSample");
+    // Determine is a custom Ontology was entered
+    if (snapshotFileString != null) {
+      kamaInstance = new Kama(OntologySnapshot.read(new File(snapshotFileString)));
+    } else if (owlFileString != null) {
+      kamaInstance = new Kama(new File(owlFileString));
+    } else {
+      kamaInstance = new Kama();
+    }
+    try {
+      kamaInstance.setDfaStore(new DfaStore(dfaRoot));
+    } catch (IOException e) {
+      // The run still works, it compiles every automaton it needs
+      System.err.println(e.getMessage() + ". Compiled automata will not be kept");
+    }
+    kamaInstance.setEngine(engine);
+    return kamaInstance;
+  }
+  
+  /**
+   * Sets where Kama keeps and gets the MAGE-TAB files, how many it downloads and scans at once, and how much
+   * memory its caches use
+   */
+  private static void setDownloadOptions(Kama kamaInstance,
+                                         CommandLine cmd,
+                                         File cacheRoot,
+                                         long cacheBytes) {
+    kamaInstance.setMageTabCache(new MageTabCache(cacheRoot, cacheBytes));
+    if (cmd.hasOption("recheck") && !cmd.hasOption("offline")) {
+      kamaInstance.setCachedFileCheckInterval(Long.parseLong(cmd.getOptionValue("recheck")) * 60 * 60 * 1000);
+    }
+    if (cmd.hasOption("memory")) {
+      kamaInstance.setCacheMemory(Long.parseLong(cmd.getOptionValue("memory")) * 1024 * 1024);
+    }
+    if (cmd.hasOption("connections")) {
+      kamaInstance.setDownloadConnections(Integer.parseInt(cmd.getOptionValue("connections")));
+    }
+    if (cmd.hasOption("threads")) {
+      kamaInstance.setWorkers(Integer.parseInt(cmd.getOptionValue("threads")));
+    }
+    if (cmd.hasOption("ftp")) {
+      setFtpServer(kamaInstance, cmd.getOptionValue("ftp"));
+    }
+  }
+  
+  /**
+   * Points Kama at the FTP server given as host:port/path. The port defaults to 21 and the path to the root
+   * of the server.
+   * 
+   * @param kamaInstance
+   *          the Kama instance
+   * @param address
+   *          the server, ie localhost:2121/pub/databases/microarray/data/experiment/
+   */
+  private static void setFtpServer(Kama kamaInstance, String address) {
+    String path = "/";
+    int slash = address.indexOf('/');
+    if (slash != -1) {
+      path = address.substring(slash);
+      address = address.substring(0, slash);
+    }
+    int port = 21;
+    int colon = address.indexOf(':');
+    if (colon != -1) {
+      port = Integer.parseInt(address.substring(colon + 1));
+      address = address.substring(0, colon);
+    }
+    kamaInstance.setFtpServer(address, port, path);
+  }
+  
+  /**
+   * Gets a matching engine by its name
+   * 
+   * @param name
+   *          the name of the engine, ie "monq"
+   * @return the engine, or null if there is no engine of that name
+   */
+  private static MatchingEngine getEngine(String name) {
+    if (MonqEngine.NAME.equals(name)) {
+      return new MonqEngine();
+    } else if (AhoCorasickEngine.NAME.equals(name)) {
+      return new AhoCorasickEngine();
+    }
+    return null;
+  }
+  
+  /**
+   * Gets what the rows of a run depend on: the mode, the dictionary and the ontology accession ids. A
+   * journal or results store with a different signature cannot be used.
+   */
+  private static String[] getReportSignature(Kama kamaInstance,
+                                             boolean displaySummary,
+                                             List<String> listOfOntologyAccessionIds) {
+    List<String> signature = new ArrayList<String>();
+    signature.add(displaySummary ? "summary" : "sample");
+    signature.add(kamaInstance.getDictionaryFingerprint(listOfOntologyAccessionIds));
+    signature.addAll(listOfOntologyAccessionIds);
+    return signature.toArray(new String[signature.size()]);
+  }
+  
+  private static void writeRows(TsvWriter writer, List<String[]> rows) throws IOException {
+    for (String[] row : rows) {
+      writer.writeRow(row);
+    }
+  }
+  
+  /**
+   * Reads the next experiment accessions. It takes at most BATCH_SIZE, and after the first one only those
+   * that can be read without waiting, so that a pipeline gets its rows as soon as it has written an
+   * accession.
+   * 
+   * @return the accessions, or an empty list at the end of the input
+   */
+  private static List<String> readBatch(BufferedReader experimentReader) throws IOException {
+    List<String> batch = new ArrayList<String>();
+    String line;
+    while (batch.size() < BATCH_SIZE && (batch.isEmpty() || experimentReader.ready())
+           && (line = experimentReader.readLine()) != null) {
+      line = line.trim();
+      if (line.length() > 0) {
+        batch.add(line);
+      }
+    }
+    return batch;
+  }
+  
+  private static List<String> readAccessions(BufferedReader experimentReader) throws IOException {
+    List<String> accessions = new ArrayList<String>();
+    try {
+      List<String> batch;
+      while (!(batch = readBatch(experimentReader)).isEmpty()) {
+        accessions.addAll(batch);
+      }
+    } finally {
+      experimentReader.close();
+    }
+    return accessions;
+  }
+  
+  static String[] getSampleHeader(List<String> listOfOntologyAccessionIds) {
+    List<String> header = new ArrayList<String>();
+    header.add("AccessionId");
+    header.add("Sample");
     for (String ontoAccession : listOfOntologyAccessionIds) {
-      outString.append("\t" + ontoAccession + "_idf");
-      outString.append("\t" + ontoAccession + "_sample");
+      header.add(ontoAccession + "_idf");
+      header.add(ontoAccession + "_sample");
     }
-    outString.append("\tTerms\n");
-    
-    // For each ontology class, save the experimentToCount hashmap on the idf scope.
-    Map<String,Map<String,Integer>> ontologyAccessionIdsToIDFCountHashMap = new HashMap<String,Map<String,Integer>>();
+    header.add("Terms");
+    return header.toArray(new String[header.size()]);
+  }
+  
+  private static void runSampleMode(Kama kamaInstance,
+                                    TsvWriter writer,
+                                    BufferedReader experimentReader,
+                                    StoredRows stored,
+                                    List<String> listOfOntologyAccessionIds) throws MonqException,
+                                                                            IOException {
+    // Sample Level Output
     
-    ArrayList<String> tempList = new ArrayList<String>();
-    for (String ontologyAccessionId : listOfOntologyAccessionIds) {
-      tempList.clear();
-      tempList.add(ontologyAccessionId);
-      ontologyAccessionIdsToIDFCountHashMap.put(ontologyAccessionId, kamaInstance
-          .getCountMapForListOfAccessions(listOfExperimentAccessions, Scope.idf, tempList));
-    }
+    // Start by making the header
+    writer.writeHeader(getSampleHeader(listOfOntologyAccessionIds));
     
     // For each experiment find the total counts using all the accession
     int i = 0;
-    for (String experimentAccession : listOfExperimentAccessions) {
-      System.out.print("\rWorking on experiment " + i + "/" + listOfExperimentAccessions.size() + "\t"
-                       + experimentAccession);
-      i++;
-      
-      Map<String,Integer> sampleToCountHash = kamaInstance.getCountMapForExperimentCELFiles(
-        experimentAccession, listOfOntologyAccessionIds);
-      if (sampleToCountHash.size() == 0) {
-        System.out.println(experimentAccession
-                           + " is null. May not contain ADF or may not be a valid accession");
-        continue;
-      }
+    List<String> listOfExperimentAccessions;
+    while (!(listOfExperimentAccessions = readBatch(experimentReader)).isEmpty()) {
+      // One scan of every IDF counts all the ontology classes at once
+      Map<String,OntologyIdCounts> experimentToIDFCounts = kamaInstance.getOntologyIdCountsForListOfAccessions(
+        stored.getAccessionsToRun(listOfExperimentAccessions), Scope.idf, listOfOntologyAccessionIds);
       
-      // For each experiment, and each ontolgyTerm, save the sampleToCount hashMap to save recomputing
-      // it at every sample
-      Map<String,Map<String,Integer>> ontologyTermToSampleCountHashMap = new HashMap<String,Map<String,Integer>>();
-      for (String ontoAccessionID : listOfOntologyAccessionIds) {
-        tempList.clear();
-        tempList.add(ontoAccessionID);
-        ontologyTermToSampleCountHashMap.put(ontoAccessionID, kamaInstance.getCountMapForExperimentCELFiles(
-          experimentAccession, tempList));
-      }
-      
-      Map<String,Map<String,Integer>> ontologyAccessionIdsToSampleLevelTerm = kamaInstance
-          .getCountOfEachTermPerSample(experimentAccession, listOfOntologyAccessionIds);
-      
-      // Just iterate through the samples
-      for (String sample : sampleToCountHash.keySet()) {
-        
-        String row = "";
-        row += (experimentAccession + "\t" + sample + "\t");
-        // For each ontology accession id , get the count in the IDF and the count in the specific
-        // sample
-        for (String ontoAccessionID : listOfOntologyAccessionIds) {
-          row += ontologyAccessionIdsToIDFCountHashMap.get(ontoAccessionID).get(experimentAccession)
-              .intValue();
-          row += "\t";
-          row += ontologyTermToSampleCountHashMap.get(ontoAccessionID).get(sample).intValue() + "\t";
-          
-        }
-        // Put terms
-        Map<String,Integer> termsMap = ontologyAccessionIdsToSampleLevelTerm.get(sample);
-        for (String term : termsMap.keySet()) {
-          row += term + ":" + termsMap.get(term).intValue() + ";";
+      for (String experimentAccession : listOfExperimentAccessions) {
+        System.out.print("\rWorking on experiment " + i + "\t" + experimentAccession);
+        i++;
+        List<String[]> rows = stored.getRows(experimentAccession);
+        if (rows != null) {
+          writeRows(writer, rows);
+          continue;
         }
         
-        outString.append(row);
-        outString.append("\n");
+        // One scan of the SDRF gives the count of each ontology class and the terms of every sample
+        Map<String,OntologyIdCounts> sampleToCounts = kamaInstance.getOntologyIdCountsPerSample(
+          experimentAccession, listOfOntologyAccessionIds);
+        if (sampleToCounts.size() == 0) {
+          System.out.println(experimentAccession
+                             + " is null. May not contain ADF or may not be a valid accession");
+          continue;
+        }
+        OntologyIdCounts idfCounts = experimentToIDFCounts.get(experimentAccession);
+        if (idfCounts == null) {
+          idfCounts = new OntologyIdCounts();
+        }
         
+        rows = getSampleRows(experimentAccession, idfCounts, sampleToCounts, listOfOntologyAccessionIds);
+        writeRows(writer, rows);
+        stored.record(experimentAccession, rows);
       }
+      // The rows of a batch are complete, so a pipeline can have them now
+      writer.flush();
     }
     System.out.println();
-    FileManipulators.stringToFile(outputFileString, outString.toString());
-    
   }
   
   private static void runSummaryMode(Kama kamaInstance,
+                                     TsvWriter writer,
+                                     BufferedReader experimentReader,
+                                     StoredRows stored,
                                      String outputFileString,
                                      boolean export,
-                                     List<String> listOfExperimentAccessions,
                                      List<String> listOfOntologyAccessionIds) throws MonqException,
                                                                              IOException {
-    System.out.println("Getting IDF Counts");
-    Map<String,Integer> idfCount = kamaInstance.getCountMapForListOfAccessions(listOfExperimentAccessions,
+    writer.writeHeader(getSummaryHeader());
+    
+    // Only the accessions are kept for the export, never the rows
+    List<String> listOfExportedAccessions = new ArrayList<String>();
+    int i = 0;
+    List<String> listOfExperimentAccessions;
+    while (!(listOfExperimentAccessions = readBatch(experimentReader)).isEmpty()) {
+      List<String> listOfAccessionsToRun = stored.getAccessionsToRun(listOfExperimentAccessions);
+      System.out.println("Getting IDF Counts");
+      Map<String,Integer> idfCount = kamaInstance.getCountMapForListOfAccessions(listOfAccessionsToRun,
+        Scope.idf, listOfOntologyAccessionIds);
+      System.out.println("Getting SDRF Counts");
+      Map<String,Integer> sdrfCount = kamaInstance.getCountMapForListOfAccessions(listOfAccessionsToRun,
+        Scope.sdrf, listOfOntologyAccessionIds);
+      System.out.println("Getting Assay Counts");
+      Map<String,Integer> assayCount = kamaInstance.getCountOfAssaysPerExperiment(listOfAccessionsToRun);
+      
+      if (idfCount.size() != sdrfCount.size()) {
+        System.err.println("There was an error fetching files. SDRF files are not equal to IDF Files");
+        System.err.println("Will Print Out Experiments That Have both SDRF and IDFs");
+      }
+      for (String accession : listOfExperimentAccessions) {
+        
+        List<String[]> rows = stored.getRows(accession);
+        if (rows != null) {
+          writeRows(writer, rows);
+        } else if (idfCount.get(accession) != null && sdrfCount.get(accession) != null) {
+          rows = new ArrayList<String[]>();
+          rows.add(getSummaryRow(kamaInstance, accession, assayCount.get(accession), idfCount.get(accession),
+            sdrfCount.get(accession), listOfOntologyAccessionIds));
+          writeRows(writer, rows);
+          stored.record(accession, rows);
+        } else {
+          System.out.println(accession + " does not have both Magetab files");
+          continue;
+        }
+        System.out.print("\rWorking on experiment " + i);
+        i++;
+      }
+      writer.flush();
+      if (export) {
+        listOfExportedAccessions.addAll(listOfExperimentAccessions);
+      }
+    }
+    System.out.println();
+    
+    if (export) {
+      exportFiles(kamaInstance, outputFileString, listOfExportedAccessions, listOfOntologyAccessionIds);
+    }
+  }
+  
+  /**
+   * Writes the same rows as the summary mode, with the counts looked up in the corpus index. The assays are
+   * the rows of the SDRF below the header.
+   */
+  private static void runIndexMode(Kama kamaInstance,
+                                   CorpusIndex corpusIndex,
+                                   TsvWriter writer,
+                                   List<String> listOfExperimentAccessions,
+                                   List<String> listOfOntologyAccessionIds) throws IOException {
+    writer.writeHeader(getSummaryHeader());
+    
+    Map<String,Map<String,Integer>> idfTerms = kamaInstance.getCountOfEachTermFromIndex(corpusIndex,
       Scope.idf, listOfOntologyAccessionIds);
-    System.out.println("Getting SDRF Counts");
-    Map<String,Integer> sdrfCount = kamaInstance.getCountMapForListOfAccessions(listOfExperimentAccessions,
+    Map<String,Map<String,Integer>> sdrfTerms = kamaInstance.getCountOfEachTermFromIndex(corpusIndex,
       Scope.sdrf, listOfOntologyAccessionIds);
-    System.out.println("Getting Assay Counts");
-    Map<String,Integer> assayCount = kamaInstance.getCountOfAssaysPerExperiment(listOfExperimentAccessions);
-    
-    if (idfCount.size() != sdrfCount.size()) {
-      System.err.println("There was an error fetching files. SDRF files are not equal to IDF Files");
-      System.err.println("Will Print Out Experiments That Have both SDRF and IDFs");
+    Map<String,Integer> sdrfRows = corpusIndex.getRowCounts(Scope.sdrf);
+    Map<String,Integer> idfRows = corpusIndex.getRowCounts(Scope.idf);
+    if (listOfExperimentAccessions == null) {
+      listOfExperimentAccessions = corpusIndex.getAccessions(Scope.both);
     }
-    StringBuilder outString = new StringBuilder();
     
-    outString.append("#AccessionId\tAssays\tIDF\tSDRF\tTerms");
-    int i = 0;
     for (String accession : listOfExperimentAccessions) {
+      if (!sdrfRows.containsKey(accession) || !idfRows.containsKey(accession)) {
+        System.out.println(accession + " does not have both Magetab files in the index");
+        continue;
+      }
+      writer.writeRow(getSummaryRow(accession, Math.max(0, sdrfRows.get(accession) - 1), idfTerms
+          .get(accession), sdrfTerms.get(accession)));
+    }
+  }
+  
+  /**
+   * Gets the summary row of an experiment from the count of each term in its IDF and in its SDRF
+   */
+  private static String[] getSummaryRow(String accession,
+                                        Integer assays,
+                                        Map<String,Integer> idfTerms,
+                                        Map<String,Integer> sdrfTerms) {
+    Map<String,Integer> termCounts = new HashMap<String,Integer>();
+    int idf = addTermCounts(termCounts, idfTerms);
+    int sdrf = addTermCounts(termCounts, sdrfTerms);
+    StringBuilder terms = new StringBuilder();
+    for (String term : termCounts.keySet()) {
+      terms.append(term).append(':').append(termCounts.get(term)).append(';');
+    }
+    return new String[] {accession, String.valueOf(assays), Integer.toString(idf), Integer.toString(sdrf),
+                         terms.toString()};
+  }
+  
+  /**
+   * Adds the counts of one file to the counts of the experiment
+   * 
+   * @return the total count of the file
+   */
+  private static int addTermCounts(Map<String,Integer> termCounts, Map<String,Integer> fileCounts) {
+    int total = 0;
+    if (fileCounts == null) {
+      return total;
+    }
+    for (Map.Entry<String,Integer> entry : fileCounts.entrySet()) {
+      Integer count = termCounts.get(entry.getKey());
+      termCounts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+      total += entry.getValue();
+    }
+    return total;
+  }
+  
+  /**
+   * Gets the rows of the samples of one experiment: for each ontology accession id the count in the IDF and
+   * in the sample, then the terms found in the sample.
+   */
+  private static List<String[]> getSampleRows(String experimentAccession,
+                                              OntologyIdCounts idfCounts,
+                                              Map<String,OntologyIdCounts> sampleToCounts,
+                                              List<String> listOfOntologyAccessionIds) {
+    List<String[]> rows = new ArrayList<String[]>();
+    // Just iterate through the samples
+    for (String sample : sampleToCounts.keySet()) {
+      OntologyIdCounts counts = sampleToCounts.get(sample);
       
-      if (idfCount.get(accession) != null && sdrfCount.get(accession) != null) {
-        outString.append("\n");
-        outString.append(accession + "\t");
-        outString.append(assayCount.get(accession).toString() + "\t");
-        outString.append(idfCount.get(accession) + "\t");
-        outString.append(sdrfCount.get(accession) + "\t");
-        outString.append(kamaInstance.getCountOfEachTermInExperimentAsString(accession, Scope.both,
-          listOfOntologyAccessionIds));
+      String[] row = new String[3 + 2 * listOfOntologyAccessionIds.size()];
+      int column = 0;
+      row[column++] = experimentAccession;
+      row[column++] = sample;
+      // For each ontology accession id , get the count in the IDF and the count in the specific
+      // sample
+      for (String ontoAccessionID : listOfOntologyAccessionIds) {
+        row[column++] = Integer.toString(idfCounts.getCount(ontoAccessionID));
+        row[column++] = Integer.toString(counts.getCount(ontoAccessionID));
+      }
+      // Put terms
+      StringBuilder terms = new StringBuilder();
+      Map<String,Integer> termsMap = counts.getTermCounts();
+      for (String term : termsMap.keySet()) {
+        terms.append(term).append(':').append(termsMap.get(term).intValue()).append(';');
+      }
+      row[column++] = terms.toString();
+      rows.add(row);
+    }
+    return rows;
+  }
+  
+  private static String[] getSummaryRow(Kama kamaInstance,
+                                        String accession,
+                                        Integer assays,
+                                        Integer idf,
+                                        Integer sdrf,
+                                        List<String> listOfOntologyAccessionIds) throws MonqException {
+    return new String[] {accession, String.valueOf(assays), idf.toString(), sdrf.toString(),
+                         kamaInstance.getCountOfEachTermInExperimentAsString(accession, Scope.both,
+                           listOfOntologyAccessionIds)};
+  }
+  
+  static String[] getSummaryHeader() {
+    return new String[] {"AccessionId", "Assays", "IDF", "SDRF", "Terms"};
+  }
+  
+  /**
+   * Gets the summary row of one experiment at a time, as the pipeline and the server need them
+   */
+  static KamaPipeline.ExperimentReport getSummaryReport(final Kama kamaInstance,
+                                                        final List<String> listOfOntologyAccessionIds) {
+    return new KamaPipeline.ExperimentReport() {
+      public List<String[]> getRows(String accession) throws MonqException {
+        List<String> experiment = Collections.singletonList(accession);
+        List<String[]> rows = new ArrayList<String[]>();
+        Integer idf = kamaInstance.getCountMapForListOfAccessions(experiment, Scope.idf,
+          listOfOntologyAccessionIds).get(accession);
+        Integer sdrf = kamaInstance.getCountMapForListOfAccessions(experiment, Scope.sdrf,
+          listOfOntologyAccessionIds).get(accession);
+        if (idf != null && sdrf != null) {
+          Integer assays = kamaInstance.getCountOfAssaysPerExperiment(experiment).get(accession);
+          rows.add(getSummaryRow(kamaInstance, accession, assays, idf, sdrf, listOfOntologyAccessionIds));
+        } else {
+          System.out.println(accession + " does not have both Magetab files");
+        }
+        return rows;
+      }
+    };
+  }
+  
+  /**
+   * Gets the sample rows of one experiment at a time, as the pipeline and the server need them
+   */
+  static KamaPipeline.ExperimentReport getSampleReport(final Kama kamaInstance,
+                                                       final List<String> listOfOntologyAccessionIds) {
+    return new KamaPipeline.ExperimentReport() {
+      public List<String[]> getRows(String accession) throws MonqException {
+        Map<String,OntologyIdCounts> sampleToCounts = kamaInstance.getOntologyIdCountsPerSample(accession,
+          listOfOntologyAccessionIds);
+        if (sampleToCounts.size() == 0) {
+          System.out.println(accession + " is null. May not contain ADF or may not be a valid accession");
+          return new ArrayList<String[]>();
+        }
+        OntologyIdCounts idfCounts = kamaInstance.getOntologyIdCountsForListOfAccessions(
+          Collections.singletonList(accession), Scope.idf, listOfOntologyAccessionIds).get(accession);
+        if (idfCounts == null) {
+          idfCounts = new OntologyIdCounts();
+        }
+        return getSampleRows(accession, idfCounts, sampleToCounts, listOfOntologyAccessionIds);
+      }
+    };
+  }
+  
+  /**
+   * Runs the sample or the summary mode as a pipeline, see {@link KamaPipeline}. Each experiment is fetched,
+   * scanned and written on its own, so the rows appear while later experiments are still downloading.
+   */
+  private static void runPipelineMode(Kama kamaInstance,
+                                      TsvWriter writer,
+                                      BufferedReader experimentReader,
+                                      final StoredRows stored,
+                                      boolean displaySummary,
+                                      List<String> listOfOntologyAccessionIds) throws MonqException,
+                                                                                      IOException {
+    KamaPipeline.ExperimentReport report;
+    if (displaySummary) {
+      writer.writeHeader(getSummaryHeader());
+      report = getSummaryReport(kamaInstance, listOfOntologyAccessionIds);
+    } else {
+      writer.writeHeader(getSampleHeader(listOfOntologyAccessionIds));
+      report = getSampleReport(kamaInstance, listOfOntologyAccessionIds);
+    }
+    // The scanners read the stored rows, and record the others
+    final KamaPipeline.ExperimentReport unstoredReport = report;
+    report = new KamaPipeline.ExperimentReport() {
+      public List<String[]> getRows(String accession) throws MonqException {
+        try {
+          List<String[]> rows = stored.getRows(accession);
+          if (rows == null) {
+            rows = unstoredReport.getRows(accession);
+            stored.record(accession, rows);
+          }
+          return rows;
+        } catch (IOException e) {
+          throw new MonqException(e);
+        }
+      }
+    };
+    KamaPipeline kamaPipeline = new KamaPipeline(kamaInstance, KamaPipeline.DEFAULT_CAPACITY);
+    kamaPipeline.setCompletedExperiments(stored.getJournaledAccessions());
+    kamaPipeline.run(experimentReader, report, writer);
+  }
+  
+  /**
+   * Reads the id sets given as name=file
+   * 
+   * @param values
+   *          the values of -idset
+   * @return the 'set name' to 'ontology accession ids' map in the order they were given, or null if one of
+   *         them is not valid
+   */
+  private static Map<String,List<String>> getIdSets(String[] values) {
+    Map<String,List<String>> idSets = new LinkedHashMap<String,List<String>>();
+    for (String value : values) {
+      int equals = value.indexOf('=');
+      String name = equals == -1 ? "" : value.substring(0, equals);
+      if (!name.matches("[A-Za-z0-9_-]+") || idSets.containsKey(name)) {
+        System.err.println("-idset needs a name of its own, of letters, digits, - and _, before the file, "
+                           + "ie blood=blood.txt: " + value);
+        return null;
+      }
+      idSets.put(name, FileManipulators.fileToArrayList(new File(value.substring(equals + 1))));
+    }
+    return idSets;
+  }
+  
+  /**
+   * Gets the file of one id set, with the name of the set before the extension
+   * 
+   * @param fileString
+   *          the file of the run, ie output.txt
+   * @param name
+   *          the name of the id set, ie blood
+   * @return the file of the id set, ie output.blood.txt
+   */
+  static String getIdSetFile(String fileString, String name) {
+    int dot = fileString.lastIndexOf('.');
+    int slash = Math.max(fileString.lastIndexOf('/'), fileString.lastIndexOf(File.separatorChar));
+    if (dot <= slash + 1) {
+      return fileString + "." + name;
+    }
+    return fileString.substring(0, dot) + "." + name + fileString.substring(dot);
+  }
+  
+  /**
+   * Runs the sample or the summary mode for several id sets at once. The files of each batch are downloaded
+   * once, each file is read once and scanned by the automaton of every set, and the rows of each set go to an
+   * output, a journal and a results store entry of their own. The rows a set has stored are not made again,
+   * while the files are still scanned for the sets that need them. The results store may be null.
+   */
+  private static void runIdSetMode(Kama kamaInstance,
+                                   BufferedReader experimentReader,
+                                   String outputFileString,
+                                   String journalFileString,
+                                   boolean resume,
+                                   ResultStore resultStore,
+                                   boolean displaySummary,
+                                   Map<String,List<String>> mapOfNameToOntologyAccessionIds) throws MonqException,
+                                                                                             IOException {
+    // The journals are opened before any output is replaced, in case one of them cannot be resumed
+    Map<String,StoredRows> mapOfNameToStored = new LinkedHashMap<String,StoredRows>();
+    for (String name : mapOfNameToOntologyAccessionIds.keySet()) {
+      String journalFile = journalFileString == null ? getIdSetFile(outputFileString, name) + ".journal"
+          : getIdSetFile(journalFileString, name);
+      String[] signature = getReportSignature(kamaInstance, displaySummary, mapOfNameToOntologyAccessionIds
+          .get(name));
+      RunJournal journal;
+      try {
+        journal = new RunJournal(new File(journalFile), signature, resume);
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+        for (StoredRows stored : mapOfNameToStored.values()) {
+          stored.close(false);
+        }
+        return;
+      }
+      if (journal.getCompletedCount() > 0) {
+        System.out.println("Resuming " + name + " after " + journal.getCompletedCount()
+                           + " experiments from " + journal.getFile().getAbsolutePath());
+      }
+      mapOfNameToStored.put(name, new StoredRows(kamaInstance, journal, resultStore == null ? null : resultStore
+          .open(signature)));
+    }
+    Map<String,TsvWriter> mapOfNameToWriter = new LinkedHashMap<String,TsvWriter>();
+    for (String name : mapOfNameToOntologyAccessionIds.keySet()) {
+      TsvWriter writer = new TsvWriter(new File(getIdSetFile(outputFileString, name)));
+      writer.setMetrics(kamaInstance.getMetrics());
+      if (displaySummary) {
+        writer.writeHeader(getSummaryHeader());
       } else {
-        System.out.println(accession + " does not have both Magetab files");
-        continue;
+        writer.writeHeader(getSampleHeader(mapOfNameToOntologyAccessionIds.get(name)));
       }
-      System.out.print("\rWorking on experiment " + i);
-      i++;
+      mapOfNameToWriter.put(name, writer);
     }
-    System.out.println();
-    // Write the file
-    FileManipulators.stringToFile(outputFileString, outString.toString());
     
-    if (export) {
-      Map<String,File> idfHash = kamaInstance.getCompleteIDFMap();
-      Map<String,File> sdrfHash = kamaInstance.getCompleteSDRFMap();
-      Map<String,Integer> bothCount = kamaInstance.getCountMapForListOfAccessions(listOfExperimentAccessions,
-        Scope.both, listOfOntologyAccessionIds);
-      
-      File outFile = new File(outputFileString);
-      String outDir = outFile.getParent();
-      
-      // Make top level directories
-      System.out.println("Making top level directories...");
-      File yesdir = new File(outDir + "/positive");
-      yesdir.delete();
-      yesdir.mkdir();
-      File nodir = new File(outDir + "/negative");
-      nodir.delete();
-      nodir.mkdir();
-      
-      for (String experimentAccession : listOfExperimentAccessions) {
+    boolean completed = false;
+    try {
+      int i = 0;
+      List<String> listOfExperimentAccessions;
+      while (!(listOfExperimentAccessions = readBatch(experimentReader)).isEmpty()) {
+        // The experiments that any of the sets has to make rows for
+        Set<String> setOfAccessionsToRun = new LinkedHashSet<String>();
+        for (StoredRows stored : mapOfNameToStored.values()) {
+          setOfAccessionsToRun.addAll(stored.getAccessionsToRun(listOfExperimentAccessions));
+        }
+        List<String> listOfAccessionsToRun = new ArrayList<String>(setOfAccessionsToRun);
         
-        if (idfHash.containsKey(experimentAccession) && sdrfHash.containsKey(experimentAccession)) {
-          
-          // Yes it does contain a member
-          
-          File dir;
-          if (bothCount.get(experimentAccession).intValue() != 0) {
-            dir = new File(yesdir.getAbsolutePath() + "/" + experimentAccession);
-          } else {// No it does not
-            dir = new File(nodir.getAbsolutePath() + "/" + experimentAccession);
+        Map<String,Map<String,Map<String,Integer>>> idfTerms = null;
+        Map<String,Map<String,Map<String,Integer>>> sdrfTerms = null;
+        Map<String,Integer> assayCount = null;
+        Map<String,Map<String,OntologyIdCounts>> idfCounts = null;
+        if (displaySummary) {
+          idfTerms = kamaInstance.getCountOfEachTermForIdSets(listOfAccessionsToRun, Scope.idf,
+            mapOfNameToOntologyAccessionIds);
+          sdrfTerms = kamaInstance.getCountOfEachTermForIdSets(listOfAccessionsToRun, Scope.sdrf,
+            mapOfNameToOntologyAccessionIds);
+          assayCount = kamaInstance.getCountOfAssaysPerExperiment(listOfAccessionsToRun);
+        } else {
+          idfCounts = kamaInstance.getOntologyIdCountsForIdSets(listOfAccessionsToRun, Scope.idf,
+            mapOfNameToOntologyAccessionIds);
+        }
+        
+        for (String accession : listOfExperimentAccessions) {
+          System.out.print("\rWorking on experiment " + i + "\t" + accession);
+          i++;
+          // The SDRF of the experiment is scanned for every set the first time a set needs it
+          Map<String,Map<String,OntologyIdCounts>> sampleCounts = null;
+          boolean missing = false;
+          for (String name : mapOfNameToOntologyAccessionIds.keySet()) {
+            StoredRows stored = mapOfNameToStored.get(name);
+            List<String[]> rows = stored.getRows(accession);
+            if (rows == null && displaySummary) {
+              if (!idfTerms.containsKey(accession) || !sdrfTerms.containsKey(accession)) {
+                missing = true;
+                continue;
+              }
+              rows = new ArrayList<String[]>();
+              rows.add(getSummaryRow(accession, assayCount.get(accession), idfTerms.get(accession).get(name),
+                sdrfTerms.get(accession).get(name)));
+              stored.record(accession, rows);
+            } else if (rows == null) {
+              if (sampleCounts == null) {
+                sampleCounts = kamaInstance.getOntologyIdCountsPerSampleForIdSets(accession,
+                  mapOfNameToOntologyAccessionIds);
+              }
+              if (sampleCounts.isEmpty()) {
+                missing = true;
+                continue;
+              }
+              OntologyIdCounts counts = idfCounts.containsKey(accession) ? idfCounts.get(accession).get(name)
+                  : new OntologyIdCounts();
+              rows = getSampleRows(accession, counts, sampleCounts.get(name), mapOfNameToOntologyAccessionIds
+                  .get(name));
+              stored.record(accession, rows);
+            }
+            writeRows(mapOfNameToWriter.get(name), rows);
+          }
+          if (missing && displaySummary) {
+            System.out.println(accession + " does not have both Magetab files");
+          } else if (missing) {
+            System.out.println(accession + " is null. May not contain ADF or may not be a valid accession");
           }
-          dir.delete();
-          dir.mkdir();
-          File targetIDF = new File(dir.getAbsolutePath() + "/" + experimentAccession + ".idf.txt");
-          File targetSDRF = new File(dir.getAbsolutePath() + "/" + experimentAccession + ".sdrf.txt");
-          
-          FileUtils.copyFile(idfHash.get(experimentAccession), targetIDF);
-          FileUtils.copyFile(sdrfHash.get(experimentAccession), targetSDRF);
-          System.out.println(experimentAccession + " created");
+        }
+        for (TsvWriter writer : mapOfNameToWriter.values()) {
+          writer.flush();
         }
       }
-      
+      System.out.println();
+      completed = true;
+    } finally {
+      for (TsvWriter writer : mapOfNameToWriter.values()) {
+        writer.close();
+      }
+      // The journals of a run that completed are not needed anymore
+      for (StoredRows stored : mapOfNameToStored.values()) {
+        stored.close(completed);
+      }
     }
+    for (String name : mapOfNameToStored.keySet()) {
+      StoredRows stored = mapOfNameToStored.get(name);
+      System.out.println("Wrote " + getIdSetFile(outputFileString, name) + ", reusing the rows of "
+                         + stored.getRowsFromJournal() + " experiments from the journal and "
+                         + stored.getRowsFromResults() + " from the results store");
+    }
+  }
+  
+  /**
+   * Copies the MAGE-TAB files of every experiment into a 'positive' or a 'negative' directory next to the
+   * output file, depending on whether they mention the ontology accession ids.
+   */
+  private static void exportFiles(Kama kamaInstance,
+                                  String outputFileString,
+                                  List<String> listOfExperimentAccessions,
+                                  List<String> listOfOntologyAccessionIds) throws MonqException, IOException {
+    Map<String,File> idfHash = kamaInstance.getCompleteIDFMap();
+    Map<String,File> sdrfHash = kamaInstance.getCompleteSDRFMap();
+    Map<String,Integer> bothCount = kamaInstance.getCountMapForListOfAccessions(listOfExperimentAccessions,
+      Scope.both, listOfOntologyAccessionIds);
+    
+    // The current directory when the rows went to stdout
+    File outFile = new File(outputFileString).getAbsoluteFile();
+    String outDir = outFile.getParent();
     
+    // Make top level directories
+    System.out.println("Making top level directories...");
+    File yesdir = new File(outDir + "/positive");
+    yesdir.delete();
+    yesdir.mkdir();
+    File nodir = new File(outDir + "/negative");
+    nodir.delete();
+    nodir.mkdir();
+    
+    for (String experimentAccession : listOfExperimentAccessions) {
+      
+      if (idfHash.containsKey(experimentAccession) && sdrfHash.containsKey(experimentAccession)) {
+        
+        // Yes it does contain a member
+        
+        File dir;
+        if (bothCount.get(experimentAccession).intValue() != 0) {
+          dir = new File(yesdir.getAbsolutePath() + "/" + experimentAccession);
+        } else {// No it does not
+          dir = new File(nodir.getAbsolutePath() + "/" + experimentAccession);
+        }
+        dir.delete();
+        dir.mkdir();
+        File targetIDF = new File(dir.getAbsolutePath() + "/" + experimentAccession + ".idf.txt");
+        File targetSDRF = new File(dir.getAbsolutePath() + "/" + experimentAccession + ".sdrf.txt");
+        
+        FileUtils.copyFile(idfHash.get(experimentAccession), targetIDF);
+        FileUtils.copyFile(sdrfHash.get(experimentAccession), targetSDRF);
+        System.out.println(experimentAccession + " created");
+      }
+    }
   }
 }
@@ -0,0 +1,251 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * A non-blocking front of a {@link Kama} instance for services that embed it. Every method returns at once
+ * with a CompletableFuture of one experiment, and the experiment is downloaded and scanned by the executor
+ * the caller gave. The caller's thread never waits for the network or a scan, and the executor decides how
+ * many experiments are worked on at once. Give it a pool: an executor that runs tasks on the calling thread
+ * blocks the caller like Kama does.
+ * 
+ * A future fails with a {@link CompletionException} whose cause is the {@link MonqException} of the scan.
+ * 
+ * To work through more experiments than should be started at once, use
+ * {@link #forEachExperiment(Iterator, int, Scope, List, BiConsumer)}, which takes the next accession only when
+ * one of a bounded number of experiments is done.
+ */
+public class AsyncKama {
+  private Kama kamaInstance;
+  private Executor executor;
+  
+  /**
+   * @param kamaInstance
+   *          the Kama instance that does the work
+   * @param executor
+   *          the executor the experiments are downloaded and scanned on
+   */
+  public AsyncKama(Kama kamaInstance, Executor executor) {
+    this.kamaInstance = kamaInstance;
+    this.executor = executor;
+  }
+  
+  public Kama getKama() {
+    return kamaInstance;
+  }
+  
+  /**
+   * The counterpart of {@link Kama#getCountOfEachTermInExperiment(String, Scope, List)}
+   * 
+   * @return the 'OntologyTerm' to 'integer' map of the experiment, empty if its files could not be downloaded
+   */
+  public CompletableFuture<Map<String,Integer>> getCountOfEachTermInExperiment(String experimentAccession,
+                                                                               Scope scope,
+                                                                               List<String> listOfOntologyAccessionIds) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return kamaInstance.getCountOfEachTermInExperiment(experimentAccession, scope,
+          listOfOntologyAccessionIds);
+      } catch (MonqException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+  
+  /**
+   * The count of one experiment of {@link Kama#getCountMapForListOfAccessions(List, Scope, List)}
+   * 
+   * @return the number of times the terms are mentioned, or null if the files of the experiment could not be
+   *         downloaded
+   */
+  public CompletableFuture<Integer> getCountForExperiment(String experimentAccession,
+                                                          Scope scope,
+                                                          List<String> listOfOntologyAccessionIds) {
+    return getCountOfEachTermInExperiment(experimentAccession, scope, listOfOntologyAccessionIds).thenApply(
+      termCounts -> {
+        if (!kamaInstance.hasFile(experimentAccession, scope)) {
+          return null;
+        }
+        int total = 0;
+        for (Integer count : termCounts.values()) {
+          total += count;
+        }
+        return total;
+      });
+  }
+  
+  /**
+   * The answer of one experiment of {@link Kama#getTrueFalseMapForListOfAccessions(java.util.ArrayList,
+   * Scope, List)}
+   * 
+   * @return whether the experiment mentions any of the terms, or null if its files could not be downloaded
+   */
+  public CompletableFuture<Boolean> getTrueFalseForExperiment(String experimentAccession,
+                                                              Scope scope,
+                                                              List<String> listOfOntologyAccessionIds) {
+    return getCountForExperiment(experimentAccession, scope, listOfOntologyAccessionIds).thenApply(
+      count -> count == null ? null : count > 0);
+  }
+  
+  /**
+   * The counterpart of {@link Kama#getCountOfEachTermPerSample(String, List)}
+   */
+  public CompletableFuture<Map<String,Map<String,Integer>>> getCountOfEachTermPerSample(String experimentAccessionId,
+                                                                                        List<String> listOfOntologyAccessionIds) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return kamaInstance.getCountOfEachTermPerSample(experimentAccessionId, listOfOntologyAccessionIds);
+      } catch (MonqException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+  
+  /**
+   * The counterpart of {@link Kama#getOntologyIdCountsPerSample(String, List)}
+   */
+  public CompletableFuture<Map<String,OntologyIdCounts>> getOntologyIdCountsPerSample(String experimentAccessionId,
+                                                                                      List<String> listOfOntologyAccessionIds) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return kamaInstance.getOntologyIdCountsPerSample(experimentAccessionId, listOfOntologyAccessionIds);
+      } catch (MonqException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+  }
+  
+  /**
+   * Starts the count of every experiment of a list. The futures are in the order of the list.
+   * 
+   * @return the 'experiment accession id' to 'future count' map, see
+   *         {@link #getCountForExperiment(String, Scope, List)}
+   */
+  public Map<String,CompletableFuture<Integer>> getCountMapForListOfAccessions(List<String> listOfExperimentAccessionIds,
+                                                                               Scope scope,
+                                                                               List<String> listOfOntologyAccessionIds) {
+    Map<String,CompletableFuture<Integer>> returnMap = new LinkedHashMap<String,CompletableFuture<Integer>>();
+    for (String accession : listOfExperimentAccessionIds) {
+      if (!returnMap.containsKey(accession)) {
+        returnMap.put(accession, getCountForExperiment(accession, scope, listOfOntologyAccessionIds));
+      }
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Counts each term in a stream of experiments, with at most maxInFlight of them started and not yet done.
+   * The next accession is taken from the iterator only when an experiment is done, so the iterator may read
+   * a long list lazily. The consumer is called on the threads of the executor, in the order the experiments
+   * finish, and must be thread safe.
+   * 
+   * @param experimentAccessions
+   *          the experiment accessions. The iterator is only used by one thread at a time
+   * @param maxInFlight
+   *          the largest number of experiments started and not yet done
+   * @param scope
+   *          the scope of the search. Can search IDF, SDRF, or both
+   * @param listOfOntologyAccessionIds
+   *          the ontology accession ids
+   * @param consumer
+   *          receives each experiment accession and its 'OntologyTerm' to 'integer' map
+   * @return a future that completes when every experiment has been consumed, or fails with the first failure.
+   *         No new experiments are started after a failure
+   */
+  public CompletableFuture<Void> forEachExperiment(Iterator<String> experimentAccessions,
+                                                   int maxInFlight,
+                                                   Scope scope,
+                                                   List<String> listOfOntologyAccessionIds,
+                                                   BiConsumer<String,Map<String,Integer>> consumer) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    FanOut fanOut = new FanOut(experimentAccessions, maxInFlight, scope, listOfOntologyAccessionIds, consumer);
+    fanOut.pump();
+    return fanOut.done;
+  }
+  
+  /**
+   * Keeps up to maxInFlight experiments started. An experiment that finishes on the thread that started it
+   * would start the next one from inside pump(), so pump() only loops on the thread that entered it first and
+   * the others ask it to go round again.
+   */
+  private class FanOut {
+    private Iterator<String> experimentAccessions;
+    private int maxInFlight;
+    private Scope scope;
+    private List<String> listOfOntologyAccessionIds;
+    private BiConsumer<String,Map<String,Integer>> consumer;
+    
+    private CompletableFuture<Void> done = new CompletableFuture<Void>();
+    private int inFlight = 0;
+    private boolean pumping = false;
+    private boolean pumpAgain = false;
+    
+    public FanOut(Iterator<String> experimentAccessions,
+                  int maxInFlight,
+                  Scope scope,
+                  List<String> listOfOntologyAccessionIds,
+                  BiConsumer<String,Map<String,Integer>> consumer) {
+      this.experimentAccessions = experimentAccessions;
+      this.maxInFlight = maxInFlight;
+      this.scope = scope;
+      this.listOfOntologyAccessionIds = listOfOntologyAccessionIds;
+      this.consumer = consumer;
+    }
+    
+    public void pump() {
+      synchronized (this) {
+        if (pumping) {
+          pumpAgain = true;
+          return;
+        }
+        pumping = true;
+      }
+      while (true) {
+        final String accession;
+        synchronized (this) {
+          if (done.isDone() || inFlight >= maxInFlight || !experimentAccessions.hasNext()) {
+            if (pumpAgain) {
+              pumpAgain = false;
+              continue;
+            }
+            pumping = false;
+            if (inFlight == 0 && !experimentAccessions.hasNext()) {
+              done.complete(null);
+            }
+            return;
+          }
+          accession = experimentAccessions.next();
+          inFlight++;
+        }
+        getCountOfEachTermInExperiment(accession, scope, listOfOntologyAccessionIds).whenComplete(
+          (termCounts, error) -> {
+            if (error == null) {
+              try {
+                consumer.accept(accession, termCounts);
+              } catch (RuntimeException e) {
+                error = e;
+              }
+            }
+            if (error != null) {
+              done.completeExceptionally(error);
+            }
+            synchronized (FanOut.this) {
+              inFlight--;
+            }
+            pump();
+          });
+      }
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * A compiled automaton together with the terms it counts. Every term of the dictionary has a dense id, its
+ * index in getTerms(), and the automaton counts matches by that id in a {@link TermCounter}, so nothing is
+ * looked up or boxed while a passage is scanned. The terms are only needed to turn the counts into maps for
+ * the caller.
+ * 
+ * Each {@link MatchingEngine} has its own kind of automaton.
+ */
+public abstract class CompiledDictionary implements Serializable {
+  // Stored on disk by DfaStore. The automata of version 1 have no action for SdrfTable.ROW_SEPARATOR, and
+  // version 2 was always a monq automaton.
+  private static final long serialVersionUID = 3L;
+  
+  /**
+   * Runs the automaton over passages. A matcher is not thread safe.
+   */
+  public interface Matcher {
+    /**
+     * Counts the terms of a passage in the matcher's counter, and calls {@link TermCounter#endRow()} at
+     * every SdrfTable.ROW_SEPARATOR
+     * 
+     * @param passage
+     *          the passage
+     * @throws IOException
+     */
+    public void match(CharSequence passage) throws IOException;
+  }
+  
+  private String[] terms;
+  private String[][] termToOntologyAccessionIds;
+  
+  /**
+   * The serialized size, once it was asked for
+   */
+  private transient long size = -1;
+  
+  /**
+   * @param terms
+   *          the terms, indexed by their id
+   * @param termToOntologyAccessionIds
+   *          the ontology accession ids each term belongs to, indexed by term id, or null if the matches are
+   *          not attributed to ids
+   */
+  protected CompiledDictionary(String[] terms, String[][] termToOntologyAccessionIds) {
+    this.terms = terms;
+    this.termToOntologyAccessionIds = termToOntologyAccessionIds;
+  }
+  
+  /**
+   * Creates a matcher that counts into the given counter
+   * 
+   * @param counter
+   *          the counter, as large as the dictionary
+   * @return the matcher
+   */
+  public abstract Matcher newMatcher(TermCounter counter);
+  
+  public String[] getTerms() {
+    return terms;
+  }
+  
+  public int getTermCount() {
+    return terms.length;
+  }
+  
+  public String getTerm(int termId) {
+    return terms[termId];
+  }
+  
+  /**
+   * Gets the ontology accession ids a term belongs to
+   * 
+   * @param termId
+   *          the id of the term
+   * @return the ontology accession ids, or null if the matches are not attributed to ids
+   */
+  public String[] getOntologyAccessionIds(int termId) {
+    return termToOntologyAccessionIds == null ? null : termToOntologyAccessionIds[termId];
+  }
+  
+  public boolean isAttributed() {
+    return termToOntologyAccessionIds != null;
+  }
+  
+  /**
+   * Gets the size of the automaton as it is serialized by DfaStore. The caches of Kama weigh automata by it,
+   * as the number of states of a monq automaton is not known.
+   * 
+   * @return the size in bytes
+   */
+  public synchronized long getSize() {
+    if (size < 0) {
+      final long[] count = {0};
+      OutputStream counter = new OutputStream() {
+        public void write(int b) {
+          count[0]++;
+        }
+        
+        public void write(byte[] b, int off, int len) {
+          count[0] += len;
+        }
+      };
+      try {
+        ObjectOutputStream out = new ObjectOutputStream(counter);
+        out.writeObject(this);
+        out.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      size = count[0];
+    }
+    return size;
+  }
+  
+  /**
+   * Gets the number of states of the automaton, for the run metrics
+   * 
+   * @return the number of states, or -1 if the engine cannot tell
+   */
+  public int getStateCount() {
+    return -1;
+  }
+}
@@ -0,0 +1,887 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * An inverted index of every SDRF and IDF in a {@link MageTabCache}. The files are read once by
+ * {@link #build(MageTabCache)}, and from then on the terms of any ontology query are looked up as phrases in
+ * the index instead of scanning the files again.
+ * 
+ * The files are split into words the way the whole word rule of the scanners reads them: runs of letters and
+ * digits. For every word the index holds the experiments, files and rows it is in, and its position in the
+ * row. The row is the line of the file counting from 0, so the header of an SDRF is row 0. A term is found
+ * where its words follow each other in one row, and it is read as the monq engine reads it: only the first
+ * letter of a term may differ in case, so "blood cell" is found in "Blood cell" but not in "blood Cell", and
+ * a term that ends the file, with nothing but whitespace after it, is not counted. As in a scan the longest
+ * term is counted where several start at the same word, and terms do not overlap.
+ * 
+ * The counts still differ from a scan in two ways. The words of a term may be split by anything that is not
+ * a letter or a digit, so "T-cell" is found in "T cell" as well, and of two terms that are the same words the
+ * first one in the dictionary is counted. And a term split over two lines is not found, where a scan of the
+ * file may find it.
+ * 
+ * The index is written in segments of about {@link #DEFAULT_SEGMENT_BYTES}, so that building it does not
+ * hold the whole corpus in memory. It does not follow the cache: build it again after new files were
+ * downloaded.
+ */
+public class CorpusIndex {
+  
+  public static final File DEFAULT_ROOT = new File(System.getProperty("user.home"), ".kama/index");
+  
+  /**
+   * The size of the postings a segment collects in memory before it is written
+   */
+  public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+  
+  /**
+   * Words are looked up by reading one block of this many words of the sorted word list
+   */
+  private static final int BLOCK_SIZE = 64;
+  
+  /**
+   * Longer words, ie checksums, are skipped. They still take up a position.
+   */
+  private static final int MAX_WORD_LENGTH = 255;
+  
+  private static final int MAGIC = 0x4b494458; // "KIDX"
+  private static final int FORMAT_VERSION = 2;
+  
+  private static final String DOCUMENTS = ".documents";
+  private static final String BLOCKS = ".blocks";
+  private static final String WORDS = ".words";
+  private static final String POSTINGS = ".postings";
+  private static final String BUILD_DIRECTORY = "build.part";
+  
+  private File root;
+  private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+  private List<Segment> segments = new ArrayList<Segment>();
+  
+  /**
+   * Opens (or creates) an index directory.
+   * 
+   * @param root
+   *          the directory the index is stored in
+   * @throws IOException
+   */
+  public CorpusIndex(File root) throws IOException {
+    this.root = root;
+    if (!root.exists() && !root.mkdirs()) {
+      System.err.println("Could not create index directory " + root.getAbsolutePath());
+    }
+    loadSegments();
+  }
+  
+  /**
+   * Gets the default index, which lives in ~/.kama/index
+   * 
+   * @return the default index
+   * @throws IOException
+   */
+  public static CorpusIndex getDefaultIndex() throws IOException {
+    return new CorpusIndex(DEFAULT_ROOT);
+  }
+  
+  /**
+   * Sets the size of the postings a segment collects before it is written
+   * 
+   * @param segmentBytes
+   *          the size in bytes
+   */
+  public void setSegmentBytes(long segmentBytes) {
+    this.segmentBytes = segmentBytes;
+  }
+  
+  public File getRoot() {
+    return root;
+  }
+  
+  /**
+   * Replaces the index with one of every SDRF and IDF in a cache. The old index can be read until the new one
+   * is complete.
+   * 
+   * @param cache
+   *          the MAGE-TAB cache
+   * @return the number of experiments indexed
+   * @throws IOException
+   */
+  public synchronized int build(MageTabCache cache) throws IOException {
+    File buildDirectory = new File(root, BUILD_DIRECTORY);
+    if (buildDirectory.exists()) {
+      FileUtils.deleteDirectory(buildDirectory);
+    }
+    if (!buildDirectory.mkdirs()) {
+      throw new IOException("Could not create directory " + buildDirectory.getAbsolutePath());
+    }
+    
+    int experiments = 0;
+    SegmentWriter segment = new SegmentWriter(buildDirectory, 0);
+    for (String accession : cache.getAccessions()) {
+      boolean indexed = false;
+      for (Scope scope : new Scope[] {Scope.sdrf, Scope.idf}) {
+        // Reading the files through the cache would make them all recently used
+        File file = new File(cache.getRoot(), MageTabCache.getRelativePath(accession, scope));
+        if (file.exists()) {
+          segment.add(accession, scope, file);
+          indexed = true;
+        }
+        if (segment.getBytes() >= segmentBytes) {
+          segment.write();
+          segment = new SegmentWriter(buildDirectory, segment.getNumber() + 1);
+        }
+      }
+      if (indexed) {
+        experiments++;
+      }
+    }
+    segment.write();
+    
+    // Swap the segments
+    for (File file : getSegmentFiles(root)) {
+      if (!file.delete()) {
+        throw new IOException("Could not delete " + file.getAbsolutePath());
+      }
+    }
+    for (File file : getSegmentFiles(buildDirectory)) {
+      if (!file.renameTo(new File(root, file.getName()))) {
+        throw new IOException("Could not move " + file.getAbsolutePath() + " into the index");
+      }
+    }
+    buildDirectory.delete();
+    loadSegments();
+    return experiments;
+  }
+  
+  /**
+   * Gets the experiments that are in the index
+   * 
+   * @param scope
+   *          the files the experiments must have. Both means an SDRF and an IDF
+   * @return the experiment accessions, in the order they were indexed
+   */
+  public synchronized List<String> getAccessions(Scope scope) {
+    Map<String,Integer> sdrfRows = getRowCounts(Scope.sdrf);
+    Map<String,Integer> idfRows = getRowCounts(Scope.idf);
+    if (scope == Scope.sdrf) {
+      return new ArrayList<String>(sdrfRows.keySet());
+    } else if (scope == Scope.idf) {
+      return new ArrayList<String>(idfRows.keySet());
+    }
+    List<String> accessions = new ArrayList<String>();
+    for (String accession : sdrfRows.keySet()) {
+      if (idfRows.containsKey(accession)) {
+        accessions.add(accession);
+      }
+    }
+    return accessions;
+  }
+  
+  /**
+   * Gets the number of rows of the files in the index
+   * 
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the 'experiment accession' to 'number of rows' map. The rows of an SDRF include the header
+   */
+  public synchronized Map<String,Integer> getRowCounts(Scope scope) {
+    Map<String,Integer> returnMap = new LinkedHashMap<String,Integer>();
+    for (Segment segment : segments) {
+      for (int document = 0; document < segment.accessions.length; document++) {
+        if (segment.scopes[document] == scope.ordinal()) {
+          returnMap.put(segment.accessions[document], segment.rows[document]);
+        }
+      }
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Counts the terms in every experiment of the index
+   * 
+   * @param terms
+   *          the terms, ie from {@link Kama#getDictionaryOfTermsFromOntologyIds(List)}
+   * @param scope
+   *          the files to search. Both adds up the SDRF and the IDF of the experiments that have both
+   * @return the 'experiment accession' to 'term' to 'count' map. Experiments without any of the terms are
+   *         left out
+   * @throws IOException
+   */
+  public synchronized Map<String,Map<String,Integer>> search(String[] terms, Scope scope) throws IOException {
+    if (scope == Scope.both) {
+      Map<String,Map<String,Integer>> returnMap = search(terms, Scope.sdrf);
+      Map<String,Map<String,Integer>> idfMap = search(terms, Scope.idf);
+      for (String accession : idfMap.keySet()) {
+        Map<String,Integer> termCounts = returnMap.get(accession);
+        if (termCounts == null) {
+          returnMap.put(accession, idfMap.get(accession));
+        } else {
+          addCounts(termCounts, idfMap.get(accession));
+        }
+      }
+      returnMap.keySet().retainAll(new HashSet<String>(getAccessions(Scope.both)));
+      return returnMap;
+    }
+    
+    String[][] phrases = new String[terms.length][];
+    for (int i = 0; i < terms.length; i++) {
+      List<String> words = getWords(terms[i]);
+      phrases[i] = words.toArray(new String[words.size()]);
+    }
+    Map<String,Map<String,Integer>> returnMap = new HashMap<String,Map<String,Integer>>();
+    for (Segment segment : segments) {
+      segment.search(terms, phrases, scope, returnMap);
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Splits a text into the words the index is made of
+   * 
+   * @param text
+   *          the text, ie a term
+   * @return the runs of letters and digits
+   */
+  static List<String> getWords(CharSequence text) {
+    List<String> words = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i <= text.length(); i++) {
+      char c = i < text.length() ? text.charAt(i) : ' ';
+      if (AhoCorasickDictionary.isWordChar(c)) {
+        word.append(c);
+      } else if (word.length() > 0) {
+        words.add(word.toString());
+        word.setLength(0);
+      }
+    }
+    return words;
+  }
+  
+  private static void addCounts(Map<String,Integer> counts, Map<String,Integer> more) {
+    for (Map.Entry<String,Integer> entry : more.entrySet()) {
+      Integer count = counts.get(entry.getKey());
+      counts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+    }
+  }
+  
+  private synchronized void loadSegments() throws IOException {
+    List<Segment> loaded = new ArrayList<Segment>();
+    for (int number = 0; new File(root, number + DOCUMENTS).exists(); number++) {
+      if (!Segment.isCurrent(root, number)) {
+        // Words were once kept in lower case, so an old index would not count what a scan counts
+        System.err.println("The index in " + root.getAbsolutePath()
+            + " was built by an older version and is ignored. Build it again with -buildindex");
+        loaded.clear();
+        break;
+      }
+      loaded.add(new Segment(root, number));
+    }
+    segments = loaded;
+  }
+  
+  private static List<File> getSegmentFiles(File directory) {
+    List<File> files = new ArrayList<File>();
+    File[] children = directory.listFiles();
+    if (children == null) {
+      return files;
+    }
+    for (File child : children) {
+      String name = child.getName();
+      if (name.endsWith(DOCUMENTS) || name.endsWith(BLOCKS) || name.endsWith(WORDS)
+          || name.endsWith(POSTINGS)) {
+        files.add(child);
+      }
+    }
+    return files;
+  }
+  
+  /**
+   * A growable array of variable length ints
+   */
+  private static class ByteList {
+    private byte[] bytes = new byte[16];
+    private int length = 0;
+    
+    public void writeVarInt(int value) {
+      if (length + 5 > bytes.length) {
+        byte[] grown = new byte[Math.max(bytes.length * 2, length + 5)];
+        System.arraycopy(bytes, 0, grown, 0, length);
+        bytes = grown;
+      }
+      while ((value & ~0x7f) != 0) {
+        bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[length++] = (byte) value;
+    }
+  }
+  
+  private static int readVarInt(byte[] bytes, int[] offset) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = bytes[offset[0]++];
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+  
+  /**
+   * The postings of one word in a segment being built: for each document the number of occurrences, then for
+   * each occurrence the row (as the difference to the last one) and the position (as the difference to the
+   * last one in the same row)
+   */
+  private static class PostingList {
+    private ByteList bytes = new ByteList();
+    private int documentCount = 0;
+    private int lastDocument = 0;
+    
+    public int add(int document, int[] occurrences, int occurrenceCount) {
+      int before = bytes.length;
+      bytes.writeVarInt(document - lastDocument);
+      bytes.writeVarInt(occurrenceCount);
+      int lastRow = 0;
+      int lastPosition = 0;
+      for (int i = 0; i < occurrenceCount; i++) {
+        int row = occurrences[2 * i];
+        int position = occurrences[2 * i + 1];
+        bytes.writeVarInt(row - lastRow);
+        bytes.writeVarInt(row == lastRow ? position - lastPosition : position);
+        lastRow = row;
+        lastPosition = position;
+      }
+      lastDocument = document;
+      documentCount++;
+      return bytes.length - before;
+    }
+  }
+  
+  /**
+   * The rows and positions of one word in the document being read, as row, position pairs
+   */
+  private static class Occurrences {
+    private int[] values = new int[8];
+    private int count = 0;
+    
+    public void add(int row, int position) {
+      if (2 * count + 2 > values.length) {
+        int[] grown = new int[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, 2 * count);
+        values = grown;
+      }
+      values[2 * count] = row;
+      values[2 * count + 1] = position;
+      count++;
+    }
+  }
+  
+  /**
+   * Collects the postings of the files added to it, and writes them as a segment
+   */
+  private static class SegmentWriter {
+    private File directory;
+    private int number;
+    private long bytes = 0;
+    
+    private List<String> accessions = new ArrayList<String>();
+    private List<Scope> scopes = new ArrayList<Scope>();
+    private List<Integer> rows = new ArrayList<Integer>();
+    private List<Long> lastWords = new ArrayList<Long>();
+    private Map<String,PostingList> mapOfWordToPostings = new HashMap<String,PostingList>();
+    
+    public SegmentWriter(File directory, int number) {
+      this.directory = directory;
+      this.number = number;
+    }
+    
+    public int getNumber() {
+      return number;
+    }
+    
+    public long getBytes() {
+      return bytes;
+    }
+    
+    /**
+     * Reads a file into the segment. It is decoded with the platform charset, as the scanners read it.
+     */
+    public void add(String accession, Scope scope, File file) throws IOException {
+      int document = accessions.size();
+      Map<String,Occurrences> mapOfWordToOccurrences = new HashMap<String,Occurrences>();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+          Charset.defaultCharset()));
+      int row = 0;
+      int lastRowWithText = -1;
+      // The last word, and whether only whitespace follows it
+      long lastWord = -1;
+      boolean endsWithWord = false;
+      try {
+        String line;
+        StringBuilder word = new StringBuilder();
+        while ((line = reader.readLine()) != null) {
+          int position = 0;
+          for (int i = 0; i <= line.length(); i++) {
+            char c = i < line.length() ? line.charAt(i) : ' ';
+            if (AhoCorasickDictionary.isWordChar(c)) {
+              word.append(c);
+            } else if (word.length() > 0) {
+              if (word.length() <= MAX_WORD_LENGTH) {
+                String text = word.toString();
+                Occurrences occurrences = mapOfWordToOccurrences.get(text);
+                if (occurrences == null) {
+                  occurrences = new Occurrences();
+                  mapOfWordToOccurrences.put(text, occurrences);
+                }
+                occurrences.add(row, position);
+              }
+              lastWord = ((long) row << 32) | position;
+              endsWithWord = true;
+              position++;
+              word.setLength(0);
+            }
+            if (c > ' ' && !AhoCorasickDictionary.isWordChar(c)) {
+              endsWithWord = false;
+            }
+          }
+          if (line.trim().length() > 0) {
+            lastRowWithText = row;
+          }
+          row++;
+        }
+      } finally {
+        reader.close();
+      }
+      
+      for (Map.Entry<String,Occurrences> entry : mapOfWordToOccurrences.entrySet()) {
+        PostingList postings = mapOfWordToPostings.get(entry.getKey());
+        if (postings == null) {
+          postings = new PostingList();
+          mapOfWordToPostings.put(entry.getKey(), postings);
+          // Roughly what the map holds for a word besides its postings
+          bytes += 64 + 2 * entry.getKey().length();
+        }
+        bytes += postings.add(document, entry.getValue().values, entry.getValue().count);
+      }
+      accessions.add(accession);
+      scopes.add(scope);
+      // Trailing blank lines are not rows, as in SdrfTable
+      rows.add(lastRowWithText + 1);
+      // The passage of a scan is the file without the whitespace at its end, see MappedPassage. A term that
+      // ends the passage is not counted, as nothing after it shows that its last word ends.
+      lastWords.add(endsWithWord ? lastWord : -1);
+    }
+    
+    /**
+     * Writes the segment: the documents, the sorted words with where their postings are, the first word of
+     * every block of words, and the postings
+     */
+    public void write() throws IOException {
+      DataOutputStream documents = open(DOCUMENTS);
+      try {
+        documents.writeInt(MAGIC);
+        documents.writeInt(FORMAT_VERSION);
+        documents.writeInt(accessions.size());
+        for (int document = 0; document < accessions.size(); document++) {
+          documents.writeUTF(accessions.get(document));
+          documents.writeByte(scopes.get(document).ordinal());
+          documents.writeInt(rows.get(document));
+          documents.writeLong(lastWords.get(document));
+        }
+      } finally {
+        documents.close();
+      }
+      
+      List<String> sortedWords = new ArrayList<String>(mapOfWordToPostings.keySet());
+      Collections.sort(sortedWords);
+      DataOutputStream blocks = open(BLOCKS);
+      DataOutputStream words = open(WORDS);
+      DataOutputStream postings = open(POSTINGS);
+      try {
+        blocks.writeInt(sortedWords.size());
+        blocks.writeInt((sortedWords.size() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long postingsOffset = 0;
+        for (int i = 0; i < sortedWords.size(); i++) {
+          String word = sortedWords.get(i);
+          if (i % BLOCK_SIZE == 0) {
+            blocks.writeUTF(word);
+            blocks.writeLong(words.size());
+          }
+          PostingList list = mapOfWordToPostings.get(word);
+          words.writeUTF(word);
+          words.writeLong(postingsOffset);
+          words.writeInt(list.bytes.length);
+          words.writeInt(list.documentCount);
+          postings.write(list.bytes.bytes, 0, list.bytes.length);
+          postingsOffset += list.bytes.length;
+        }
+      } finally {
+        blocks.close();
+        words.close();
+        postings.close();
+      }
+    }
+    
+    private DataOutputStream open(String suffix) throws IOException {
+      File file = new File(directory, number + suffix);
+      return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+  }
+  
+  /**
+   * The decoded postings of one word: the documents in order, and the occurrences in each as row << 32 |
+   * position, in order
+   */
+  private static class Postings {
+    private int[] documents;
+    private long[][] occurrences;
+    
+    public long[] getOccurrences(int document) {
+      int i = Arrays.binarySearch(documents, document);
+      return i < 0 ? null : occurrences[i];
+    }
+    
+    /**
+     * Merges the postings of two words that never take up the same position, ie "Blood" and "blood"
+     * 
+     * @return the postings of either word, or null if neither is in the segment
+     */
+    public static Postings merge(Postings a, Postings b) {
+      if (a == null || b == null) {
+        return a == null ? b : a;
+      }
+      int[] documents = new int[a.documents.length + b.documents.length];
+      long[][] occurrences = new long[documents.length][];
+      int count = 0;
+      int i = 0;
+      int j = 0;
+      while (i < a.documents.length || j < b.documents.length) {
+        if (j == b.documents.length || (i < a.documents.length && a.documents[i] < b.documents[j])) {
+          documents[count] = a.documents[i];
+          occurrences[count++] = a.occurrences[i++];
+        } else if (i == a.documents.length || b.documents[j] < a.documents[i]) {
+          documents[count] = b.documents[j];
+          occurrences[count++] = b.occurrences[j++];
+        } else {
+          long[] both = new long[a.occurrences[i].length + b.occurrences[j].length];
+          System.arraycopy(a.occurrences[i], 0, both, 0, a.occurrences[i].length);
+          System.arraycopy(b.occurrences[j], 0, both, a.occurrences[i].length, b.occurrences[j].length);
+          Arrays.sort(both);
+          documents[count] = a.documents[i++];
+          occurrences[count++] = both;
+          j++;
+        }
+      }
+      Postings merged = new Postings();
+      merged.documents = Arrays.copyOf(documents, count);
+      merged.occurrences = Arrays.copyOf(occurrences, count);
+      return merged;
+    }
+  }
+  
+  /**
+   * A term found in a document
+   */
+  private static class Match {
+    private long start;
+    private int length;
+    private int term;
+    
+    public Match(long start, int length, int term) {
+      this.start = start;
+      this.length = length;
+      this.term = term;
+    }
+  }
+  
+  /**
+   * Leftmost first, then longest first, then the first term of the dictionary
+   */
+  private static final Comparator<Match> MATCH_ORDER = new Comparator<Match>() {
+    public int compare(Match a, Match b) {
+      if (a.start != b.start) {
+        return a.start < b.start ? -1 : 1;
+      }
+      if (a.length != b.length) {
+        return b.length - a.length;
+      }
+      return a.term - b.term;
+    }
+  };
+  
+  /**
+   * A segment on disk. The documents and the first word of every block are held in memory.
+   */
+  private static class Segment {
+    private File directory;
+    private int number;
+    
+    private String[] accessions;
+    private int[] scopes;
+    private int[] rows;
+    
+    /**
+     * The last word of each document as row << 32 | position, or -1 if more than whitespace follows it
+     */
+    private long[] lastWords;
+    
+    private int wordCount;
+    private String[] blockWords;
+    private long[] blockOffsets;
+    
+    public Segment(File directory, int number) throws IOException {
+      this.directory = directory;
+      this.number = number;
+      DataInputStream documents = open(DOCUMENTS);
+      try {
+        if (documents.readInt() != MAGIC || documents.readInt() != FORMAT_VERSION) {
+          throw new IOException(new File(directory, number + DOCUMENTS).getAbsolutePath()
+              + " is not an index segment of this version");
+        }
+        int count = documents.readInt();
+        accessions = new String[count];
+        scopes = new int[count];
+        rows = new int[count];
+        lastWords = new long[count];
+        for (int document = 0; document < count; document++) {
+          accessions[document] = documents.readUTF();
+          scopes[document] = documents.readByte();
+          rows[document] = documents.readInt();
+          lastWords[document] = documents.readLong();
+        }
+      } finally {
+        documents.close();
+      }
+      DataInputStream blocks = open(BLOCKS);
+      try {
+        wordCount = blocks.readInt();
+        int count = blocks.readInt();
+        blockWords = new String[count];
+        blockOffsets = new long[count];
+        for (int block = 0; block < count; block++) {
+          blockWords[block] = blocks.readUTF();
+          blockOffsets[block] = blocks.readLong();
+        }
+      } finally {
+        blocks.close();
+      }
+    }
+    
+    /**
+     * Checks if a segment on disk was written in the format of this version
+     */
+    public static boolean isCurrent(File directory, int number) throws IOException {
+      DataInputStream documents = new DataInputStream(new FileInputStream(new File(directory, number
+          + DOCUMENTS)));
+      try {
+        return documents.readInt() == MAGIC && documents.readInt() == FORMAT_VERSION;
+      } catch (EOFException e) {
+        return false;
+      } finally {
+        documents.close();
+      }
+    }
+    
+    /**
+     * Finds the terms in the documents of a scope, and adds their counts to the map
+     */
+    public void search(String[] terms,
+                       String[][] phrases,
+                       Scope scope,
+                       Map<String,Map<String,Integer>> mapOfAccessionToTermCounts) throws IOException {
+      RandomAccessFile words = new RandomAccessFile(new File(directory, number + WORDS), "r");
+      RandomAccessFile postings = new RandomAccessFile(new File(directory, number + POSTINGS), "r");
+      Map<Integer,List<Match>> mapOfDocumentToMatches = new HashMap<Integer,List<Match>>();
+      try {
+        Map<String,Postings> mapOfWordToPostings = new HashMap<String,Postings>();
+        for (int term = 0; term < phrases.length; term++) {
+          String[] phrase = phrases[term];
+          if (phrase.length == 0) {
+            continue;
+          }
+          Postings[] wordPostings = new Postings[phrase.length];
+          for (int i = 0; i < phrase.length; i++) {
+            wordPostings[i] = getPostings(words, postings, phrase[i], mapOfWordToPostings);
+          }
+          // The first letter of a term matches in either case, as Term2Re has it
+          String first = phrase[0];
+          char c = first.charAt(0);
+          char otherCase = Character.isUpperCase(c) ? Character.toLowerCase(c) : Character.toUpperCase(c);
+          if (otherCase != c) {
+            wordPostings[0] = Postings.merge(wordPostings[0], getPostings(words, postings, otherCase
+                + first.substring(1), mapOfWordToPostings));
+          }
+          findPhrase(term, wordPostings, scope, mapOfDocumentToMatches);
+        }
+      } finally {
+        words.close();
+        postings.close();
+      }
+      
+      // Count the matches that a scan would count
+      for (Map.Entry<Integer,List<Match>> entry : mapOfDocumentToMatches.entrySet()) {
+        List<Match> matches = entry.getValue();
+        Collections.sort(matches, MATCH_ORDER);
+        String accession = accessions[entry.getKey()];
+        Map<String,Integer> termCounts = mapOfAccessionToTermCounts.get(accession);
+        if (termCounts == null) {
+          termCounts = new HashMap<String,Integer>();
+          mapOfAccessionToTermCounts.put(accession, termCounts);
+        }
+        long end = Long.MIN_VALUE;
+        for (Match match : matches) {
+          if (match.start < end) {
+            continue;
+          }
+          end = match.start + match.length;
+          Integer count = termCounts.get(terms[match.term]);
+          termCounts.put(terms[match.term], count == null ? 1 : count + 1);
+        }
+      }
+    }
+    
+    private void findPhrase(int term,
+                            Postings[] wordPostings,
+                            Scope scope,
+                            Map<Integer,List<Match>> mapOfDocumentToMatches) {
+      for (Postings word : wordPostings) {
+        if (word == null) {
+          return;
+        }
+      }
+      Postings first = wordPostings[0];
+      long[][] occurrences = new long[wordPostings.length][];
+      for (int d = 0; d < first.documents.length; d++) {
+        int document = first.documents[d];
+        if (scopes[document] != scope.ordinal()) {
+          continue;
+        }
+        occurrences[0] = first.occurrences[d];
+        boolean inDocument = true;
+        for (int i = 1; i < wordPostings.length && inDocument; i++) {
+          occurrences[i] = wordPostings[i].getOccurrences(document);
+          inDocument = occurrences[i] != null;
+        }
+        if (!inDocument) {
+          continue;
+        }
+        for (long start : occurrences[0]) {
+          boolean found = true;
+          for (int i = 1; i < occurrences.length && found; i++) {
+            found = Arrays.binarySearch(occurrences[i], start + i) >= 0;
+          }
+          // A scan does not count a term that ends the file, so a shorter one may be counted in its place
+          if (found && start + occurrences.length - 1 != lastWords[document]) {
+            List<Match> matches = mapOfDocumentToMatches.get(document);
+            if (matches == null) {
+              matches = new ArrayList<Match>();
+              mapOfDocumentToMatches.put(document, matches);
+            }
+            matches.add(new Match(start, occurrences.length, term));
+          }
+        }
+      }
+    }
+    
+    /**
+     * Gets the postings of a word, reading them once per search
+     */
+    private Postings getPostings(RandomAccessFile words,
+                                 RandomAccessFile postings,
+                                 String word,
+                                 Map<String,Postings> mapOfWordToPostings) throws IOException {
+      if (!mapOfWordToPostings.containsKey(word)) {
+        mapOfWordToPostings.put(word, readPostings(words, postings, word));
+      }
+      return mapOfWordToPostings.get(word);
+    }
+    
+    /**
+     * Looks a word up in its block of the word list, and reads its postings
+     * 
+     * @return the postings, or null if the word is not in the segment
+     */
+    private Postings readPostings(RandomAccessFile words,
+                                  RandomAccessFile postings,
+                                  String word) throws IOException {
+      int block = Arrays.binarySearch(blockWords, word);
+      if (block < 0) {
+        block = -block - 2;
+        if (block < 0) {
+          return null;
+        }
+      }
+      words.seek(blockOffsets[block]);
+      int inBlock = Math.min(BLOCK_SIZE, wordCount - block * BLOCK_SIZE);
+      for (int i = 0; i < inBlock; i++) {
+        String entry = words.readUTF();
+        long offset = words.readLong();
+        int length = words.readInt();
+        int documentCount = words.readInt();
+        int comparison = entry.compareTo(word);
+        if (comparison > 0) {
+          return null;
+        } else if (comparison == 0) {
+          byte[] bytes = new byte[length];
+          postings.seek(offset);
+          postings.readFully(bytes);
+          return decode(bytes, documentCount);
+        }
+      }
+      return null;
+    }
+    
+    private static Postings decode(byte[] bytes, int documentCount) {
+      Postings decoded = new Postings();
+      decoded.documents = new int[documentCount];
+      decoded.occurrences = new long[documentCount][];
+      int[] offset = {0};
+      int document = 0;
+      for (int d = 0; d < documentCount; d++) {
+        document += readVarInt(bytes, offset);
+        decoded.documents[d] = document;
+        long[] occurrences = new long[readVarInt(bytes, offset)];
+        int row = 0;
+        int position = 0;
+        for (int i = 0; i < occurrences.length; i++) {
+          int rowDelta = readVarInt(bytes, offset);
+          int value = readVarInt(bytes, offset);
+          row += rowDelta;
+          position = rowDelta == 0 ? position + value : value;
+          occurrences[i] = ((long) row << 32) | position;
+        }
+        decoded.occurrences[d] = occurrences;
+      }
+      return decoded;
+    }
+    
+    private DataInputStream open(String suffix) throws IOException {
+      File file = new File(directory, number + suffix);
+      return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A directory of compiled automata. Compiling the automaton of a broad ontology class can take longer
+ * than scanning every file with it, so compiled automata are serialized here, together with their terms (see
+ * {@link CompiledDictionary}), and loaded again by later runs.
+ * 
+ * An automaton is stored under a key made of the content hash of the ontology file, the kind of automaton
+ * and the sorted ontology accession ids. A new version of the ontology therefore never loads an automaton
+ * that was built from an older one.
+ */
+public class DfaStore {
+  
+  public static final File DEFAULT_ROOT = new File(System.getProperty("user.home"), ".kama/dfa");
+  
+  private static final String SUFFIX = ".dfa";
+  private static final String TEMP_SUFFIX = ".part";
+  
+  private File root;
+  
+  /**
+   * Opens (or creates) a store directory.
+   * 
+   * @param root
+   *          the directory the automata are stored in
+   * @throws IOException
+   *           if the directory does not exist and cannot be created
+   */
+  public DfaStore(File root) throws IOException {
+    this.root = root;
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IOException("Could not create automaton directory " + root.getAbsolutePath());
+    }
+  }
+  
+  /**
+   * Gets the default store, which lives in ~/.kama/dfa
+   * 
+   * @return the default store
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public static DfaStore getDefaultStore() throws IOException {
+    return new DfaStore(DEFAULT_ROOT);
+  }
+  
+  /**
+   * Makes the key of an automaton. The order of the ids does not matter.
+   * 
+   * @param ontologyVersion
+   *          the content hash of the ontology file, see {@link #hash(InputStream)}
+   * @param kind
+   *          the kind of automaton, ie "count"
+   * @param listOfOntologyAccessionIds
+   *          the ontology accession ids the automaton was built from
+   * @return the key
+   */
+  public static String getKey(String ontologyVersion, String kind, List<String> listOfOntologyAccessionIds) {
+    List<String> sortedIds = new ArrayList<String>(listOfOntologyAccessionIds);
+    Collections.sort(sortedIds);
+    StringBuilder key = new StringBuilder();
+    key.append(ontologyVersion).append('\n').append(kind);
+    for (String id : sortedIds) {
+      key.append('\n').append(id);
+    }
+    return hash(key.toString());
+  }
+  
+  /**
+   * Hashes a text, ie the terms of a dictionary
+   * 
+   * @param text
+   *          the text to hash
+   * @return the SHA-1 of the text in UTF-8 as hex
+   */
+  public static String hash(String text) {
+    MessageDigest digest = getDigest();
+    try {
+      digest.update(text.getBytes("UTF-8"));
+    } catch (IOException e) {
+      // UTF-8 is always supported
+      throw new RuntimeException(e);
+    }
+    return toHex(digest.digest());
+  }
+  
+  /**
+   * Hashes the content of a stream, ie of an ontology file. The stream is closed.
+   * 
+   * @param in
+   *          the stream to hash
+   * @return the SHA-1 of the content as hex
+   * @throws IOException
+   */
+  public static String hash(InputStream in) throws IOException {
+    MessageDigest digest = getDigest();
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+  
+  /**
+   * Loads a stored automaton.
+   * 
+   * @param key
+   *          the key of the automaton
+   * @return the automaton, or null if there is none or it could not be read
+   */
+  public CompiledDictionary load(String key) {
+    File file = new File(root, key + SUFFIX);
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        return (CompiledDictionary) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (ClassNotFoundException e) {
+      System.err.println("Discarding unreadable automaton " + file.getName());
+    } catch (IOException e) {
+      // Written by an incompatible version of monq or Kama, or truncated
+      System.err.println("Discarding unreadable automaton " + file.getName());
+    } catch (ClassCastException e) {
+      System.err.println("Discarding unreadable automaton " + file.getName());
+    }
+    file.delete();
+    return null;
+  }
+  
+  /**
+   * Stores an automaton. The file is written under a temporary name first so that a reader never sees half
+   * an automaton.
+   * 
+   * @param key
+   *          the key of the automaton
+   * @param dictionary
+   *          the compiled automaton
+   */
+  public void store(String key, CompiledDictionary dictionary) {
+    File temp = new File(root, key + TEMP_SUFFIX);
+    File file = new File(root, key + SUFFIX);
+    try {
+      ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        out.writeObject(dictionary);
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(file)) {
+        // Windows will not rename over an existing file
+        file.delete();
+        if (!temp.renameTo(file)) {
+          throw new IOException("Could not rename " + temp.getAbsolutePath());
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      temp.delete();
+    }
+  }
+  
+  public File getRoot() {
+    return root;
+  }
+  
+  private static MessageDigest getDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has SHA-1
+      throw new RuntimeException(e);
+    }
+  }
+  
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -1,30 +1,27 @@
 package uk.ac.ebi.fgpt.kama;
 
-import java.util.Map;
-
 import monq.jfa.AbstractFaAction;
 import monq.jfa.DfaRun;
 
 /**
- * This is a simple callback class used by monq to count the terms found.
+ * This is a simple callback class used by monq to count the terms found. The DfaRun's clientData must be a
+ * {@link TermCounter}.
  * 
  * @author Vincent Xue
  * 
  */
 public class DoCount extends AbstractFaAction {
-  private String word;
+  // Compiled automata that hold this action are stored on disk, see DfaStore. Version 1 counted by the term
+  // String.
+  private static final long serialVersionUID = 2L;
+  
+  private int termId;
   
-  public DoCount(String wordToStoreInHash) {
-    this.word = wordToStoreInHash;
+  public DoCount(int termId) {
+    this.termId = termId;
   }
   
   public void invoke(StringBuffer iotext, int start, DfaRun r) {
-    // String word = iotext.substring(start);
-    // iotext.setLength(start);
-    //    
-    Map m = (Map) r.clientData;
-    Integer count = (Integer) m.get(word);
-    if (count == null) m.put(word, new Integer(1));
-    else m.put(word, new Integer(1 + count.intValue()));
+    ((TermCounter) r.clientData).increment(termId);
   }
-}
\ No newline at end of file
+}
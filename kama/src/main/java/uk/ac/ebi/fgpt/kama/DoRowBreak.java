@@ -0,0 +1,17 @@
+package uk.ac.ebi.fgpt.kama;
+
+import monq.jfa.AbstractFaAction;
+import monq.jfa.DfaRun;
+
+/**
+ * The callback monq calls at the end of each row when the rows of an SDRF are scanned in one pass, see
+ * {@link SdrfTable#getRows()}. The DfaRun's clientData must be a {@link TermCounter}.
+ */
+public class DoRowBreak extends AbstractFaAction {
+  // Compiled automata that hold this action are stored on disk, see DfaStore
+  private static final long serialVersionUID = 1L;
+  
+  public void invoke(StringBuffer iotext, int start, DfaRun r) {
+    ((TermCounter) r.clientData).endRow();
+  }
+}
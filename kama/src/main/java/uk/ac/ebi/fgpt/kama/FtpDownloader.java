@@ -0,0 +1,206 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * Downloads MAGE-TAB files into a {@link MageTabCache} over a bounded pool of logged in FTP sessions, so that
+ * many accessions are fetched at once instead of one round trip at a time. The sessions come from a
+ * {@link FtpSessionManager}, which keeps one of them alive between downloads.
+ * 
+ * A file that is already in the cache is checked against the server first, and only downloaded again if its
+ * validator changed. If the server cannot be reached, the cached copy is used.
+ */
+public class FtpDownloader {
+  
+  public static final int DEFAULT_CONNECTIONS = 4;
+  
+  private FtpSessionManager sessions;
+  private String rootPath;
+  private MageTabCache cache;
+  
+  /**
+   * Creates a downloader
+   * 
+   * @param sessions
+   *          the sessions to download with. Its maximum number of sessions limits how many files are fetched
+   *          at the same time
+   * @param rootPath
+   *          the directory on the server that holds the pipeline directories
+   * @param cache
+   *          the cache to download into
+   */
+  public FtpDownloader(FtpSessionManager sessions, String rootPath, MageTabCache cache) {
+    this.sessions = sessions;
+    this.rootPath = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+    this.cache = cache;
+  }
+  
+  /**
+   * Downloads the SDRF and IDF of each experiment. Only the files that are not yet in the given maps are
+   * retrieved, and every file that was received or found unchanged in the cache is put into its map.
+   * Accessions that fail are left out of the maps.
+   * 
+   * @param listOfExperimentAccessions
+   *          the list of experiment accessions
+   * @param mapOfAccessionFilesForSDRF
+   *          the 'experiment accession' to 'SDRF file' map to fill
+   * @param mapOfAccessionFilesForIDF
+   *          the 'experiment accession' to 'IDF file' map to fill
+   * @return the files that were downloaded, without the cached files that were used as they were
+   */
+  public List<File> download(List<String> listOfExperimentAccessions,
+                             Map<String,File> mapOfAccessionFilesForSDRF,
+                             Map<String,File> mapOfAccessionFilesForIDF) {
+    List<File> downloaded = Collections.synchronizedList(new ArrayList<File>());
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(sessions
+        .getMaxSessions(), listOfExperimentAccessions.size())));
+    try {
+      List<Future<File>> sdrfFutures = new ArrayList<Future<File>>();
+      List<Future<File>> idfFutures = new ArrayList<Future<File>>();
+      for (String accession : listOfExperimentAccessions) {
+        sdrfFutures.add(mapOfAccessionFilesForSDRF.containsKey(accession) ? null : executor
+            .submit(new Retrieval(accession, Scope.sdrf, downloaded)));
+        idfFutures.add(mapOfAccessionFilesForIDF.containsKey(accession) ? null : executor
+            .submit(new Retrieval(accession, Scope.idf, downloaded)));
+      }
+      
+      // Results are put into the maps from this thread only, so the maps do not need to be synchronized
+      for (int i = 0; i < listOfExperimentAccessions.size(); i++) {
+        collect(listOfExperimentAccessions.get(i), sdrfFutures.get(i), mapOfAccessionFilesForSDRF);
+        collect(listOfExperimentAccessions.get(i), idfFutures.get(i), mapOfAccessionFilesForIDF);
+      }
+    } finally {
+      executor.shutdown();
+      // Keep one session around for the next call
+      sessions.trim(1);
+    }
+    return downloaded;
+  }
+  
+  /**
+   * Gets what tells the versions of a file on the server apart: the size and the modification time the
+   * server lists for it. The listing only gives the time to the minute, or to the day for old files, so a
+   * file that is changed again within that time and keeps its size is not seen as changed. When the server
+   * changes the way it lists a file, the file looks changed and is downloaded once more.
+   * 
+   * @param client
+   *          a logged in session
+   * @param remotePath
+   *          the path of the file on the server
+   * @return the validator, or null if the server does not list the file
+   * @throws IOException
+   */
+  public static String getValidator(FTPClient client, String remotePath) throws IOException {
+    FTPFile[] listing = client.listFiles(remotePath);
+    if (listing == null || listing.length != 1 || listing[0] == null || listing[0].getTimestamp() == null) {
+      return null;
+    }
+    return listing[0].getSize() + "\t" + listing[0].getTimestamp().getTimeInMillis();
+  }
+  
+  public FtpSessionManager getSessionManager() {
+    return sessions;
+  }
+  
+  private void collect(String accession, Future<File> future, Map<String,File> mapOfAccessionFiles) {
+    if (future == null) {
+      return;
+    }
+    try {
+      File file = future.get();
+      if (file != null) {
+        mapOfAccessionFiles.put(accession, file);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+    }
+  }
+  
+  /**
+   * Retrieves one file into the cache, unless the cached copy is still the one on the server. Returns the
+   * cached file, or null if the server did not have it.
+   */
+  private class Retrieval implements Callable<File> {
+    private String accession;
+    private Scope scope;
+    private List<File> downloaded;
+    
+    public Retrieval(String accession, Scope scope, List<File> downloaded) {
+      this.accession = accession;
+      this.scope = scope;
+      this.downloaded = downloaded;
+    }
+    
+    public File call() throws Exception {
+      String relativePath = MageTabCache.getRelativePath(accession, scope);
+      String fileName = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+      File cached = cache.getFile(accession, scope);
+      try {
+        return retrieve(rootPath + relativePath, fileName, cached);
+      } catch (IOException e) {
+        if (cached == null) {
+          throw e;
+        }
+        System.out.println(fileName + "\tCould not be checked, using the cached copy: " + e.getMessage());
+        return cached;
+      }
+    }
+    
+    private File retrieve(String remotePath, String fileName, File cached) throws IOException,
+                                                                        InterruptedException {
+      FTPClient client = sessions.borrow();
+      boolean healthy = false;
+      File download = null;
+      File received = null;
+      try {
+        String validator = getValidator(client, remotePath);
+        if (cached != null && validator != null && validator.equals(cache.getValidator(accession, scope))) {
+          healthy = true;
+          cache.setChecked(accession, scope);
+          return cached;
+        }
+        download = cache.createDownloadTarget(accession, scope);
+        FileOutputStream fos = new FileOutputStream(download);
+        boolean success;
+        try {
+          success = client.retrieveFile(remotePath, fos);
+        } finally {
+          fos.close();
+        }
+        healthy = true;
+        
+        if (success) {
+          System.out.println(fileName + "\tFile Received");
+          received = cache.commit(download, accession, scope, validator);
+          downloaded.add(received);
+        } else {
+          System.out.println(fileName + "\tFailed");
+        }
+      } finally {
+        sessions.release(client, healthy);
+        if (received == null) {
+          cache.discard(download);
+        }
+      }
+      return received;
+    }
+  }
+}
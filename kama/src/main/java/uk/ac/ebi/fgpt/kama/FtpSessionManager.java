@@ -0,0 +1,262 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+/**
+ * Hands out logged in FTP sessions. Sessions are only opened when a file really has to be fetched, and idle
+ * sessions are kept open between downloads with NOOP commands so that the next download does not pay for
+ * another connect and login. A session that has been idle for longer than the server is likely to allow is
+ * reconnected before it is handed out.
+ */
+public class FtpSessionManager {
+  
+  public static final long DEFAULT_KEEP_ALIVE_MILLIS = 60 * 1000;
+  
+  /**
+   * Most FTP servers, including ftp.ebi.ac.uk, drop a control connection after five minutes of silence.
+   */
+  public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 4 * 60 * 1000;
+  
+  private String host;
+  private int port;
+  private int maxSessions;
+  private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+  private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+  
+  /**
+   * Sessions that are logged in and not in use, most recently used first.
+   */
+  private LinkedList<Session> idleSessions = new LinkedList<Session>();
+  private int openSessions = 0;
+  private Timer keepAliveTimer;
+  
+  /**
+   * Creates a session manager. No connection is made until a session is borrowed.
+   * 
+   * @param host
+   *          the FTP host
+   * @param port
+   *          the FTP port
+   * @param maxSessions
+   *          the maximum number of sessions that may be open at the same time
+   */
+  public FtpSessionManager(String host, int port, int maxSessions) {
+    this.host = host;
+    this.port = port;
+    this.maxSessions = Math.max(1, maxSessions);
+  }
+  
+  /**
+   * Takes an idle session, or logs in a new one if fewer than maxSessions are open. Blocks until a session is
+   * available.
+   * 
+   * @return a logged in session which must be given back with {@link #release(FTPClient, boolean)}
+   * @throws IOException
+   *           if a new session could not be opened
+   * @throws InterruptedException
+   */
+  public FTPClient borrow() throws IOException, InterruptedException {
+    while (true) {
+      Session session = null;
+      synchronized (this) {
+        if (!idleSessions.isEmpty()) {
+          session = idleSessions.removeFirst();
+        } else if (openSessions < maxSessions) {
+          openSessions++;
+        } else {
+          // Wake up now and then in case a broken session was dropped and a new one may be opened
+          wait(1000);
+          continue;
+        }
+      }
+      if (session == null) {
+        try {
+          return connect();
+        } catch (IOException e) {
+          sessionClosed();
+          throw e;
+        }
+      }
+      return revive(session);
+    }
+  }
+  
+  /**
+   * Gives a session back.
+   * 
+   * @param client
+   *          the session that was borrowed
+   * @param healthy
+   *          false if the session failed and should be closed
+   */
+  public void release(FTPClient client, boolean healthy) {
+    if (!healthy) {
+      disconnect(client);
+      sessionClosed();
+      return;
+    }
+    synchronized (this) {
+      idleSessions.addFirst(new Session(client, System.currentTimeMillis()));
+      notifyAll();
+    }
+  }
+  
+  /**
+   * Closes all idle sessions except the given number of most recently used ones.
+   * 
+   * @param sessionsToKeep
+   *          the number of idle sessions to keep alive
+   */
+  public void trim(int sessionsToKeep) {
+    LinkedList<Session> toClose = new LinkedList<Session>();
+    synchronized (this) {
+      while (idleSessions.size() > sessionsToKeep) {
+        toClose.add(idleSessions.removeLast());
+      }
+    }
+    for (Session session : toClose) {
+      disconnect(session.client);
+      sessionClosed();
+    }
+  }
+  
+  /**
+   * Closes every idle session and stops sending keep-alives.
+   */
+  public void close() {
+    trim(0);
+    synchronized (this) {
+      if (keepAliveTimer != null) {
+        keepAliveTimer.cancel();
+        keepAliveTimer = null;
+      }
+    }
+  }
+  
+  public void setKeepAliveMillis(long keepAliveMillis) {
+    this.keepAliveMillis = keepAliveMillis;
+  }
+  
+  public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+    this.idleTimeoutMillis = idleTimeoutMillis;
+  }
+  
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+  
+  /**
+   * Gets the number of sessions that are currently connected, in use or idle.
+   * 
+   * @return the number of open sessions
+   */
+  public synchronized int getOpenSessions() {
+    return openSessions;
+  }
+  
+  /**
+   * Makes sure an idle session is still usable. Sessions that were idle for too long are replaced with a new
+   * one.
+   */
+  private FTPClient revive(Session session) throws IOException {
+    long idle = System.currentTimeMillis() - session.lastUsed;
+    if (idle < keepAliveMillis) {
+      return session.client;
+    }
+    if (idle < idleTimeoutMillis && noop(session.client)) {
+      return session.client;
+    }
+    disconnect(session.client);
+    try {
+      return connect();
+    } catch (IOException e) {
+      sessionClosed();
+      throw e;
+    }
+  }
+  
+  private FTPClient connect() throws IOException {
+    FTPClient client = new FTPClient();
+    client.connect(host, port);
+    if (!client.login("anonymous", "")) {
+      disconnect(client);
+      throw new IOException("Could not log in to " + host + ": " + client.getReplyString());
+    }
+    client.enterLocalPassiveMode();
+    startKeepAlive();
+    return client;
+  }
+  
+  private synchronized void sessionClosed() {
+    openSessions--;
+    notifyAll();
+  }
+  
+  private synchronized void startKeepAlive() {
+    if (keepAliveTimer != null) {
+      return;
+    }
+    keepAliveTimer = new Timer("kama-ftp-keepalive", true);
+    keepAliveTimer.schedule(new TimerTask() {
+      public void run() {
+        sendKeepAlives();
+      }
+    }, keepAliveMillis, keepAliveMillis);
+  }
+  
+  /**
+   * Sends a NOOP on every session that has been idle for longer than the keep-alive interval. Sessions that
+   * do not answer are closed.
+   */
+  private void sendKeepAlives() {
+    LinkedList<Session> due = new LinkedList<Session>();
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      Iterator<Session> it = idleSessions.iterator();
+      while (it.hasNext()) {
+        Session session = it.next();
+        if (now - session.lastUsed >= keepAliveMillis) {
+          it.remove();
+          due.add(session);
+        }
+      }
+    }
+    for (Session session : due) {
+      release(session.client, noop(session.client));
+    }
+  }
+  
+  private static boolean noop(FTPClient client) {
+    try {
+      return client.isConnected() && client.sendNoOp();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+  
+  private static void disconnect(FTPClient client) {
+    try {
+      if (client.isConnected()) {
+        client.disconnect();
+      }
+    } catch (IOException e) {
+      // Nothing more can be done with this session
+    }
+  }
+  
+  private static class Session {
+    private FTPClient client;
+    private long lastUsed;
+    
+    public Session(FTPClient client, long lastUsed) {
+      this.client = client;
+      this.lastUsed = lastUsed;
+    }
+  }
+}
@@ -0,0 +1,342 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The automata that count the terms of several lists of ontology accession ids in one scan. Each list is
+ * counted as if its own automaton had scanned the passage on its own: where its terms overlap, the longest
+ * one wins, and of two terms that match the same text the one that comes last in its dictionary.
+ * 
+ * One automaton for all the lists cannot always do that. Where a term of one list overlaps a term that only
+ * another list has (ie "blood" and "blood cell"), the automaton counts the longest match, and the list
+ * without it would lose its own. The lists are therefore put into groups in which no two lists disagree
+ * about a match, and each group gets an automaton of its own. Lists whose terms do not overlap, which is the
+ * common case, share one automaton, so a file is scanned once.
+ * 
+ * Two terms are taken to overlap if a match of one could start inside a match of the other. A match starts
+ * at the start of a word, so that is the case if the first word of one of them is a word of the other. The
+ * words are compared in lower case, without a plural s and split at digits and capitals, so that the
+ * variants a term also matches do not hide an overlap. A term that does not start with a letter or a digit
+ * overlaps every term of more than one word.
+ */
+public class GroupedDictionary {
+  private List<List<String>> listsOfOntologyAccessionIds;
+  private CompiledDictionary[] automata;
+  private int[][][] termToLists;
+  
+  /**
+   * The terms of one automaton, as planned by {@link GroupedDictionary#plan(List)}
+   */
+  static class Part {
+    /**
+     * The lists the automaton counts, by their index
+     */
+    int[] lists;
+    
+    /**
+     * The unique terms of the lists, their priorities, and the lists each of them belongs to
+     */
+    String[] terms;
+    int[] priorities;
+    int[][] termToLists;
+  }
+  
+  /**
+   * @param listsOfOntologyAccessionIds
+   *          the lists of ontology accession ids
+   * @param parts
+   *          the plan of the automata, see {@link #plan(List)}
+   * @param automata
+   *          the compiled terms of each part
+   */
+  GroupedDictionary(List<List<String>> listsOfOntologyAccessionIds,
+                    List<Part> parts,
+                    CompiledDictionary[] automata) {
+    this.listsOfOntologyAccessionIds = listsOfOntologyAccessionIds;
+    this.automata = automata;
+    termToLists = new int[parts.size()][][];
+    for (int i = 0; i < termToLists.length; i++) {
+      termToLists[i] = parts.get(i).termToLists;
+    }
+  }
+  
+  public List<List<String>> getListsOfOntologyAccessionIds() {
+    return listsOfOntologyAccessionIds;
+  }
+  
+  /**
+   * Gets the automata. A passage is scanned with each of them.
+   * 
+   * @return the automata
+   */
+  public CompiledDictionary[] getAutomata() {
+    return automata;
+  }
+  
+  /**
+   * Gets the size of the automata, see {@link CompiledDictionary#getSize()}
+   * 
+   * @return the size in bytes
+   */
+  public long getSize() {
+    long size = 0;
+    for (CompiledDictionary automaton : automata) {
+      size += automaton.getSize();
+    }
+    return size;
+  }
+  
+  /**
+   * Adds the counts of a scan by one of the automata to the 'term' to 'integer' map of each list
+   * 
+   * @param automaton
+   *          the index of the automaton that made the counts
+   * @param counter
+   *          the counts of the scan, or of the current row
+   * @param listCounts
+   *          the 'term' to 'integer' map of each list, in the order of the lists
+   */
+  public void addTo(int automaton, TermCounter counter, List<Map<String,Integer>> listCounts) {
+    for (int i = 0; i < counter.getFoundTermCount(); i++) {
+      int termId = counter.getFoundTerm(i);
+      String term = automata[automaton].getTerm(termId);
+      int count = counter.getCount(termId);
+      for (int list : termToLists[automaton][termId]) {
+        Map<String,Integer> map = listCounts.get(list);
+        Integer previous = map.get(term);
+        map.put(term, (previous == null ? 0 : previous.intValue()) + count);
+      }
+    }
+  }
+  
+  /**
+   * Plans the automata of several dictionaries, each a list of terms in which a term may occur more than once
+   * 
+   * @param dictionaries
+   *          the terms of each list of ids, see {@link Kama#getDictionaryOfTermsFromOntologyIds(List)}
+   * @return the terms of each automaton
+   */
+  static List<Part> plan(List<String[]> dictionaries) {
+    int listCount = dictionaries.size();
+    // The unique terms, and the position of the last occurrence of each in every dictionary, or -1
+    List<String> terms = new ArrayList<String>();
+    List<int[]> positions = new ArrayList<int[]>();
+    Map<String,Integer> mapOfTermToIndex = new HashMap<String,Integer>();
+    for (int list = 0; list < listCount; list++) {
+      String[] dictionary = dictionaries.get(list);
+      for (int i = 0; i < dictionary.length; i++) {
+        Integer index = mapOfTermToIndex.get(dictionary[i]);
+        if (index == null) {
+          index = terms.size();
+          mapOfTermToIndex.put(dictionary[i], index);
+          terms.add(dictionary[i]);
+          int[] position = new int[listCount];
+          Arrays.fill(position, -1);
+          positions.add(position);
+        }
+        positions.get(index)[list] = i;
+      }
+    }
+    
+    boolean[][] conflicts = new boolean[listCount][listCount];
+    if (listCount > 1) {
+      findConflicts(terms, positions, conflicts);
+    }
+    
+    // Each list joins the first group it has no conflict with
+    List<List<Integer>> groups = new ArrayList<List<Integer>>();
+    for (int list = 0; list < listCount; list++) {
+      List<Integer> joined = null;
+      for (List<Integer> group : groups) {
+        boolean free = true;
+        for (int member : group) {
+          free &= !conflicts[list][member];
+        }
+        if (free) {
+          joined = group;
+          break;
+        }
+      }
+      if (joined == null) {
+        joined = new ArrayList<Integer>();
+        groups.add(joined);
+      }
+      joined.add(list);
+    }
+    
+    List<Part> parts = new ArrayList<Part>();
+    for (List<Integer> group : groups) {
+      parts.add(getPart(group, dictionaries, terms, positions));
+    }
+    return parts;
+  }
+  
+  /**
+   * Gets the terms of a group of lists. A term gets the priority of its last occurrence in the dictionaries
+   * of the group one after the other. The lists of a group agree on the order of every two terms that
+   * overlap, so that is the order of each list's own automaton.
+   */
+  private static Part getPart(List<Integer> group,
+                              List<String[]> dictionaries,
+                              List<String> terms,
+                              List<int[]> positions) {
+    int[] offsets = new int[group.size()];
+    for (int i = 1; i < offsets.length; i++) {
+      offsets[i] = offsets[i - 1] + dictionaries.get(group.get(i - 1)).length;
+    }
+    List<String> partTerms = new ArrayList<String>();
+    List<Integer> partPriorities = new ArrayList<Integer>();
+    List<int[]> partTermToLists = new ArrayList<int[]>();
+    for (int term = 0; term < terms.size(); term++) {
+      int[] position = positions.get(term);
+      int priority = -1;
+      int listCount = 0;
+      int[] lists = new int[group.size()];
+      for (int i = 0; i < lists.length; i++) {
+        if (position[group.get(i)] >= 0) {
+          priority = offsets[i] + position[group.get(i)];
+          lists[listCount++] = group.get(i);
+        }
+      }
+      if (listCount > 0) {
+        partTerms.add(terms.get(term));
+        partPriorities.add(priority);
+        partTermToLists.add(Arrays.copyOf(lists, listCount));
+      }
+    }
+    
+    Part part = new Part();
+    part.lists = new int[group.size()];
+    for (int i = 0; i < part.lists.length; i++) {
+      part.lists[i] = group.get(i);
+    }
+    part.terms = partTerms.toArray(new String[partTerms.size()]);
+    part.priorities = new int[part.terms.length];
+    for (int i = 0; i < part.priorities.length; i++) {
+      part.priorities[i] = partPriorities.get(i);
+    }
+    part.termToLists = partTermToLists.toArray(new int[partTermToLists.size()][]);
+    return part;
+  }
+  
+  /**
+   * Marks the lists that cannot share an automaton: a list that has a term and one that only has a term
+   * overlapping it, and two lists that have both terms but give them a different priority.
+   */
+  private static void findConflicts(List<String> terms, List<int[]> positions, boolean[][] conflicts) {
+    // Every run of words of each term, without the spaces and hyphens between them, so that "t cell" and
+    // "T-cell" overlap "tcell"
+    Map<String,List<Integer>> mapOfKeyToTerms = new HashMap<String,List<Integer>>();
+    List<List<String>> firstKeys = new ArrayList<List<String>>();
+    List<Integer> punctuationStarts = new ArrayList<Integer>();
+    List<Integer> multiWordTerms = new ArrayList<Integer>();
+    for (int term = 0; term < terms.size(); term++) {
+      String text = terms.get(term);
+      List<String> words = getWords(text);
+      List<String> keys = new ArrayList<String>();
+      for (int i = 0; i < words.size(); i++) {
+        StringBuilder key = new StringBuilder();
+        for (int j = i; j < words.size(); j++) {
+          key.append(words.get(j));
+          List<Integer> termsOfKey = mapOfKeyToTerms.get(key.toString());
+          if (termsOfKey == null) {
+            termsOfKey = new ArrayList<Integer>();
+            mapOfKeyToTerms.put(key.toString(), termsOfKey);
+          }
+          if (termsOfKey.isEmpty() || termsOfKey.get(termsOfKey.size() - 1) != term) {
+            termsOfKey.add(term);
+          }
+          if (i == 0) {
+            keys.add(key.toString());
+          }
+        }
+      }
+      firstKeys.add(keys);
+      if (text.length() > 0 && !Character.isLetterOrDigit(text.charAt(0))) {
+        punctuationStarts.add(term);
+      }
+      if (words.size() > 1 || (text.length() > 0 && !Character.isLetterOrDigit(text.charAt(0)))) {
+        multiWordTerms.add(term);
+      }
+    }
+    
+    for (int term = 0; term < terms.size(); term++) {
+      for (String key : firstKeys.get(term)) {
+        for (int other : mapOfKeyToTerms.get(key)) {
+          if (other != term) {
+            addConflicts(positions.get(term), positions.get(other), conflicts);
+          }
+        }
+      }
+    }
+    for (int term : punctuationStarts) {
+      for (int other : multiWordTerms) {
+        if (other != term) {
+          addConflicts(positions.get(term), positions.get(other), conflicts);
+        }
+      }
+    }
+  }
+  
+  private static void addConflicts(int[] term, int[] other, boolean[][] conflicts) {
+    int listCount = term.length;
+    for (int a = 0; a < listCount; a++) {
+      boolean hasTerm = term[a] >= 0;
+      if (hasTerm == other[a] >= 0) {
+        continue;
+      }
+      // List a has only one of the terms, so it must not share an automaton with a list that has the other
+      int[] missing = hasTerm ? other : term;
+      for (int b = 0; b < listCount; b++) {
+        if (missing[b] >= 0) {
+          conflicts[a][b] = true;
+          conflicts[b][a] = true;
+        }
+      }
+    }
+    for (int a = 0; a < listCount; a++) {
+      for (int b = a + 1; b < listCount; b++) {
+        if (term[a] >= 0 && other[a] >= 0 && term[b] >= 0 && other[b] >= 0
+            && (term[a] > other[a]) != (term[b] > other[b])) {
+          conflicts[a][b] = true;
+          conflicts[b][a] = true;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Splits a term into its words, in lower case and without a plural s. A word ends where a letter is
+   * followed by a digit or a capital, or a digit by a letter.
+   */
+  static List<String> getWords(String term) {
+    List<String> words = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    char previous = ' ';
+    for (int i = 0; i <= term.length(); i++) {
+      char c = i < term.length() ? term.charAt(i) : ' ';
+      boolean boundary = !Character.isLetterOrDigit(c);
+      if (Character.isLetter(previous)) {
+        boundary |= Character.isDigit(c) || (Character.isLowerCase(previous) && Character.isUpperCase(c));
+      } else if (Character.isDigit(previous)) {
+        boundary |= Character.isLetter(c);
+      }
+      if (boundary && word.length() > 0) {
+        if (word.length() > 1 && word.charAt(word.length() - 1) == 's') {
+          word.setLength(word.length() - 1);
+        }
+        words.add(word.toString());
+        word.setLength(0);
+      }
+      if (Character.isLetterOrDigit(c)) {
+        word.append(Character.toLowerCase(c));
+      }
+      previous = c;
+    }
+    return words;
+  }
+}
@@ -1,28 +1,26 @@
 package uk.ac.ebi.fgpt.kama;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.SocketException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
-import monq.ie.Term2Re;
-import monq.jfa.CompileDfaException;
-import monq.jfa.Dfa;
-import monq.jfa.DfaRun;
-import monq.jfa.Nfa;
-import monq.jfa.ReSyntaxException;
-import monq.jfa.actions.Copy;
-
-import org.apache.commons.net.ftp.FTPClient;
-
+import uk.ac.ebi.fgpt.kama.KamaMetrics.Phase;
 import uk.ac.ebi.ontocat.OntologyServiceException;
 
 /**
@@ -45,25 +43,171 @@ public class Kama {
     both
   }
   
+  /**
+   * The default limits of the in-memory caches, see {@link #setCacheLimits(long, long, long, long, long)}.
+   * Dictionaries and parsed SDRFs are weighed by their number of characters, automata by their serialized
+   * size, and the files and assay counts of experiments by their number of entries.
+   */
+  public static final long DEFAULT_DICTIONARY_CACHE_CHARS = 8L * 1024 * 1024;
+  public static final long DEFAULT_AUTOMATON_CACHE_BYTES = 128L * 1024 * 1024;
+  public static final long DEFAULT_SDRF_TABLE_CACHE_CHARS = 32L * 1024 * 1024;
+  public static final long DEFAULT_ACCESSION_CACHE_SIZE = 100000;
+  
+  /**
+   * Roughly the memory a character, and a file or assay count of an experiment, take in the caches. Used to
+   * turn a memory budget into limits, see {@link #setCacheMemory(long)}.
+   */
+  private static final long BYTES_PER_CHAR = 2;
+  private static final long BYTES_PER_ACCESSION_ENTRY = 256;
+  
+  /**
+   * How long a file that the FTP server did not have is not asked for again
+   */
+  public static final long DEFAULT_MISSING_FILE_RETRY_MILLIS = 60L * 60 * 1000;
+  
+  /**
+   * The number of scanners each thread keeps, enough for the count and the grouped automata of a few lists
+   * of ids that are scanned one after the other over the same file
+   */
+  private static final int SCANNERS_PER_THREAD = 8;
+  
+  /**
+   * The kinds of automata kept in the DfaStore.
+   */
+  private static final String DFA_COUNT = "count";
+  private static final String DFA_GROUPED = "grouped";
+  
   private String arrayExpressFtp = "ftp.ebi.ac.uk";
+  private int arrayExpressFtpPort = 21;
   private String arrayExpressFtpPath = "/pub/databases/microarray/data/experiment/";
-  private Map<String,File> mapOfAccessionFilesForSDRF = new HashMap<String,File>();
-  private Map<String,File> mapOfAccessionFilesForIDF = new HashMap<String,File>();
-  private Map<String,Integer> mapOfExperimentAccessionToCountOfAssays = new HashMap<String,Integer>();
+  private int downloadConnections = FtpDownloader.DEFAULT_CONNECTIONS;
+  
+  /**
+   * The downloaded files. A file that has dropped out of these caches is found again in the MAGE-TAB cache.
+   */
+  private KamaCache<String,File> mapOfAccessionFilesForSDRF = new KamaCache<String,File>("sdrf files",
+      DEFAULT_ACCESSION_CACHE_SIZE);
+  private KamaCache<String,File> mapOfAccessionFilesForIDF = new KamaCache<String,File>("idf files",
+      DEFAULT_ACCESSION_CACHE_SIZE);
+  private KamaCache<String,Integer> mapOfExperimentAccessionToCountOfAssays = new KamaCache<String,Integer>(
+      "assay counts", DEFAULT_ACCESSION_CACHE_SIZE);
+  
+  /**
+   * The parsed SDRFs of the most recently used experiments.
+   */
+  private KamaCache<String,SdrfTable> mapOfAccessionToSdrfTable = new KamaCache<String,SdrfTable>(
+      "sdrf tables", DEFAULT_SDRF_TABLE_CACHE_CHARS, new KamaCache.Weigher<SdrfTable>() {
+        public long weigh(SdrfTable sdrf) {
+          return sdrf.getLength();
+        }
+      });
   private OntologyFunctions ontoFunctions;
+  private MageTabCache mageTabCache;
+  private FtpDownloader ftpDownloader;
+  
+  /**
+   * How long a file found in the MAGE-TAB cache is used before it is checked against the FTP server again, so
+   * that a file corrected on the server is downloaded again. Negative never checks.
+   */
+  private volatile long cachedFileCheckMillis = -1;
+  
+  /**
+   * Files that the FTP server did not have, and when it was asked. They are not asked for again until the
+   * retry interval has passed, so experiments without an SDRF or IDF do not cause a new FTP session every
+   * time they are looked at, while a file that failed to download or was added later is still fetched.
+   */
+  private Map<String,Long> mapOfMissingFileToTime = Collections.synchronizedMap(new HashMap<String,Long>());
+  private volatile long missingFileRetryMillis = DEFAULT_MISSING_FILE_RETRY_MILLIS;
+  
+  /**
+   * Users will usually use one listOfOntologyIds consistently. By caching the dictionary and the automaton
+   * of each list of ids, the nfa doesn't get created too many times. The caches are keyed by the list of ids
+   * itself.
+   */
+  private KamaCache<List<String>,String[]> mapOfIdsToDictionary = new KamaCache<List<String>,String[]>(
+      "dictionaries", DEFAULT_DICTIONARY_CACHE_CHARS, new KamaCache.Weigher<String[]>() {
+        public long weigh(String[] terms) {
+          long chars = 0;
+          for (String term : terms) {
+            chars += term.length();
+          }
+          return chars;
+        }
+      });
+  private KamaCache<List<String>,CompiledDictionary> mapOfIdsToDfa = new KamaCache<List<String>,CompiledDictionary>(
+      "automata", DEFAULT_AUTOMATON_CACHE_BYTES, new KamaCache.Weigher<CompiledDictionary>() {
+        public long weigh(CompiledDictionary automaton) {
+          return automaton.getSize();
+        }
+      });
+  
+  /**
+   * The automata that count several lists of ids in one scan, keyed by the lists, see
+   * {@link GroupedDictionary}.
+   */
+  private KamaCache<List<List<String>>,GroupedDictionary> mapOfListsToGroupedDfa =
+      new KamaCache<List<List<String>>,GroupedDictionary>("grouped automata", DEFAULT_AUTOMATON_CACHE_BYTES,
+          new KamaCache.Weigher<GroupedDictionary>() {
+            public long weigh(GroupedDictionary grouped) {
+              return grouped.getSize();
+            }
+          });
+  
+  /**
+   * Compiled automata are kept here between runs, if a store was set. The ontology version is the content
+   * hash of the ontology file, which is part of the key of every stored automaton.
+   */
+  private DfaStore dfaStore;
+  private URI ontologyUri;
+  private String ontologyVersion;
+  
+  /**
+   * Held while a dictionary or an automaton is built, so that two workers asking for the same ids compile it
+   * once. The ontology service is not thread safe either.
+   */
+  private final Object dictionaryLock = new Object();
+  
+  /**
+   * Compiles the dictionaries into automata. Guarded by dictionaryLock.
+   */
+  private MatchingEngine engine = new MonqEngine();
+  
+  /**
+   * Held while files are fetched from the FTP server. Checking for files that are already here does not take
+   * it. A virtual thread, ie the fetch stage of KamaPipeline, that holds or waits for a monitor pins its
+   * carrier thread for the whole download, so this is a ReentrantLock.
+   */
+  private final ReentrantLock downloadLock = new ReentrantLock();
+  
+  /**
+   * The number of experiments scanned at the same time, and the pool that scans them. Compiled automata are
+   * shared by the workers; every scan runs in its own matcher.
+   */
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private ExecutorService workerPool;
+  
+  /**
+   * The scanners of each thread, the most recently used first. A scanner is reused for every passage for as
+   * long as its automaton is one of the last SCANNERS_PER_THREAD the thread asked for.
+   */
+  private ThreadLocal<PassageScanner[]> scanners = new ThreadLocal<PassageScanner[]>() {
+    protected PassageScanner[] initialValue() {
+      return new PassageScanner[SCANNERS_PER_THREAD];
+    }
+  };
   
   /**
-   * Users will usually use one listOfOntologyIds consistently. By using this map, we can speed up the
-   * retrieval of the dictionary and make sure that the nfa doesn't get created too many times.
+   * Where the time of this instance goes, from the loading of the ontology onwards
    */
-  private Map<Integer,String[]> mapOfHashCodeToArray = new HashMap<Integer,String[]>();
-  private Map<Integer,Dfa> hashCodeToDfa = new HashMap<Integer,Dfa>();
+  private KamaMetrics metrics = new KamaMetrics();
   
   // Default uses version 142 of EFO as Ontology;
   public Kama() throws OntologyServiceException {
     try {
-      ontoFunctions = new OntologyFunctions(this.getClass().getClassLoader().getResource(
-        "EFO_inferred_v142.owl").toURI());
+      ontologyUri = this.getClass().getClassLoader().getResource("EFO_inferred_v142.owl").toURI();
+      long start = System.nanoTime();
+      ontoFunctions = new OntologyFunctions(ontologyUri);
+      metrics.recordTime(Phase.ontology, System.nanoTime() - start);
     } catch (URISyntaxException e) {
       System.err.println("DEFAULT EFO_inferred_v142.owl IS NOT FOUND");
       e.printStackTrace();
@@ -73,7 +217,39 @@ public class Kama {
   
   // Constructor to use a user defined ontology file (Can be OBO or OWL);
   public Kama(File owlFile) throws OntologyServiceException {
-    ontoFunctions = new OntologyFunctions(owlFile.toURI());
+    ontologyUri = owlFile.toURI();
+    long start = System.nanoTime();
+    ontoFunctions = new OntologyFunctions(ontologyUri);
+    metrics.recordTime(Phase.ontology, System.nanoTime() - start);
+  }
+  
+  /**
+   * Creates a Kama that uses a snapshot of an ontology instead of parsing the ontology file, which makes
+   * startup much faster.
+   * 
+   * @param snapshot
+   *          the snapshot, see {@link #createOntologySnapshot()}
+   */
+  public Kama(OntologySnapshot snapshot) {
+    ontoFunctions = new OntologyFunctions(snapshot);
+    if (!snapshot.getSourceVersion().isEmpty()) {
+      ontologyVersion = snapshot.getSourceVersion();
+    }
+  }
+  
+  /**
+   * Builds a snapshot of the ontology this Kama was created with. Write it to a file with
+   * {@link OntologySnapshot#write(File)} and create later instances from it.
+   * 
+   * @return the snapshot of the ontology
+   * @throws OntologyServiceException
+   */
+  public OntologySnapshot createOntologySnapshot() throws OntologyServiceException {
+    if (ontoFunctions.getSnapshot() != null) {
+      return ontoFunctions.getSnapshot();
+    }
+    String version = getOntologyVersion();
+    return OntologySnapshot.build(ontoFunctions.getOntologyService(), version == null ? "" : version);
   }
   
   /**
@@ -85,24 +261,29 @@ public class Kama {
    * @return an array of the all the class's children, the class itself, and related synonyms.
    */
   public String[] getDictionaryOfTermsFromOntologyIds(List<String> listOfOntologyAccessionIds) {
-    // First check to see if this listOfOntologyAccessionIds has been called before
-    if (mapOfHashCodeToArray.containsKey(listOfOntologyAccessionIds.hashCode())) {
-      return mapOfHashCodeToArray.get(listOfOntologyAccessionIds.hashCode());
-    }
-    
-    // If the application has reached this far, then this is a "new" dictionary.
-    ArrayList<String> returnListOfEFO = new ArrayList<String>();
-    for (String efoAccessionID : listOfOntologyAccessionIds) {
-      List<String> relatedTerms;
-      if ((relatedTerms = ontoFunctions.getChildrenAndRelatedTerms(efoAccessionID)) != null) {
-        returnListOfEFO.addAll(relatedTerms);
+    synchronized (dictionaryLock) {
+      // First check to see if this listOfOntologyAccessionIds has been called before
+      String[] cached = mapOfIdsToDictionary.get(listOfOntologyAccessionIds);
+      if (cached != null) {
+        return cached;
+      }
+      
+      // If the application has reached this far, then this is a "new" dictionary.
+      long start = System.nanoTime();
+      ArrayList<String> returnListOfEFO = new ArrayList<String>();
+      for (String efoAccessionID : listOfOntologyAccessionIds) {
+        List<String> relatedTerms;
+        if ((relatedTerms = ontoFunctions.getChildrenAndRelatedTerms(efoAccessionID)) != null) {
+          returnListOfEFO.addAll(relatedTerms);
+        }
       }
+      String[] returnArray = new String[returnListOfEFO.size()];
+      returnListOfEFO.toArray(returnArray);
+      
+      mapOfIdsToDictionary.put(new ArrayList<String>(listOfOntologyAccessionIds), returnArray);
+      metrics.recordTime(Phase.ontology, System.nanoTime() - start);
+      return returnArray;
     }
-    String[] returnArray = new String[returnListOfEFO.size()];
-    returnListOfEFO.toArray(returnArray);
-    
-    mapOfHashCodeToArray.put(listOfOntologyAccessionIds.hashCode(), returnArray);
-    return returnArray;
   }
   
   /**
@@ -117,13 +298,8 @@ public class Kama {
    *         listOfOntologyAccessionIds
    * @throws MonqException
    */
-  public boolean getIfPassageContainsOntologyTerm(String passage, List<String> listOfOntologyAccessionIds) throws MonqException {
-    String[] dictionary = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
-    
-    if (getCountFromPassage(passage, getDfa(dictionary)).size() != 0) {
-      return true;
-    }
-    return false;
+  public boolean getIfPassageContainsOntologyTerm(CharSequence passage, List<String> listOfOntologyAccessionIds) throws MonqException {
+    return scanPassage(passage, getDfa(listOfOntologyAccessionIds)).getCounter().getTotal() != 0;
   }
   
   /**
@@ -136,15 +312,26 @@ public class Kama {
    * @return the total count all related ontology terms in the passage
    * @throws MonqException
    */
-  public int getTotalCountOfRelatedOntologyTermsInPassage(String passage,
+  public int getTotalCountOfRelatedOntologyTermsInPassage(CharSequence passage,
                                                           List<String> listOfOntologyAccessionIds) throws MonqException {
-    String[] listOfChildren = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
-    int countOfTermsFound = 0;
-    Map<String,Integer> countMap = getCountFromPassage(passage, getDfa(listOfChildren));
-    for (Integer value : countMap.values()) {
-      countOfTermsFound += value.intValue();
-    }
-    return countOfTermsFound;
+    return scanPassage(passage, getDfa(listOfOntologyAccessionIds)).getCounter().getTotal();
+  }
+  
+  /**
+   * Counts the related terms of every ontology accession id in the list, usually with a single scan of the
+   * passage. The terms are counted as by getTotalCountOfRelatedOntologyTermsInPassage for the whole list,
+   * and each id as if it was looked for on its own.
+   * 
+   * @param passage
+   *          the passage to be checked
+   * @param listOfOntologyAccessionIds
+   *          the list of ontology accession ids that will be looked for
+   * @return the count of each term and of each ontology accession id
+   * @throws MonqException
+   */
+  public OntologyIdCounts getOntologyIdCountsInPassage(CharSequence passage, List<String> listOfOntologyAccessionIds) throws MonqException {
+    List<List<String>> lists = getListsToCount(listOfOntologyAccessionIds);
+    return getOntologyIdCounts(listOfOntologyAccessionIds, lists, scanPassage(passage, getGroupedDfa(lists)));
   }
   
   /**
@@ -168,7 +355,7 @@ public class Kama {
     
     Map<String,Boolean> returnMap = new HashMap<String,Boolean>();
     
-    Map<String,File> mapToUse;
+    KamaCache<String,File> mapToUse;
     if (scope == Scope.sdrf) {
       mapToUse = mapOfAccessionFilesForSDRF;
     } else if (scope == Scope.idf) {
@@ -192,16 +379,22 @@ public class Kama {
       return null;
     }
     
-    for (String accession : listOfExperimentAccessionIds) {
-      File file = mapToUse.get(accession);
-      if (file != null) {
-        String passage = getPassageFromFile(file);
-        if (passage != "") {
-          returnMap.put(accession, getIfPassageContainsOntologyTerm(passage, listOfOntologyAccessionIds));
+    final KamaCache<String,File> files = mapToUse;
+    final Scope fileScope = scope;
+    final List<String> ids = listOfOntologyAccessionIds;
+    getDfa(ids);
+    returnMap.putAll(runForEachExperiment(listOfExperimentAccessionIds, new ExperimentTask<Boolean>() {
+      public Boolean call(String accession) throws MonqException {
+        File file = getDownloadedFile(files, accession, fileScope);
+        if (file != null) {
+          CharSequence passage = getPassageFromFile(file);
+          if (passage != null) {
+            return getIfPassageContainsOntologyTerm(passage, ids);
+          }
         }
-        
+        return null;
       }
-    }
+    }));
     
     return returnMap;
   }
@@ -222,53 +415,27 @@ public class Kama {
                                                                   List<String> listOfOntologyAccessionIds) throws MonqException {
     Map<String,Boolean> returnMap = new HashMap<String,Boolean>();
     
-    downloadFileFromFTP(experimentAccession);
-    
-    File file = mapOfAccessionFilesForSDRF.get(experimentAccession);
-    if (file == null) {
+    final SdrfTable sdrf = getSdrfTable(experimentAccession);
+    if (sdrf == null) {
       return returnMap;
     }
-    String passage = getPassageFromFile(file);
-    if (!passage.isEmpty()) {
-      passage = passage.replaceAll("\\s+$", "");
-      
-      String[] rowString = passage.split("\n");
-      String[][] table = stringToTable(passage);
-      
-      boolean hasADFColumn = false;
-      int adfColumn = 0;
-      
-      // Look for the column named "Array Data File"
-      for (int i = 0; i < table[0].length; i++) {
-        if (table[0][i].equals("Array Data File")) {
-          hasADFColumn = true;
-          adfColumn = i;
-          break;
-        }
-      }
-      // Put into map whether or not row contains EFO
-      if (hasADFColumn == true) {
-        for (int i = 1; i < table.length; i++) {
-          // System.out.println(table[i][adfColumn]+ "\t" +getIfPassageContainsEFO(rowString[i],
-          // EFOAccessionId));
-          // Make sure that CEL Files which have at least one reference to blood are still reported
-          if (returnMap.get(table[i][adfColumn]) == null) {
-            returnMap.put(table[i][adfColumn], getIfPassageContainsOntologyTerm(rowString[i],
-              listOfOntologyAccessionIds));
-          } else {
-            if (returnMap.get(table[i][adfColumn]) == true) {
-              // skip
-              // Keep true, true
-            } else {
-              // Replace False with whether or not the passage contains efo
-              returnMap.put(table[i][adfColumn], getIfPassageContainsOntologyTerm(rowString[i],
-                listOfOntologyAccessionIds));
-            }
+    // Put into map whether or not row contains EFO
+    if (sdrf.hasArrayDataFileColumn()) {
+      // CEL Files which have at least one row with a reference to blood are true
+      final boolean[] found = new boolean[sdrf.getArrayDataFiles().length];
+      scanRows(sdrf, getScanner(getDfa(listOfOntologyAccessionIds)), new TermCounter.RowListener() {
+        public void endRow(int row, TermCounter counter) {
+          if (counter.getTotal() != 0) {
+            found[sdrf.getArrayDataFileIndex(row)] = true;
           }
         }
-      } else {
-        System.out.println(experimentAccession + " does not have a ADF column");
+      });
+      String[] celFiles = sdrf.getArrayDataFiles();
+      for (int i = 0; i < celFiles.length; i++) {
+        returnMap.put(celFiles[i], found[i]);
       }
+    } else {
+      System.out.println(experimentAccession + " does not have a ADF column");
     }
     return returnMap;
   }
@@ -293,7 +460,7 @@ public class Kama {
     
     Map<String,Integer> returnMap = new HashMap<String,Integer>();
     
-    Map<String,File> mapToUse;
+    KamaCache<String,File> mapToUse;
     if (scope == Scope.sdrf) {
       mapToUse = mapOfAccessionFilesForSDRF;
     } else if (scope == Scope.idf) {
@@ -315,16 +482,22 @@ public class Kama {
       return null;
     }
     
-    for (String accession : listOfExperimentAccessionIds) {
-      File file = mapToUse.get(accession);
-      if (file != null) {
-        String passage = getPassageFromFile(file);
-        if (passage != "") {
-          returnMap.put(accession, getTotalCountOfRelatedOntologyTermsInPassage(passage,
-            listOfEFOAccessionIds));
+    final KamaCache<String,File> files = mapToUse;
+    final Scope fileScope = scope;
+    final List<String> ids = listOfEFOAccessionIds;
+    getDfa(ids);
+    returnMap.putAll(runForEachExperiment(listOfExperimentAccessionIds, new ExperimentTask<Integer>() {
+      public Integer call(String accession) throws MonqException {
+        File file = getDownloadedFile(files, accession, fileScope);
+        if (file != null) {
+          CharSequence passage = getPassageFromFile(file);
+          if (passage != null) {
+            return getTotalCountOfRelatedOntologyTermsInPassage(passage, ids);
+          }
         }
+        return null;
       }
-    }
+    }));
     
     return returnMap;
   }
@@ -343,54 +516,26 @@ public class Kama {
   public Map<String,Integer> getCountMapForExperimentCELFiles(String experimentAccessionId,
                                                               List<String> listOfOntologyAccessionIds) throws MonqException {
     Map<String,Integer> returnMap = new HashMap<String,Integer>();
-    downloadFileFromFTP(experimentAccessionId);
     
-    File file = mapOfAccessionFilesForSDRF.get(experimentAccessionId);
-    
-    if (file == null) {
+    final SdrfTable sdrf = getSdrfTable(experimentAccessionId);
+    if (sdrf == null) {
       return returnMap;
     }
-    String passage = getPassageFromFile(file);
-    
-    // Read a sdrf file and put it into a 2d array
-    if (!passage.isEmpty()) {
-      passage = passage.replaceAll("\\s+$", "");
-      
-      String[] rowString = passage.split("\n");
-      String[][] table = stringToTable(passage);
-      
-      boolean hasADFColumn = false;
-      int adfColumn = 0;
-      
-      // Look for the column named "Array Data File"
-      for (int i = 0; i < table[0].length; i++) {
-        if (table[0][i].equals("Array Data File")) {
-          hasADFColumn = true;
-          adfColumn = i;
-          break;
-        }
-      }
-      // Put into map the count of how many children were found
-      if (hasADFColumn == true) {
-        for (int i = 1; i < table.length; i++) {
-          // System.out.println(table[i][adfColumn]+ "\t"
-          // +getIfPassageContainsEFO(rowString[i], EFOAccessionId));
-          // Make sure that CEL Files which have at least one
-          // reference to EFO are still reported and
-          // add the values
-          if (returnMap.get(table[i][adfColumn]) == null) {
-            returnMap.put(table[i][adfColumn], getTotalCountOfRelatedOntologyTermsInPassage(rowString[i],
-              listOfOntologyAccessionIds));
-          } else {
-            // put the sum of the samples in
-            returnMap.put(table[i][adfColumn], returnMap.get(table[i][adfColumn]).intValue()
-                                               + +getTotalCountOfRelatedOntologyTermsInPassage(rowString[i],
-                                                 listOfOntologyAccessionIds));
-          }
+    // Put into map the count of how many children were found
+    if (sdrf.hasArrayDataFileColumn()) {
+      // The sum of the rows of each CEL file, including the CEL files without a reference to EFO
+      final int[] counts = new int[sdrf.getArrayDataFiles().length];
+      scanRows(sdrf, getScanner(getDfa(listOfOntologyAccessionIds)), new TermCounter.RowListener() {
+        public void endRow(int row, TermCounter counter) {
+          counts[sdrf.getArrayDataFileIndex(row)] += counter.getTotal();
         }
-      } else {
-        System.out.println(experimentAccessionId + " does not have a ADF column");
+      });
+      String[] celFiles = sdrf.getArrayDataFiles();
+      for (int i = 0; i < celFiles.length; i++) {
+        returnMap.put(celFiles[i], counts[i]);
       }
+    } else {
+      System.out.println(experimentAccessionId + " does not have a ADF column");
     }
     return returnMap;
   }
@@ -411,69 +556,359 @@ public class Kama {
    */
   public Map<String,Map<String,Integer>> getCountOfEachTermPerSample(String experimentAccessionId,
                                                                      List<String> listOfOntologyAccessionIds) throws MonqException {
+    Map<String,Map<String,Integer>> returnMap = new HashMap<String,Map<String,Integer>>();
+    final SdrfTable sdrf = getSdrfTable(experimentAccessionId);
+    if (sdrf == null) {
+      return returnMap;
+    }
+    // Put into map the sample and the terms it found
+    if (sdrf.hasArrayDataFileColumn()) {
+      // Make sure that CEL Files which have at least one reference to OntologyTerm are still reported
+      final String[] celFiles = sdrf.getArrayDataFiles();
+      final List<Map<String,Integer>> sampleMaps = new ArrayList<Map<String,Integer>>();
+      for (String celFile : celFiles) {
+        Map<String,Integer> sampleMap = new HashMap<String,Integer>();
+        sampleMaps.add(sampleMap);
+        returnMap.put(celFile, sampleMap);
+      }
+      final PassageScanner scanner = getScanner(getDfa(listOfOntologyAccessionIds));
+      scanRows(sdrf, scanner, new TermCounter.RowListener() {
+        public void endRow(int row, TermCounter counter) {
+          // add the values
+          scanner.addTo(sampleMaps.get(sdrf.getArrayDataFileIndex(row)));
+        }
+      });
+    } else {
+      System.out.println(experimentAccessionId + " does not have a ADF column");
+    }
     
-    String[] dictionary = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
-    downloadFileFromFTP(experimentAccessionId);
+    return returnMap;
     
-    Map<String,Map<String,Integer>> returnMap = new HashMap<String,Map<String,Integer>>();
-    File file = mapOfAccessionFilesForSDRF.get(experimentAccessionId);
+  }
+  
+  /**
+   * Gets the 'experiment accession id' to 'OntologyIdCounts' map. Each file is usually scanned once for all
+   * the ontology accession ids together, and every id is counted as getCountMapForListOfAccessions would
+   * count it on its own. This replaces calling getCountMapForListOfAccessions once per ontology accession id.
+   * 
+   * Where a term of one id overlaps a term of another (ie "blood" and "blood cell"), the ids cannot share an
+   * automaton, and the file is scanned once more, see {@link GroupedDictionary}.
+   * 
+   * @param listOfExperimentAccessionIds
+   *          the list of experiment accessions
+   * @param scope
+   *          the filetype. Can count IDF, SDRF, or both
+   * @param listOfOntologyAccessionIds
+   *          the ontology accession ids
+   * @return the 'experiment accession id' to 'OntologyIdCounts' map
+   * @throws MonqException
+   */
+  public Map<String,OntologyIdCounts> getOntologyIdCountsForListOfAccessions(List<String> listOfExperimentAccessionIds,
+                                                                             Scope scope,
+                                                                             final List<String> listOfOntologyAccessionIds) throws MonqException {
+    downloadFilesFromFTP(listOfExperimentAccessionIds);
     
-    if (file == null) {
+    Map<String,OntologyIdCounts> returnMap = new HashMap<String,OntologyIdCounts>();
+    if (scope == Scope.both) {
+      Map<String,OntologyIdCounts> idfMap = getOntologyIdCountsForListOfAccessions(
+        listOfExperimentAccessionIds, Scope.idf, listOfOntologyAccessionIds);
+      Map<String,OntologyIdCounts> sdrfMap = getOntologyIdCountsForListOfAccessions(
+        listOfExperimentAccessionIds, Scope.sdrf, listOfOntologyAccessionIds);
+      for (String accession : listOfExperimentAccessionIds) {
+        if (idfMap.containsKey(accession) && sdrfMap.containsKey(accession)) {
+          OntologyIdCounts counts = new OntologyIdCounts();
+          counts.addAll(idfMap.get(accession));
+          counts.addAll(sdrfMap.get(accession));
+          returnMap.put(accession, counts);
+        }
+      }
       return returnMap;
     }
-    String passage = getPassageFromFile(file);
     
-    // Read a sdrf file and put it into a 2d array
-    if (!passage.isEmpty()) {
-      passage = passage.replaceAll("\\s+$", "");
-      
-      String[] rowString = passage.split("\n");
-      String[][] table = stringToTable(passage);
-      
-      boolean hasADFColumn = false;
-      int adfColumn = 0;
-      
-      // Look for the column named "Array Data File"
-      for (int i = 0; i < table[0].length; i++) {
-        if (table[0][i].equals("Array Data File")) {
-          hasADFColumn = true;
-          adfColumn = i;
-          break;
+    final KamaCache<String,File> mapToUse = (scope == Scope.sdrf) ? mapOfAccessionFilesForSDRF : mapOfAccessionFilesForIDF;
+    final Scope fileScope = scope;
+    final List<List<String>> lists = getListsToCount(listOfOntologyAccessionIds);
+    final GroupedDictionary dictionary = getGroupedDfa(lists);
+    returnMap.putAll(runForEachExperiment(listOfExperimentAccessionIds, new ExperimentTask<OntologyIdCounts>() {
+      public OntologyIdCounts call(String accession) throws MonqException {
+        File file = getDownloadedFile(mapToUse, accession, fileScope);
+        if (file != null) {
+          CharSequence passage = getPassageFromFile(file);
+          if (passage != null) {
+            return getOntologyIdCounts(listOfOntologyAccessionIds, lists, scanPassage(passage, dictionary));
+          }
         }
+        return null;
       }
-      // Put into map the sample and the terms it found
-      if (hasADFColumn == true) {
-        for (int i = 1; i < table.length; i++) {
-          // System.out.println(table[i][adfColumn]+ "\t"
-          // +getIfPassageContainsEFO(rowString[i], EFOAccessionId));
-          
-          // Make sure that CEL Files which have at least one
-          // reference to OntologyTerm are still reported and
-          // add the values
-          if (returnMap.get(table[i][adfColumn]) == null) {
-            returnMap.put(table[i][adfColumn], getCountFromPassage(rowString[i], getDfa(dictionary)));
-          } else {
-            // Combine maps
-            Map<String,Integer> newMap = getCountFromPassage(rowString[i], getDfa(dictionary));
-            
-            for (String term : newMap.keySet()) {
-              if (returnMap.get(table[i][adfColumn]).get(term) != null) {
-                int newSum = returnMap.get(table[i][adfColumn]).get(term).intValue()
-                             + newMap.get(term).intValue();
-                returnMap.get(table[i][adfColumn]).put(term, newSum);
-              } else {
-                returnMap.get(table[i][adfColumn]).put(term, newMap.get(term));
-              }
+    }));
+    return returnMap;
+  }
+  
+  /**
+   * Counts each term of several sets of ontology accession ids in a list of experiments, so that a run that
+   * asks about several sets downloads, reads and scans every file once instead of once per set.
+   * 
+   * The counts of a set are those of getCountOfEachTermInExperiment. Sets whose terms overlap (ie "blood
+   * cell" in one and "blood" in the other) cannot share an automaton, and the file is scanned once for each
+   * automaton, see {@link GroupedDictionary}.
+   * 
+   * @param listOfExperimentAccessionIds
+   *          the list of experiment accessions
+   * @param scope
+   *          the filetype. Can count IDF, SDRF, or both
+   * @param mapOfNameToOntologyAccessionIds
+   *          the ontology accession ids of each set, by the name of the set
+   * @return the 'experiment accession id' to 'set name' to 'OntologyTerm' to 'integer' map ie
+   *         {E-GEOD-10000=>{blood=>{blood=>5}}}, without the experiments whose files could not be downloaded
+   * @throws MonqException
+   */
+  public Map<String,Map<String,Map<String,Integer>>> getCountOfEachTermForIdSets(List<String> listOfExperimentAccessionIds,
+                                                                                 Scope scope,
+                                                                                 final Map<String,List<String>> mapOfNameToOntologyAccessionIds) throws MonqException {
+    downloadFilesFromFTP(listOfExperimentAccessionIds);
+    
+    Map<String,Map<String,Map<String,Integer>>> returnMap = new HashMap<String,Map<String,Map<String,Integer>>>();
+    if (scope == Scope.both) {
+      Map<String,Map<String,Map<String,Integer>>> idfMap = getCountOfEachTermForIdSets(
+        listOfExperimentAccessionIds, Scope.idf, mapOfNameToOntologyAccessionIds);
+      Map<String,Map<String,Map<String,Integer>>> sdrfMap = getCountOfEachTermForIdSets(
+        listOfExperimentAccessionIds, Scope.sdrf, mapOfNameToOntologyAccessionIds);
+      for (String accession : listOfExperimentAccessionIds) {
+        if (idfMap.containsKey(accession) && sdrfMap.containsKey(accession)) {
+          Map<String,Map<String,Integer>> setCounts = new LinkedHashMap<String,Map<String,Integer>>();
+          for (String name : mapOfNameToOntologyAccessionIds.keySet()) {
+            Map<String,Integer> termCounts = new HashMap<String,Integer>(idfMap.get(accession).get(name));
+            for (Map.Entry<String,Integer> entry : sdrfMap.get(accession).get(name).entrySet()) {
+              Integer count = termCounts.get(entry.getKey());
+              termCounts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
             }
+            setCounts.put(name, termCounts);
           }
+          returnMap.put(accession, setCounts);
         }
-      } else {
-        System.out.println(experimentAccessionId + " does not have a ADF column");
       }
+      return returnMap;
     }
     
+    final KamaCache<String,File> mapToUse = (scope == Scope.sdrf) ? mapOfAccessionFilesForSDRF : mapOfAccessionFilesForIDF;
+    final Scope fileScope = scope;
+    final List<List<String>> lists = new ArrayList<List<String>>();
+    for (List<String> ids : mapOfNameToOntologyAccessionIds.values()) {
+      addList(lists, ids);
+    }
+    final GroupedDictionary dictionary = getGroupedDfa(lists);
+    returnMap.putAll(runForEachExperiment(listOfExperimentAccessionIds,
+      new ExperimentTask<Map<String,Map<String,Integer>>>() {
+        public Map<String,Map<String,Integer>> call(String accession) throws MonqException {
+          File file = getDownloadedFile(mapToUse, accession, fileScope);
+          CharSequence passage = file == null ? null : getPassageFromFile(file);
+          if (passage == null) {
+            return null;
+          }
+          List<Map<String,Integer>> listCounts = scanPassage(passage, dictionary);
+          Map<String,Map<String,Integer>> setCounts = new LinkedHashMap<String,Map<String,Integer>>();
+          for (Map.Entry<String,List<String>> entry : mapOfNameToOntologyAccessionIds.entrySet()) {
+            setCounts.put(entry.getKey(), listCounts.get(lists.indexOf(entry.getValue())));
+          }
+          return setCounts;
+        }
+      }));
     return returnMap;
+  }
+  
+  /**
+   * Gets the OntologyIdCounts of several sets of ontology accession ids in a list of experiments. Like
+   * getCountOfEachTermForIdSets, each file is read once and usually scanned once for all the sets.
+   * 
+   * @param listOfExperimentAccessionIds
+   *          the list of experiment accessions
+   * @param scope
+   *          the filetype. Can count IDF or SDRF
+   * @param mapOfNameToOntologyAccessionIds
+   *          the ontology accession ids of each set, by the name of the set
+   * @return the 'experiment accession id' to 'set name' to 'OntologyIdCounts' map, without the experiments
+   *         whose file could not be downloaded
+   * @throws MonqException
+   */
+  public Map<String,Map<String,OntologyIdCounts>> getOntologyIdCountsForIdSets(List<String> listOfExperimentAccessionIds,
+                                                                              Scope scope,
+                                                                              final Map<String,List<String>> mapOfNameToOntologyAccessionIds) throws MonqException {
+    if (scope == Scope.both) {
+      throw new IllegalArgumentException("The IDF and the SDRF are counted one at a time");
+    }
+    downloadFilesFromFTP(listOfExperimentAccessionIds);
     
+    final KamaCache<String,File> mapToUse = (scope == Scope.sdrf) ? mapOfAccessionFilesForSDRF : mapOfAccessionFilesForIDF;
+    final Scope fileScope = scope;
+    final List<List<String>> lists = getListsToCount(mapOfNameToOntologyAccessionIds.values());
+    final GroupedDictionary dictionary = getGroupedDfa(lists);
+    return runForEachExperiment(listOfExperimentAccessionIds, new ExperimentTask<Map<String,OntologyIdCounts>>() {
+      public Map<String,OntologyIdCounts> call(String accession) throws MonqException {
+        File file = getDownloadedFile(mapToUse, accession, fileScope);
+        CharSequence passage = file == null ? null : getPassageFromFile(file);
+        if (passage == null) {
+          return null;
+        }
+        List<Map<String,Integer>> listCounts = scanPassage(passage, dictionary);
+        Map<String,OntologyIdCounts> setCounts = new LinkedHashMap<String,OntologyIdCounts>();
+        for (Map.Entry<String,List<String>> entry : mapOfNameToOntologyAccessionIds.entrySet()) {
+          setCounts.put(entry.getKey(), getOntologyIdCounts(entry.getValue(), lists, listCounts));
+        }
+        return setCounts;
+      }
+    });
+  }
+  
+  /**
+   * Gets the 'CEL file name' to 'OntologyIdCounts' map of an experiment. The SDRF is usually scanned once for
+   * all the ontology accession ids together, and the rows are added up per CEL file. This gives both the per
+   * id sample counts of getCountMapForExperimentCELFiles and the terms of getCountOfEachTermPerSample.
+   * 
+   * @param experimentAccessionId
+   *          the experiment accession id
+   * @param listOfOntologyAccessionIds
+   *          the list of ontology accession ids
+   * @return the 'CEL file name' to 'OntologyIdCounts' map for the specified experiment
+   * @throws MonqException
+   */
+  public Map<String,OntologyIdCounts> getOntologyIdCountsPerSample(String experimentAccessionId,
+                                                                   List<String> listOfOntologyAccessionIds) throws MonqException {
+    SdrfTable sdrf = getSdrfTableWithSamples(experimentAccessionId);
+    if (sdrf == null) {
+      return new HashMap<String,OntologyIdCounts>();
+    }
+    List<List<String>> lists = getListsToCount(listOfOntologyAccessionIds);
+    Map<String,List<Map<String,Integer>>> sampleCounts = scanSamples(sdrf, getGroupedDfa(lists));
+    Map<String,OntologyIdCounts> returnMap = new HashMap<String,OntologyIdCounts>();
+    for (Map.Entry<String,List<Map<String,Integer>>> entry : sampleCounts.entrySet()) {
+      returnMap.put(entry.getKey(), getOntologyIdCounts(listOfOntologyAccessionIds, lists, entry.getValue()));
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Gets the 'CEL file name' to 'OntologyIdCounts' map of an experiment for several sets of ontology
+   * accession ids at once. The SDRF is read and parsed once, and its rows are usually scanned once for all
+   * the sets.
+   * 
+   * @param experimentAccessionId
+   *          the experiment accession id
+   * @param mapOfNameToOntologyAccessionIds
+   *          the ontology accession ids of each set, by the name of the set
+   * @return the 'set name' to 'CEL file name' to 'OntologyIdCounts' map, empty if the experiment has no
+   *         samples
+   * @throws MonqException
+   */
+  public Map<String,Map<String,OntologyIdCounts>> getOntologyIdCountsPerSampleForIdSets(String experimentAccessionId,
+                                                                                       Map<String,List<String>> mapOfNameToOntologyAccessionIds) throws MonqException {
+    Map<String,Map<String,OntologyIdCounts>> returnMap = new LinkedHashMap<String,Map<String,OntologyIdCounts>>();
+    SdrfTable sdrf = getSdrfTableWithSamples(experimentAccessionId);
+    if (sdrf == null) {
+      return returnMap;
+    }
+    List<List<String>> lists = getListsToCount(mapOfNameToOntologyAccessionIds.values());
+    Map<String,List<Map<String,Integer>>> sampleCounts = scanSamples(sdrf, getGroupedDfa(lists));
+    for (Map.Entry<String,List<String>> set : mapOfNameToOntologyAccessionIds.entrySet()) {
+      Map<String,OntologyIdCounts> setCounts = new HashMap<String,OntologyIdCounts>();
+      for (Map.Entry<String,List<Map<String,Integer>>> entry : sampleCounts.entrySet()) {
+        setCounts.put(entry.getKey(), getOntologyIdCounts(set.getValue(), lists, entry.getValue()));
+      }
+      returnMap.put(set.getKey(), setCounts);
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Gets the SDRF of an experiment if it names the CEL file of each sample
+   * 
+   * @return the SDRF, or null if it could not be read or has no Array Data File column
+   */
+  private SdrfTable getSdrfTableWithSamples(String experimentAccessionId) {
+    SdrfTable sdrf = getSdrfTable(experimentAccessionId);
+    if (sdrf != null && !sdrf.hasArrayDataFileColumn()) {
+      System.out.println(experimentAccessionId + " does not have a ADF column");
+      return null;
+    }
+    return sdrf;
+  }
+  
+  /**
+   * Gets the lists of ids that are counted for the OntologyIdCounts of a list: the list itself, for the terms,
+   * and each id on its own, for the count of the id.
+   */
+  private static List<List<String>> getListsToCount(List<String> listOfOntologyAccessionIds) {
+    return getListsToCount(Collections.singletonList(listOfOntologyAccessionIds));
+  }
+  
+  private static List<List<String>> getListsToCount(Collection<List<String>> listsOfOntologyAccessionIds) {
+    List<List<String>> lists = new ArrayList<List<String>>();
+    for (List<String> ids : listsOfOntologyAccessionIds) {
+      addList(lists, ids);
+      for (String id : ids) {
+        addList(lists, Collections.singletonList(id));
+      }
+    }
+    return lists;
+  }
+  
+  private static void addList(List<List<String>> lists, List<String> ids) {
+    if (!lists.contains(ids)) {
+      lists.add(new ArrayList<String>(ids));
+    }
+  }
+  
+  /**
+   * Gets the OntologyIdCounts of a list of ids from the counts of the lists of getListsToCount
+   */
+  private static OntologyIdCounts getOntologyIdCounts(List<String> listOfOntologyAccessionIds,
+                                                      List<List<String>> lists,
+                                                      List<Map<String,Integer>> listCounts) {
+    OntologyIdCounts counts = new OntologyIdCounts();
+    counts.addTermCounts(listCounts.get(lists.indexOf(listOfOntologyAccessionIds)));
+    for (String id : listOfOntologyAccessionIds) {
+      int total = 0;
+      for (Integer count : listCounts.get(lists.indexOf(Collections.singletonList(id))).values()) {
+        total += count;
+      }
+      counts.setCount(id, total);
+    }
+    return counts;
+  }
+  
+  /**
+   * Scans the rows of an SDRF with grouped automata, and adds them up per CEL file
+   * 
+   * @return the 'CEL file name' to 'term counts of each list' map
+   */
+  private Map<String,List<Map<String,Integer>>> scanSamples(final SdrfTable sdrf,
+                                                            final GroupedDictionary dictionary) throws MonqException {
+    Map<String,List<Map<String,Integer>>> returnMap = new HashMap<String,List<Map<String,Integer>>>();
+    String[] celFiles = sdrf.getArrayDataFiles();
+    final List<List<Map<String,Integer>>> sampleCounts = new ArrayList<List<Map<String,Integer>>>();
+    for (String celFile : celFiles) {
+      List<Map<String,Integer>> listCounts = newListCounts(dictionary);
+      sampleCounts.add(listCounts);
+      returnMap.put(celFile, listCounts);
+    }
+    CompiledDictionary[] automata = dictionary.getAutomata();
+    for (int i = 0; i < automata.length; i++) {
+      final int automaton = i;
+      scanRows(sdrf, getScanner(automata[i]), new TermCounter.RowListener() {
+        public void endRow(int row, TermCounter counter) {
+          // Only the terms found in the row are added
+          dictionary.addTo(automaton, counter, sampleCounts.get(sdrf.getArrayDataFileIndex(row)));
+        }
+      });
+    }
+    return returnMap;
+  }
+  
+  private static List<Map<String,Integer>> newListCounts(GroupedDictionary dictionary) {
+    List<Map<String,Integer>> listCounts = new ArrayList<Map<String,Integer>>();
+    for (int i = 0; i < dictionary.getListsOfOntologyAccessionIds().size(); i++) {
+      listCounts.add(new LinkedHashMap<String,Integer>());
+    }
+    return listCounts;
   }
   
   /**
@@ -496,13 +931,10 @@ public class Kama {
     // Download Experiment
     downloadFileFromFTP(experimentAccession);
     
-    // Get a list of children EFO
-    String[] dictionary = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
-    
     // Make a map to return
     Map<String,Integer> returnMap = new HashMap<String,Integer>();
     
-    Map<String,File> mapToUse;
+    KamaCache<String,File> mapToUse;
     if (scope == Scope.sdrf) {
       mapToUse = mapOfAccessionFilesForSDRF;
     } else if (scope == Scope.idf) {
@@ -529,11 +961,11 @@ public class Kama {
     } else {
       return null;
     }
-    File file = mapToUse.get(experimentAccession);
+    File file = getDownloadedFile(mapToUse, experimentAccession, scope);
     if (file != null) {
-      String passage = getPassageFromFile(file);
-      if (passage != "") {
-        return getCountFromPassage(passage, getDfa(dictionary));
+      CharSequence passage = getPassageFromFile(file);
+      if (passage != null) {
+        return scanPassage(passage, getDfa(listOfOntologyAccessionIds)).getTermCounts();
       }
     }
     return returnMap;
@@ -556,22 +988,79 @@ public class Kama {
                                                        List<String> listOfOntologyAccessionIds) throws MonqException {
     Map<String,Integer> countMap = getCountOfEachTermInExperiment(experimentAccession, filetype,
       listOfOntologyAccessionIds);
-    String output = "";
+    StringBuilder output = new StringBuilder();
     
     for (String key : countMap.keySet()) {
-      output += key + ":" + countMap.get(key) + ";";
+      output.append(key).append(':').append(countMap.get(key)).append(';');
     }
-    return output;
+    return output.toString();
     
   }
   
   /**
-   * Gets the 'experiment accession id' to 'integer' map that is used to determine how many assays there are
-   * per experiment
+   * Counts each term related to the ontology accession ids in every experiment of a corpus index. Nothing is
+   * downloaded or scanned: the terms are looked up as phrases in the index, see {@link CorpusIndex}. The
+   * counts are those of a scan by the monq engine, except for the two differences listed there.
    * 
-   * @param listOfExperimentAccessionIds
-   *          the list of experiment accession ids
-   * @return the 'experiment accession id' to 'integer' map that is used to determine how many assays there
+   * @param corpusIndex
+   *          the index of the corpus
+   * @param scope
+   *          the scope of the search. Can search IDF, SDRF, or both
+   * @param listOfOntologyAccessionIds
+   *          the ontology accession ids
+   * @return the 'experiment accession id' to 'OntologyTerm' to 'integer' map ie {E-GEOD-10000=>{blood=>5}}.
+   *         Experiments that mention none of the terms are left out
+   * @throws IOException
+   */
+  public Map<String,Map<String,Integer>> getCountOfEachTermFromIndex(CorpusIndex corpusIndex,
+                                                                     Scope scope,
+                                                                     List<String> listOfOntologyAccessionIds) throws IOException {
+    String[] terms = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
+    long start = System.nanoTime();
+    Map<String,Map<String,Integer>> returnMap = corpusIndex.search(terms, scope);
+    metrics.recordTime(Phase.scan, System.nanoTime() - start);
+    return returnMap;
+  }
+  
+  /**
+   * The counterpart of {@link #getCountMapForListOfAccessions(List, Scope, List)} for every experiment of a
+   * corpus index
+   * 
+   * @param corpusIndex
+   *          the index of the corpus
+   * @param scope
+   *          the filetype. Can count IDF, SDRF, or both
+   * @param listOfOntologyAccessionIds
+   *          the ontology accession ids
+   * @return the 'experiment accession id' to 'integer' map for every experiment in the index
+   * @throws IOException
+   */
+  public Map<String,Integer> getCountMapFromIndex(CorpusIndex corpusIndex,
+                                                  Scope scope,
+                                                  List<String> listOfOntologyAccessionIds) throws IOException {
+    Map<String,Map<String,Integer>> termCounts = getCountOfEachTermFromIndex(corpusIndex, scope,
+      listOfOntologyAccessionIds);
+    Map<String,Integer> returnMap = new HashMap<String,Integer>();
+    for (String accession : corpusIndex.getAccessions(scope)) {
+      int total = 0;
+      Map<String,Integer> counts = termCounts.get(accession);
+      if (counts != null) {
+        for (Integer count : counts.values()) {
+          total += count;
+        }
+      }
+      returnMap.put(accession, total);
+    }
+    return returnMap;
+  }
+  
+  /**
+   * Gets the 'experiment accession id' to 'integer' map that is used to determine how many assays there are
+   * per experiment
+   * 
+   * @param listOfExperimentAccessionIds
+   *          the list of experiment accession ids
+   * @return the 'experiment accession id' to 'integer' map that is used to determine how many assays there
    *         are per experiment
    */
   public Map<String,Integer> getCountOfAssaysPerExperiment(List<String> listOfExperimentAccessionIds) {
@@ -581,20 +1070,30 @@ public class Kama {
     downloadFilesFromFTP(listOfExperimentAccessionIds);
     
     // Step 2 - For each file, check to see if mapOfExperimentAccessionToCountOfAssays
-    // has the value. If it doesn't then put the value in mapOfExperimentAccessionToCountOfAssays
+    // has the value. If it doesn't then parse the SDRF and put the value in
+    // mapOfExperimentAccessionToCountOfAssays. The SDRFs are parsed by the workers.
+    try {
+      runForEachExperiment(listOfExperimentAccessionIds, new ExperimentTask<Integer>() {
+        public Integer call(String experimentAccession) {
+          if (mapOfExperimentAccessionToCountOfAssays.containsKey(experimentAccession)) {
+            return null;
+          }
+          SdrfTable sdrf = getSdrfTable(experimentAccession);
+          if (sdrf != null) {
+            mapOfExperimentAccessionToCountOfAssays.put(experimentAccession, sdrf.getRowCount());
+          } else if (getDownloadedFile(mapOfAccessionFilesForSDRF, experimentAccession, Scope.sdrf) != null) {
+            // The SDRF is empty
+            mapOfExperimentAccessionToCountOfAssays.put(experimentAccession, 0);
+          }
+          return null;
+        }
+      });
+    } catch (MonqException e) {
+      // Counting assays does not scan, so this is only an interrupted run
+      e.printStackTrace();
+    }
     
     for (String experimentAccession : listOfExperimentAccessionIds) {
-      
-      if (mapOfExperimentAccessionToCountOfAssays.get(experimentAccession) == null) {
-        // File exists
-        if (mapOfAccessionFilesForSDRF.get(experimentAccession) != null) {
-          String[][] sdrf2D = stringToTable(getPassageFromFile(mapOfAccessionFilesForSDRF
-              .get(experimentAccession)));
-          mapOfExperimentAccessionToCountOfAssays.put(experimentAccession, sdrf2D.length - 1);
-        }
-      } else {
-        // Do nothing extra
-      }
       returnMap.put(experimentAccession, mapOfExperimentAccessionToCountOfAssays.get(experimentAccession));
     }
     return returnMap;
@@ -607,7 +1106,7 @@ public class Kama {
    * @return experimentAccession to IDF File map.
    */
   public Map<String,File> getCompleteIDFMap() {
-    return mapOfAccessionFilesForIDF;
+    return mapOfAccessionFilesForIDF.asMap();
   }
   
   /**
@@ -616,86 +1115,430 @@ public class Kama {
    * @return experimentAccession to SDRF File map.
    */
   public Map<String,File> getCompleteSDRFMap() {
-    return mapOfAccessionFilesForSDRF;
+    return mapOfAccessionFilesForSDRF.asMap();
   }
   
   /**
-   * Download files from FTP. If the file exists, it does not attempt to redownload it.
+   * Download files from FTP. A file that was downloaded by an earlier call is not downloaded again, and a file
+   * in the MAGE-TAB cache only if it is due to be checked and changed on the server, see
+   * {@link #setCachedFileCheckInterval(long)}.
    * 
    * @param listOfExperimentAccessions
    *          the list of experiment accessions
    */
   public void downloadFilesFromFTP(List<String> listOfExperimentAccessions) {
+    // Serve as much as possible from the cache before opening an FTP session. This needs no lock, so
+    // workers asking for files that are already here never wait on a download.
+    if (getAccessionsToFetch(listOfExperimentAccessions).isEmpty()) {
+      return;
+    }
+    downloadLock.lock();
+    try {
+      // Another thread may have fetched some of them in the meantime
+      downloadMissingFiles(getAccessionsToFetch(listOfExperimentAccessions));
+    } finally {
+      downloadLock.unlock();
+    }
+  }
+  
+  private List<String> getAccessionsToFetch(List<String> listOfExperimentAccessions) {
+    List<String> listOfAccessionsToFetch = new ArrayList<String>();
+    for (String accession : listOfExperimentAccessions) {
+      boolean hasSDRF = isDownloaded(mapOfAccessionFilesForSDRF, accession, Scope.sdrf);
+      boolean hasIDF = isDownloaded(mapOfAccessionFilesForIDF, accession, Scope.idf);
+      if (!hasSDRF || !hasIDF) {
+        listOfAccessionsToFetch.add(accession);
+      }
+    }
+    return listOfAccessionsToFetch;
+  }
+  
+  /**
+   * Downloads the files of the experiments. Must be called with the downloadLock held.
+   */
+  private void downloadMissingFiles(List<String> listOfAccessionsToFetch) {
+    if (listOfAccessionsToFetch.isEmpty()) {
+      return;
+    }
     
-    FTPClient client = new FTPClient();
-    FileOutputStream fos_sdrf = null;
-    FileOutputStream fos_idf = null;
+    // The downloader skips the files that are already in these maps
+    Map<String,File> sdrfFiles = new HashMap<String,File>();
+    Map<String,File> idfFiles = new HashMap<String,File>();
+    for (String accession : listOfAccessionsToFetch) {
+      if (mapOfAccessionFilesForSDRF.containsKey(accession)) {
+        sdrfFiles.put(accession, mapOfAccessionFilesForSDRF.get(accession));
+      }
+      if (mapOfAccessionFilesForIDF.containsKey(accession)) {
+        idfFiles.put(accession, mapOfAccessionFilesForIDF.get(accession));
+      }
+    }
     
-    File temp_sdrf = null;
-    File temp_idf = null;
+    // Only now is a session needed. The downloader keeps it alive for the next call.
+    long start = System.nanoTime();
+    List<File> downloaded = getFtpDownloader().download(listOfAccessionsToFetch, sdrfFiles, idfFiles);
+    metrics.recordTime(Phase.ftp, System.nanoTime() - start);
+    for (File file : downloaded) {
+      metrics.recordDownload(file.length());
+    }
+    for (String accession : listOfAccessionsToFetch) {
+      boolean failed = false;
+      if (sdrfFiles.containsKey(accession)) {
+        mapOfAccessionFilesForSDRF.put(accession, sdrfFiles.get(accession));
+      } else {
+        mapOfMissingFileToTime.put(MageTabCache.getRelativePath(accession, Scope.sdrf), System
+            .currentTimeMillis());
+        failed = true;
+      }
+      if (idfFiles.containsKey(accession)) {
+        mapOfAccessionFilesForIDF.put(accession, idfFiles.get(accession));
+      } else {
+        mapOfMissingFileToTime.put(MageTabCache.getRelativePath(accession, Scope.idf), System
+            .currentTimeMillis());
+        failed = true;
+      }
+      if (failed) {
+        metrics.recordFailedAccession(accession);
+      }
+    }
+  }
+  
+  /**
+   * Closes the FTP session that is kept open between downloads. Kama can still be used afterwards; a new
+   * session is opened when one is needed.
+   */
+  public void close() {
+    downloadLock.lock();
+    try {
+      if (ftpDownloader != null) {
+        ftpDownloader.getSessionManager().close();
+        ftpDownloader = null;
+      }
+    } finally {
+      downloadLock.unlock();
+    }
+    synchronized (this) {
+      if (workerPool != null) {
+        workerPool.shutdown();
+        workerPool = null;
+      }
+    }
+  }
+  
+  /**
+   * Sets how many experiments are scanned at the same time. The default is the number of processors.
+   * 
+   * @param workers
+   *          the number of worker threads. 1 scans every experiment on the calling thread
+   */
+  public synchronized void setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("At least one worker is needed");
+    }
+    if (workerPool != null && workers != this.workers) {
+      workerPool.shutdown();
+      workerPool = null;
+    }
+    this.workers = workers;
+  }
+  
+  public synchronized int getWorkers() {
+    return workers;
+  }
+  
+  /**
+   * Sets the engine that compiles the dictionaries and matches them. The automata compiled by the previous
+   * engine are dropped.
+   * 
+   * @param engine
+   *          the engine, ie {@link MonqEngine} (the default) or {@link AhoCorasickEngine}
+   */
+  public void setEngine(MatchingEngine engine) {
+    synchronized (dictionaryLock) {
+      if (!engine.getName().equals(this.engine.getName())) {
+        mapOfIdsToDfa.clear();
+        mapOfListsToGroupedDfa.clear();
+      }
+      this.engine = engine;
+    }
+  }
+  
+  public MatchingEngine getEngine() {
+    synchronized (dictionaryLock) {
+      return engine;
+    }
+  }
+  
+  /**
+   * A piece of work done for one experiment by runForEachExperiment
+   */
+  private interface ExperimentTask<T> {
+    /**
+     * @return the result for the experiment, or null if there is none
+     */
+    public T call(String experimentAccession) throws MonqException;
+  }
+  
+  /**
+   * Runs a task for each experiment on the worker pool and collects the results. The files of the
+   * experiments must have been downloaded already, so that the workers never wait on the FTP session.
+   * 
+   * @param listOfExperimentAccessionIds
+   *          the experiments
+   * @param task
+   *          the task to run for each experiment
+   * @return the 'experiment accession id' to 'result' map, without the experiments that had no result
+   * @throws MonqException
+   *           if a task failed. The remaining tasks are cancelled
+   */
+  private <T> Map<String,T> runForEachExperiment(List<String> listOfExperimentAccessionIds,
+                                                 final ExperimentTask<T> task) throws MonqException {
+    Map<String,T> results = new HashMap<String,T>();
+    ExecutorService pool = getWorkerPool(listOfExperimentAccessionIds.size());
+    if (pool == null) {
+      for (String accession : listOfExperimentAccessionIds) {
+        T result = task.call(accession);
+        if (result != null) {
+          results.put(accession, result);
+        }
+      }
+      return results;
+    }
     
+    List<Future<T>> futures = new ArrayList<Future<T>>(listOfExperimentAccessionIds.size());
+    for (final String accession : listOfExperimentAccessionIds) {
+      futures.add(pool.submit(new Callable<T>() {
+        public T call() throws MonqException {
+          return task.call(accession);
+        }
+      }));
+    }
     try {
-      client.connect(arrayExpressFtp);
-      client.login("anonymous", "");
-      
-      for (String accession : listOfExperimentAccessions) {
-        // Only download the files which are needed
-        if (mapOfAccessionFilesForSDRF.containsKey(accession)
-            && mapOfAccessionFilesForIDF.containsKey(accession)) {
-          continue;
+      for (int i = 0; i < futures.size(); i++) {
+        T result = futures.get(i).get();
+        if (result != null) {
+          results.put(listOfExperimentAccessionIds.get(i), result);
         }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new MonqException("Interrupted while scanning experiments", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof MonqException) {
+        throw (MonqException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new MonqException(cause);
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return results;
+  }
+  
+  /**
+   * Gets the worker pool, creating it when it is first needed
+   * 
+   * @param experiments
+   *          the number of experiments about to be scanned
+   * @return the pool, or null if the experiments should be scanned on the calling thread
+   */
+  private synchronized ExecutorService getWorkerPool(int experiments) {
+    if (workers <= 1 || experiments <= 1) {
+      return null;
+    }
+    if (workerPool == null) {
+      workerPool = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+        private int count = 0;
         
-        try {
-          temp_sdrf = File.createTempFile("kama_", ".tmp");
-          // temp_sdrf.deleteOnExit();
-          
-          temp_idf = File.createTempFile("kama_", ".tmp");
-          // temp_idf.deleteOnExit();
-          
-          fos_sdrf = new FileOutputStream(temp_sdrf);
-          fos_idf = new FileOutputStream(temp_idf);
-          
-          String pipeline = accession.substring(2, 6);
-          String sdrfFile = accession + ".sdrf.txt";
-          String idfFile = accession + ".idf.txt";
-          
-          client.retrieveFile(arrayExpressFtpPath + pipeline + "/" + accession + "/" + sdrfFile, fos_sdrf);
-          
-          if (client.getReplyString().contains("226")) {
-            System.out.println(sdrfFile + "\tFile Received");
-            mapOfAccessionFilesForSDRF.put(accession, temp_sdrf);
-          } else {
-            System.out.println(sdrfFile + "\tFailed");
-          }
-          
-          client.retrieveFile(arrayExpressFtpPath + pipeline + "/" + accession + "/" + idfFile, fos_idf);
-          
-          if (client.getReplyString().contains("226")) {
-            System.out.println(idfFile + "\tFile Received");
-            mapOfAccessionFilesForIDF.put(accession, temp_idf);
-          } else {
-            System.out.println(idfFile + "\tFailed");
-          }
-          
-        } catch (IOException e) {
-          e.printStackTrace();
-        } finally {
-          try {
-            if (fos_sdrf != null) {
-              fos_sdrf.close();
-              fos_idf.close();
-            }
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "kama-worker-" + (++count));
+          // Do not keep the JVM alive if close() is never called
+          thread.setDaemon(true);
+          return thread;
         }
-      }
-      client.disconnect();
-    } catch (SocketException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
+      });
+    }
+    return workerPool;
+  }
+  
+  /**
+   * Gets the downloader. Must be called with the downloadLock held.
+   */
+  private FtpDownloader getFtpDownloader() {
+    if (ftpDownloader == null) {
+      ftpDownloader = new FtpDownloader(new FtpSessionManager(arrayExpressFtp, arrayExpressFtpPort,
+          downloadConnections), arrayExpressFtpPath, getMageTabCache());
+    }
+    return ftpDownloader;
+  }
+  
+  /**
+   * Checks whether a file needs to be fetched. It does not if it is already available from an earlier call,
+   * or if the server is known not to have it. A file in the cache is put into the map, unless it is due to be
+   * checked against the server; then it is fetched, and the downloader checks it.
+   */
+  private boolean isDownloaded(KamaCache<String,File> mapOfAccessionFiles, String accession, Scope scope) {
+    File file = mapOfAccessionFiles.get(accession);
+    if (file != null && file.exists()) {
+      return true;
+    }
+    mapOfAccessionFiles.remove(accession);
+    if ((file = getMageTabCache().getFile(accession, scope)) != null && !isDueForCheck(accession, scope)) {
+      mapOfAccessionFiles.put(accession, file);
+      return true;
+    }
+    // Known to be missing, so there is nothing to fetch
+    return isKnownToBeMissing(accession, scope);
+  }
+  
+  /**
+   * Checks whether the FTP server did not have a file when it was asked within the retry interval. An entry
+   * that is older is forgotten, so the file is asked for again.
+   */
+  private boolean isKnownToBeMissing(String accession, Scope scope) {
+    String path = MageTabCache.getRelativePath(accession, scope);
+    Long time = mapOfMissingFileToTime.get(path);
+    if (time == null) {
+      return false;
     }
+    if (System.currentTimeMillis() - time >= missingFileRetryMillis) {
+      mapOfMissingFileToTime.remove(path);
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Checks whether a cached file was last found to be the same as the copy on the server longer ago than the
+   * check interval
+   */
+  private boolean isDueForCheck(String accession, Scope scope) {
+    long interval = cachedFileCheckMillis;
+    if (interval < 0) {
+      return false;
+    }
+    return System.currentTimeMillis() - getMageTabCache().getCheckedTime(accession, scope) >= interval;
+  }
+  
+  /**
+   * Gets a downloaded file. Files that have dropped out of the in-memory map are looked up in the MAGE-TAB
+   * cache again.
+   */
+  private File getDownloadedFile(KamaCache<String,File> mapOfAccessionFiles, String accession, Scope scope) {
+    File file = mapOfAccessionFiles.get(accession);
+    if (file == null && (file = getMageTabCache().getFile(accession, scope)) != null) {
+      mapOfAccessionFiles.put(accession, file);
+    }
+    return file;
+  }
+  
+  /**
+   * Sets the directory used to keep downloaded MAGE-TAB files between runs.
+   * 
+   * @param mageTabCache
+   *          the cache to read from and download into
+   */
+  public void setMageTabCache(MageTabCache mageTabCache) {
+    close();
+    this.mageTabCache = mageTabCache;
+  }
+  
+  /**
+   * Gets the cache of downloaded MAGE-TAB files. If none was set, the default cache in ~/.kama/magetab is used.
+   * 
+   * @return the cache of downloaded MAGE-TAB files
+   */
+  public synchronized MageTabCache getMageTabCache() {
+    if (mageTabCache == null) {
+      mageTabCache = MageTabCache.getDefaultCache();
+    }
+    return mageTabCache;
+  }
+  
+  /**
+   * Points Kama at a different FTP server, ie a mirror of ArrayExpress or a local stand-in for testing.
+   * 
+   * @param host
+   *          the FTP host
+   * @param port
+   *          the FTP port
+   * @param path
+   *          the directory on the server that holds the pipeline directories
+   */
+  public void setFtpServer(String host, int port, String path) {
+    close();
+    // Another server may have them
+    mapOfMissingFileToTime.clear();
+    this.arrayExpressFtp = host;
+    this.arrayExpressFtpPort = port;
+    this.arrayExpressFtpPath = path;
+  }
+  
+  /**
+   * Sets how long the files found in the MAGE-TAB cache are used as they are. A file that was downloaded or
+   * last checked longer ago than that is checked against the FTP server before it is first used: the server
+   * lists the file, and it is downloaded again only if the server lists a different size or modification
+   * time; if the server cannot be reached the cached copy is used. By default cached files are never
+   * checked, which needs no network but never sees a file that was corrected on the server.
+   * 
+   * @param cachedFileCheckMillis
+   *          the interval in milliseconds, 0 to check every cached file once per instance, or a negative
+   *          number to never check them
+   */
+  public void setCachedFileCheckInterval(long cachedFileCheckMillis) {
+    this.cachedFileCheckMillis = cachedFileCheckMillis;
+  }
+  
+  public long getCachedFileCheckInterval() {
+    return cachedFileCheckMillis;
+  }
+  
+  /**
+   * Sets how long a file that the FTP server did not have is not asked for again. Within the interval an
+   * experiment without an SDRF or IDF costs no FTP session; after it the file is fetched again, in case the
+   * download failed or the file was added. Defaults to an hour.
+   * 
+   * @param missingFileRetryMillis
+   *          the interval in milliseconds, 0 to ask for a missing file every time it is needed
+   */
+  public void setMissingFileRetryInterval(long missingFileRetryMillis) {
+    this.missingFileRetryMillis = missingFileRetryMillis;
+  }
+  
+  public long getMissingFileRetryInterval() {
+    return missingFileRetryMillis;
+  }
+  
+  /**
+   * Sets whether the files found in the MAGE-TAB cache are checked against the FTP server before they are
+   * first used, see {@link #setCachedFileCheckInterval(long)}
+   * 
+   * @param checkCachedFiles
+   *          true to check every cached file once per instance, false to use the cached files without
+   *          asking the server. The default is false
+   */
+  public void setCheckCachedFiles(boolean checkCachedFiles) {
+    setCachedFileCheckInterval(checkCachedFiles ? 0 : -1);
+  }
+  
+  public boolean getCheckCachedFiles() {
+    return cachedFileCheckMillis >= 0;
+  }
+  
+  /**
+   * Sets how many FTP sessions are used at the same time when downloading.
+   * 
+   * @param downloadConnections
+   *          the maximum number of concurrent FTP sessions
+   */
+  public void setDownloadConnections(int downloadConnections) {
+    close();
+    this.downloadConnections = downloadConnections;
   }
   
   /**
@@ -712,117 +1555,502 @@ public class Kama {
   }
   
   /**
-   * String to table method
+   * Gets the parsed SDRF of an experiment, downloading it if needed. Parsed tables are kept for the most
+   * recently used experiments, so the sample level methods can share them.
    * 
-   * @param oneLongString
-   *          is the input string, It is simply the raw sdrf or raw idf.
-   * @return the string[][] is the 2d array representation of table ([row][column])
+   * @param experimentAccession
+   *          the experiment accession
+   * @return the parsed SDRF, or null if the SDRF could not be downloaded or is empty
    */
-  private static String[][] stringToTable(String oneLongString) {
-    
-    // 01_Create Array Of rows by splitting on new line
-    String[] rows = oneLongString.split("\\r?\\n");
-    
-    // 02_Create Array of rows that you will return
-    int columnsLength = rows[0].split("\\t").length;
-    
-    String[][] rowArray = new String[rows.length][columnsLength];
-    // 03_For each row, split on the tab and put the column into the row array
-    for (int i = 0; i < rows.length; i++) {
-      String[] column = rows[i].split("\\t");
-      if (column.length < columnsLength) {
-        for (int k = 0; k < columnsLength; k++) {
-          if (k < column.length) {
-            rowArray[i][k] = column[k];
-          } else {
-            rowArray[i][k] = "";
-          }
-        }
-        
-      } else if (column.length == columnsLength) {
-        rowArray[i] = column;
-      } else {
-        System.err.println("There is a row that is longer than the first row.");
-      }
+  private SdrfTable getSdrfTable(String experimentAccession) {
+    SdrfTable sdrf = mapOfAccessionToSdrfTable.get(experimentAccession);
+    if (sdrf != null) {
+      return sdrf;
+    }
+    downloadFileFromFTP(experimentAccession);
+    File file = getDownloadedFile(mapOfAccessionFilesForSDRF, experimentAccession, Scope.sdrf);
+    if (file == null) {
+      return null;
+    }
+    CharSequence passage = getPassageFromFile(file);
+    if (passage == null || passage.length() == 0) {
+      return null;
     }
-    return rowArray;
+    long start = System.nanoTime();
+    sdrf = new SdrfTable(passage);
+    metrics.recordTime(Phase.parse, System.nanoTime() - start);
+    mapOfAccessionToSdrfTable.put(experimentAccession, sdrf);
+    return sdrf;
   }
   
-  private String getPassageFromFile(File file) {
-    BufferedReader br;
+  /**
+   * Reads a file as a passage. The file is memory mapped rather than copied into a String.
+   * 
+   * @param file
+   *          the file to read
+   * @return the passage, or null if the file could not be read
+   */
+  private CharSequence getPassageFromFile(File file) {
     try {
-      br = new BufferedReader(new FileReader(file));
-      String text;
-      StringBuilder passage = new StringBuilder();
-      while ((text = br.readLine()) != null) {
-        passage.append(text + " \n"); // Space is because monq does not recognize line break!
-      }
-      return passage.toString().trim();
-      
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
+      return new MappedPassage(file);
     } catch (IOException e) {
       e.printStackTrace();
     }
-    return "";
+    return null;
   }
   
   /**
-   * Counts how many times the term appears in the passage
+   * Scans a passage with the scanner of the current thread
    * 
-   * @param term
-   *          the term to be looked for
    * @param passage
    *          the passage
-   * @return a count of the number times the term appears in the passage
+   * @param dictionary
+   *          the compiled dictionary to scan with
+   * @return the scanner, which holds the counts until the thread scans the next passage
    */
-  private static Map<String,Integer> getCountFromPassage(String passage, Dfa dfa) throws MonqException {
-    
+  private PassageScanner scanPassage(CharSequence passage, CompiledDictionary dictionary) throws MonqException {
+    PassageScanner scanner = getScanner(dictionary);
+    long start = System.nanoTime();
     try {
-      Map<String,Integer> map = new HashMap<String,Integer>();
-      
-      // Compile into the Dfa, specify that all text not matching any
-      // regular expression shall be copied from input to output
-      
-      // get a machinery (DfaRun) to operate the Dfa
-      DfaRun r = new DfaRun(dfa);
-      r.clientData = map;
-      
-      // Get only the filtered text
-      r.filter(passage);
-      return map;
+      scanner.scan(passage);
+      return scanner;
     } catch (IOException e) {
       throw new MonqException(e);
+    } finally {
+      metrics.recordTime(Phase.scan, System.nanoTime() - start);
+      metrics.recordScan(passage.length());
     }
-    
   }
   
-  private Dfa getDfa(String... dictionary) throws MonqException {
-    if (hashCodeToDfa.containsKey(dictionary.hashCode())) {
-      return hashCodeToDfa.get(dictionary.hashCode());
-      
+  /**
+   * Scans a passage with each automaton of a grouped dictionary
+   * 
+   * @return the 'term' to 'integer' map of each list of the dictionary
+   */
+  private List<Map<String,Integer>> scanPassage(CharSequence passage, GroupedDictionary dictionary) throws MonqException {
+    List<Map<String,Integer>> listCounts = newListCounts(dictionary);
+    CompiledDictionary[] automata = dictionary.getAutomata();
+    for (int i = 0; i < automata.length; i++) {
+      dictionary.addTo(i, scanPassage(passage, automata[i]).getCounter(), listCounts);
     }
-    
+    return listCounts;
+  }
+  
+  /**
+   * Scans all the rows of an SDRF in one pass. The listener gets the counts of each row as the scan reaches
+   * its end, so the per sample methods do not need to run monq once per row.
+   * 
+   * @param sdrf
+   *          the SDRF
+   * @param scanner
+   *          the scanner of the current thread, see {@link #getScanner(CompiledDictionary)}
+   * @param listener
+   *          receives the counts of each row
+   * @throws MonqException
+   */
+  private void scanRows(SdrfTable sdrf, PassageScanner scanner, TermCounter.RowListener listener) throws MonqException {
+    // An SDRF with only a header has no row for the listener to get
+    if (sdrf.getRowCount() == 0) {
+      return;
+    }
+    CharSequence rows = sdrf.getRows();
+    long start = System.nanoTime();
     try {
-      Nfa nfa = new Nfa(Nfa.NOTHING);
-      // If there is a clash, it doesn't matter.
-      int i = 0;
-      for (String item : dictionary) {
-        
-        nfa = nfa.or(Term2Re.convert(item), new DoCount(item).setPriority(i));
-        
-        i++;
+      scanner.scanRows(rows, listener);
+    } catch (IOException e) {
+      throw new MonqException(e);
+    } finally {
+      metrics.recordTime(Phase.scan, System.nanoTime() - start);
+      metrics.recordScan(rows.length());
+    }
+  }
+  
+  /**
+   * Gets the scanner of the current thread for a dictionary
+   * 
+   * @param dictionary
+   *          the compiled dictionary to scan with
+   * @return the scanner
+   */
+  private PassageScanner getScanner(CompiledDictionary dictionary) {
+    PassageScanner[] threadScanners = scanners.get();
+    int slot = 0;
+    while (slot < threadScanners.length - 1 && threadScanners[slot] != null
+           && threadScanners[slot].getDictionary() != dictionary) {
+      slot++;
+    }
+    PassageScanner scanner = threadScanners[slot];
+    if (scanner == null || scanner.getDictionary() != dictionary) {
+      // The least recently used scanner is dropped
+      scanner = new PassageScanner(dictionary);
+    }
+    System.arraycopy(threadScanners, 0, threadScanners, 1, slot);
+    threadScanners[0] = scanner;
+    return scanner;
+  }
+  
+  /**
+   * Compiles the automata for a list of ontology accession ids and keeps them in the automaton store, so
+   * that later runs with the same ontology and ids do not need to compile them again. Without a store (see
+   * {@link #setDfaStore(DfaStore)}) they are only kept in memory.
+   * 
+   * @param listOfOntologyAccessionIds
+   *          the list of ontology accession ids
+   * @throws MonqException
+   */
+  public void precompile(List<String> listOfOntologyAccessionIds) throws MonqException {
+    getDfa(listOfOntologyAccessionIds);
+    getGroupedDfa(getListsToCount(listOfOntologyAccessionIds));
+  }
+  
+  /**
+   * Compiles the automata that count several sets of ontology accession ids together, see
+   * {@link #getCountOfEachTermForIdSets(List, Scope, Map)}, and keeps them in the automaton store
+   * 
+   * @param mapOfNameToOntologyAccessionIds
+   *          the ontology accession ids of each set, by the name of the set
+   * @throws MonqException
+   */
+  public void precompile(Map<String,List<String>> mapOfNameToOntologyAccessionIds) throws MonqException {
+    List<List<String>> lists = new ArrayList<List<String>>();
+    for (List<String> ids : mapOfNameToOntologyAccessionIds.values()) {
+      addList(lists, ids);
+    }
+    getGroupedDfa(lists);
+    getGroupedDfa(getListsToCount(mapOfNameToOntologyAccessionIds.values()));
+  }
+  
+  /**
+   * Sets the directory used to keep compiled automata between runs. Without a store, every automaton is
+   * compiled again by each instance.
+   * 
+   * @param dfaStore
+   *          the store to load automata from and save them to, ie {@link DfaStore#getDefaultStore()}, or
+   *          null to keep them in memory only
+   */
+  public synchronized void setDfaStore(DfaStore dfaStore) {
+    this.dfaStore = dfaStore;
+  }
+  
+  /**
+   * Gets the store of compiled automata
+   * 
+   * @return the store of compiled automata, or null if none was set
+   */
+  public synchronized DfaStore getDfaStore() {
+    return dfaStore;
+  }
+  
+  /**
+   * Gets the in-memory caches of this instance, including the ones of the ontology
+   * 
+   * @return the caches
+   */
+  public List<KamaCache<?,?>> getCaches() {
+    List<KamaCache<?,?>> caches = new ArrayList<KamaCache<?,?>>();
+    caches.add(mapOfIdsToDictionary);
+    caches.add(mapOfIdsToDfa);
+    caches.add(mapOfListsToGroupedDfa);
+    caches.add(mapOfAccessionToSdrfTable);
+    caches.add(mapOfAccessionFilesForSDRF);
+    caches.add(mapOfAccessionFilesForIDF);
+    caches.add(mapOfExperimentAccessionToCountOfAssays);
+    if (ontoFunctions != null) {
+      caches.add(ontoFunctions.getCache());
+    }
+    return caches;
+  }
+  
+  /**
+   * Sets the limits of the in-memory caches. A cache that is over its new limit evicts its least recently
+   * used entries.
+   * 
+   * @param dictionaryChars
+   *          the characters of the dictionaries of the lists of ids
+   * @param ontologyChars
+   *          the characters of the related terms of the ontology classes
+   * @param automatonBytes
+   *          the serialized size of the automata of the lists of ids, and again of the grouped automata
+   * @param sdrfTableChars
+   *          the characters of the parsed SDRFs
+   * @param accessionEntries
+   *          the number of experiments whose files, and again whose assay counts, are kept
+   */
+  public void setCacheLimits(long dictionaryChars,
+                             long ontologyChars,
+                             long automatonBytes,
+                             long sdrfTableChars,
+                             long accessionEntries) {
+    mapOfIdsToDictionary.setMaxWeight(dictionaryChars);
+    if (ontoFunctions != null) {
+      ontoFunctions.getCache().setMaxWeight(ontologyChars);
+    }
+    mapOfIdsToDfa.setMaxWeight(automatonBytes);
+    mapOfListsToGroupedDfa.setMaxWeight(automatonBytes);
+    mapOfAccessionToSdrfTable.setMaxWeight(sdrfTableChars);
+    mapOfAccessionFilesForSDRF.setMaxWeight(accessionEntries);
+    mapOfAccessionFilesForIDF.setMaxWeight(accessionEntries);
+    mapOfExperimentAccessionToCountOfAssays.setMaxWeight(accessionEntries);
+  }
+  
+  /**
+   * Sets the limits of the in-memory caches from the memory they may use together. The automata get 60% of
+   * it, half for those of the lists of ids and half for the grouped ones, the parsed SDRFs 25%, and the
+   * dictionaries, the related terms and the experiments 5% each. The limits are estimates, see
+   * {@link #setCacheLimits(long, long, long, long, long)}.
+   * 
+   * @param bytes
+   *          the memory of all the caches together
+   */
+  public void setCacheMemory(long bytes) {
+    long share = bytes / 20;
+    setCacheLimits(share / BYTES_PER_CHAR, share / BYTES_PER_CHAR, 6 * share, 5 * share / BYTES_PER_CHAR,
+      share / (3 * BYTES_PER_ACCESSION_ENTRY));
+  }
+  
+  /**
+   * Gets the statistics of every in-memory cache, one line per cache
+   * 
+   * @return the statistics of the caches
+   */
+  public String getCacheStatistics() {
+    StringBuilder statistics = new StringBuilder();
+    for (KamaCache<?,?> cache : getCaches()) {
+      statistics.append(cache).append("\n");
+    }
+    return statistics.toString();
+  }
+  
+  /**
+   * Gets the fingerprint of the dictionaries of a list of ontology accession ids: a hash of the engine, of
+   * every term in the order it is compiled, and of the terms each id is counted with. Results made with the
+   * same fingerprint are the same, even if they were made with a different version of the ontology.
+   * 
+   * @param listOfOntologyAccessionIds
+   *          the list of ontology accession ids
+   * @return the fingerprint
+   */
+  public String getDictionaryFingerprint(List<String> listOfOntologyAccessionIds) {
+    StringBuilder text = new StringBuilder(getEngine().getName());
+    text.append("\n\n");
+    for (String term : getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds)) {
+      text.append(term).append('\n');
+    }
+    for (String id : listOfOntologyAccessionIds) {
+      text.append('\n').append(id).append('\n');
+      for (String term : getDictionaryOfTermsFromOntologyIds(Collections.singletonList(id))) {
+        text.append(term).append('\n');
+      }
+    }
+    return DfaStore.hash(text.toString());
+  }
+  
+  /**
+   * Gets whether the files of an experiment have been downloaded. Nothing is downloaded, see
+   * {@link #downloadFilesFromFTP(List)}.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the file, sdrf or idf, or both for both files
+   * @return true if the files are here
+   */
+  public boolean hasFile(String experimentAccession, Scope scope) {
+    if (scope == Scope.both) {
+      return hasFile(experimentAccession, Scope.sdrf) && hasFile(experimentAccession, Scope.idf);
+    }
+    return getDownloadedFile(scope == Scope.sdrf ? mapOfAccessionFilesForSDRF : mapOfAccessionFilesForIDF,
+      experimentAccession, scope) != null;
+  }
+  
+  /**
+   * Gets the content hash of a downloaded file. The file is not downloaded if it is not here yet, see
+   * {@link #downloadFilesFromFTP(List)}.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the file, sdrf or idf
+   * @return the content hash, or null if the file has not been downloaded or could not be read
+   */
+  public String getFileHash(String experimentAccession, Scope scope) {
+    if (scope == Scope.both) {
+      throw new IllegalArgumentException("A file is either an sdrf or an idf");
+    }
+    File file = getDownloadedFile(scope == Scope.sdrf ? mapOfAccessionFilesForSDRF : mapOfAccessionFilesForIDF,
+      experimentAccession, scope);
+    if (file == null) {
+      return null;
+    }
+    try {
+      return DfaStore.hash(new FileInputStream(file));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+  
+  /**
+   * Gets the metrics of this instance. Register them with {@link KamaMetrics#register()} to watch a run over
+   * JMX.
+   * 
+   * @return the metrics
+   */
+  public KamaMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Gets the content hash of the ontology file. It is only computed once.
+   * 
+   * @return the content hash, or null if the ontology file could not be read
+   */
+  public synchronized String getOntologyVersion() {
+    if (ontologyVersion == null && ontologyUri != null) {
+      try {
+        ontologyVersion = DfaStore.hash(ontologyUri.toURL().openStream());
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    return ontologyVersion;
+  }
+  
+  /**
+   * Gets the automata that count several lists of ids in one scan, see {@link GroupedDictionary}. Each list
+   * is counted as by its own automaton, see {@link #getDfa(List)}.
+   */
+  private GroupedDictionary getGroupedDfa(List<List<String>> listsOfOntologyAccessionIds) throws MonqException {
+    synchronized (dictionaryLock) {
+      GroupedDictionary grouped = mapOfListsToGroupedDfa.get(listsOfOntologyAccessionIds);
+      if (grouped != null) {
+        metrics.recordDfaCacheHit();
+        return grouped;
       }
-      // Use only complete matches
-      nfa = nfa.or("[A-Za-z0-9]+", new Copy(Integer.MIN_VALUE));
-      Dfa dfa = nfa.compile(DfaRun.UNMATCHED_DROP);
-      hashCodeToDfa.put(dictionary.hashCode(), dfa);
       
-      return dfa;
-    } catch (ReSyntaxException e) {
-      throw new MonqException(e);
-    } catch (CompileDfaException e) {
-      throw new MonqException(e);
+      long start = System.nanoTime();
+      List<String[]> dictionaries = new ArrayList<String[]>();
+      for (List<String> ids : listsOfOntologyAccessionIds) {
+        dictionaries.add(getDictionaryOfTermsFromOntologyIds(ids));
+      }
+      List<GroupedDictionary.Part> parts = GroupedDictionary.plan(dictionaries);
+      CompiledDictionary[] automata = new CompiledDictionary[parts.size()];
+      for (int i = 0; i < automata.length; i++) {
+        GroupedDictionary.Part part = parts.get(i);
+        // An automaton only depends on its own lists and their order, so it is stored under those
+        List<String> keyIds = new ArrayList<String>();
+        for (int list = 0; list < part.lists.length; list++) {
+          List<String> ids = listsOfOntologyAccessionIds.get(part.lists[list]);
+          for (int id = 0; id < ids.size(); id++) {
+            keyIds.add(list + ":" + id + ":" + ids.get(id));
+          }
+        }
+        String key = getDfaKey(DFA_GROUPED, keyIds);
+        if (key != null && (automata[i] = loadDfa(key)) != null
+            && automata[i].getTermCount() == part.terms.length) {
+          continue;
+        }
+        automata[i] = compile(part.terms, part.priorities, null);
+        if (key != null) {
+          getDfaStore().store(key, automata[i]);
+        }
+      }
+      List<List<String>> lists = new ArrayList<List<String>>();
+      for (List<String> ids : listsOfOntologyAccessionIds) {
+        lists.add(new ArrayList<String>(ids));
+      }
+      grouped = new GroupedDictionary(lists, parts, automata);
+      mapOfListsToGroupedDfa.put(lists, grouped);
+      mapOfListsToGroupedDfa.recordLoad(System.nanoTime() - start);
+      return grouped;
+    }
+  }
+  
+  /**
+   * Gets the automaton that counts every related term of the ids in the list.
+   */
+  private CompiledDictionary getDfa(List<String> listOfOntologyAccessionIds) throws MonqException {
+    synchronized (dictionaryLock) {
+      CompiledDictionary compiled = mapOfIdsToDfa.get(listOfOntologyAccessionIds);
+      if (compiled != null) {
+        metrics.recordDfaCacheHit();
+        return compiled;
+      }
+      String key = getDfaKey(DFA_COUNT, listOfOntologyAccessionIds);
+      if (key != null && (compiled = loadDfa(key)) != null) {
+        mapOfIdsToDfa.put(new ArrayList<String>(listOfOntologyAccessionIds), compiled);
+        return compiled;
+      }
+      
+      long start = System.nanoTime();
+      String[] dictionary = getDictionaryOfTermsFromOntologyIds(listOfOntologyAccessionIds);
+      // A term can be in the dictionary more than once. It gets one id, and the priority of its last
+      // occurrence as before.
+      Map<String,Integer> mapOfTermToPriority = new LinkedHashMap<String,Integer>();
+      for (int i = 0; i < dictionary.length; i++) {
+        mapOfTermToPriority.remove(dictionary[i]);
+        mapOfTermToPriority.put(dictionary[i], i);
+      }
+      String[] terms = new String[mapOfTermToPriority.size()];
+      int[] priorities = new int[terms.length];
+      int termId = 0;
+      for (Map.Entry<String,Integer> entry : mapOfTermToPriority.entrySet()) {
+        terms[termId] = entry.getKey();
+        priorities[termId] = entry.getValue();
+        termId++;
+      }
+      compiled = compile(terms, priorities, null);
+      mapOfIdsToDfa.put(new ArrayList<String>(listOfOntologyAccessionIds), compiled);
+      mapOfIdsToDfa.recordLoad(System.nanoTime() - start);
+      if (key != null) {
+        getDfaStore().store(key, compiled);
+      }
+      
+      return compiled;
+    }
+  }
+  
+  /**
+   * Compiles a dictionary with the engine. Must be called with the dictionaryLock held.
+   */
+  private CompiledDictionary compile(String[] terms,
+                                     int[] priorities,
+                                     String[][] termToOntologyAccessionIds) throws MonqException {
+    long start = System.nanoTime();
+    CompiledDictionary compiled = engine.compile(terms, priorities, termToOntologyAccessionIds);
+    metrics.recordTime(Phase.compile, System.nanoTime() - start);
+    metrics.recordDfaCompile(compiled);
+    return compiled;
+  }
+  
+  /**
+   * Loads an automaton from the DfaStore, which counts as compiling it
+   * 
+   * @return the automaton, or null if it is not in the store
+   */
+  private CompiledDictionary loadDfa(String key) {
+    long start = System.nanoTime();
+    CompiledDictionary compiled = getDfaStore().load(key);
+    if (compiled != null) {
+      metrics.recordTime(Phase.compile, System.nanoTime() - start);
+      metrics.recordDfaStoreLoad(compiled);
+    }
+    return compiled;
+  }
+  
+  /**
+   * Gets the key an automaton is stored under, or null if there is no store or the ontology file could not
+   * be hashed.
+   */
+  private String getDfaKey(String kind, List<String> listOfOntologyAccessionIds) {
+    if (getDfaStore() == null) {
+      return null;
+    }
+    String version = getOntologyVersion();
+    if (version == null) {
+      return null;
     }
+    // Each engine has its own kind of automaton
+    return DfaStore.getKey(version, kind + "." + engine.getName(), listOfOntologyAccessionIds);
   }
 }
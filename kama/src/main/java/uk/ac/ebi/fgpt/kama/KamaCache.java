@@ -0,0 +1,233 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache for the dictionaries, automata and parsed files Kama keeps in memory.
+ * Every entry has a weight, ie the number of characters in a dictionary, and the least recently used entries
+ * are evicted once the total weight is over the limit. Without a weigher every entry weighs 1, so the limit
+ * is the number of entries.
+ * 
+ * The cache also counts hits, misses and evictions, and the time spent building the values that were missed
+ * (see {@link #recordLoad(long)}), so that a long batch run can report how well each cache works.
+ */
+public class KamaCache<K, V> {
+  
+  /**
+   * Gives the weight of a value
+   */
+  public interface Weigher<V> {
+    public long weigh(V value);
+  }
+  
+  private String name;
+  private long maxWeight;
+  private Weigher<V> weigher;
+  private long totalWeight = 0;
+  
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+  private long loads = 0;
+  private long loadNanos = 0;
+  
+  /**
+   * The 'key' to 'entry' map, ordered from least to most recently used.
+   */
+  private LinkedHashMap<K,Entry<V>> mapOfKeyToEntry = new LinkedHashMap<K,Entry<V>>(16, 0.75f, true);
+  
+  /**
+   * Creates a cache in which every entry weighs 1
+   * 
+   * @param name
+   *          the name used in the statistics
+   * @param maxEntries
+   *          the maximum number of entries
+   */
+  public KamaCache(String name, long maxEntries) {
+    this(name, maxEntries, null);
+  }
+  
+  /**
+   * Creates a cache
+   * 
+   * @param name
+   *          the name used in the statistics
+   * @param maxWeight
+   *          the maximum total weight of the entries
+   * @param weigher
+   *          gives the weight of each value, or null to weigh every entry as 1
+   */
+  public KamaCache(String name, long maxWeight, Weigher<V> weigher) {
+    this.name = name;
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+  
+  /**
+   * Gets a value and marks it as recently used
+   * 
+   * @param key
+   *          the key
+   * @return the value, or null if it is not in the cache
+   */
+  public synchronized V get(K key) {
+    Entry<V> entry = mapOfKeyToEntry.get(key);
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.value;
+  }
+  
+  /**
+   * Checks for a key without counting a hit or a miss, and without changing the LRU order
+   * 
+   * @param key
+   *          the key
+   * @return true if the key is in the cache
+   */
+  public synchronized boolean containsKey(K key) {
+    return mapOfKeyToEntry.containsKey(key);
+  }
+  
+  /**
+   * Puts a value into the cache and evicts the least recently used entries if the cache is over its limit.
+   * The newest entry is never evicted, even if it is heavier than the limit on its own.
+   * 
+   * @param key
+   *          the key. It must not be changed afterwards
+   * @param value
+   *          the value
+   */
+  public synchronized void put(K key, V value) {
+    long weight = weigher == null ? 1 : weigher.weigh(value);
+    Entry<V> previous = mapOfKeyToEntry.put(key, new Entry<V>(value, weight));
+    if (previous != null) {
+      totalWeight -= previous.weight;
+    }
+    totalWeight += weight;
+    evict();
+  }
+  
+  /**
+   * Changes the limit, and evicts the least recently used entries if the cache is over the new one
+   * 
+   * @param maxWeight
+   *          the maximum total weight of the entries
+   */
+  public synchronized void setMaxWeight(long maxWeight) {
+    this.maxWeight = maxWeight;
+    evict();
+  }
+  
+  /**
+   * Evicts the least recently used entries until the cache is within its limit, keeping the newest one
+   */
+  private void evict() {
+    Iterator<Map.Entry<K,Entry<V>>> it = mapOfKeyToEntry.entrySet().iterator();
+    while (totalWeight > maxWeight && mapOfKeyToEntry.size() > 1) {
+      Map.Entry<K,Entry<V>> eldest = it.next();
+      totalWeight -= eldest.getValue().weight;
+      it.remove();
+      evictions++;
+    }
+  }
+  
+  /**
+   * Removes a value
+   * 
+   * @param key
+   *          the key
+   */
+  public synchronized void remove(K key) {
+    Entry<V> previous = mapOfKeyToEntry.remove(key);
+    if (previous != null) {
+      totalWeight -= previous.weight;
+    }
+  }
+  
+  public synchronized void clear() {
+    mapOfKeyToEntry.clear();
+    totalWeight = 0;
+  }
+  
+  /**
+   * Records the time it took to build a value that was not in the cache, ie to compile an automaton
+   * 
+   * @param nanos
+   *          the time in nanoseconds
+   */
+  public synchronized void recordLoad(long nanos) {
+    loads++;
+    loadNanos += nanos;
+  }
+  
+  /**
+   * Copies the cache into a map, without changing the LRU order
+   * 
+   * @return the 'key' to 'value' map of every entry
+   */
+  public synchronized Map<K,V> asMap() {
+    Map<K,V> map = new LinkedHashMap<K,V>();
+    for (Map.Entry<K,Entry<V>> entry : mapOfKeyToEntry.entrySet()) {
+      map.put(entry.getKey(), entry.getValue().value);
+    }
+    return map;
+  }
+  
+  public String getName() {
+    return name;
+  }
+  
+  public synchronized int size() {
+    return mapOfKeyToEntry.size();
+  }
+  
+  public synchronized long getWeight() {
+    return totalWeight;
+  }
+  
+  public synchronized long getMaxWeight() {
+    return maxWeight;
+  }
+  
+  public synchronized long getHits() {
+    return hits;
+  }
+  
+  public synchronized long getMisses() {
+    return misses;
+  }
+  
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+  
+  public synchronized long getLoadMillis() {
+    return loadNanos / 1000000;
+  }
+  
+  /**
+   * Gets the statistics of the cache as one line, ie "dfa: 2 entries, weight 2/16, 10 hits, 2 misses, 0
+   * evictions, 2 loads in 1500 ms"
+   */
+  public synchronized String toString() {
+    return name + ": " + mapOfKeyToEntry.size() + " entries, weight " + totalWeight + "/" + maxWeight + ", "
+           + hits + " hits, " + misses + " misses, " + evictions + " evictions, " + loads + " loads in "
+           + getLoadMillis() + " ms";
+  }
+  
+  private static class Entry<V> {
+    private V value;
+    private long weight;
+    
+    public Entry(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts where the time of a Kama run goes. There is a timer for each {@link Phase}, and counters for the
+ * bytes downloaded and scanned, the automata that were found in memory, loaded from the DfaStore or
+ * compiled, and the experiments whose files could not be downloaded.
+ * 
+ * The metrics are updated by every worker at once without a lock. They can be watched over JMX while the
+ * run is live (see {@link #register()}), and {@link #getSummary()} gives them as a few lines of text at the
+ * end.
+ */
+public class KamaMetrics implements KamaMetricsMBean {
+  public static final String DOMAIN = "uk.ac.ebi.fgpt.kama";
+  
+  /**
+   * The failed accessions listed by the summary. The MBean has all of them.
+   */
+  private static final int SUMMARY_ACCESSIONS = 20;
+  
+  private static final AtomicInteger instances = new AtomicInteger();
+  
+  /**
+   * The phases of a run that are timed
+   */
+  public enum Phase {
+    ftp,
+    ontology,
+    compile,
+    parse,
+    scan,
+    output
+  }
+  
+  private long startNanos = System.nanoTime();
+  private AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+  private AtomicLongArray phaseCalls = new AtomicLongArray(Phase.values().length);
+  
+  private AtomicLong filesDownloaded = new AtomicLong();
+  private AtomicLong bytesDownloaded = new AtomicLong();
+  private AtomicLong passagesScanned = new AtomicLong();
+  private AtomicLong bytesScanned = new AtomicLong();
+  private AtomicLong dfaCacheHits = new AtomicLong();
+  private AtomicLong dfaStoreLoads = new AtomicLong();
+  private AtomicLong dfaCompiles = new AtomicLong();
+  private AtomicLong automatonStates = new AtomicLong();
+  private Set<String> setOfFailedAccessions = new LinkedHashSet<String>();
+  
+  private ObjectName objectName;
+  
+  /**
+   * Records the time of one call of a phase
+   * 
+   * @param phase
+   *          the phase
+   * @param nanos
+   *          the time in nanoseconds
+   */
+  public void recordTime(Phase phase, long nanos) {
+    phaseNanos.addAndGet(phase.ordinal(), nanos);
+    phaseCalls.incrementAndGet(phase.ordinal());
+  }
+  
+  public void recordDownload(long bytes) {
+    filesDownloaded.incrementAndGet();
+    bytesDownloaded.addAndGet(bytes);
+  }
+  
+  /**
+   * Records a scanned passage. The passages read one byte of the file as one character, so its length is
+   * the number of bytes.
+   */
+  public void recordScan(long bytes) {
+    passagesScanned.incrementAndGet();
+    bytesScanned.addAndGet(bytes);
+  }
+  
+  public void recordDfaCacheHit() {
+    dfaCacheHits.incrementAndGet();
+  }
+  
+  public void recordDfaStoreLoad(CompiledDictionary dictionary) {
+    dfaStoreLoads.incrementAndGet();
+    addStates(dictionary);
+  }
+  
+  public void recordDfaCompile(CompiledDictionary dictionary) {
+    dfaCompiles.incrementAndGet();
+    addStates(dictionary);
+  }
+  
+  private void addStates(CompiledDictionary dictionary) {
+    int states = dictionary.getStateCount();
+    if (states > 0) {
+      automatonStates.addAndGet(states);
+    }
+  }
+  
+  /**
+   * Records an experiment whose SDRF or IDF could not be downloaded
+   * 
+   * @param accession
+   *          the experiment accession
+   */
+  public synchronized void recordFailedAccession(String accession) {
+    setOfFailedAccessions.add(accession);
+  }
+  
+  public long getMillis(Phase phase) {
+    return phaseNanos.get(phase.ordinal()) / 1000000;
+  }
+  
+  public long getCalls(Phase phase) {
+    return phaseCalls.get(phase.ordinal());
+  }
+  
+  public long getElapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+  
+  public long getFtpMillis() {
+    return getMillis(Phase.ftp);
+  }
+  
+  public long getOntologyMillis() {
+    return getMillis(Phase.ontology);
+  }
+  
+  public long getCompileMillis() {
+    return getMillis(Phase.compile);
+  }
+  
+  public long getParseMillis() {
+    return getMillis(Phase.parse);
+  }
+  
+  public long getScanMillis() {
+    return getMillis(Phase.scan);
+  }
+  
+  public long getOutputMillis() {
+    return getMillis(Phase.output);
+  }
+  
+  public long getFilesDownloaded() {
+    return filesDownloaded.get();
+  }
+  
+  public long getBytesDownloaded() {
+    return bytesDownloaded.get();
+  }
+  
+  public long getPassagesScanned() {
+    return passagesScanned.get();
+  }
+  
+  public long getBytesScanned() {
+    return bytesScanned.get();
+  }
+  
+  public long getDfaCacheHits() {
+    return dfaCacheHits.get();
+  }
+  
+  public long getDfaStoreLoads() {
+    return dfaStoreLoads.get();
+  }
+  
+  public long getDfaCompiles() {
+    return dfaCompiles.get();
+  }
+  
+  /**
+   * Gets the number of states of the automata that were loaded or compiled. Automata whose engine cannot
+   * count their states are left out.
+   */
+  public long getAutomatonStates() {
+    return automatonStates.get();
+  }
+  
+  public synchronized int getFailedAccessionCount() {
+    return setOfFailedAccessions.size();
+  }
+  
+  public synchronized String[] getFailedAccessions() {
+    return setOfFailedAccessions.toArray(new String[setOfFailedAccessions.size()]);
+  }
+  
+  /**
+   * Gets the metrics as one line per phase, ie
+   * 
+   * <pre>
+   * elapsed: 5321 ms
+   * ftp: 1200 ms in 3 calls, 24 files, 1048576 bytes
+   * scan: 900 ms in 300 calls, 3000000 bytes
+   * failed accessions: 1 (E-GEOD-1000)
+   * </pre>
+   * 
+   * @return the summary, ending with a line break
+   */
+  public String getSummary() {
+    StringBuilder summary = new StringBuilder();
+    summary.append("elapsed: ").append(getElapsedMillis()).append(" ms\n");
+    for (Phase phase : Phase.values()) {
+      summary.append(phase).append(": ").append(getMillis(phase)).append(" ms in ").append(getCalls(phase))
+          .append(" calls");
+      if (phase == Phase.ftp) {
+        summary.append(", ").append(getFilesDownloaded()).append(" files, ").append(getBytesDownloaded())
+            .append(" bytes");
+      } else if (phase == Phase.compile) {
+        summary.append(", ").append(getDfaCompiles()).append(" compiled, ").append(getDfaStoreLoads())
+            .append(" loaded from the store, ").append(getDfaCacheHits()).append(" cache hits, ")
+            .append(getAutomatonStates()).append(" states");
+      } else if (phase == Phase.scan) {
+        summary.append(", ").append(getPassagesScanned()).append(" passages, ").append(getBytesScanned())
+            .append(" bytes");
+      }
+      summary.append("\n");
+    }
+    String[] failed = getFailedAccessions();
+    summary.append("failed accessions: ").append(failed.length);
+    for (int i = 0; i < failed.length && i < SUMMARY_ACCESSIONS; i++) {
+      summary.append(i == 0 ? " (" : ", ").append(failed[i]);
+    }
+    if (failed.length > SUMMARY_ACCESSIONS) {
+      summary.append(", ...");
+    }
+    summary.append(failed.length > 0 ? ")\n" : "\n");
+    return summary.toString();
+  }
+  
+  public String toString() {
+    return getSummary();
+  }
+  
+  /**
+   * Publishes the metrics on the platform MBean server as uk.ac.ebi.fgpt.kama:type=Kama,id=n. A failure is
+   * reported but does not stop the run.
+   */
+  public synchronized void register() {
+    if (objectName != null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName(DOMAIN + ":type=Kama,id=" + instances.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      objectName = name;
+    } catch (JMException e) {
+      System.err.println("WARNING: COULD NOT REGISTER THE KAMA MBEAN");
+      e.printStackTrace();
+    }
+  }
+  
+  /**
+   * Removes the metrics from the MBean server, if they were registered
+   */
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+    objectName = null;
+  }
+  
+  /**
+   * @return the name the metrics are registered under, or null if they are not registered
+   */
+  public synchronized ObjectName getObjectName() {
+    return objectName;
+  }
+}
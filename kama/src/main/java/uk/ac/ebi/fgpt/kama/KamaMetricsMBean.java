@@ -0,0 +1,43 @@
+package uk.ac.ebi.fgpt.kama;
+
+/**
+ * The attributes of {@link KamaMetrics} that are published over JMX, ie to jconsole, while a run is live.
+ * The times are in milliseconds, added up over every thread that worked on the phase.
+ */
+public interface KamaMetricsMBean {
+  public long getElapsedMillis();
+  
+  public long getFtpMillis();
+  
+  public long getOntologyMillis();
+  
+  public long getCompileMillis();
+  
+  public long getParseMillis();
+  
+  public long getScanMillis();
+  
+  public long getOutputMillis();
+  
+  public long getFilesDownloaded();
+  
+  public long getBytesDownloaded();
+  
+  public long getPassagesScanned();
+  
+  public long getBytesScanned();
+  
+  public long getDfaCacheHits();
+  
+  public long getDfaStoreLoads();
+  
+  public long getDfaCompiles();
+  
+  public long getAutomatonStates();
+  
+  public int getFailedAccessionCount();
+  
+  public String[] getFailedAccessions();
+  
+  public String getSummary();
+}
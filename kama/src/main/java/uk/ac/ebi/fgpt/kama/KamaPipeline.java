@@ -0,0 +1,355 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a report as a pipeline. One stage fetches the files of the experiments, the scanners parse and scan
+ * them, and one stage writes their rows. The stages are linked by bounded queues, so later experiments are
+ * downloaded while earlier ones are scanned and written, and a slow stage holds the others back instead of
+ * letting work pile up in memory. A run then takes about as long as the slower of the network and the
+ * scanning, rather than both added together.
+ * 
+ * The fetch and write stages wait on I/O. They run on virtual threads when the JVM has them (Java 21 and
+ * later), and on ordinary threads otherwise. There is one scanner per worker of the Kama instance.
+ */
+public class KamaPipeline {
+  public static final int DEFAULT_CAPACITY = 64;
+  
+  /**
+   * The experiments whose files are downloaded together, so that every FTP session of the downloader is used
+   */
+  private static final int FETCH_BATCH_SIZE = 8;
+  
+  /**
+   * How often a waiting stage checks whether another stage has failed
+   */
+  private static final long POLL_MILLIS = 100;
+  
+  /**
+   * Makes the rows of one experiment. It is called by several scanners at once.
+   */
+  public interface ExperimentReport {
+    /**
+     * @return the rows of the experiment, or an empty list if it has none
+     */
+    public List<String[]> getRows(String experimentAccession) throws MonqException;
+  }
+  
+  private static class Experiment {
+    private int sequence;
+    private String accession;
+    private List<String[]> rows;
+    
+    public Experiment(int sequence, String accession) {
+      this.sequence = sequence;
+      this.accession = accession;
+    }
+  }
+  
+  /**
+   * Sent down the queues after the last experiment, once for each scanner
+   */
+  private static final Experiment END = new Experiment(-1, null);
+  
+  private Kama kama;
+  private int capacity;
+  private int scanners;
+  private Set<String> setOfCompletedAccessions = Collections.emptySet();
+  
+  private BlockingQueue<Experiment> fetched;
+  private BlockingQueue<Experiment> scanned;
+  
+  /**
+   * One permit for every experiment between the fetch and the write stage. This bounds the rows that wait to
+   * be written in order behind a slow experiment.
+   */
+  private Semaphore inFlight;
+  private volatile Throwable failure;
+  private final Object failureLock = new Object();
+  private long experimentsWritten;
+  
+  /**
+   * Creates a pipeline
+   * 
+   * @param kama
+   *          the Kama instance that fetches and scans the files
+   * @param capacity
+   *          the maximum number of experiments between the fetch and the write stage
+   */
+  public KamaPipeline(Kama kama, int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity must be at least 1");
+    }
+    this.kama = kama;
+    this.capacity = capacity;
+    this.scanners = kama.getWorkers();
+  }
+  
+  /**
+   * Sets the experiments whose rows the report already has, ie from a {@link RunJournal}. Their files are not
+   * downloaded.
+   * 
+   * @param setOfCompletedAccessions
+   *          the accessions of the experiments
+   */
+  public void setCompletedExperiments(Set<String> setOfCompletedAccessions) {
+    this.setOfCompletedAccessions = setOfCompletedAccessions;
+  }
+  
+  /**
+   * Runs the report for every experiment accession in the input. The rows are written in the order of the
+   * input.
+   * 
+   * @param experimentReader
+   *          the experiment accessions, one per line
+   * @param report
+   *          makes the rows of each experiment
+   * @param writer
+   *          the output
+   * @return the number of experiments written
+   * @throws MonqException
+   * @throws IOException
+   */
+  public synchronized long run(final BufferedReader experimentReader,
+                               final ExperimentReport report,
+                               final TsvWriter writer) throws MonqException, IOException {
+    fetched = new ArrayBlockingQueue<Experiment>(capacity);
+    scanned = new ArrayBlockingQueue<Experiment>(capacity);
+    inFlight = new Semaphore(capacity);
+    failure = null;
+    experimentsWritten = 0;
+    
+    List<Thread> threads = new ArrayList<Thread>();
+    threads.add(newThread("kama-fetch", true, new Stage() {
+      protected void runStage() throws Exception {
+        fetch(experimentReader);
+      }
+    }));
+    for (int i = 0; i < scanners; i++) {
+      threads.add(newThread("kama-scan-" + (i + 1), false, new Stage() {
+        protected void runStage() throws Exception {
+          scan(report);
+        }
+      }));
+    }
+    Thread writeThread = newThread("kama-write", true, new Stage() {
+      protected void runStage() throws Exception {
+        write(writer);
+      }
+    });
+    threads.add(writeThread);
+    
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    try {
+      writeThread.join();
+      if (failure == null) {
+        for (Thread thread : threads) {
+          thread.join();
+        }
+      }
+    } catch (InterruptedException e) {
+      // The stages see the failure and stop on their own
+      abort(e);
+      Thread.currentThread().interrupt();
+    }
+    
+    Throwable cause = failure;
+    if (cause == null) {
+      return experimentsWritten;
+    } else if (cause instanceof MonqException) {
+      throw (MonqException) cause;
+    } else if (cause instanceof IOException) {
+      throw (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    throw new MonqException(cause);
+  }
+  
+  /**
+   * Reads the accessions and downloads their files. Accessions are downloaded in small batches, or as soon
+   * as nothing more can be read without waiting.
+   */
+  private void fetch(BufferedReader experimentReader) throws IOException, InterruptedException {
+    int sequence = 0;
+    List<Experiment> batch = new ArrayList<Experiment>();
+    String line;
+    while ((line = experimentReader.readLine()) != null) {
+      line = line.trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      if (!inFlight.tryAcquire()) {
+        // The pipeline is full. Hand over what is here before waiting for the writer.
+        download(batch);
+        acquire();
+      }
+      batch.add(new Experiment(sequence++, line));
+      if (batch.size() >= FETCH_BATCH_SIZE || !experimentReader.ready()) {
+        download(batch);
+      }
+    }
+    download(batch);
+    for (int i = 0; i < scanners; i++) {
+      put(fetched, END);
+    }
+  }
+  
+  private void download(List<Experiment> batch) throws InterruptedException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    List<String> listOfExperimentAccessions = new ArrayList<String>();
+    for (Experiment experiment : batch) {
+      if (!setOfCompletedAccessions.contains(experiment.accession)) {
+        listOfExperimentAccessions.add(experiment.accession);
+      }
+    }
+    kama.downloadFilesFromFTP(listOfExperimentAccessions);
+    for (Experiment experiment : batch) {
+      put(fetched, experiment);
+    }
+    batch.clear();
+  }
+  
+  private void scan(ExperimentReport report) throws MonqException, InterruptedException {
+    Experiment experiment;
+    while ((experiment = take(fetched)) != END) {
+      experiment.rows = report.getRows(experiment.accession);
+      put(scanned, experiment);
+    }
+    put(scanned, END);
+  }
+  
+  /**
+   * Writes the rows in the order of the input. Experiments that are scanned early wait here for the ones
+   * before them.
+   */
+  private void write(TsvWriter writer) throws IOException, InterruptedException {
+    Map<Integer,Experiment> mapOfSequenceToExperiment = new HashMap<Integer,Experiment>();
+    int next = 0;
+    int running = scanners;
+    while (running > 0) {
+      Experiment experiment = take(scanned);
+      if (experiment == END) {
+        running--;
+        continue;
+      }
+      mapOfSequenceToExperiment.put(experiment.sequence, experiment);
+      boolean wrote = false;
+      while ((experiment = mapOfSequenceToExperiment.remove(next)) != null) {
+        for (String[] row : experiment.rows) {
+          writer.writeRow(row);
+        }
+        next++;
+        experimentsWritten++;
+        inFlight.release();
+        wrote = true;
+        System.out.print("\rWorking on experiment " + experimentsWritten + "\t" + experiment.accession);
+      }
+      // Nothing else is ready, so a pipeline can have the rows now
+      if (wrote && scanned.isEmpty()) {
+        writer.flush();
+      }
+    }
+    writer.flush();
+    System.out.println();
+  }
+  
+  private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+    while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkFailure();
+    }
+  }
+  
+  private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+    T item;
+    while ((item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+      checkFailure();
+    }
+    return item;
+  }
+  
+  private void acquire() throws InterruptedException {
+    while (!inFlight.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+      checkFailure();
+    }
+  }
+  
+  private void checkFailure() throws InterruptedException {
+    if (failure != null) {
+      throw new InterruptedException("Another stage of the pipeline failed");
+    }
+  }
+  
+  private void abort(Throwable cause) {
+    // Not synchronized on the pipeline, whose lock is held by run() while it waits for the stages
+    synchronized (failureLock) {
+      if (failure == null) {
+        failure = cause;
+      }
+    }
+  }
+  
+  /**
+   * A stage that stops the whole pipeline if it fails
+   */
+  private abstract class Stage implements Runnable {
+    public void run() {
+      try {
+        runStage();
+      } catch (InterruptedException e) {
+        if (failure == null) {
+          abort(e);
+        }
+      } catch (Throwable t) {
+        abort(t);
+      }
+    }
+    
+    protected abstract void runStage() throws Exception;
+  }
+  
+  /**
+   * Creates a thread that does not keep the JVM alive
+   * 
+   * @param name
+   *          the name of the thread
+   * @param virtual
+   *          whether to use a virtual thread if the JVM has them
+   * @param runnable
+   *          what the thread runs
+   * @return the thread, not started yet
+   */
+  private static Thread newThread(String name, boolean virtual, Runnable runnable) {
+    if (virtual) {
+      try {
+        // Thread.ofVirtual().name(name).unstarted(runnable), which only exists from Java 21
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+        return (Thread) builderClass.getMethod("unstarted", Runnable.class).invoke(builder, runnable);
+      } catch (Exception e) {
+        // No virtual threads
+      }
+    }
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+}
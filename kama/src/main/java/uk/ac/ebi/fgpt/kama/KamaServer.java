@@ -0,0 +1,297 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Answers annotation requests over HTTP on the local host, so that a workflow that runs Kama many times a
+ * day pays for the JVM, the ontology and the compiled automata once. Every request is answered by the same
+ * {@link Kama} instance, so the files, dictionaries and automata one request needed are in memory for the
+ * next.
+ * 
+ * <pre>
+ * POST /summary?ids=EFO_0000798,EFO_0000311   the rows of the summary mode
+ * POST /sample?ids=EFO_0000798                 the rows of the sample mode
+ * GET  /status                                 the run summary and the cache statistics
+ * </pre>
+ * 
+ * The experiment accessions are given one per line in the body, or as the comma separated accessions
+ * parameter. The rows are tab separated, with the same header as the output of App.
+ * 
+ * At most {@link #getConcurrentRequests()} requests are answered at the same time and the queue holds
+ * {@link #getQueueCapacity()} more. Requests beyond that are answered with 503 Service Unavailable at once.
+ */
+public class KamaServer {
+  public static final int DEFAULT_PORT = 8035;
+  public static final int DEFAULT_CONCURRENT_REQUESTS = 4;
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+  
+  private static final String CONTENT_TYPE = "text/tab-separated-values";
+  
+  private Kama kamaInstance;
+  private HttpServer server;
+  private ThreadPoolExecutor requestPool;
+  private ExecutorService dispatcher;
+  private int concurrentRequests;
+  private int queueCapacity;
+  
+  /**
+   * Binds the server to a port of the local host. It does not answer requests before {@link #start()}.
+   * 
+   * @param kamaInstance
+   *          the Kama instance that answers every request
+   * @param port
+   *          the port, or 0 for any free port
+   * @param concurrentRequests
+   *          the number of requests answered at the same time
+   * @param queueCapacity
+   *          the number of requests that may wait
+   * @throws IOException
+   */
+  public KamaServer(Kama kamaInstance,
+                    int port,
+                    int concurrentRequests,
+                    int queueCapacity) throws IOException {
+    this.kamaInstance = kamaInstance;
+    this.concurrentRequests = concurrentRequests;
+    this.queueCapacity = queueCapacity;
+    BlockingQueue<Runnable> queue;
+    if (queueCapacity == 0) {
+      queue = new SynchronousQueue<Runnable>();
+    } else {
+      queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+    }
+    requestPool = new ThreadPoolExecutor(concurrentRequests, concurrentRequests, 0, TimeUnit.MILLISECONDS,
+        queue, new ThreadFactory() {
+          private int count = 0;
+          
+          public synchronized Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "kama-request-" + count++);
+          }
+        });
+    
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), port), 0);
+    server.createContext("/summary", new ReportHandler(true));
+    server.createContext("/sample", new ReportHandler(false));
+    server.createContext("/status", new StatusHandler());
+    // The handlers only hand the requests to the request pool
+    dispatcher = Executors.newSingleThreadExecutor();
+    server.setExecutor(dispatcher);
+  }
+  
+  /**
+   * Starts answering requests
+   * 
+   * @return the port
+   */
+  public int start() {
+    server.start();
+    return getPort();
+  }
+  
+  /**
+   * Stops taking requests, and waits for the requests that are being answered
+   * 
+   * @param seconds
+   *          the time the requests that are being answered have to finish
+   */
+  public void stop(int seconds) {
+    server.stop(seconds);
+    dispatcher.shutdown();
+    requestPool.shutdown();
+    try {
+      requestPool.awaitTermination(seconds, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+  
+  public int getConcurrentRequests() {
+    return concurrentRequests;
+  }
+  
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+  
+  /**
+   * Gets the number of requests waiting to be answered
+   * 
+   * @return the number of requests in the queue
+   */
+  public int getQueuedRequests() {
+    return requestPool.getQueue().size();
+  }
+  
+  /**
+   * Hands a request to the request pool, or answers 503 if the queue is full
+   */
+  private void submit(final HttpExchange exchange, final Request request) throws IOException {
+    try {
+      requestPool.execute(new Runnable() {
+        public void run() {
+          try {
+            request.answer(exchange);
+          } catch (Exception e) {
+            // The status has been sent if the rows were being written
+            e.printStackTrace();
+            try {
+              sendError(exchange, 500, e.toString());
+            } catch (IOException ignored) {
+              // The client is gone
+            }
+          } finally {
+            exchange.close();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      sendError(exchange, 503, "The queue of " + queueCapacity + " requests is full");
+      exchange.close();
+    }
+  }
+  
+  private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+    byte[] body = (message + "\n").getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+  
+  /**
+   * Gets a parameter of the query string
+   * 
+   * @return the values of the parameter, split at commas
+   */
+  private static List<String> getParameter(HttpExchange exchange,
+                                           String name) throws UnsupportedEncodingException {
+    List<String> values = new ArrayList<String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return values;
+    }
+    for (String pair : query.split("&")) {
+      int equals = pair.indexOf('=');
+      if (equals != -1 && URLDecoder.decode(pair.substring(0, equals), "UTF-8").equals(name)) {
+        for (String value : URLDecoder.decode(pair.substring(equals + 1), "UTF-8").split(",")) {
+          if (value.trim().length() > 0) {
+            values.add(value.trim());
+          }
+        }
+      }
+    }
+    return values;
+  }
+  
+  private interface Request {
+    public void answer(HttpExchange exchange) throws Exception;
+  }
+  
+  /**
+   * Answers /summary and /sample with the rows of the experiments
+   */
+  private class ReportHandler implements HttpHandler {
+    private boolean displaySummary;
+    
+    public ReportHandler(boolean displaySummary) {
+      this.displaySummary = displaySummary;
+    }
+    
+    public void handle(HttpExchange exchange) throws IOException {
+      final List<String> listOfOntologyAccessionIds = getParameter(exchange, "ids");
+      if (listOfOntologyAccessionIds.isEmpty()) {
+        sendError(exchange, 400, "The ids parameter is missing");
+        exchange.close();
+        return;
+      }
+      submit(exchange, new Request() {
+        public void answer(HttpExchange exchange) throws Exception {
+          // The body is read by the request pool, so a slow client does not hold up the others
+          List<String> listOfExperimentAccessions = getParameter(exchange, "accessions");
+          BufferedReader body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+          String line;
+          while ((line = body.readLine()) != null) {
+            if (line.trim().length() > 0) {
+              listOfExperimentAccessions.add(line.trim());
+            }
+          }
+          
+          KamaPipeline.ExperimentReport report;
+          String[] header;
+          if (displaySummary) {
+            report = App.getSummaryReport(kamaInstance, listOfOntologyAccessionIds);
+            header = App.getSummaryHeader();
+          } else {
+            report = App.getSampleReport(kamaInstance, listOfOntologyAccessionIds);
+            header = App.getSampleHeader(listOfOntologyAccessionIds);
+          }
+          // Fetch every file at once before the experiments are scanned one by one
+          kamaInstance.downloadFilesFromFTP(listOfExperimentAccessions);
+          List<List<String[]>> rows = new ArrayList<List<String[]>>();
+          for (String experimentAccession : listOfExperimentAccessions) {
+            rows.add(report.getRows(experimentAccession));
+          }
+          
+          exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+          exchange.sendResponseHeaders(200, 0);
+          TsvWriter writer = new TsvWriter(exchange.getResponseBody(), true);
+          writer.writeHeader(header);
+          for (List<String[]> experimentRows : rows) {
+            for (String[] row : experimentRows) {
+              writer.writeRow(row);
+            }
+          }
+          writer.close();
+        }
+      });
+    }
+  }
+  
+  /**
+   * Answers /status with the run summary and the cache statistics of the Kama instance
+   */
+  private class StatusHandler implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      StringBuilder status = new StringBuilder();
+      status.append("Requests: ").append(requestPool.getActiveCount()).append(" active, ")
+          .append(getQueuedRequests()).append(" queued, ").append(requestPool.getCompletedTaskCount())
+          .append(" completed\n");
+      status.append("Run summary:\n").append(kamaInstance.getMetrics().getSummary());
+      status.append("Cache statistics:\n").append(kamaInstance.getCacheStatistics());
+      byte[] body = status.toString().getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+      exchange.sendResponseHeaders(200, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * A persistent, size bounded directory of downloaded MAGE-TAB files. Files are laid out the same way as the
+ * ArrayExpress FTP site (pipeline/accession/accession.sdrf.txt) so that a cache directory can be browsed or
+ * copied like a partial mirror.
+ * 
+ * When the total size of the cached files exceeds the byte budget, the least recently used files are deleted.
+ * The last modified time of a file is used as its access time so that the LRU order survives between runs.
+ * 
+ * Next to each file the cache keeps the validator of the copy on the server it was downloaded from (see
+ * {@link FtpDownloader#getValidator}), so that a later run can tell whether the file changed on the server
+ * without downloading it again. The last modified time of the validator is when the file was last found to
+ * be the same as the copy on the server.
+ */
+public class MageTabCache {
+  
+  /**
+   * 4 GB is enough to hold the SDRF and IDF of every experiment in ArrayExpress at the time of writing.
+   */
+  public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+  
+  public static final File DEFAULT_ROOT = new File(System.getProperty("user.home"), ".kama/magetab");
+  
+  private static final String TEMP_SUFFIX = ".part";
+  private static final String VALIDATOR_SUFFIX = ".remote";
+  
+  private File root;
+  private long maxBytes;
+  private long totalBytes = 0;
+  
+  /**
+   * The 'cached file' to 'size in bytes' map, ordered from least to most recently used.
+   */
+  private LinkedHashMap<File,Long> mapOfFileToSize = new LinkedHashMap<File,Long>(16, 0.75f, true);
+  
+  /**
+   * Opens (or creates) a cache directory.
+   * 
+   * @param root
+   *          the directory the files are stored in
+   * @param maxBytes
+   *          the maximum number of bytes the cache may hold
+   */
+  public MageTabCache(File root, long maxBytes) {
+    this.root = root;
+    this.maxBytes = maxBytes;
+    if (!root.exists() && !root.mkdirs()) {
+      System.err.println("Could not create cache directory " + root.getAbsolutePath());
+    }
+    loadIndex();
+    evict(null);
+  }
+  
+  /**
+   * Gets the default cache, which lives in ~/.kama/magetab
+   * 
+   * @return the default cache
+   */
+  public static MageTabCache getDefaultCache() {
+    return new MageTabCache(DEFAULT_ROOT, DEFAULT_MAX_BYTES);
+  }
+  
+  /**
+   * Gets the path of a MAGE-TAB file relative to the root of ArrayExpress. ie
+   * GEOD/E-GEOD-10001/E-GEOD-10001.sdrf.txt
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the relative path of the file
+   */
+  public static String getRelativePath(String experimentAccession, Scope scope) {
+    String pipeline = experimentAccession.substring(2, 6);
+    return pipeline + "/" + experimentAccession + "/" + experimentAccession + "." + scope.name() + ".txt";
+  }
+  
+  /**
+   * Gets a file from the cache and marks it as recently used.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the cached file or null if it has not been downloaded
+   */
+  public synchronized File getFile(String experimentAccession, Scope scope) {
+    File file = getCacheLocation(experimentAccession, scope);
+    if (!file.exists()) {
+      if (mapOfFileToSize.containsKey(file)) {
+        totalBytes -= mapOfFileToSize.remove(file).longValue();
+      }
+      return null;
+    }
+    // Reading the entry moves it to the most recently used end
+    if (mapOfFileToSize.get(file) == null) {
+      mapOfFileToSize.put(file, file.length());
+      totalBytes += file.length();
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+  
+  /**
+   * Creates an empty file to download into. The file is not visible in the cache until it is passed to
+   * {@link #commit(File, String, Scope)}.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return a temporary file next to the final location of the file
+   * @throws IOException
+   */
+  public File createDownloadTarget(String experimentAccession, Scope scope) throws IOException {
+    File target = getCacheLocation(experimentAccession, scope);
+    File dir = target.getParentFile();
+    if (!dir.exists() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir.getAbsolutePath());
+    }
+    return File.createTempFile(target.getName() + "_", TEMP_SUFFIX, dir);
+  }
+  
+  /**
+   * Moves a completely downloaded file into the cache and evicts old files if the cache is over its budget.
+   * The file has no validator, so it is downloaded again the next time it is checked against the server.
+   * 
+   * @param download
+   *          the file returned by createDownloadTarget
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the file in the cache
+   * @throws IOException
+   */
+  public File commit(File download, String experimentAccession, Scope scope) throws IOException {
+    return commit(download, experimentAccession, scope, null);
+  }
+  
+  /**
+   * Moves a completely downloaded file into the cache together with the validator of the copy on the server
+   * 
+   * @param download
+   *          the file returned by createDownloadTarget
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @param validator
+   *          the validator of the copy on the server, or null if the server did not give one
+   * @return the file in the cache
+   * @throws IOException
+   */
+  public synchronized File commit(File download,
+                                  String experimentAccession,
+                                  Scope scope,
+                                  String validator) throws IOException {
+    File file = getCacheLocation(experimentAccession, scope);
+    File validatorFile = getValidatorFile(file);
+    if (validatorFile.exists() && !validatorFile.delete()) {
+      throw new IOException("Could not replace " + validatorFile.getAbsolutePath());
+    }
+    if (mapOfFileToSize.containsKey(file)) {
+      totalBytes -= mapOfFileToSize.remove(file).longValue();
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not replace " + file.getAbsolutePath());
+    }
+    if (!download.renameTo(file)) {
+      throw new IOException("Could not move " + download.getAbsolutePath() + " into the cache");
+    }
+    if (validator != null) {
+      FileUtils.writeStringToFile(validatorFile, validator, "UTF-8");
+    }
+    mapOfFileToSize.put(file, file.length());
+    totalBytes += file.length();
+    evict(file);
+    return file;
+  }
+  
+  /**
+   * Gets the validator of the copy on the server a cached file was downloaded from
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the validator, or null if the file is not cached or was committed without one
+   */
+  public synchronized String getValidator(String experimentAccession, Scope scope) {
+    File file = getCacheLocation(experimentAccession, scope);
+    File validatorFile = getValidatorFile(file);
+    if (!file.exists() || !validatorFile.exists()) {
+      return null;
+    }
+    try {
+      return FileUtils.readFileToString(validatorFile, "UTF-8");
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+  
+  /**
+   * Gets when a cached file was last found to be the same as the copy on the server: when it was downloaded,
+   * or when it was last checked, see {@link #setChecked(String, Scope)}
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   * @return the time in milliseconds, or 0 if the file is not cached or was committed without a validator
+   */
+  public synchronized long getCheckedTime(String experimentAccession, Scope scope) {
+    File file = getCacheLocation(experimentAccession, scope);
+    if (!file.exists()) {
+      return 0;
+    }
+    return getValidatorFile(file).lastModified();
+  }
+  
+  /**
+   * Records that a cached file was found to be the same as the copy on the server
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param scope
+   *          the type of file, sdrf or idf
+   */
+  public synchronized void setChecked(String experimentAccession, Scope scope) {
+    File validatorFile = getValidatorFile(getCacheLocation(experimentAccession, scope));
+    if (validatorFile.exists()) {
+      validatorFile.setLastModified(System.currentTimeMillis());
+    }
+  }
+  
+  /**
+   * Deletes a download that failed.
+   * 
+   * @param download
+   *          the file returned by createDownloadTarget
+   */
+  public void discard(File download) {
+    if (download != null && download.exists() && !download.delete()) {
+      download.deleteOnExit();
+    }
+  }
+  
+  /**
+   * Gets the number of bytes currently held by the cache
+   * 
+   * @return the number of bytes currently held by the cache
+   */
+  public synchronized long getSize() {
+    return totalBytes;
+  }
+  
+  /**
+   * Gets the accessions of the experiments that have at least one file in the cache. Unlike
+   * {@link #getFile(String, Scope)} it does not mark the files as used.
+   * 
+   * @return the experiment accessions, sorted
+   */
+  public synchronized List<String> getAccessions() {
+    TreeSet<String> accessions = new TreeSet<String>();
+    for (File file : mapOfFileToSize.keySet()) {
+      accessions.add(file.getParentFile().getName());
+    }
+    return new ArrayList<String>(accessions);
+  }
+  
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+  
+  public File getRoot() {
+    return root;
+  }
+  
+  private File getCacheLocation(String experimentAccession, Scope scope) {
+    return new File(root, getRelativePath(experimentAccession, scope));
+  }
+  
+  private static File getValidatorFile(File file) {
+    return new File(file.getPath() + VALIDATOR_SUFFIX);
+  }
+  
+  /**
+   * Deletes the least recently used files until the cache is within its budget.
+   * 
+   * @param keep
+   *          a file that must not be evicted (the one that was just added), can be null
+   */
+  private synchronized void evict(File keep) {
+    Iterator<Map.Entry<File,Long>> it = mapOfFileToSize.entrySet().iterator();
+    while (totalBytes > maxBytes && it.hasNext()) {
+      Map.Entry<File,Long> eldest = it.next();
+      if (eldest.getKey().equals(keep)) {
+        continue;
+      }
+      if (eldest.getKey().delete() || !eldest.getKey().exists()) {
+        totalBytes -= eldest.getValue().longValue();
+        it.remove();
+        getValidatorFile(eldest.getKey()).delete();
+        File accessionDir = eldest.getKey().getParentFile();
+        String[] remaining = accessionDir.list();
+        if (remaining != null && remaining.length == 0) {
+          accessionDir.delete();
+        }
+      }
+    }
+  }
+  
+  /**
+   * Walks the cache directory and orders the files by their last modified time.
+   */
+  private void loadIndex() {
+    List<File> files = new ArrayList<File>();
+    collectFiles(root, files);
+    Collections.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    for (File file : files) {
+      mapOfFileToSize.put(file, file.length());
+      totalBytes += file.length();
+    }
+  }
+  
+  private static void collectFiles(File dir, List<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        collectFiles(child, files);
+      } else if (child.getName().endsWith(TEMP_SUFFIX)) {
+        // Left over from a run that died during a download
+        child.delete();
+      } else if (child.getName().endsWith(VALIDATOR_SUFFIX)) {
+        // Left over from a file that was deleted while the cache was closed
+        if (!new File(child.getPath().substring(0, child.getPath().length() - VALIDATOR_SUFFIX.length()))
+            .exists()) {
+          child.delete();
+        }
+      } else {
+        files.add(child);
+      }
+    }
+  }
+}
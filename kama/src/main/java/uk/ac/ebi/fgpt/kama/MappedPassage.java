@@ -0,0 +1,207 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A MAGE-TAB file as the passage the scanners work on, read straight from a memory mapped file. It shows the
+ * same text the old line by line reader built: the file trimmed of surrounding whitespace, with every line
+ * break shown as " \n" because monq does not recognize a line break without the space. Nothing is copied
+ * onto the heap when the file is plain ASCII (or the platform charset is Latin-1); other files are decoded
+ * once with the platform charset.
+ * 
+ * The passage remembers the line it last read from, so reading it from start to end costs no more than
+ * reading an array.
+ */
+public class MappedPassage implements CharSequence {
+  
+  /**
+   * The characters of the file, without the line breaks being rewritten.
+   */
+  private CharSequence source;
+  
+  /**
+   * The start and end (before "\r\n" or "\n") of every line in the source, and where each line starts in
+   * this passage.
+   */
+  private int[] lineStart;
+  private int[] lineEnd;
+  private int[] passageLineStart;
+  private int length;
+  
+  /**
+   * The line that was read last.
+   */
+  private int lastLine = 0;
+  
+  /**
+   * Maps a file
+   * 
+   * @param file
+   *          the file to read
+   * @throws IOException
+   */
+  public MappedPassage(File file) throws IOException {
+    FileInputStream fis = new FileInputStream(file);
+    ByteBuffer bytes;
+    try {
+      FileChannel channel = fis.getChannel();
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      // The mapping stays valid after the channel is closed
+      fis.close();
+    }
+    if (isAscii(bytes) || Charset.defaultCharset().name().equals("ISO-8859-1")) {
+      source = new ByteCharSequence(bytes);
+    } else {
+      source = Charset.defaultCharset().decode(bytes);
+    }
+    findLines();
+  }
+  
+  public int length() {
+    return length;
+  }
+  
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+    int line = lastLine;
+    if (index < passageLineStart[line] || index >= passageLineStart[line + 1]) {
+      line = findLine(index);
+      lastLine = line;
+    }
+    int offset = index - passageLineStart[line];
+    int lineLength = lineEnd[line] - lineStart[line];
+    if (offset < lineLength) {
+      return source.charAt(lineStart[line] + offset);
+    }
+    return offset == lineLength ? ' ' : '\n';
+  }
+  
+  public CharSequence subSequence(int start, int end) {
+    if (start < 0 || end > length || start > end) {
+      throw new IndexOutOfBoundsException(start + "," + end);
+    }
+    int line = findLine(start);
+    if (end <= passageLineStart[line] + lineEnd[line] - lineStart[line]) {
+      // Within one line, so a view of the source will do
+      int from = lineStart[line] + start - passageLineStart[line];
+      return source.subSequence(from, from + end - start);
+    }
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      sb.append(charAt(i));
+    }
+    return sb.toString();
+  }
+  
+  public String toString() {
+    return subSequence(0, length).toString();
+  }
+  
+  private void findLines() {
+    int first = 0;
+    int last = source.length();
+    while (first < last && source.charAt(first) <= ' ') {
+      first++;
+    }
+    while (last > first && source.charAt(last - 1) <= ' ') {
+      last--;
+    }
+    
+    int lines = 1;
+    for (int i = first; i < last; i++) {
+      if (source.charAt(i) == '\n') {
+        lines++;
+      }
+    }
+    lineStart = new int[lines];
+    lineEnd = new int[lines];
+    passageLineStart = new int[lines + 1];
+    
+    int line = 0;
+    lineStart[0] = first;
+    for (int i = first; i < last; i++) {
+      if (source.charAt(i) == '\n') {
+        lineEnd[line] = i > lineStart[line] && source.charAt(i - 1) == '\r' ? i - 1 : i;
+        line++;
+        lineStart[line] = i + 1;
+      }
+    }
+    lineEnd[line] = last;
+    
+    // Every line but the last is followed by " \n"
+    for (int i = 0; i < lines; i++) {
+      passageLineStart[i + 1] = passageLineStart[i] + lineEnd[i] - lineStart[i] + (i < lines - 1 ? 2 : 0);
+    }
+    length = passageLineStart[lines];
+  }
+  
+  private int findLine(int index) {
+    int low = 0;
+    int high = lineStart.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (passageLineStart[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+  
+  private static boolean isAscii(ByteBuffer bytes) {
+    for (int i = 0; i < bytes.limit(); i++) {
+      if (bytes.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Reads each byte as one character
+   */
+  private static class ByteCharSequence implements CharSequence {
+    private ByteBuffer bytes;
+    private int offset;
+    private int length;
+    
+    public ByteCharSequence(ByteBuffer bytes) {
+      this(bytes, 0, bytes.limit());
+    }
+    
+    private ByteCharSequence(ByteBuffer bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
+    
+    public int length() {
+      return length;
+    }
+    
+    public char charAt(int index) {
+      return (char) (bytes.get(offset + index) & 0xff);
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+      return new ByteCharSequence(bytes, offset + start, end - start);
+    }
+    
+    public String toString() {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        chars[i] = charAt(i);
+      }
+      return new String(chars);
+    }
+  }
+}
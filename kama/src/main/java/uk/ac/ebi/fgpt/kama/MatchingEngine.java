@@ -0,0 +1,34 @@
+package uk.ac.ebi.fgpt.kama;
+
+/**
+ * Compiles dictionaries of terms into automata that count them in passages. Every engine matches the way
+ * Kama always has: whole words only, the longest term wins where terms overlap, and a term only counts when
+ * something that is not a letter or digit follows it.
+ */
+public interface MatchingEngine {
+  /**
+   * Gets the name of the engine, which is part of the key its automata are stored under
+   * 
+   * @return the name of the engine ie "monq"
+   */
+  public String getName();
+  
+  /**
+   * Compiles a dictionary
+   * 
+   * @param terms
+   *          the terms, indexed by their id
+   * @param priorities
+   *          the priority of each term. Where two terms match the same text, the one with the higher
+   *          priority is counted.
+   * @param termToOntologyAccessionIds
+   *          the ontology accession ids each term belongs to, or null if the matches are not attributed to
+   *          ids
+   * @return the compiled dictionary
+   * @throws MonqException
+   *           if the dictionary cannot be compiled
+   */
+  public CompiledDictionary compile(String[] terms,
+                                    int[] priorities,
+                                    String[][] termToOntologyAccessionIds) throws MonqException;
+}
@@ -0,0 +1,56 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import monq.jfa.CharSequenceCharSource;
+import monq.jfa.Dfa;
+import monq.jfa.DfaRun;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * A dictionary compiled by the {@link MonqEngine}. The DFA's actions count the ids of the terms (see
+ * {@link DoCount}) and end the rows (see {@link DoRowBreak}).
+ */
+public class MonqDictionary extends CompiledDictionary {
+  // Stored on disk by DfaStore
+  private static final long serialVersionUID = 1L;
+  
+  /**
+   * The matchers only count matches, so whatever monq copies to its output is thrown away.
+   */
+  private static final PrintStream DISCARD = new PrintStream(new NullOutputStream());
+  
+  private Dfa dfa;
+  
+  /**
+   * @param dfa
+   *          the automaton, whose actions count the ids of the terms
+   * @param terms
+   *          the terms, indexed by their id
+   * @param termToOntologyAccessionIds
+   *          the ontology accession ids each term belongs to, indexed by term id, or null if the matches are
+   *          not attributed to ids
+   */
+  public MonqDictionary(Dfa dfa, String[] terms, String[][] termToOntologyAccessionIds) {
+    super(terms, termToOntologyAccessionIds);
+    this.dfa = dfa;
+  }
+  
+  public Dfa getDfa() {
+    return dfa;
+  }
+  
+  public Matcher newMatcher(TermCounter counter) {
+    // One DfaRun per matcher, reused for every passage
+    final DfaRun run = new DfaRun(dfa);
+    run.clientData = counter;
+    return new Matcher() {
+      public void match(CharSequence passage) throws IOException {
+        run.setIn(new CharSequenceCharSource(passage));
+        run.filter(DISCARD);
+      }
+    };
+  }
+}
@@ -0,0 +1,40 @@
+package uk.ac.ebi.fgpt.kama;
+
+import monq.ie.Term2Re;
+import monq.jfa.CompileDfaException;
+import monq.jfa.DfaRun;
+import monq.jfa.Nfa;
+import monq.jfa.ReSyntaxException;
+import monq.jfa.actions.Copy;
+
+/**
+ * The monq engine. Every term is converted to a regular expression with Term2Re, and all of them are
+ * compiled into one DFA. This is the default engine.
+ */
+public class MonqEngine implements MatchingEngine {
+  public static final String NAME = "monq";
+  
+  public String getName() {
+    return NAME;
+  }
+  
+  public CompiledDictionary compile(String[] terms,
+                                    int[] priorities,
+                                    String[][] termToOntologyAccessionIds) throws MonqException {
+    try {
+      Nfa nfa = new Nfa(Nfa.NOTHING);
+      for (int i = 0; i < terms.length; i++) {
+        nfa = nfa.or(Term2Re.convert(terms[i]), new DoCount(i).setPriority(priorities[i]));
+      }
+      // Use only complete matches
+      nfa = nfa.or("[A-Za-z0-9]+", new Copy(Integer.MIN_VALUE));
+      // Ends a row when the rows of an SDRF are scanned together
+      nfa = nfa.or(String.valueOf(SdrfTable.ROW_SEPARATOR), new DoRowBreak());
+      return new MonqDictionary(nfa.compile(DfaRun.UNMATCHED_DROP), terms, termToOntologyAccessionIds);
+    } catch (ReSyntaxException e) {
+      throw new MonqException(e);
+    } catch (CompileDfaException e) {
+      throw new MonqException(e);
+    }
+  }
+}
@@ -2,9 +2,7 @@ package uk.ac.ebi.fgpt.kama;
 
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import uk.ac.ebi.ontocat.OntologyServiceException;
 import uk.ac.ebi.ontocat.OntologyTerm;
@@ -18,22 +16,63 @@ import uk.ac.ebi.ontocat.file.FileOntologyService;
  * 
  */
 public class OntologyFunctions {
+  /**
+   * Related terms of a parent are weighed by their number of characters.
+   */
+  public static final long DEFAULT_CHILDREN_CACHE_CHARS = 8L * 1024 * 1024;
+  
   /**
    * The 'parent ontology term' to 'ArrayList<String>' map that stores it's children so that an OWL does not
    * need to be parsed multiple times.
    */
-  private Map<String,List<String>> mapOfOntologyChildrenTerms = new HashMap<String,List<String>>();
+  private KamaCache<String,List<String>> mapOfOntologyChildrenTerms = new KamaCache<String,List<String>>(
+      "ontology children", DEFAULT_CHILDREN_CACHE_CHARS, new KamaCache.Weigher<List<String>>() {
+        public long weigh(List<String> terms) {
+          long chars = 0;
+          for (String term : terms) {
+            chars += term.length();
+          }
+          return chars;
+        }
+      });
   
   private FileOntologyService ontoService;
   
+  /**
+   * Used instead of ontoService when the ontology was loaded from a snapshot
+   */
+  private OntologySnapshot snapshot;
+  
   public OntologyFunctions(URI uri) throws OntologyServiceException {
     ontoService = new FileOntologyService(uri);
   }
   
-  public List<String> getChildrenAndRelatedTerms(String efoAccessionID) {
+  /**
+   * Uses a snapshot of an ontology instead of parsing the ontology file
+   * 
+   * @param snapshot
+   *          the snapshot, see {@link OntologySnapshot#read(java.io.File)}
+   */
+  public OntologyFunctions(OntologySnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+  
+  public synchronized List<String> getChildrenAndRelatedTerms(String efoAccessionID) {
     // If mapOfOntologyChildrenTerms does not contain the efoAccessionId, then add it to the map
-    if (mapOfOntologyChildrenTerms.get(efoAccessionID) != null) {
-      return mapOfOntologyChildrenTerms.get(efoAccessionID);
+    List<String> cached = mapOfOntologyChildrenTerms.get(efoAccessionID);
+    if (cached != null) {
+      return cached;
+    }
+    long start = System.nanoTime();
+    if (snapshot != null) {
+      List<String> listOfChildren = snapshot.getChildrenAndRelatedTerms(efoAccessionID);
+      if (listOfChildren == null) {
+        System.err.println("WARNING: ONTOLOGY ACCESSION ID DOES NOT EXIST");
+        return null;
+      }
+      mapOfOntologyChildrenTerms.put(efoAccessionID, listOfChildren);
+      mapOfOntologyChildrenTerms.recordLoad(System.nanoTime() - start);
+      return listOfChildren;
     }
     try {
       OntologyTerm parent = ontoService.getTerm(efoAccessionID);
@@ -47,6 +86,8 @@ public class OntologyFunctions {
           listOfChildren.addAll(ontoService.getSynonyms(ot));// Include Synonymns
         }
         mapOfOntologyChildrenTerms.put(efoAccessionID, listOfChildren);
+        mapOfOntologyChildrenTerms.recordLoad(System.nanoTime() - start);
+        return listOfChildren;
       } else {
         throw new OntologyServiceException("OntologyTerm is null");
       }
@@ -54,7 +95,23 @@ public class OntologyFunctions {
       System.err.println("WARNING: ONTOLOGY ACCESSION ID DOES NOT EXIST");
       return null;
     }
-    return mapOfOntologyChildrenTerms.get(efoAccessionID);
+  }
+  
+  /**
+   * Gets the ontology service
+   * 
+   * @return the ontology service, or null if the ontology was loaded from a snapshot
+   */
+  public FileOntologyService getOntologyService() {
+    return ontoService;
+  }
+  
+  public OntologySnapshot getSnapshot() {
+    return snapshot;
+  }
+  
+  public KamaCache<String,List<String>> getCache() {
+    return mapOfOntologyChildrenTerms;
   }
   
 }
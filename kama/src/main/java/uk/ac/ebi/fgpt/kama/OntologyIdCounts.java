@@ -0,0 +1,107 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The result of scanning a passage for a list of ontology accession ids. It holds how many times each term was
+ * found, and how many matches each requested ontology accession id has.
+ */
+public class OntologyIdCounts {
+  private Map<String,Integer> termCounts = new HashMap<String,Integer>();
+  private Map<String,Integer> ontologyAccessionIdCounts = new HashMap<String,Integer>();
+  
+  /**
+   * Records one match of a term.
+   * 
+   * @param term
+   *          the term that was found
+   * @param ontologyAccessionIds
+   *          the ontology accession ids the term is related to
+   */
+  public void add(String term, String[] ontologyAccessionIds) {
+    add(term, ontologyAccessionIds, 1);
+  }
+  
+  /**
+   * Records several matches of a term.
+   * 
+   * @param term
+   *          the term that was found
+   * @param ontologyAccessionIds
+   *          the ontology accession ids the term is related to
+   * @param count
+   *          the number of matches
+   */
+  public void add(String term, String[] ontologyAccessionIds, int count) {
+    increment(termCounts, term, count);
+    for (String id : ontologyAccessionIds) {
+      increment(ontologyAccessionIdCounts, id, count);
+    }
+  }
+  
+  /**
+   * Adds the counts of several terms, without counting them for any ontology accession id
+   * 
+   * @param counts
+   *          the 'term' to 'integer' map to add
+   */
+  public void addTermCounts(Map<String,Integer> counts) {
+    for (Map.Entry<String,Integer> entry : counts.entrySet()) {
+      increment(termCounts, entry.getKey(), entry.getValue().intValue());
+    }
+  }
+  
+  /**
+   * Sets how many matches an ontology accession id has, ie from a scan for the id on its own
+   * 
+   * @param ontologyAccessionId
+   *          one of the requested ontology accession ids
+   * @param count
+   *          the number of matches of terms related to the id
+   */
+  public void setCount(String ontologyAccessionId, int count) {
+    ontologyAccessionIdCounts.put(ontologyAccessionId, count);
+  }
+  
+  /**
+   * Adds the counts of another scan to this one, ie to combine the rows of one sample.
+   * 
+   * @param other
+   *          the counts to add
+   */
+  public void addAll(OntologyIdCounts other) {
+    for (Map.Entry<String,Integer> entry : other.termCounts.entrySet()) {
+      increment(termCounts, entry.getKey(), entry.getValue().intValue());
+    }
+    for (Map.Entry<String,Integer> entry : other.ontologyAccessionIdCounts.entrySet()) {
+      increment(ontologyAccessionIdCounts, entry.getKey(), entry.getValue().intValue());
+    }
+  }
+  
+  /**
+   * Gets the 'term' to 'integer' map of every term that was found ie {blood=>5}
+   * 
+   * @return the 'term' to 'integer' map
+   */
+  public Map<String,Integer> getTermCounts() {
+    return termCounts;
+  }
+  
+  /**
+   * Gets how many matches are related to an ontology accession id
+   * 
+   * @param ontologyAccessionId
+   *          one of the requested ontology accession ids
+   * @return the number of matches of terms related to the id
+   */
+  public int getCount(String ontologyAccessionId) {
+    Integer count = ontologyAccessionIdCounts.get(ontologyAccessionId);
+    return count == null ? 0 : count.intValue();
+  }
+  
+  private static void increment(Map<String,Integer> map, String key, int amount) {
+    Integer count = map.get(key);
+    map.put(key, count == null ? amount : count.intValue() + amount);
+  }
+}
@@ -0,0 +1,278 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.ebi.ontocat.Ontology;
+import uk.ac.ebi.ontocat.OntologyService;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+import uk.ac.ebi.ontocat.OntologyTerm;
+
+/**
+ * The part of an ontology Kama needs, in one compact binary file: every term with its label and synonyms, and
+ * the descendants of every term. Loading a snapshot takes milliseconds where parsing the OWL file takes most
+ * of the startup time.
+ * 
+ * Labels and synonyms are stored once in a string table and referred to by index. The synonyms and the
+ * descendants of the terms are stored in compressed sparse row form: the entries of term i are
+ * entries[offsets[i]] to entries[offsets[i + 1] - 1].
+ */
+public class OntologySnapshot {
+  private static final int MAGIC = 0x4b414d41; // "KAMA"
+  private static final int FORMAT_VERSION = 1;
+  
+  /**
+   * The content hash of the ontology file the snapshot was built from.
+   */
+  private String sourceVersion;
+  private String[] strings;
+  
+  private int[] termAccession;
+  private int[] termLabel;
+  private int[] synonymOffsets;
+  private int[] synonyms;
+  private int[] descendantOffsets;
+  private int[] descendants;
+  
+  /**
+   * The 'term accession' to 'term index' map
+   */
+  private Map<String,Integer> mapOfAccessionToTerm;
+  
+  private OntologySnapshot() {}
+  
+  /**
+   * Builds a snapshot from a loaded ontology. This walks every term once, so it is as slow as the ontology
+   * service; it only needs to be done once per ontology file.
+   * 
+   * @param ontoService
+   *          the loaded ontology
+   * @param sourceVersion
+   *          the content hash of the ontology file, see {@link DfaStore#hash(java.io.InputStream)}
+   * @return the snapshot
+   * @throws OntologyServiceException
+   */
+  public static OntologySnapshot build(OntologyService ontoService, String sourceVersion) throws OntologyServiceException {
+    // Collect every term, in a stable order
+    Map<String,OntologyTerm> mapOfAccessionToOntologyTerm = new LinkedHashMap<String,OntologyTerm>();
+    for (Ontology ontology : ontoService.getOntologies()) {
+      for (OntologyTerm term : ontoService.getAllTerms(ontology.getOntologyAccession())) {
+        if (!mapOfAccessionToOntologyTerm.containsKey(term.getAccession())) {
+          mapOfAccessionToOntologyTerm.put(term.getAccession(), term);
+        }
+      }
+    }
+    
+    OntologySnapshot snapshot = new OntologySnapshot();
+    snapshot.sourceVersion = sourceVersion;
+    int termCount = mapOfAccessionToOntologyTerm.size();
+    snapshot.mapOfAccessionToTerm = new HashMap<String,Integer>();
+    for (String accession : mapOfAccessionToOntologyTerm.keySet()) {
+      snapshot.mapOfAccessionToTerm.put(accession, snapshot.mapOfAccessionToTerm.size());
+    }
+    
+    Map<String,Integer> mapOfStringToIndex = new LinkedHashMap<String,Integer>();
+    snapshot.termAccession = new int[termCount];
+    snapshot.termLabel = new int[termCount];
+    snapshot.synonymOffsets = new int[termCount + 1];
+    snapshot.descendantOffsets = new int[termCount + 1];
+    IntList synonyms = new IntList();
+    IntList descendants = new IntList();
+    
+    int i = 0;
+    for (OntologyTerm term : mapOfAccessionToOntologyTerm.values()) {
+      snapshot.termAccession[i] = intern(mapOfStringToIndex, term.getAccession());
+      snapshot.termLabel[i] = intern(mapOfStringToIndex, term.getLabel());
+      for (String synonym : ontoService.getSynonyms(term)) {
+        synonyms.add(intern(mapOfStringToIndex, synonym));
+      }
+      for (OntologyTerm child : ontoService.getAllChildren(term)) {
+        Integer childIndex = snapshot.mapOfAccessionToTerm.get(child.getAccession());
+        if (childIndex != null) {
+          descendants.add(childIndex);
+        }
+      }
+      i++;
+      snapshot.synonymOffsets[i] = synonyms.size();
+      snapshot.descendantOffsets[i] = descendants.size();
+    }
+    snapshot.synonyms = synonyms.toArray();
+    snapshot.descendants = descendants.toArray();
+    snapshot.strings = mapOfStringToIndex.keySet().toArray(new String[mapOfStringToIndex.size()]);
+    return snapshot;
+  }
+  
+  /**
+   * Reads a snapshot file
+   * 
+   * @param file
+   *          the snapshot file
+   * @return the snapshot
+   * @throws IOException
+   *           if the file cannot be read or is not a snapshot
+   */
+  public static OntologySnapshot read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException(file.getAbsolutePath() + " is not an ontology snapshot of this version");
+      }
+      OntologySnapshot snapshot = new OntologySnapshot();
+      snapshot.sourceVersion = in.readUTF();
+      snapshot.strings = new String[in.readInt()];
+      for (int i = 0; i < snapshot.strings.length; i++) {
+        snapshot.strings[i] = in.readUTF();
+      }
+      snapshot.termAccession = readInts(in);
+      snapshot.termLabel = readInts(in);
+      snapshot.synonymOffsets = readInts(in);
+      snapshot.synonyms = readInts(in);
+      snapshot.descendantOffsets = readInts(in);
+      snapshot.descendants = readInts(in);
+      
+      snapshot.mapOfAccessionToTerm = new HashMap<String,Integer>(snapshot.termAccession.length * 2);
+      for (int i = 0; i < snapshot.termAccession.length; i++) {
+        snapshot.mapOfAccessionToTerm.put(snapshot.strings[snapshot.termAccession[i]], i);
+      }
+      return snapshot;
+    } finally {
+      in.close();
+    }
+  }
+  
+  /**
+   * Writes the snapshot to a file
+   * 
+   * @param file
+   *          the file to write
+   * @throws IOException
+   */
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+        64 * 1024));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(sourceVersion == null ? "" : sourceVersion);
+      out.writeInt(strings.length);
+      for (String string : strings) {
+        out.writeUTF(string);
+      }
+      writeInts(out, termAccession);
+      writeInts(out, termLabel);
+      writeInts(out, synonymOffsets);
+      writeInts(out, synonyms);
+      writeInts(out, descendantOffsets);
+      writeInts(out, descendants);
+    } finally {
+      out.close();
+    }
+  }
+  
+  /**
+   * Gets the label and synonyms of a term and of all its descendants, in the same order as
+   * OntologyFunctions builds them from the ontology service.
+   * 
+   * @param accession
+   *          the term accession, ie EFO_0000798
+   * @return the related terms, or null if the ontology has no such term
+   */
+  public List<String> getChildrenAndRelatedTerms(String accession) {
+    Integer term = mapOfAccessionToTerm.get(accession);
+    if (term == null) {
+      return null;
+    }
+    List<String> listOfTerms = new ArrayList<String>();
+    addLabelAndSynonyms(term, listOfTerms);
+    for (int i = descendantOffsets[term]; i < descendantOffsets[term + 1]; i++) {
+      addLabelAndSynonyms(descendants[i], listOfTerms);
+    }
+    return listOfTerms;
+  }
+  
+  /**
+   * Gets the content hash of the ontology file the snapshot was built from, so that automata compiled from
+   * the snapshot and from the ontology file are stored under the same key.
+   * 
+   * @return the content hash, or "" if it was not known when the snapshot was built
+   */
+  public String getSourceVersion() {
+    return sourceVersion;
+  }
+  
+  public int getTermCount() {
+    return termAccession.length;
+  }
+  
+  private void addLabelAndSynonyms(int term, List<String> listOfTerms) {
+    listOfTerms.add(strings[termLabel[term]]);
+    for (int i = synonymOffsets[term]; i < synonymOffsets[term + 1]; i++) {
+      listOfTerms.add(strings[synonyms[i]]);
+    }
+  }
+  
+  private static int intern(Map<String,Integer> mapOfStringToIndex, String string) {
+    if (string == null) {
+      string = "";
+    }
+    Integer index = mapOfStringToIndex.get(string);
+    if (index == null) {
+      index = mapOfStringToIndex.size();
+      mapOfStringToIndex.put(string, index);
+    }
+    return index;
+  }
+  
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] ints = new int[in.readInt()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = in.readInt();
+    }
+    return ints;
+  }
+  
+  private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+    out.writeInt(ints.length);
+    for (int value : ints) {
+      out.writeInt(value);
+    }
+  }
+  
+  /**
+   * A growable list of ints, to avoid boxing every index while building
+   */
+  private static class IntList {
+    private int[] values = new int[1024];
+    private int size = 0;
+    
+    public void add(int value) {
+      if (size == values.length) {
+        int[] grown = new int[values.length * 2];
+        System.arraycopy(values, 0, grown, 0, size);
+        values = grown;
+      }
+      values[size++] = value;
+    }
+    
+    public int size() {
+      return size;
+    }
+    
+    public int[] toArray() {
+      int[] array = new int[size];
+      System.arraycopy(values, 0, array, 0, size);
+      return array;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Scans passages with a {@link CompiledDictionary}. The matcher and the counter are created once and reused
+ * for every passage, so scanning many passages allocates next to nothing. A scanner is not thread safe;
+ * Kama keeps one per thread.
+ */
+public class PassageScanner {
+  private CompiledDictionary dictionary;
+  private CompiledDictionary.Matcher matcher;
+  private TermCounter counter;
+  
+  public PassageScanner(CompiledDictionary dictionary) {
+    this.dictionary = dictionary;
+    counter = new TermCounter(dictionary.getTermCount());
+    matcher = dictionary.newMatcher(counter);
+  }
+  
+  /**
+   * Counts the terms in a passage. The counter is reset by the next scan.
+   * 
+   * @param passage
+   *          the passage
+   * @return the counts of the terms in the passage
+   * @throws IOException
+   */
+  public TermCounter scan(CharSequence passage) throws IOException {
+    counter.reset();
+    matcher.match(passage);
+    return counter;
+  }
+  
+  /**
+   * Counts the terms in each row of an SDRF in one pass. The listener gets the counts at the end of every
+   * row; they are only valid during the call.
+   * 
+   * @param rows
+   *          the rows, separated by ROW_SEPARATOR, see {@link SdrfTable#getRows()}. An empty passage has no
+   *          rows, and the listener is not called
+   * @param listener
+   *          receives the counts of each row
+   * @throws IOException
+   */
+  public void scanRows(CharSequence rows, TermCounter.RowListener listener) throws IOException {
+    if (rows.length() == 0) {
+      counter.reset();
+      return;
+    }
+    counter.setRowListener(listener);
+    try {
+      scan(rows);
+      // The last row has no separator after it
+      counter.endRow();
+    } finally {
+      counter.setRowListener(null);
+    }
+  }
+  
+  /**
+   * Gets the 'term' to 'integer' map of the terms found by the last scan ie {blood=>5}
+   * 
+   * @return the 'term' to 'integer' map
+   */
+  public Map<String,Integer> getTermCounts() {
+    Map<String,Integer> map = new LinkedHashMap<String,Integer>();
+    addTo(map);
+    return map;
+  }
+  
+  /**
+   * Adds the counts of the last scan, or of the current row, to a 'term' to 'integer' map
+   * 
+   * @param map
+   *          the 'term' to 'integer' map to add to
+   */
+  public void addTo(Map<String,Integer> map) {
+    for (int i = 0; i < counter.getFoundTermCount(); i++) {
+      int termId = counter.getFoundTerm(i);
+      String term = dictionary.getTerm(termId);
+      Integer count = map.get(term);
+      map.put(term, (count == null ? 0 : count.intValue()) + counter.getCount(termId));
+    }
+  }
+  
+  /**
+   * Adds the counts of the last scan, or of the current row, to the counts of the ontology accession ids.
+   * The dictionary must be attributed.
+   * 
+   * @param counts
+   *          the counts to add to
+   */
+  public void addTo(OntologyIdCounts counts) {
+    for (int i = 0; i < counter.getFoundTermCount(); i++) {
+      int termId = counter.getFoundTerm(i);
+      counts.add(dictionary.getTerm(termId), dictionary.getOntologyAccessionIds(termId), counter
+          .getCount(termId));
+    }
+  }
+  
+  /**
+   * Gets the counts of the last scan
+   * 
+   * @return the counter
+   */
+  public TermCounter getCounter() {
+    return counter;
+  }
+  
+  public CompiledDictionary getDictionary() {
+    return dictionary;
+  }
+}
@@ -0,0 +1,138 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A directory of the rows Kama made for each experiment, kept between runs so that a run over a corpus that
+ * has barely changed only scans the experiments that did change.
+ * 
+ * The rows of a report are kept in one {@link RunJournal} per report signature, and the signature includes
+ * the fingerprint of the dictionary (see {@link Kama#getDictionaryFingerprint(List)}). The rows of an
+ * experiment are stored under its accession and the content hashes of its SDRF and IDF. An experiment is
+ * therefore scanned again if either of its files changed, if it is new, or if the dictionary changed because
+ * of a new version of the ontology.
+ * 
+ * Rows of files that have since changed stay in the store. Delete the directory to reclaim the space. Only
+ * one run at a time may use the rows of a report.
+ */
+public class ResultStore {
+  
+  public static final File DEFAULT_ROOT = new File(System.getProperty("user.home"), ".kama/results");
+  
+  private static final String SUFFIX = ".results";
+  
+  private File root;
+  
+  /**
+   * Opens (or creates) a store directory.
+   * 
+   * @param root
+   *          the directory the rows are stored in
+   */
+  public ResultStore(File root) {
+    this.root = root;
+    if (!root.exists() && !root.mkdirs()) {
+      System.err.println("Could not create results directory " + root.getAbsolutePath());
+    }
+  }
+  
+  /**
+   * Gets the default store, which lives in ~/.kama/results
+   * 
+   * @return the default store
+   */
+  public static ResultStore getDefaultStore() {
+    return new ResultStore(DEFAULT_ROOT);
+  }
+  
+  /**
+   * Opens the rows of one report
+   * 
+   * @param signature
+   *          the fields that describe the report, including the dictionary fingerprint
+   * @return the rows of the report. They must be closed
+   * @throws IOException
+   */
+  public Results open(String[] signature) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (String field : signature) {
+      text.append(field).append('\n');
+    }
+    return new Results(new RunJournal(new File(root, DfaStore.hash(text.toString()) + SUFFIX), signature,
+        true));
+  }
+  
+  public File getRoot() {
+    return root;
+  }
+  
+  /**
+   * The rows of one report, by experiment and file content
+   */
+  public static class Results {
+    private RunJournal journal;
+    
+    private Results(RunJournal journal) {
+      this.journal = journal;
+    }
+    
+    /**
+     * Gets the rows stored for an experiment
+     * 
+     * @param experimentAccession
+     *          the experiment accession
+     * @param sdrfHash
+     *          the content hash of the SDRF, see {@link Kama#getFileHash(String, Kama.Scope)}
+     * @param idfHash
+     *          the content hash of the IDF
+     * @return the rows, or null if the experiment with these files is not in the store
+     * @throws IOException
+     */
+    public List<String[]> getRows(String experimentAccession,
+                                  String sdrfHash,
+                                  String idfHash) throws IOException {
+      return journal.getRows(getKey(experimentAccession, sdrfHash, idfHash));
+    }
+    
+    public boolean contains(String experimentAccession, String sdrfHash, String idfHash) {
+      return journal.isCompleted(getKey(experimentAccession, sdrfHash, idfHash));
+    }
+    
+    /**
+     * Stores the rows of an experiment. It can be called by several threads.
+     * 
+     * @param experimentAccession
+     *          the experiment accession
+     * @param sdrfHash
+     *          the content hash of the SDRF
+     * @param idfHash
+     *          the content hash of the IDF
+     * @param rows
+     *          the rows of the experiment
+     * @throws IOException
+     */
+    public synchronized void store(String experimentAccession,
+                                   String sdrfHash,
+                                   String idfHash,
+                                   List<String[]> rows) throws IOException {
+      String key = getKey(experimentAccession, sdrfHash, idfHash);
+      if (!journal.isCompleted(key)) {
+        journal.record(key, rows);
+      }
+    }
+    
+    public int size() {
+      return journal.getCompletedCount();
+    }
+    
+    public void close() throws IOException {
+      journal.close(false);
+    }
+    
+    private static String getKey(String experimentAccession, String sdrfHash, String idfHash) {
+      return experimentAccession + "@" + sdrfHash + "@" + idfHash;
+    }
+  }
+}
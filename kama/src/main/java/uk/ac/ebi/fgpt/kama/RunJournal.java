@@ -0,0 +1,269 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A checkpoint of a long run. Every experiment whose rows have been made is appended to the journal together
+ * with its rows, and the journal is flushed, so a run that dies can be resumed: the experiments in the
+ * journal are not downloaded or scanned again, and their rows are read back from it.
+ * 
+ * The journal is a UTF-8 text file with one record per line. The first line is the signature of the run, ie
+ * the mode and the ontology accession ids, and a journal is only resumed by a run with the same signature.
+ * The rows of an experiment ("R" lines) are followed by a line that marks it as complete ("D" line), so rows
+ * that were being written when the run died are dropped.
+ * 
+ * <pre>
+ * S	summary	EFO_0000798
+ * R	E-GEOD-1000	12	1	3	blood:4;
+ * D	E-GEOD-1000	1
+ * </pre>
+ * 
+ * Only the position of each experiment's rows is kept in memory, so a journal of any size can be resumed.
+ */
+public class RunJournal {
+  private static final String CHARSET = "UTF-8";
+  
+  private static final String SIGNATURE = "S";
+  private static final String ROW = "R";
+  private static final String DONE = "D";
+  
+  private File file;
+  private OutputStream out;
+  private long length;
+  
+  /**
+   * Where the rows of each completed experiment are in the file
+   */
+  private Map<String,Entry> mapOfAccessionToEntry = Collections.synchronizedMap(new HashMap<String,Entry>());
+  
+  /**
+   * Opens a journal, either starting it again or resuming it
+   * 
+   * @param file
+   *          the journal file
+   * @param signature
+   *          the fields that describe the run. A journal written with a different signature is not resumed
+   * @param resume
+   *          whether to keep the experiments an earlier run completed. Otherwise the journal is emptied
+   * @throws IOException
+   *           if the journal could not be written, or it belongs to a run with a different signature
+   */
+  public RunJournal(File file, String[] signature, boolean resume) throws IOException {
+    this.file = file;
+    String signatureLine = toLine(SIGNATURE, signature);
+    if (resume && file.exists() && (length = read(signatureLine)) > 0) {
+      // Drop whatever follows the last complete experiment
+      RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+      try {
+        truncate.setLength(length);
+      } finally {
+        truncate.close();
+      }
+      out = new BufferedOutputStream(new FileOutputStream(file, true));
+    } else {
+      out = new BufferedOutputStream(new FileOutputStream(file));
+      write(signatureLine);
+      out.flush();
+    }
+  }
+  
+  /**
+   * Reads the completed experiments of an existing journal
+   * 
+   * @return the length of the journal up to the end of the last complete experiment, or 0 if it has no
+   *         signature
+   */
+  private long read(String signatureLine) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      long position = 0;
+      long lineStart = 0;
+      long complete = 0;
+      long rowsStart = -1;
+      long rowsEnd = -1;
+      int rows = 0;
+      boolean first = true;
+      int b;
+      while ((b = in.read()) != -1) {
+        position++;
+        if (b != '\n') {
+          line.write(b);
+          continue;
+        }
+        String text = line.toString(CHARSET);
+        line.reset();
+        if (first) {
+          if (!text.equals(signatureLine)) {
+            throw new IOException("The journal " + file.getAbsolutePath()
+                                  + " was written by a different report and cannot be resumed");
+          }
+          first = false;
+          complete = position;
+        } else if (text.startsWith(ROW + "\t")) {
+          if (rowsStart == -1) {
+            rowsStart = lineStart;
+          }
+          rowsEnd = position;
+          rows++;
+        } else if (text.startsWith(DONE + "\t")) {
+          String[] fields = text.split("\t");
+          if (fields.length == 3 && fields[2].equals(Integer.toString(rows))) {
+            if (rows == 0) {
+              mapOfAccessionToEntry.put(fields[1], new Entry(lineStart, 0, 0));
+            } else {
+              mapOfAccessionToEntry.put(fields[1], new Entry(rowsStart, rowsEnd - rowsStart, rows));
+            }
+            complete = position;
+          }
+          rowsStart = -1;
+          rows = 0;
+        }
+        lineStart = position;
+      }
+      // A journal that died before its signature was written has nothing to resume
+      return complete;
+    } finally {
+      in.close();
+    }
+  }
+  
+  public boolean isCompleted(String experimentAccession) {
+    return mapOfAccessionToEntry.containsKey(experimentAccession);
+  }
+  
+  /**
+   * Gets the accessions of the completed experiments
+   * 
+   * @return the accessions
+   */
+  public Set<String> getCompletedAccessions() {
+    synchronized (mapOfAccessionToEntry) {
+      return new HashSet<String>(mapOfAccessionToEntry.keySet());
+    }
+  }
+  
+  public int getCompletedCount() {
+    return mapOfAccessionToEntry.size();
+  }
+  
+  /**
+   * Reads the rows of a completed experiment back from the journal
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @return the rows, or null if the experiment is not in the journal
+   * @throws IOException
+   */
+  public List<String[]> getRows(String experimentAccession) throws IOException {
+    Entry entry = mapOfAccessionToEntry.get(experimentAccession);
+    if (entry == null) {
+      return null;
+    }
+    byte[] bytes = new byte[(int) entry.length];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.seek(entry.offset);
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    List<String[]> rows = new ArrayList<String[]>(entry.rows);
+    if (entry.rows == 0) {
+      return rows;
+    }
+    for (String line : new String(bytes, CHARSET).split("\n")) {
+      String[] fields = line.split("\t", -1);
+      String[] row = new String[fields.length - 1];
+      System.arraycopy(fields, 1, row, 0, row.length);
+      rows.add(row);
+    }
+    return rows;
+  }
+  
+  /**
+   * Records the rows of an experiment and flushes the journal. It can be called by several threads.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param rows
+   *          the rows of the experiment
+   * @throws IOException
+   */
+  public synchronized void record(String experimentAccession, List<String[]> rows) throws IOException {
+    long start = length;
+    for (String[] row : rows) {
+      write(toLine(ROW, row));
+    }
+    long rowsLength = length - start;
+    write(toLine(DONE, new String[] {experimentAccession, Integer.toString(rows.size())}));
+    out.flush();
+    mapOfAccessionToEntry.put(experimentAccession, new Entry(start, rowsLength, rows.size()));
+  }
+  
+  /**
+   * Closes the journal
+   * 
+   * @param completed
+   *          whether the run completed, in which case the journal is not needed anymore and is deleted
+   * @throws IOException
+   */
+  public synchronized void close(boolean completed) throws IOException {
+    out.close();
+    if (completed && !file.delete()) {
+      System.err.println("Could not delete the journal " + file.getAbsolutePath());
+    }
+  }
+  
+  public File getFile() {
+    return file;
+  }
+  
+  private void write(String line) throws IOException {
+    byte[] bytes = (line + "\n").getBytes(CHARSET);
+    out.write(bytes);
+    length += bytes.length;
+  }
+  
+  /**
+   * Joins the fields of a record. Tabs and line breaks in a field are replaced by spaces, as TsvWriter does.
+   */
+  private static String toLine(String type, String[] fields) {
+    StringBuilder line = new StringBuilder(type);
+    for (String field : fields) {
+      line.append('\t');
+      if (field != null) {
+        line.append(field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+      }
+    }
+    return line.toString();
+  }
+  
+  private static class Entry {
+    private long offset;
+    private long length;
+    private int rows;
+    
+    public Entry(long offset, long length, int rows) {
+      this.offset = offset;
+      this.length = length;
+      this.rows = rows;
+    }
+  }
+}
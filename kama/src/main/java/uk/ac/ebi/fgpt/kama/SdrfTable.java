@@ -0,0 +1,227 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A parsed SDRF. It is built once per experiment and shared by every method that works on the sample level,
+ * so that the file is only split into rows and columns once. It holds the header, the row boundaries and
+ * which 'Array Data File' (CEL file) each row belongs to.
+ */
+public class SdrfTable {
+  public static final String ARRAY_DATA_FILE = "Array Data File";
+  
+  /**
+   * Separates the rows in {@link #getRows()}. It is the ASCII record separator, which an SDRF does not
+   * contain, so no term can match across two rows.
+   */
+  public static final char ROW_SEPARATOR = '\u001e';
+  
+  private CharSequence passage;
+  private String[] header;
+  
+  /**
+   * The cell offsets of every row in the passage. Row 0 is the header.
+   */
+  private TabTokenizer tokenizer;
+  
+  private int arrayDataFileColumn = -1;
+  private String[] arrayDataFiles = new String[0];
+  private int[] rowToArrayDataFile;
+  
+  /**
+   * Parses an SDRF
+   * 
+   * @param passage
+   *          the raw SDRF, as read by Kama
+   */
+  public SdrfTable(CharSequence passage) {
+    // Trailing whitespace would otherwise become an empty row
+    int length = passage.length();
+    while (length > 0 && Character.isWhitespace(passage.charAt(length - 1))) {
+      length--;
+    }
+    this.passage = length == passage.length() ? passage : passage.subSequence(0, length);
+    
+    tokenizer = new TabTokenizer(this.passage);
+    header = new String[tokenizer.getCellCount(0)];
+    for (int i = 0; i < header.length; i++) {
+      header[i] = tokenizer.getCell(0, i);
+    }
+    
+    // Look for the column named "Array Data File"
+    arrayDataFileColumn = getColumnIndex(ARRAY_DATA_FILE);
+    if (arrayDataFileColumn != -1) {
+      groupRowsByArrayDataFile();
+    }
+  }
+  
+  /**
+   * Gets the number of characters of the SDRF, by which the cache of Kama weighs it
+   * 
+   * @return the length of the SDRF without its trailing whitespace
+   */
+  public int getLength() {
+    return passage.length();
+  }
+  
+  /**
+   * Gets the column names
+   * 
+   * @return the first row of the SDRF
+   */
+  public String[] getHeader() {
+    return header;
+  }
+  
+  /**
+   * Gets the index of the first column with the given name
+   * 
+   * @param columnName
+   *          the column name ie "Array Data File"
+   * @return the index of the column or -1 if there is no such column
+   */
+  public int getColumnIndex(String columnName) {
+    for (int i = 0; i < header.length; i++) {
+      if (header[i].equals(columnName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * Gets the number of rows below the header, which is the number of assays
+   * 
+   * @return the number of rows below the header
+   */
+  public int getRowCount() {
+    return tokenizer.getRowCount() - 1;
+  }
+  
+  /**
+   * Gets the text of a row, as it should be given to monq
+   * 
+   * @param row
+   *          the row, starting at 0 for the first row below the header
+   * @return the text of the row
+   */
+  public CharSequence getRow(int row) {
+    return passage.subSequence(tokenizer.getRowStart(row + 1), tokenizer.getRowEnd(row + 1));
+  }
+  
+  /**
+   * Gets all the rows below the header as one passage, so that an experiment can be scanned in one pass. The
+   * line breaks between the rows are replaced by ROW_SEPARATOR; nothing is copied.
+   * 
+   * @return the rows, or "" if there are none
+   */
+  public CharSequence getRows() {
+    if (getRowCount() == 0) {
+      return "";
+    }
+    return new RowSequence(passage, tokenizer.getRowStart(1), passage.length());
+  }
+  
+  /**
+   * Gets a cell
+   * 
+   * @param row
+   *          the row, starting at 0 for the first row below the header
+   * @param column
+   *          the column
+   * @return the content of the cell, or "" if the row is shorter than that
+   */
+  public String getCell(int row, int column) {
+    return tokenizer.getCell(row + 1, column);
+  }
+  
+  public boolean hasArrayDataFileColumn() {
+    return arrayDataFileColumn != -1;
+  }
+  
+  /**
+   * Gets the distinct 'Array Data File' names, in the order they first appear
+   * 
+   * @return the distinct 'Array Data File' names
+   */
+  public String[] getArrayDataFiles() {
+    return arrayDataFiles;
+  }
+  
+  /**
+   * Gets the 'Array Data File' a row belongs to
+   * 
+   * @param row
+   *          the row, starting at 0 for the first row below the header
+   * @return the index of the row's file in getArrayDataFiles()
+   */
+  public int getArrayDataFileIndex(int row) {
+    return rowToArrayDataFile[row];
+  }
+  
+  /**
+   * Gets the 'Array Data File' a row belongs to
+   * 
+   * @param row
+   *          the row, starting at 0 for the first row below the header
+   * @return the name of the row's file
+   */
+  public String getArrayDataFile(int row) {
+    return arrayDataFiles[rowToArrayDataFile[row]];
+  }
+  
+  private void groupRowsByArrayDataFile() {
+    Map<String,Integer> mapOfFileToIndex = new LinkedHashMap<String,Integer>();
+    rowToArrayDataFile = new int[getRowCount()];
+    for (int row = 0; row < getRowCount(); row++) {
+      String file = getCell(row, arrayDataFileColumn);
+      Integer index = mapOfFileToIndex.get(file);
+      if (index == null) {
+        index = mapOfFileToIndex.size();
+        mapOfFileToIndex.put(file, index);
+      }
+      rowToArrayDataFile[row] = index;
+    }
+    arrayDataFiles = mapOfFileToIndex.keySet().toArray(new String[mapOfFileToIndex.size()]);
+  }
+  
+  /**
+   * A view of the passage in which '\n' reads as ROW_SEPARATOR
+   */
+  private static class RowSequence implements CharSequence {
+    private CharSequence passage;
+    private int start;
+    private int end;
+    
+    public RowSequence(CharSequence passage, int start, int end) {
+      this.passage = passage;
+      this.start = start;
+      this.end = end;
+    }
+    
+    public char charAt(int index) {
+      char c = passage.charAt(start + index);
+      return c == '\n' ? ROW_SEPARATOR : c;
+    }
+    
+    public int length() {
+      return end - start;
+    }
+    
+    public CharSequence subSequence(int from, int to) {
+      if (from < 0 || to > length() || from > to) {
+        throw new IndexOutOfBoundsException(from + ", " + to);
+      }
+      return new RowSequence(passage, start + from, start + to);
+    }
+    
+    public String toString() {
+      StringBuilder builder = new StringBuilder(length());
+      for (int i = 0; i < length(); i++) {
+        builder.append(charAt(i));
+      }
+      return builder.toString();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * The rows of the experiments that a run does not need to make again: the ones in the journal of the run it
+ * resumes (see {@link RunJournal}), and the ones in the results store whose files have not changed (see
+ * {@link ResultStore}). The rows a run makes are recorded in both.
+ * 
+ * Either of them may be left out, in which case every experiment is made again.
+ */
+public class StoredRows {
+  private Kama kama;
+  private RunJournal journal;
+  private ResultStore.Results results;
+  
+  /**
+   * The content hashes of the SDRF and the IDF of the experiments looked up in the results store, until
+   * their rows are stored
+   */
+  private Map<String,String[]> mapOfAccessionToHashes = Collections
+      .synchronizedMap(new HashMap<String,String[]>());
+  
+  private AtomicInteger rowsFromJournal = new AtomicInteger();
+  private AtomicInteger rowsFromResults = new AtomicInteger();
+  
+  /**
+   * @param kama
+   *          the Kama instance that downloads the files
+   * @param journal
+   *          the journal of the run, or null
+   * @param results
+   *          the rows of the report in the results store, or null
+   */
+  public StoredRows(Kama kama, RunJournal journal, ResultStore.Results results) {
+    this.kama = kama;
+    this.journal = journal;
+    this.results = results;
+  }
+  
+  /**
+   * Checks whether the rows of an experiment are stored. Looking an experiment up in the results store
+   * downloads its files, because they are stored by their content.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @return true if the rows are in the journal, or in the results store for the current files
+   */
+  public boolean isStored(String experimentAccession) {
+    if (journal != null && journal.isCompleted(experimentAccession)) {
+      return true;
+    }
+    if (results == null) {
+      return false;
+    }
+    String[] hashes = getHashes(experimentAccession);
+    return hashes != null && results.contains(experimentAccession, hashes[0], hashes[1]);
+  }
+  
+  /**
+   * Gets the experiments of a batch whose rows have to be made. The files of the batch are downloaded
+   * together first, unless the results store is not used.
+   * 
+   * @param listOfExperimentAccessions
+   *          the experiment accessions
+   * @return the accessions of the experiments that are not stored, in the same order
+   */
+  public List<String> getAccessionsToRun(List<String> listOfExperimentAccessions) {
+    List<String> listOfAccessionsToRun = new ArrayList<String>();
+    for (String accession : listOfExperimentAccessions) {
+      if (journal == null || !journal.isCompleted(accession)) {
+        listOfAccessionsToRun.add(accession);
+      }
+    }
+    if (results == null) {
+      return listOfAccessionsToRun;
+    }
+    kama.downloadFilesFromFTP(listOfAccessionsToRun);
+    List<String> listOfChangedAccessions = new ArrayList<String>();
+    for (String accession : listOfAccessionsToRun) {
+      if (!isStored(accession)) {
+        listOfChangedAccessions.add(accession);
+      }
+    }
+    return listOfChangedAccessions;
+  }
+  
+  /**
+   * Gets the stored rows of an experiment
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @return the rows, or null if they are not stored
+   * @throws IOException
+   */
+  public List<String[]> getRows(String experimentAccession) throws IOException {
+    if (journal != null && journal.isCompleted(experimentAccession)) {
+      rowsFromJournal.incrementAndGet();
+      return journal.getRows(experimentAccession);
+    }
+    if (results == null) {
+      return null;
+    }
+    String[] hashes = getHashes(experimentAccession);
+    if (hashes == null) {
+      return null;
+    }
+    List<String[]> rows = results.getRows(experimentAccession, hashes[0], hashes[1]);
+    if (rows != null) {
+      mapOfAccessionToHashes.remove(experimentAccession);
+      // A resumed run does not need to look it up again
+      if (journal != null && !rows.isEmpty()) {
+        journal.record(experimentAccession, rows);
+      }
+      rowsFromResults.incrementAndGet();
+    }
+    return rows;
+  }
+  
+  /**
+   * Records the rows that were made for an experiment. It can be called by several threads.
+   * 
+   * Experiments without rows are not recorded in the journal, so that a resumed run tries the ones whose
+   * files could not be downloaded again. They are stored in the results store if both their files were
+   * downloaded, ie for experiments without an Array Data File column.
+   * 
+   * @param experimentAccession
+   *          the experiment accession
+   * @param rows
+   *          the rows of the experiment
+   * @throws IOException
+   */
+  public void record(String experimentAccession, List<String[]> rows) throws IOException {
+    if (journal != null && !rows.isEmpty()) {
+      journal.record(experimentAccession, rows);
+    }
+    if (results != null) {
+      String[] hashes = getHashes(experimentAccession);
+      if (hashes != null) {
+        results.store(experimentAccession, hashes[0], hashes[1], rows);
+      }
+      mapOfAccessionToHashes.remove(experimentAccession);
+    }
+  }
+  
+  /**
+   * Gets the experiments that are in the journal. Their files are not needed.
+   * 
+   * @return the accessions
+   */
+  public Set<String> getJournaledAccessions() {
+    return journal == null ? new HashSet<String>() : journal.getCompletedAccessions();
+  }
+  
+  /**
+   * @return the number of experiments whose rows were read from the journal
+   */
+  public int getRowsFromJournal() {
+    return rowsFromJournal.get();
+  }
+  
+  /**
+   * @return the number of experiments whose rows were read from the results store
+   */
+  public int getRowsFromResults() {
+    return rowsFromResults.get();
+  }
+  
+  /**
+   * Closes the journal and the results store
+   * 
+   * @param completed
+   *          whether the run completed, in which case the journal is deleted
+   * @throws IOException
+   */
+  public void close(boolean completed) throws IOException {
+    try {
+      if (journal != null) {
+        journal.close(completed);
+      }
+    } finally {
+      if (results != null) {
+        results.close();
+      }
+    }
+  }
+  
+  /**
+   * Gets the content hashes of the SDRF and the IDF of an experiment, downloading them if needed
+   * 
+   * @return the hashes, or null if either of the files could not be downloaded
+   */
+  private String[] getHashes(String experimentAccession) {
+    String[] hashes = mapOfAccessionToHashes.get(experimentAccession);
+    if (hashes == null) {
+      kama.downloadFileFromFTP(experimentAccession);
+      String sdrfHash = kama.getFileHash(experimentAccession, Scope.sdrf);
+      String idfHash = kama.getFileHash(experimentAccession, Scope.idf);
+      if (sdrfHash == null || idfHash == null) {
+        return null;
+      }
+      hashes = new String[] {sdrfHash, idfHash};
+      mapOfAccessionToHashes.put(experimentAccession, hashes);
+    }
+    return hashes;
+  }
+}
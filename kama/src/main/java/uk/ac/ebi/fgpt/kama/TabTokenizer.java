@@ -0,0 +1,193 @@
+package uk.ac.ebi.fgpt.kama;
+
+/**
+ * Splits tab delimited text (an SDRF or an IDF) into rows and cells in a single pass. Only the offsets of the
+ * cells are kept; the text of a cell is only copied out when it is asked for. Rows do not need to have the
+ * same number of cells: asking for a cell past the end of a row gives "", and cells past the end of the
+ * header are kept instead of being dropped.
+ */
+public class TabTokenizer {
+  private CharSequence text;
+  
+  /**
+   * The offset of the first and one past the last character of every cell, row after row.
+   */
+  private int[] cellStart;
+  private int[] cellEnd;
+  private int cellCount = 0;
+  
+  /**
+   * The index of the first cell of every row. The extra last entry is the total number of cells.
+   */
+  private int[] rowFirstCell;
+  private int rowCount = 0;
+  
+  /**
+   * Tokenizes the text. Rows are separated by "\n" or "\r\n" and cells by "\t".
+   * 
+   * @param text
+   *          the tab delimited text
+   */
+  public TabTokenizer(CharSequence text) {
+    this.text = text;
+    int length = text.length();
+    cellStart = new int[64];
+    cellEnd = new int[64];
+    rowFirstCell = new int[16];
+    
+    int start = 0;
+    addRow();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c == '\t') {
+        addCell(start, i);
+        start = i + 1;
+      } else if (c == '\n') {
+        addCell(start, i > start && text.charAt(i - 1) == '\r' ? i - 1 : i);
+        start = i + 1;
+        addRow();
+      }
+    }
+    addCell(start, length);
+    
+    if (rowFirstCell.length == rowCount) {
+      rowFirstCell = grow(rowFirstCell);
+    }
+    rowFirstCell[rowCount] = cellCount;
+  }
+  
+  public int getRowCount() {
+    return rowCount;
+  }
+  
+  /**
+   * Gets the number of cells in a row, which may differ from row to row
+   * 
+   * @param row
+   *          the row
+   * @return the number of cells in the row
+   */
+  public int getCellCount(int row) {
+    return rowFirstCell[row + 1] - rowFirstCell[row];
+  }
+  
+  /**
+   * Gets the offset of the first character of a row
+   * 
+   * @param row
+   *          the row
+   * @return the offset of the row in the text
+   */
+  public int getRowStart(int row) {
+    return cellStart[rowFirstCell[row]];
+  }
+  
+  /**
+   * Gets the offset one past the last character of a row, not counting the line break
+   * 
+   * @param row
+   *          the row
+   * @return the end offset of the row in the text
+   */
+  public int getRowEnd(int row) {
+    return cellEnd[rowFirstCell[row + 1] - 1];
+  }
+  
+  /**
+   * Gets the offset of the first character of a cell
+   * 
+   * @param row
+   *          the row
+   * @param column
+   *          the column
+   * @return the offset of the cell in the text, or -1 if the row is shorter than that
+   */
+  public int getCellStart(int row, int column) {
+    return column < getCellCount(row) ? cellStart[rowFirstCell[row] + column] : -1;
+  }
+  
+  /**
+   * Gets the offset one past the last character of a cell
+   * 
+   * @param row
+   *          the row
+   * @param column
+   *          the column
+   * @return the end offset of the cell in the text, or -1 if the row is shorter than that
+   */
+  public int getCellEnd(int row, int column) {
+    return column < getCellCount(row) ? cellEnd[rowFirstCell[row] + column] : -1;
+  }
+  
+  /**
+   * Copies the text of a cell out
+   * 
+   * @param row
+   *          the row
+   * @param column
+   *          the column
+   * @return the text of the cell, or "" if the row is shorter than that
+   */
+  public String getCell(int row, int column) {
+    if (column >= getCellCount(row)) {
+      return "";
+    }
+    int cell = rowFirstCell[row] + column;
+    return text.subSequence(cellStart[cell], cellEnd[cell]).toString();
+  }
+  
+  /**
+   * Compares a cell to a string without copying the cell out
+   * 
+   * @param row
+   *          the row
+   * @param column
+   *          the column
+   * @param value
+   *          the string to compare to
+   * @return true if the cell holds exactly the given string
+   */
+  public boolean cellEquals(int row, int column, String value) {
+    if (column >= getCellCount(row)) {
+      return value.length() == 0;
+    }
+    int cell = rowFirstCell[row] + column;
+    int start = cellStart[cell];
+    if (cellEnd[cell] - start != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (text.charAt(start + i) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  public CharSequence getText() {
+    return text;
+  }
+  
+  private void addRow() {
+    if (rowFirstCell.length == rowCount) {
+      rowFirstCell = grow(rowFirstCell);
+    }
+    rowFirstCell[rowCount++] = cellCount;
+  }
+  
+  private void addCell(int start, int end) {
+    if (cellStart.length == cellCount) {
+      cellStart = grow(cellStart);
+      cellEnd = grow(cellEnd);
+    }
+    cellStart[cellCount] = start;
+    cellEnd[cellCount] = end;
+    cellCount++;
+  }
+  
+  private static int[] grow(int[] array) {
+    int[] grown = new int[array.length * 2];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+}
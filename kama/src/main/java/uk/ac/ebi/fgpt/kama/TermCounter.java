@@ -0,0 +1,125 @@
+package uk.ac.ebi.fgpt.kama;
+
+/**
+ * Counts the matches of each term of a {@link CompiledDictionary} in an int array indexed by term id. The
+ * ids of the terms that were found are remembered as well, so that reading the counts and resetting the
+ * counter for the next passage only touch those terms, however large the dictionary is.
+ */
+public class TermCounter {
+  /**
+   * Receives the counts of each row when the rows of an SDRF are scanned in one pass
+   */
+  public interface RowListener {
+    /**
+     * Called at the end of every row, before the counts are reset for the next one
+     * 
+     * @param row
+     *          the row, starting at 0 for the first row below the header
+     * @param counter
+     *          the counts of the row
+     */
+    public void endRow(int row, TermCounter counter);
+  }
+  
+  private int[] counts;
+  private int[] foundTerms;
+  private int foundTermCount = 0;
+  private int total = 0;
+  
+  private RowListener rowListener;
+  private int row = 0;
+  
+  /**
+   * @param termCount
+   *          the number of terms in the dictionary
+   */
+  public TermCounter(int termCount) {
+    counts = new int[termCount];
+    foundTerms = new int[termCount];
+  }
+  
+  /**
+   * Counts one match of a term
+   * 
+   * @param termId
+   *          the id of the term
+   */
+  public void increment(int termId) {
+    if (counts[termId]++ == 0) {
+      foundTerms[foundTermCount++] = termId;
+    }
+    total++;
+  }
+  
+  public int getCount(int termId) {
+    return counts[termId];
+  }
+  
+  /**
+   * Gets the number of matches of all the terms together
+   * 
+   * @return the number of matches
+   */
+  public int getTotal() {
+    return total;
+  }
+  
+  /**
+   * Gets the number of different terms found
+   * 
+   * @return the number of different terms found
+   */
+  public int getFoundTermCount() {
+    return foundTermCount;
+  }
+  
+  /**
+   * Gets the id of a term that was found, in the order they were first found
+   * 
+   * @param i
+   *          between 0 and getFoundTermCount() - 1
+   * @return the id of the term
+   */
+  public int getFoundTerm(int i) {
+    return foundTerms[i];
+  }
+  
+  /**
+   * Sets the listener that receives the counts of every row. Without one, the row breaks are ignored and
+   * the counts add up over the whole passage.
+   * 
+   * @param rowListener
+   *          the listener, or null
+   */
+  public void setRowListener(RowListener rowListener) {
+    this.rowListener = rowListener;
+  }
+  
+  /**
+   * Hands the counts of the current row to the row listener and starts the next row
+   */
+  public void endRow() {
+    if (rowListener == null) {
+      return;
+    }
+    rowListener.endRow(row, this);
+    row++;
+    clearCounts();
+  }
+  
+  /**
+   * Sets every count back to 0, and the row back to the first one
+   */
+  public void reset() {
+    clearCounts();
+    row = 0;
+  }
+  
+  private void clearCounts() {
+    for (int i = 0; i < foundTermCount; i++) {
+      counts[foundTerms[i]] = 0;
+    }
+    foundTermCount = 0;
+    total = 0;
+  }
+}
@@ -0,0 +1,206 @@
+package uk.ac.ebi.fgpt.kama;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import uk.ac.ebi.fgpt.kama.KamaMetrics.Phase;
+
+/**
+ * Writes a tab separated report row by row, so that a long run never holds its whole report in memory and
+ * the rows of the experiments that are done are on disk if the run dies.
+ * 
+ * The output is buffered and flushed every {@link #DEFAULT_FLUSH_ROWS} rows, or when a row ends more than
+ * {@link #DEFAULT_FLUSH_MILLIS} milliseconds after the last flush, whichever comes first.
+ */
+public class TsvWriter {
+  public static final int DEFAULT_FLUSH_ROWS = 1000;
+  public static final long DEFAULT_FLUSH_MILLIS = 2000;
+  
+  private static final int BUFFER_SIZE = 64 * 1024;
+  
+  private Writer out;
+  private boolean closeOut;
+  private int flushRows = DEFAULT_FLUSH_ROWS;
+  private long flushMillis = DEFAULT_FLUSH_MILLIS;
+  
+  private boolean rowStarted = false;
+  private long rowCount = 0;
+  private int rowsSinceFlush = 0;
+  private long lastFlush = System.currentTimeMillis();
+  
+  /**
+   * Where the time spent writing is recorded, or null
+   */
+  private KamaMetrics metrics;
+  
+  /**
+   * Writes to a file, replacing it if it exists
+   * 
+   * @param file
+   *          the file to write
+   * @throws IOException
+   */
+  public TsvWriter(File file) throws IOException {
+    this(new FileOutputStream(file), true);
+  }
+  
+  /**
+   * Writes to a stream, ie System.out
+   * 
+   * @param outputStream
+   *          the stream to write
+   * @param closeStream
+   *          whether {@link #close()} closes the stream as well. System.out should be left open
+   */
+  public TsvWriter(OutputStream outputStream, boolean closeStream) {
+    this.out = new BufferedWriter(new OutputStreamWriter(outputStream), BUFFER_SIZE);
+    this.closeOut = closeStream;
+  }
+  
+  /**
+   * Sets how often the output is flushed
+   * 
+   * @param flushRows
+   *          the number of rows after which the output is flushed
+   * @param flushMillis
+   *          the time after which the output is flushed at the end of the next row
+   */
+  public void setFlushInterval(int flushRows, long flushMillis) {
+    this.flushRows = flushRows;
+    this.flushMillis = flushMillis;
+  }
+  
+  /**
+   * Records the time spent writing rows and flushing as the output phase of a run
+   * 
+   * @param metrics
+   *          the metrics of the run
+   */
+  public void setMetrics(KamaMetrics metrics) {
+    this.metrics = metrics;
+  }
+  
+  /**
+   * Writes the header row. The first column is prefixed with '#'.
+   * 
+   * @param columns
+   *          the names of the columns
+   * @throws IOException
+   */
+  public void writeHeader(String... columns) throws IOException {
+    for (int i = 0; i < columns.length; i++) {
+      field(i == 0 ? "#" + columns[i] : columns[i]);
+    }
+    endRow();
+  }
+  
+  /**
+   * Writes the next field of the current row. Tabs and line breaks in the value are replaced by spaces so
+   * that they cannot break the table.
+   * 
+   * @param value
+   *          the value of the field
+   * @return this writer
+   * @throws IOException
+   */
+  public TsvWriter field(String value) throws IOException {
+    if (rowStarted) {
+      out.write('\t');
+    }
+    rowStarted = true;
+    if (value == null) {
+      return this;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      out.write(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+    }
+    return this;
+  }
+  
+  public TsvWriter field(int value) throws IOException {
+    return field(Integer.toString(value));
+  }
+  
+  /**
+   * Writes a whole row
+   * 
+   * @param fields
+   *          the fields of the row
+   * @throws IOException
+   */
+  public void writeRow(String... fields) throws IOException {
+    long start = System.nanoTime();
+    for (String value : fields) {
+      field(value);
+    }
+    writeEndOfRow();
+    recordTime(start);
+  }
+  
+  /**
+   * Ends the current row, and flushes the output if it is due
+   * 
+   * @throws IOException
+   */
+  public void endRow() throws IOException {
+    long start = System.nanoTime();
+    writeEndOfRow();
+    recordTime(start);
+  }
+  
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    flushOut();
+    recordTime(start);
+  }
+  
+  private void writeEndOfRow() throws IOException {
+    out.write('\n');
+    rowStarted = false;
+    rowCount++;
+    rowsSinceFlush++;
+    if (rowsSinceFlush >= flushRows || System.currentTimeMillis() - lastFlush >= flushMillis) {
+      flushOut();
+    }
+  }
+  
+  private void flushOut() throws IOException {
+    out.flush();
+    rowsSinceFlush = 0;
+    lastFlush = System.currentTimeMillis();
+  }
+  
+  private void recordTime(long start) {
+    if (metrics != null) {
+      metrics.recordTime(Phase.output, System.nanoTime() - start);
+    }
+  }
+  
+  /**
+   * Gets the number of rows written, including the header
+   * 
+   * @return the number of rows
+   */
+  public long getRowCount() {
+    return rowCount;
+  }
+  
+  /**
+   * Flushes the output, and closes it unless it was a stream that should be left open
+   * 
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    if (closeOut) {
+      out.close();
+    } else {
+      out.flush();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+public class AhoCorasickEngineTest {
+  
+  private CompiledDictionary compile(String... terms) {
+    int[] priorities = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      priorities[i] = i;
+    }
+    return new AhoCorasickEngine().compile(terms, priorities, null);
+  }
+  
+  private int getTotal(CompiledDictionary dictionary, String passage) throws IOException {
+    return new PassageScanner(dictionary).scan(passage).getTotal();
+  }
+  
+  @Test
+  public void testTermsOnlyCountWhenFollowedByANonWordCharacter() throws IOException {
+    // The same counts as Kama has always given with monq, see KamaTest.testPassageCountOfEFO
+    CompiledDictionary dictionary = compile("blood", "thymus");
+    assertEquals(2, getTotal(dictionary, "blood blood blood"));
+    assertEquals(3, getTotal(dictionary, "blood blood blood."));
+    assertEquals(4, getTotal(dictionary, "blood blood blood thymus "));
+    assertEquals(4, getTotal(dictionary, "blood blood \n blood thymus "));
+    assertEquals(0, getTotal(dictionary, "bloodhound xblood "));
+  }
+  
+  @Test
+  public void testLongestTermWinsAndCaseIsIgnored() throws IOException {
+    PassageScanner scanner = new PassageScanner(compile("blood", "blood cell", "Blood"));
+    scanner.scan("whole blood and blood cells, not bloodhound. BLOOD  CELL.");
+    Map<String,Integer> counts = scanner.getTermCounts();
+    // "Blood" has the higher priority of the two spellings
+    assertEquals(Integer.valueOf(2), counts.get("Blood"));
+    assertEquals(Integer.valueOf(1), counts.get("blood cell"));
+    assertEquals(null, counts.get("blood"));
+  }
+  
+  @Test
+  public void testOverlappingTerms() throws IOException {
+    assertEquals(3, getTotal(compile("he", "she", "hers", "his"), "ushers she his hers "));
+    assertEquals(2, getTotal(compile("a b c", "b c d", "c"), "a b c d c "));
+  }
+  
+  @Test
+  public void testRowsOfAnSdrf() throws IOException {
+    SdrfTable sdrf = new SdrfTable("Source Name\tCharacteristics [OrganismPart]\tArray Data File \n"
+                                   + "s1\tblood\ta.CEL \n" + "s2\tthymus thymus\tb.CEL \n" + "s3\tliver\ta.CEL");
+    final List<String> rows = new ArrayList<String>();
+    new PassageScanner(compile("blood", "thymus")).scanRows(sdrf.getRows(), new TermCounter.RowListener() {
+      public void endRow(int row, TermCounter counter) {
+        rows.add(row + ":" + counter.getTotal());
+      }
+    });
+    assertEquals(Arrays.asList("0:1", "1:2", "2:0"), rows);
+  }
+  
+  private Kama getKama(File root, MatchingEngine engine) throws IOException {
+    Kama kama = new Kama(OntologySnapshot.read(new File(root, "ontology.snapshot")));
+    kama.setMageTabCache(new MageTabCache(new File(root, "magetab"), MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+    kama.setEngine(engine);
+    return kama;
+  }
+  
+  /**
+   * Puts the terms into a snapshot of a one class ontology, and the files into the MAGE-TAB cache, so that
+   * both engines count them through Kama as it reads a downloaded experiment
+   */
+  private File createCache(String[] terms, String accession, String sdrf, String idf) throws IOException {
+    File root = new File("target/ahocorasick");
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    GroupedDictionaryTest.writeSnapshot(new File(root, "ontology.snapshot"), new String[] {"TEST_1"},
+      new String[][] {terms}, new int[][] { {}});
+    File cacheRoot = new File(root, "magetab");
+    FileUtils.writeStringToFile(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.sdrf)), sdrf,
+      "UTF-8");
+    FileUtils.writeStringToFile(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.idf)), idf,
+      "UTF-8");
+    return root;
+  }
+  
+  private String readFixture(String name) throws Exception {
+    return FileUtils.readFileToString(new File(getClass().getClassLoader().getResource(name).toURI()), "UTF-8");
+  }
+  
+  @Test
+  public void testSameCountsAsMonqForAnSdrfAndAnIdf() throws Exception {
+    // The fixtures have terms with a capital first letter, hyphens, overlapping terms, terms at the end of a
+    // row and at the very end of the file. Runs of whitespace and words in capitals are left out, as the
+    // engines differ there, see testNotADropInForCapitals.
+    String[] terms = {"blood", "blood cell", "cell", "T-cell", "B-cell lymphoma", "lymphoma", "bone marrow",
+                      "he", "she", "hers", "liver"};
+    File root = createCache(terms, "E-TEST-1", readFixture("engineSdrf.txt"), readFixture("engineIdf.txt"));
+    List<String> ids = Collections.singletonList("TEST_1");
+    Kama monq = getKama(root, new MonqEngine());
+    Kama ahoCorasick = getKama(root, new AhoCorasickEngine());
+    try {
+      for (Scope scope : Scope.values()) {
+        assertEquals(scope.toString(), monq.getCountOfEachTermInExperiment("E-TEST-1", scope, ids), ahoCorasick
+            .getCountOfEachTermInExperiment("E-TEST-1", scope, ids));
+      }
+      Map<String,Integer> counts = ahoCorasick.getCountOfEachTermInExperiment("E-TEST-1", Scope.idf, ids);
+      assertEquals(Integer.valueOf(2), counts.get("T-cell"));
+      // The liver at the end of the file is not counted
+      assertEquals(Integer.valueOf(1), counts.get("liver"));
+      
+      Map<String,Map<String,Integer>> samples = ahoCorasick.getCountOfEachTermPerSample("E-TEST-1", ids);
+      assertEquals(monq.getCountOfEachTermPerSample("E-TEST-1", ids), samples);
+      assertEquals(5, samples.size());
+      assertFalse(samples.get("s5.CEL").containsKey("liver"));
+    } finally {
+      monq.close();
+      ahoCorasick.close();
+    }
+  }
+  
+  @Test
+  public void testNotADropInForCapitals() throws Exception {
+    String[] terms = {"blood", "blood cell"};
+    File root = createCache(terms, "E-TEST-1", "Source Name\tArray Data File\ns1\ta.CEL\n",
+      "Experiment Description\tBLOOD CELL counts, and blood  cell counts\n");
+    List<String> ids = Collections.singletonList("TEST_1");
+    Kama monq = getKama(root, new MonqEngine());
+    Kama ahoCorasick = getKama(root, new AhoCorasickEngine());
+    try {
+      // Only the first letter of a term may differ in case for monq, and aho-corasick reads a run of
+      // whitespace as one space, so it counts more
+      Map<String,Integer> counts = ahoCorasick.getCountOfEachTermInExperiment("E-TEST-1", Scope.idf, ids);
+      assertEquals(Collections.singletonMap("blood cell", 2), counts);
+      assertFalse(counts.equals(monq.getCountOfEachTermInExperiment("E-TEST-1", Scope.idf, ids)));
+    } finally {
+      monq.close();
+      ahoCorasick.close();
+    }
+  }
+}
@@ -60,7 +60,7 @@ public class AppTest {
   
   @Test
   public void testMain() throws OntologyServiceException, IOException, MonqException {
-    String[] args = new String[7];
+    String[] args = new String[9];
     args[0] = "-input";
     args[1] = "src/test/resources/accessiontest.txt";
     args[2] = "-output";
@@ -68,24 +68,28 @@ public class AppTest {
     args[4] = "-ids";
     args[5] = "src/test/resources/efo.txt";
     args[6] = "-s";
+    args[7] = "-dfacache";
+    args[8] = "target/appdfa";
     App.main(args);
   }
   
   @Test
   public void testMain2() throws OntologyServiceException, IOException, MonqException {
-    String[] args2 = new String[6];
+    String[] args2 = new String[8];
     args2[0] = "-input";
     args2[1] = "src/test/resources/accessiontest.txt";
     args2[2] = "-output";
     args2[3] = "target/output2.txt";
     args2[4] = "-ids";
     args2[5] = "src/test/resources/efo.txt";
+    args2[6] = "-dfacache";
+    args2[7] = "target/appdfa";
     App.main(args2);
   }
   
   @Test
   public void testMain3() throws OntologyServiceException, IOException, MonqException {
-    String[] args2 = new String[7];
+    String[] args2 = new String[9];
     args2[0] = "-input";
     args2[1] = "src/test/resources/accessiontest.txt";
     args2[2] = "-output";
@@ -93,12 +97,14 @@ public class AppTest {
     args2[4] = "-ids";
     args2[5] = "src/test/resources/efo.txt";
     args2[6] = "-x";
+    args2[7] = "-dfacache";
+    args2[8] = "target/appdfa";
     App.main(args2);
   }
   
   @Test
   public void testMain4() throws OntologyServiceException, IOException, MonqException {
-    String[] args2 = new String[9];
+    String[] args2 = new String[11];
     args2[0] = "-input";
     args2[1] = "src/test/resources/accessiontest.txt";
     args2[2] = "-output";
@@ -108,12 +114,14 @@ public class AppTest {
     args2[6] = "-owlfile";
     args2[7] = "src/test/resources/CELL_SP_DIS_ORG_5_05_09_v1.0.obo";
     args2[8] = "-s";
+    args2[9] = "-dfacache";
+    args2[10] = "target/appdfa";
     App.main(args2);
   }
 
   @Test
   public void testOnTheExperimentsThatFailed() throws OntologyServiceException, IOException, MonqException {
-    String[] args2 = new String[8];
+    String[] args2 = new String[10];
     args2[0] = "-input";
     args2[1] = "src/test/resources/failedAccessions.txt";
     args2[2] = "-output";
@@ -123,6 +131,8 @@ public class AppTest {
     args2[6] = "-owlfile";
     args2[7] = "src/test/resources/efo_2_14.owl";
 //    args2[8] = "-s";
+    args2[8] = "-dfacache";
+    args2[9] = "target/appdfa";
     App.main(args2);
   }
 }
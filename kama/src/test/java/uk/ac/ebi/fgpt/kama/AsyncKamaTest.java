@@ -0,0 +1,129 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+public class AsyncKamaTest {
+  private static final int EXPERIMENTS = 50;
+  private static final List<String> IDS = Collections.singletonList("EFO_0000798");
+  
+  private File root = new File("target/asynccache");
+  private Kama kama;
+  private ExecutorService executor;
+  private List<String> accessions = new ArrayList<String>();
+  
+  @Before
+  public void initialize() throws IOException, OntologyServiceException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    // Every experiment is in the cache, so nothing is downloaded
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      String accession = "E-TEST-" + i;
+      for (Scope scope : new Scope[] {Scope.sdrf, Scope.idf}) {
+        File file = new File(root, MageTabCache.getRelativePath(accession, scope));
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write("blood");
+        writer.close();
+      }
+      accessions.add(accession);
+    }
+    kama = new Kama();
+    kama.setMageTabCache(new MageTabCache(root, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+    executor = Executors.newFixedThreadPool(8);
+  }
+  
+  @After
+  public void shutdown() {
+    executor.shutdown();
+    kama.close();
+  }
+  
+  @Test
+  public void testFuturesGiveTheCountsOfKama() throws Exception {
+    AsyncKama asyncKama = new AsyncKama(kama, executor);
+    Map<String,CompletableFuture<Integer>> futures = asyncKama.getCountMapForListOfAccessions(accessions,
+      Scope.sdrf, IDS);
+    Map<String,Integer> expected = kama.getCountMapForListOfAccessions(accessions, Scope.sdrf, IDS);
+    
+    assertEquals(accessions, new ArrayList<String>(futures.keySet()));
+    for (String accession : accessions) {
+      assertEquals(expected.get(accession), futures.get(accession).get(10, TimeUnit.SECONDS));
+    }
+    assertTrue(asyncKama.getTrueFalseForExperiment("E-TEST-0", Scope.both, IDS).get(10, TimeUnit.SECONDS));
+    assertEquals(kama.getCountOfEachTermInExperiment("E-TEST-0", Scope.idf, IDS), asyncKama
+        .getCountOfEachTermInExperiment("E-TEST-0", Scope.idf, IDS).get(10, TimeUnit.SECONDS));
+  }
+  
+  @Test
+  public void testForEachExperimentKeepsAtMostMaxInFlight() throws Exception {
+    // An experiment is in flight from the start of its task until it is consumed
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger mostInFlight = new AtomicInteger();
+    AsyncKama asyncKama = new AsyncKama(kama, command -> executor.execute(() -> {
+      mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      command.run();
+    }));
+    
+    final Map<String,Map<String,Integer>> consumed = new ConcurrentHashMap<String,Map<String,Integer>>();
+    asyncKama.forEachExperiment(accessions.iterator(), 3, Scope.sdrf, IDS, (accession, termCounts) -> {
+      consumed.put(accession, termCounts);
+      inFlight.decrementAndGet();
+    }).get(60, TimeUnit.SECONDS);
+    
+    assertEquals(EXPERIMENTS, consumed.size());
+    assertEquals(Integer.valueOf(1), consumed.get("E-TEST-7").get("blood"));
+    assertTrue(mostInFlight.get() <= 3);
+  }
+  
+  @Test
+  public void testForEachExperimentOnTheCallingThread() throws Exception {
+    // Every experiment finishes before the next one starts, which must not nest the calls
+    Map<String,Map<String,Integer>> consumed = new ConcurrentHashMap<String,Map<String,Integer>>();
+    CompletableFuture<Void> done = new AsyncKama(kama, Runnable::run).forEachExperiment(accessions.iterator(),
+      4, Scope.idf, IDS, consumed::put);
+    assertTrue(done.isDone());
+    assertEquals(EXPERIMENTS, consumed.size());
+  }
+  
+  @Test
+  public void testForEachExperimentStopsAtTheFirstFailure() throws InterruptedException, TimeoutException {
+    CompletableFuture<Void> done = new AsyncKama(kama, executor).forEachExperiment(accessions.iterator(), 2,
+      Scope.sdrf, IDS, (accession, termCounts) -> {
+        throw new IllegalStateException(accession);
+      });
+    try {
+      done.get(60, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
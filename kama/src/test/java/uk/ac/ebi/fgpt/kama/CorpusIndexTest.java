@@ -0,0 +1,182 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+public class CorpusIndexTest {
+  private static final String[] TERMS = {"blood", "blood cell", "cell line", "peripheral blood", "HeLa"};
+  
+  private File cacheRoot = new File("target/corpusindex/magetab");
+  private File indexRoot = new File("target/corpusindex/index");
+  private MageTabCache cache;
+  
+  @Before
+  public void initialize() throws IOException {
+    File root = new File("target/corpusindex");
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    cache = new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES);
+    add("E-GEOD-1", Scope.sdrf, "Source Name\tCharacteristics[OrganismPart]\n"
+                                + "1\tperipheral blood\n"
+                                + "2\tBlood cell line\n"
+                                + "3\tcell\n\n");
+    add("E-GEOD-1", Scope.idf, "Experiment Description\tA study of blood\ncell\tline cultures\n");
+    add("E-GEOD-2", Scope.sdrf, "Source Name\tCharacteristics[CellLine]\n1\tHeLa\n2\tHeLa-S3\n");
+    add("E-GEOD-2", Scope.idf, "Experiment Description\tcervical cancer\n");
+    add("E-GEOD-3", Scope.idf, "Experiment Description\tblood\n");
+  }
+  
+  private void add(String accession, Scope scope, String text) throws IOException {
+    File download = cache.createDownloadTarget(accession, scope);
+    FileWriter writer = new FileWriter(download);
+    writer.write(text);
+    writer.close();
+    cache.commit(download, accession, scope);
+  }
+  
+  @Test
+  public void testWordsAreRunsOfLettersAndDigits() {
+    assertEquals(Arrays.asList("HeLa", "S3", "Cell", "line"), CorpusIndex.getWords("HeLa-S3  Cell\tline"));
+  }
+  
+  @Test
+  public void testLongestTermIsCountedAndTermsDoNotOverlap() throws IOException {
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    assertEquals(3, index.build(cache));
+    
+    Map<String,Map<String,Integer>> counts = index.search(TERMS, Scope.sdrf);
+    Map<String,Integer> experiment = counts.get("E-GEOD-1");
+    assertEquals(Integer.valueOf(1), experiment.get("peripheral blood"));
+    assertEquals(Integer.valueOf(1), experiment.get("blood cell"));
+    // "blood" is part of both matches, and "cell line" starts inside "blood cell"
+    assertNull(experiment.get("blood"));
+    assertNull(experiment.get("cell line"));
+    assertEquals(Integer.valueOf(2), counts.get("E-GEOD-2").get("HeLa"));
+    assertFalse(counts.containsKey("E-GEOD-3"));
+  }
+  
+  @Test
+  public void testTermsDoNotSpanRows() throws IOException {
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    
+    Map<String,Integer> experiment = index.search(TERMS, Scope.idf).get("E-GEOD-1");
+    assertEquals(Integer.valueOf(1), experiment.get("blood"));
+    assertNull(experiment.get("blood cell"));
+    // Cells of one row are read as one passage
+    assertEquals(Integer.valueOf(1), experiment.get("cell line"));
+  }
+  
+  @Test
+  public void testOnlyTheFirstLetterOfATermMayDifferInCase() throws IOException {
+    add("E-GEOD-4", Scope.idf, "Experiment Description\tBlood Cell line from HELA and blood Cell\n");
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    
+    Map<String,Integer> experiment = index.search(TERMS, Scope.idf).get("E-GEOD-4");
+    // "Blood Cell" is not "blood cell", so "Cell line" is counted after "Blood"
+    assertEquals(Integer.valueOf(2), experiment.get("blood"));
+    assertEquals(Integer.valueOf(1), experiment.get("cell line"));
+    assertNull(experiment.get("blood cell"));
+    assertNull(experiment.get("HeLa"));
+  }
+  
+  @Test
+  public void testTermsThatEndTheFileAreNotCounted() throws IOException {
+    add("E-GEOD-4", Scope.idf, "Experiment Description\tperipheral blood\n\n");
+    add("E-GEOD-5", Scope.idf, "Experiment Description\tblood cell\n");
+    add("E-GEOD-6", Scope.idf, "Experiment Description\tblood cell.\n");
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    
+    Map<String,Map<String,Integer>> counts = index.search(TERMS, Scope.idf);
+    assertFalse(counts.containsKey("E-GEOD-4"));
+    // Where "blood cell" ends the file, the scan counts "blood" instead
+    assertEquals(Collections.singletonMap("blood", 1), counts.get("E-GEOD-5"));
+    assertEquals(Collections.singletonMap("blood cell", 1), counts.get("E-GEOD-6"));
+  }
+  
+  @Test
+  public void testCountsAreThoseOfAScan() throws IOException, MonqException {
+    add("E-GEOD-4", Scope.sdrf, "Source Name\tCharacteristics[CellType]\n1\tBlood cell\n2\tblood Cell line\n"
+                                + "3\tHELA\n4\tperipheral blood");
+    add("E-GEOD-4", Scope.idf, "Experiment Description\tHeLa cells, not peripheral Blood. Cell line HeLa\n");
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    
+    int[] priorities = new int[TERMS.length];
+    for (int i = 0; i < priorities.length; i++) {
+      priorities[i] = i;
+    }
+    PassageScanner scanner = new PassageScanner(new MonqEngine().compile(TERMS, priorities, null));
+    // E-GEOD-1 has terms split over two lines, which the index does not find
+    for (String accession : Arrays.asList("E-GEOD-2", "E-GEOD-3", "E-GEOD-4")) {
+      for (Scope scope : new Scope[] {Scope.sdrf, Scope.idf}) {
+        File file = new File(cacheRoot, MageTabCache.getRelativePath(accession, scope));
+        if (!file.exists()) {
+          continue;
+        }
+        scanner.scan(new MappedPassage(file));
+        Map<String,Integer> counts = index.search(TERMS, scope).get(accession);
+        assertEquals(accession + " " + scope, scanner.getTermCounts(),
+          counts == null ? Collections.emptyMap() : counts);
+      }
+    }
+  }
+  
+  @Test
+  public void testBothScopeAddsUpExperimentsWithBothFiles() throws IOException {
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    
+    Map<String,Map<String,Integer>> counts = index.search(TERMS, Scope.both);
+    assertEquals(4, counts.get("E-GEOD-1").size());
+    assertFalse(counts.containsKey("E-GEOD-3"));
+    assertEquals(Arrays.asList("E-GEOD-1", "E-GEOD-2"), index.getAccessions(Scope.both));
+    assertEquals(3, index.getAccessions(Scope.idf).size());
+    // The header and three samples, without the blank line at the end
+    assertEquals(Integer.valueOf(4), index.getRowCounts(Scope.sdrf).get("E-GEOD-1"));
+  }
+  
+  @Test
+  public void testSegmentsGiveTheSameCounts() throws IOException {
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    Map<String,Map<String,Integer>> expected = index.search(TERMS, Scope.both);
+    
+    // Every file in a segment of its own
+    index.setSegmentBytes(1);
+    index.build(cache);
+    assertEquals(expected, index.search(TERMS, Scope.both));
+    assertEquals(expected, new CorpusIndex(indexRoot).search(TERMS, Scope.both));
+  }
+  
+  @Test
+  public void testRebuildSeesNewFiles() throws IOException {
+    CorpusIndex index = new CorpusIndex(indexRoot);
+    index.build(cache);
+    assertFalse(index.getAccessions(Scope.sdrf).contains("E-GEOD-3"));
+    
+    add("E-GEOD-3", Scope.sdrf, "Source Name\n1 peripheral blood\n2 liver\n");
+    assertEquals(3, index.build(cache));
+    assertTrue(index.getAccessions(Scope.both).contains("E-GEOD-3"));
+    assertEquals(Integer.valueOf(1), index.search(TERMS, Scope.sdrf).get("E-GEOD-3").get("peripheral blood"));
+    assertFalse(new File(indexRoot, "build.part").exists());
+  }
+}
@@ -0,0 +1,96 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import monq.ie.Term2Re;
+import monq.jfa.DfaRun;
+import monq.jfa.Nfa;
+import monq.jfa.actions.Copy;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DfaStoreTest {
+  private File root = new File("target/dfastore");
+  
+  @Before
+  public void initialize() throws IOException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+  
+  @Test
+  public void testKeyDependsOnOntologyAndIdsButNotTheirOrder() throws IOException {
+    String version = DfaStore.hash(new ByteArrayInputStream("ontology".getBytes()));
+    String otherVersion = DfaStore.hash(new ByteArrayInputStream("ontology v2".getBytes()));
+    assertEquals(DfaStore.getKey(version, "count", Arrays.asList("EFO_0000798", "EFO_0000403")), DfaStore
+        .getKey(version, "count", Arrays.asList("EFO_0000403", "EFO_0000798")));
+    assertFalse(DfaStore.getKey(version, "count", Arrays.asList("EFO_0000798")).equals(
+      DfaStore.getKey(otherVersion, "count", Arrays.asList("EFO_0000798"))));
+    assertFalse(DfaStore.getKey(version, "count", Arrays.asList("EFO_0000798")).equals(
+      DfaStore.getKey(version, "attributed", Arrays.asList("EFO_0000798"))));
+  }
+  
+  @Test
+  public void testStoredAutomatonStillCounts() throws Exception {
+    Nfa nfa = new Nfa(Nfa.NOTHING);
+    nfa = nfa.or(Term2Re.convert("blood"), new DoCount(0));
+    nfa = nfa.or("[A-Za-z0-9]+", new Copy(Integer.MIN_VALUE));
+    
+    DfaStore store = new DfaStore(root);
+    assertNull(store.load("blood"));
+    store.store("blood", new MonqDictionary(nfa.compile(DfaRun.UNMATCHED_DROP), new String[] {"blood"},
+        null));
+    
+    CompiledDictionary loaded = new DfaStore(root).load("blood");
+    assertNotNull(loaded);
+    PassageScanner scanner = new PassageScanner(loaded);
+    scanner.scan("whole blood and blood cells, not bloodhound");
+    assertEquals(Integer.valueOf(2), scanner.getTermCounts().get("blood"));
+  }
+  
+  @Test
+  public void testUnreadableAutomatonIsDiscarded() throws IOException {
+    DfaStore store = new DfaStore(root);
+    File file = new File(root, "broken.dfa");
+    FileWriter writer = new FileWriter(file);
+    writer.write("not an automaton");
+    writer.close();
+    assertNull(store.load("broken"));
+    assertFalse(file.exists());
+  }
+  
+  @Test(expected = IOException.class)
+  public void testStoreThatCannotBeCreatedFails() throws IOException {
+    root.mkdirs();
+    File file = new File(root, "file");
+    FileWriter writer = new FileWriter(file);
+    writer.write("not a directory");
+    writer.close();
+    new DfaStore(new File(file, "dfa"));
+  }
+  
+  @Test
+  public void testKamaOnlyStoresAutomataInTheStoreItIsGiven() throws Exception {
+    Kama kama = new Kama();
+    assertNull(kama.getDfaStore());
+    kama.precompile(Arrays.asList("EFO_0000798"));
+    
+    kama.setDfaStore(new DfaStore(root));
+    kama.precompile(Arrays.asList("EFO_0000311"));
+    // The count and the attributed automaton of the ids compiled after the store was set
+    assertEquals(2, root.list().length);
+    kama.close();
+  }
+}
@@ -0,0 +1,296 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.filesystem.DirectoryEntry;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystem;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+/**
+ * Runs the downloader against a local stand-in for the ArrayExpress FTP server.
+ */
+public class FtpDownloaderTest {
+  private static final String ROOT = "/pub/databases/microarray/data/experiment/";
+  private static final int EXPERIMENTS = 20;
+  
+  private FakeFtpServer ftpServer;
+  private FileSystem fileSystem;
+  private File cacheRoot = new File("target/ftpdownloadercache");
+  private File resultsRoot = new File("target/ftpdownloaderresults");
+  
+  @Before
+  public void startServer() throws IOException {
+    if (cacheRoot.exists()) {
+      FileUtils.deleteDirectory(cacheRoot);
+    }
+    if (resultsRoot.exists()) {
+      FileUtils.deleteDirectory(resultsRoot);
+    }
+    fileSystem = new UnixFakeFileSystem();
+    fileSystem.add(new DirectoryEntry(ROOT));
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      String accession = "E-GEOD-" + i;
+      fileSystem.add(new FileEntry(ROOT + "GEOD/" + accession + "/" + accession + ".sdrf.txt",
+          "Source Name\tArray Data File\nsample" + i + "\tsample" + i + ".CEL\n"));
+      // Every fifth experiment is missing its IDF
+      if (i % 5 != 0) {
+        fileSystem.add(new FileEntry(ROOT + "GEOD/" + accession + "/" + accession + ".idf.txt",
+            "Investigation Title\tExperiment " + i + "\n"));
+      }
+    }
+    UserAccount anonymous = new UserAccount("anonymous", "", "/");
+    anonymous.setPasswordRequiredForLogin(false);
+    
+    ftpServer = new FakeFtpServer();
+    ftpServer.setServerControlPort(0);
+    ftpServer.addUserAccount(anonymous);
+    ftpServer.setFileSystem(fileSystem);
+    ftpServer.start();
+  }
+  
+  @After
+  public void stopServer() {
+    ftpServer.stop();
+  }
+  
+  @Test
+  public void testParallelDownloadFillsMaps() {
+    FtpDownloader downloader = new FtpDownloader(new FtpSessionManager("localhost", ftpServer
+        .getServerControlPort(), 4), ROOT, new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES));
+    
+    List<String> accessions = new ArrayList<String>();
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      accessions.add("E-GEOD-" + i);
+    }
+    accessions.add("E-GEOD-NOTHERE");
+    
+    Map<String,File> sdrf = new HashMap<String,File>();
+    Map<String,File> idf = new HashMap<String,File>();
+    downloader.download(accessions, sdrf, idf);
+    
+    assertEquals(EXPERIMENTS, sdrf.size());
+    assertEquals(EXPERIMENTS - EXPERIMENTS / 5, idf.size());
+    assertFalse(sdrf.containsKey("E-GEOD-NOTHERE"));
+    assertFalse(idf.containsKey("E-GEOD-5"));
+    assertNotNull(idf.get("E-GEOD-6"));
+    assertEquals(new File(cacheRoot, "GEOD/E-GEOD-3/E-GEOD-3.sdrf.txt").getAbsoluteFile(), sdrf.get(
+      "E-GEOD-3").getAbsoluteFile());
+    
+    // One session is kept alive for the next call
+    assertEquals(1, downloader.getSessionManager().getOpenSessions());
+    downloader.getSessionManager().close();
+    assertEquals(0, downloader.getSessionManager().getOpenSessions());
+  }
+  
+  @Test
+  public void testSessionsAreOpenedLazilyAndReconnectedWhenIdle() throws Exception {
+    FtpSessionManager sessions = new FtpSessionManager("localhost", ftpServer.getServerControlPort(), 1);
+    sessions.setKeepAliveMillis(10);
+    sessions.setIdleTimeoutMillis(50);
+    assertEquals(0, sessions.getOpenSessions());
+    
+    FTPClient first = sessions.borrow();
+    sessions.release(first, true);
+    assertSame(first, sessions.borrow());
+    sessions.release(first, true);
+    
+    Thread.sleep(100);
+    FTPClient second = sessions.borrow();
+    assertTrue(second.isConnected());
+    assertEquals(1, sessions.getOpenSessions());
+    sessions.release(second, true);
+    sessions.close();
+  }
+  
+  @Test
+  public void testFilesAlreadyInMapsAreNotFetched() {
+    FtpDownloader downloader = new FtpDownloader(new FtpSessionManager("localhost", ftpServer
+        .getServerControlPort(), 2), ROOT, new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES));
+    
+    List<String> accessions = new ArrayList<String>();
+    accessions.add("E-GEOD-1");
+    Map<String,File> sdrf = new HashMap<String,File>();
+    Map<String,File> idf = new HashMap<String,File>();
+    File placeholder = new File("target/placeholder.txt");
+    sdrf.put("E-GEOD-1", placeholder);
+    
+    downloader.download(accessions, sdrf, idf);
+    assertEquals(placeholder, sdrf.get("E-GEOD-1"));
+    assertNotNull(idf.get("E-GEOD-1"));
+  }
+  
+  @Test
+  public void testCachedFilesAreDownloadedAgainOnlyWhenTheyChanged() throws IOException {
+    MageTabCache cache = new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES);
+    FtpDownloader downloader = new FtpDownloader(new FtpSessionManager("localhost", ftpServer
+        .getServerControlPort(), 2), ROOT, cache);
+    List<String> accessions = Collections.singletonList("E-GEOD-1");
+    assertEquals(2, downloader.download(accessions, new HashMap<String,File>(), new HashMap<String,File>())
+        .size());
+    assertNotNull(cache.getValidator("E-GEOD-1", Scope.sdrf));
+    
+    // The files on the server have not changed, so the cached files are used
+    Map<String,File> sdrf = new HashMap<String,File>();
+    assertEquals(0, downloader.download(accessions, sdrf, new HashMap<String,File>()).size());
+    assertEquals(cache.getFile("E-GEOD-1", Scope.sdrf).getAbsoluteFile(), sdrf.get("E-GEOD-1")
+        .getAbsoluteFile());
+    
+    // The SDRF is corrected on the server
+    FileEntry entry = (FileEntry) fileSystem.getEntry(ROOT + "GEOD/E-GEOD-1/E-GEOD-1.sdrf.txt");
+    entry.setContents("Source Name\tArray Data File\ncorrected\tcorrected.CEL\n");
+    entry.setLastModified(new Date(System.currentTimeMillis() - 10L * 24 * 60 * 60 * 1000));
+    sdrf.clear();
+    List<File> downloaded = downloader.download(accessions, sdrf, new HashMap<String,File>());
+    assertEquals(1, downloaded.size());
+    assertTrue(FileUtils.readFileToString(sdrf.get("E-GEOD-1"), "UTF-8").contains("corrected.CEL"));
+    downloader.getSessionManager().close();
+  }
+  
+  @Test
+  public void testCachedFilesAreUsedWhenTheServerCannotBeReached() throws IOException {
+    MageTabCache cache = new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES);
+    FtpDownloader downloader = new FtpDownloader(new FtpSessionManager("localhost", ftpServer
+        .getServerControlPort(), 2), ROOT, cache);
+    List<String> accessions = Collections.singletonList("E-GEOD-2");
+    downloader.download(accessions, new HashMap<String,File>(), new HashMap<String,File>());
+    downloader.getSessionManager().close();
+    
+    // Nothing listens on a port that was just closed
+    ServerSocket socket = new ServerSocket(0);
+    int closedPort = socket.getLocalPort();
+    socket.close();
+    FtpDownloader offline = new FtpDownloader(new FtpSessionManager("localhost", closedPort, 2), ROOT, cache);
+    Map<String,File> sdrf = new HashMap<String,File>();
+    Map<String,File> idf = new HashMap<String,File>();
+    assertEquals(0, offline.download(accessions, sdrf, idf).size());
+    assertNotNull(sdrf.get("E-GEOD-2"));
+    assertNotNull(idf.get("E-GEOD-2"));
+  }
+  
+  private Kama getKama(OntologySnapshot snapshot) {
+    Kama kama = new Kama(snapshot);
+    kama.setMageTabCache(new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setFtpServer("localhost", ftpServer.getServerControlPort(), ROOT);
+    kama.setCheckCachedFiles(true);
+    return kama;
+  }
+  
+  @Test
+  public void testStoredRowsAreMadeAgainWhenTheRemoteFileChanged() throws Exception {
+    String[] signature = {"summary", "0123456789abcdef"};
+    List<String> accessions = Collections.singletonList("E-GEOD-3");
+    List<String[]> rows = new ArrayList<String[]>();
+    rows.add(new String[] {"E-GEOD-3", "1", "0", "0", ""});
+    // Every run is a new instance, as each run of the command line is
+    OntologySnapshot snapshot = new Kama().createOntologySnapshot();
+    
+    Kama kama = getKama(snapshot);
+    StoredRows stored = new StoredRows(kama, null, new ResultStore(resultsRoot).open(signature));
+    assertEquals(accessions, stored.getAccessionsToRun(accessions));
+    stored.record("E-GEOD-3", rows);
+    stored.close(true);
+    kama.close();
+    
+    // Nothing changed on the server, so the stored rows are used
+    kama = getKama(snapshot);
+    stored = new StoredRows(kama, null, new ResultStore(resultsRoot).open(signature));
+    assertEquals(0, stored.getAccessionsToRun(accessions).size());
+    assertEquals(1, stored.getRows("E-GEOD-3").size());
+    stored.close(true);
+    kama.close();
+    
+    // The SDRF is corrected on the server, so the experiment is scanned again
+    FileEntry entry = (FileEntry) fileSystem.getEntry(ROOT + "GEOD/E-GEOD-3/E-GEOD-3.sdrf.txt");
+    entry.setContents("Source Name\tArray Data File\ncorrected\tcorrected.CEL\n");
+    entry.setLastModified(new Date(System.currentTimeMillis() - 10L * 24 * 60 * 60 * 1000));
+    kama = getKama(snapshot);
+    stored = new StoredRows(kama, null, new ResultStore(resultsRoot).open(signature));
+    assertEquals(accessions, stored.getAccessionsToRun(accessions));
+    stored.close(true);
+    kama.close();
+  }
+  
+  @Test
+  public void testCachedFilesAreCheckedOnlyWhenTheirCheckIsDue() throws Exception {
+    List<String> accessions = Collections.singletonList("E-GEOD-4");
+    MageTabCache cache = new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES);
+    OntologySnapshot snapshot = new Kama().createOntologySnapshot();
+    Kama kama = getKama(snapshot);
+    kama.downloadFilesFromFTP(accessions);
+    kama.close();
+    
+    FileEntry entry = (FileEntry) fileSystem.getEntry(ROOT + "GEOD/E-GEOD-4/E-GEOD-4.sdrf.txt");
+    entry.setContents("Source Name\tArray Data File\ncorrected\tcorrected.CEL\n");
+    entry.setLastModified(new Date(System.currentTimeMillis() - 10L * 24 * 60 * 60 * 1000));
+    
+    // By default the cached files are used without asking the server
+    assertFalse(new Kama(snapshot).getCheckCachedFiles());
+    kama = getKama(snapshot);
+    kama.setCheckCachedFiles(false);
+    kama.downloadFilesFromFTP(accessions);
+    assertFalse(FileUtils.readFileToString(kama.getCompleteSDRFMap().get("E-GEOD-4"), "UTF-8").contains(
+      "corrected"));
+    kama.close();
+    
+    // The file was downloaded less than an hour ago
+    kama = getKama(snapshot);
+    kama.setCachedFileCheckInterval(60 * 60 * 1000);
+    kama.downloadFilesFromFTP(accessions);
+    assertFalse(FileUtils.readFileToString(kama.getCompleteSDRFMap().get("E-GEOD-4"), "UTF-8").contains(
+      "corrected"));
+    kama.close();
+    
+    // Two hours later the check is due
+    File validator = new File(cacheRoot, MageTabCache.getRelativePath("E-GEOD-4", Scope.sdrf) + ".remote");
+    assertTrue(validator.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000));
+    kama = getKama(snapshot);
+    kama.setCachedFileCheckInterval(60 * 60 * 1000);
+    kama.downloadFilesFromFTP(accessions);
+    assertTrue(FileUtils.readFileToString(kama.getCompleteSDRFMap().get("E-GEOD-4"), "UTF-8").contains(
+      "corrected"));
+    assertTrue(cache.getCheckedTime("E-GEOD-4", Scope.sdrf) > System.currentTimeMillis() - 60 * 60 * 1000);
+    kama.close();
+  }
+  
+  @Test
+  public void testMissingFilesAreAskedForAgainAfterTheRetryInterval() throws Exception {
+    List<String> accessions = Collections.singletonList("E-GEOD-5");
+    Kama kama = getKama(new Kama().createOntologySnapshot());
+    kama.downloadFilesFromFTP(accessions);
+    assertFalse(kama.getCompleteIDFMap().containsKey("E-GEOD-5"));
+    
+    // The IDF is added on the server, but it was missing less than an hour ago
+    fileSystem.add(new FileEntry(ROOT + "GEOD/E-GEOD-5/E-GEOD-5.idf.txt", "Investigation Title\tLate\n"));
+    kama.downloadFilesFromFTP(accessions);
+    assertFalse(kama.getCompleteIDFMap().containsKey("E-GEOD-5"));
+    
+    kama.setMissingFileRetryInterval(0);
+    kama.downloadFilesFromFTP(accessions);
+    assertNotNull(kama.getCompleteIDFMap().get("E-GEOD-5"));
+    kama.close();
+  }
+}
@@ -0,0 +1,258 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+public class GroupedDictionaryTest {
+  private static final List<String> ACCESSIONS = Arrays.asList("E-TEST-1", "E-TEST-2");
+  private static final List<String> IDS = Arrays.asList("TEST_1", "TEST_2", "TEST_4");
+  
+  private File root = new File("target/groupeddictionary");
+  private File cacheRoot = new File(root, "magetab");
+  private Kama kama;
+  
+  @Before
+  public void initialize() throws IOException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    // The terms of TEST_1 and TEST_2 overlap, and TEST_3 is a child of TEST_2
+    File snapshot = new File(root, "ontology.snapshot");
+    writeSnapshot(snapshot, new String[] {"TEST_1", "TEST_2", "TEST_3", "TEST_4"},
+      new String[][] { {"blood"}, {"blood cell", "leukocyte"}, {"T cell", "T-cell"}, {"liver"}},
+      new int[][] { {}, {2}, {}, {}});
+    for (String accession : ACCESSIONS) {
+      write(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.sdrf)),
+        "Source Name\tCharacteristics[CellType]\tArray Data File\n"
+            + "1\tblood cell\ta.CEL\n"
+            + "2\tperipheral blood\tb.CEL\n"
+            + "3\tT-cell from the liver\ta.CEL\n");
+      write(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.idf)),
+        "Experiment Description\tblood cells and T cells in the blood and liver of " + accession + "\n");
+    }
+    kama = new Kama(OntologySnapshot.read(snapshot));
+    kama.setMageTabCache(new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+  }
+  
+  @After
+  public void shutdown() {
+    kama.close();
+  }
+  
+  private void write(File file, String text) throws IOException {
+    file.getParentFile().mkdirs();
+    FileWriter writer = new FileWriter(file);
+    writer.write(text);
+    writer.close();
+  }
+  
+  /**
+   * Writes a snapshot of a small ontology in the format of OntologySnapshot.write. Each term has its label
+   * and synonyms, and the indexes of its descendants.
+   */
+  static void writeSnapshot(File file,
+                            String[] accessions,
+                            String[][] labelsAndSynonyms,
+                            int[][] descendants) throws IOException {
+    List<String> strings = new ArrayList<String>();
+    List<Integer> synonyms = new ArrayList<Integer>();
+    List<Integer> allDescendants = new ArrayList<Integer>();
+    int[] termAccession = new int[accessions.length];
+    int[] termLabel = new int[accessions.length];
+    int[] synonymOffsets = new int[accessions.length + 1];
+    int[] descendantOffsets = new int[accessions.length + 1];
+    for (int i = 0; i < accessions.length; i++) {
+      termAccession[i] = strings.size();
+      strings.add(accessions[i]);
+      termLabel[i] = strings.size();
+      strings.add(labelsAndSynonyms[i][0]);
+      for (int j = 1; j < labelsAndSynonyms[i].length; j++) {
+        synonyms.add(strings.size());
+        strings.add(labelsAndSynonyms[i][j]);
+      }
+      synonymOffsets[i + 1] = synonyms.size();
+      for (int descendant : descendants[i]) {
+        allDescendants.add(descendant);
+      }
+      descendantOffsets[i + 1] = allDescendants.size();
+    }
+    
+    file.getParentFile().mkdirs();
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    try {
+      out.writeInt(0x4b414d41);
+      out.writeInt(1);
+      out.writeUTF("");
+      out.writeInt(strings.size());
+      for (String string : strings) {
+        out.writeUTF(string);
+      }
+      writeInts(out, termAccession);
+      writeInts(out, termLabel);
+      writeInts(out, synonymOffsets);
+      writeInts(out, toArray(synonyms));
+      writeInts(out, descendantOffsets);
+      writeInts(out, toArray(allDescendants));
+    } finally {
+      out.close();
+    }
+  }
+  
+  private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+    out.writeInt(ints.length);
+    for (int value : ints) {
+      out.writeInt(value);
+    }
+  }
+  
+  private static int[] toArray(List<Integer> list) {
+    int[] ints = new int[list.size()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = list.get(i);
+    }
+    return ints;
+  }
+  
+  @Test
+  public void testListsWithOverlappingTermsDoNotShareAnAutomaton() {
+    List<GroupedDictionary.Part> parts = GroupedDictionary.plan(Arrays.asList(new String[] {"blood"},
+      new String[] {"blood cell"}, new String[] {"liver"}));
+    assertEquals(2, parts.size());
+    assertEquals("[0, 2]", Arrays.toString(parts.get(0).lists));
+    assertEquals("[1]", Arrays.toString(parts.get(1).lists));
+    
+    // The first word of "cell line" is the last of "blood cell"
+    assertEquals(2, GroupedDictionary.plan(Arrays.asList(new String[] {"blood cell"}, new String[] {"cell line"}))
+        .size());
+    // "B-cell lymphoma" contains "lymphoma"
+    assertEquals(2, GroupedDictionary.plan(Arrays.asList(new String[] {"B-cell lymphoma"},
+      new String[] {"Lymphomas"})).size());
+    // "tcell" is "T-cell" without the hyphen
+    assertEquals(2, GroupedDictionary.plan(Arrays.asList(new String[] {"T-cell"}, new String[] {"tcell"})).size());
+  }
+  
+  @Test
+  public void testListsThatAgreeShareAnAutomaton() {
+    List<GroupedDictionary.Part> parts = GroupedDictionary.plan(Arrays.asList(new String[] {"blood", "blood cell",
+                                                                                            "liver"},
+      new String[] {"blood", "blood cell"}, new String[] {"bone marrow"}));
+    assertEquals(1, parts.size());
+    GroupedDictionary.Part part = parts.get(0);
+    assertEquals(Arrays.asList("blood", "blood cell", "liver", "bone marrow"), Arrays.asList(part.terms));
+    // The priority of a term is its last occurrence, and a term knows each list it belongs to
+    assertEquals("[3, 4, 2, 5]", Arrays.toString(part.priorities));
+    assertEquals("[0, 1]", Arrays.toString(part.termToLists[1]));
+    assertEquals("[2]", Arrays.toString(part.termToLists[3]));
+  }
+  
+  @Test
+  public void testListsThatGiveOverlappingTermsADifferentPriorityDoNotShareAnAutomaton() {
+    assertEquals(2, GroupedDictionary.plan(Arrays.asList(new String[] {"blood", "blood cell"},
+      new String[] {"blood cell", "blood"})).size());
+  }
+  
+  @Test
+  public void testWordsAreComparedWithoutCaseAndPlurals() {
+    assertEquals(Arrays.asList("t", "cell"), GroupedDictionary.getWords("T-cells"));
+    assertEquals(Arrays.asList("il", "2", "receptor"), GroupedDictionary.getWords("IL2 receptors"));
+    assertEquals(Arrays.asList("blood", "cell"), GroupedDictionary.getWords("BloodCells"));
+    assertEquals(Arrays.asList("cell", "line"), GroupedDictionary.getWords(" cell line."));
+  }
+  
+  @Test
+  public void testSampleCountsOfEachIdAreThoseOfItsOwnScan() throws MonqException {
+    for (String accession : ACCESSIONS) {
+      Map<String,OntologyIdCounts> sampleCounts = kama.getOntologyIdCountsPerSample(accession, IDS);
+      Map<String,Map<String,Integer>> expectedTerms = kama.getCountOfEachTermPerSample(accession, IDS);
+      assertEquals(expectedTerms.keySet(), sampleCounts.keySet());
+      for (String id : IDS) {
+        Map<String,Integer> expected = kama.getCountMapForExperimentCELFiles(accession,
+          Collections.singletonList(id));
+        for (String sample : expected.keySet()) {
+          assertEquals(expected.get(sample).intValue(), sampleCounts.get(sample).getCount(id));
+        }
+      }
+      for (String sample : expectedTerms.keySet()) {
+        assertEquals(expectedTerms.get(sample), sampleCounts.get(sample).getTermCounts());
+      }
+      // "blood cell" is counted for TEST_2, and "blood" in it for TEST_1
+      assertEquals(1, sampleCounts.get("a.CEL").getCount("TEST_1"));
+    }
+  }
+  
+  @Test
+  public void testExperimentCountsOfEachIdAreThoseOfItsOwnScan() throws MonqException {
+    for (Scope scope : Scope.values()) {
+      Map<String,OntologyIdCounts> counts = kama.getOntologyIdCountsForListOfAccessions(ACCESSIONS, scope, IDS);
+      for (String id : IDS) {
+        Map<String,Integer> expected = kama.getCountMapForListOfAccessions(ACCESSIONS, scope,
+          Collections.singletonList(id));
+        for (String accession : ACCESSIONS) {
+          assertEquals(expected.get(accession).intValue(), counts.get(accession).getCount(id));
+        }
+      }
+      for (String accession : ACCESSIONS) {
+        assertEquals(kama.getCountOfEachTermInExperiment(accession, scope, IDS), counts.get(accession)
+            .getTermCounts());
+      }
+    }
+  }
+  
+  @Test
+  public void testOverlappingIdSetsCountAsIfEachWasScannedAlone() throws MonqException {
+    Map<String,List<String>> idSets = new LinkedHashMap<String,List<String>>();
+    idSets.put("blood", Collections.singletonList("TEST_1"));
+    idSets.put("cells", Arrays.asList("TEST_2", "TEST_4"));
+    Map<String,Map<String,Map<String,Integer>>> counts = kama.getCountOfEachTermForIdSets(ACCESSIONS, Scope.both,
+      idSets);
+    Map<String,Map<String,OntologyIdCounts>> idCounts = kama.getOntologyIdCountsForIdSets(ACCESSIONS, Scope.idf,
+      idSets);
+    for (String accession : ACCESSIONS) {
+      for (String name : idSets.keySet()) {
+        assertEquals(kama.getCountOfEachTermInExperiment(accession, Scope.both, idSets.get(name)), counts.get(
+          accession).get(name));
+        OntologyIdCounts expected = kama.getOntologyIdCountsForListOfAccessions(ACCESSIONS, Scope.idf,
+          idSets.get(name)).get(accession);
+        assertEquals(expected.getTermCounts(), idCounts.get(accession).get(name).getTermCounts());
+        for (String id : idSets.get(name)) {
+          assertEquals(expected.getCount(id), idCounts.get(accession).get(name).getCount(id));
+        }
+      }
+    }
+  }
+  
+  @Test
+  public void testIdSetsAreCountedWithOneScanOfEachFile() throws MonqException {
+    Map<String,List<String>> idSets = new LinkedHashMap<String,List<String>>();
+    idSets.put("cells", Collections.singletonList("TEST_2"));
+    idSets.put("liver", Collections.singletonList("TEST_4"));
+    long scanned = kama.getMetrics().getPassagesScanned();
+    kama.getCountOfEachTermForIdSets(ACCESSIONS, Scope.idf, idSets);
+    assertEquals(scanned + ACCESSIONS.size(), kama.getMetrics().getPassagesScanned());
+    
+    // "blood" is part of "blood cell", so that set needs a scan of its own
+    idSets.put("blood", Collections.singletonList("TEST_1"));
+    scanned = kama.getMetrics().getPassagesScanned();
+    kama.getCountOfEachTermForIdSets(ACCESSIONS, Scope.idf, idSets);
+    assertEquals(scanned + 2 * ACCESSIONS.size(), kama.getMetrics().getPassagesScanned());
+  }
+}
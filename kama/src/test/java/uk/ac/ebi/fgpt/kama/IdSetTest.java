@@ -0,0 +1,147 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+public class IdSetTest {
+  private static final List<String> ACCESSIONS = Arrays.asList("E-TEST-1", "E-TEST-2");
+  
+  private File root = new File("target/idsets");
+  private File cacheRoot = new File(root, "magetab");
+  private Map<String,List<String>> idSets = new LinkedHashMap<String,List<String>>();
+  private Kama kama;
+  
+  @Before
+  public void initialize() throws IOException, OntologyServiceException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    // Every experiment is in the cache, so nothing is downloaded
+    for (String accession : ACCESSIONS) {
+      write(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.sdrf)),
+        "Source Name\tCharacteristics[DiseaseState]\tArray Data File\n"
+            + "1\tperipheral blood\ta.CEL\n"
+            + "2\tbreast cancer\tb.CEL\n");
+      write(new File(cacheRoot, MageTabCache.getRelativePath(accession, Scope.idf)),
+        "Experiment Description\tcancer cells in the blood of " + accession + "\n");
+    }
+    idSets.put("blood", Collections.singletonList("EFO_0000798"));
+    idSets.put("cancer", Collections.singletonList("EFO_0000311"));
+    kama = new Kama();
+    kama.setMageTabCache(new MageTabCache(cacheRoot, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+  }
+  
+  @After
+  public void shutdown() {
+    kama.close();
+  }
+  
+  private void write(File file, String text) throws IOException {
+    file.getParentFile().mkdirs();
+    FileWriter writer = new FileWriter(file);
+    writer.write(text);
+    writer.close();
+  }
+  
+  @Test
+  public void testEachSetCountsAsIfItWasScannedAlone() throws MonqException {
+    for (Scope scope : Scope.values()) {
+      Map<String,Map<String,Map<String,Integer>>> counts = kama.getCountOfEachTermForIdSets(ACCESSIONS, scope,
+        idSets);
+      for (String accession : ACCESSIONS) {
+        for (String name : idSets.keySet()) {
+          assertEquals(kama.getCountOfEachTermInExperiment(accession, scope, idSets.get(name)), counts.get(
+            accession).get(name));
+        }
+      }
+    }
+    assertTrue(kama.getCountOfEachTermForIdSets(ACCESSIONS, Scope.sdrf, idSets).get("E-TEST-1").get("cancer")
+        .containsKey("breast cancer"));
+  }
+  
+  @Test
+  public void testEachSetCountsTheSamplesAsIfItWasScannedAlone() throws MonqException {
+    Map<String,OntologyIdCounts> idfCounts = kama.getOntologyIdCountsForIdSets(ACCESSIONS, Scope.idf, idSets)
+        .get("E-TEST-2");
+    Map<String,Map<String,OntologyIdCounts>> sampleCounts = kama.getOntologyIdCountsPerSampleForIdSets(
+      "E-TEST-2", idSets);
+    for (String name : idSets.keySet()) {
+      String id = idSets.get(name).get(0);
+      OntologyIdCounts expectedIdf = kama.getOntologyIdCountsForListOfAccessions(ACCESSIONS, Scope.idf,
+        idSets.get(name)).get("E-TEST-2");
+      assertEquals(expectedIdf.getTermCounts(), idfCounts.get(name).getTermCounts());
+      
+      Map<String,OntologyIdCounts> expected = kama.getOntologyIdCountsPerSample("E-TEST-2", idSets.get(name));
+      assertEquals(expected.keySet(), sampleCounts.get(name).keySet());
+      for (String sample : expected.keySet()) {
+        assertEquals(expected.get(sample).getCount(id), sampleCounts.get(name).get(sample).getCount(id));
+        assertEquals(expected.get(sample).getTermCounts(), sampleCounts.get(name).get(sample).getTermCounts());
+      }
+    }
+  }
+  
+  @Test
+  public void testIdSetFileHasTheNameBeforeTheExtension() {
+    assertEquals("target/output.blood.txt", App.getIdSetFile("target/output.txt", "blood"));
+    assertEquals("output.blood", App.getIdSetFile("output", "blood"));
+    assertEquals("target/.kama/output.blood", App.getIdSetFile("target/.kama/output", "blood"));
+  }
+  
+  @Test
+  public void testMainWritesAnOutputForEachSet() throws Exception {
+    write(new File(root, "blood.txt"), "EFO_0000798\n");
+    write(new File(root, "cancer.txt"), "EFO_0000311\n");
+    write(new File(root, "input.txt"), "E-TEST-1\nE-TEST-2\n");
+    App.main(new String[] {"-input", root + "/input.txt", "-output", root + "/output.txt", "-idset",
+                           "blood=" + root + "/blood.txt", "-idset", "cancer=" + root + "/cancer.txt", "-s",
+                           "-cache", cacheRoot.getPath(), "-offline", "-results", root + "/results", "-dfacache",
+                           root + "/dfa"});
+    
+    for (String name : idSets.keySet()) {
+      List<String> lines = FileManipulators.fileToArrayList(new File(root, "output." + name + ".txt"));
+      assertEquals(3, lines.size());
+      assertEquals("#AccessionId\tAssays\tIDF\tSDRF\tTerms", lines.get(0));
+      String[] row = lines.get(1).split("\t");
+      assertEquals("E-TEST-1", row[0]);
+      int idf = 0;
+      for (Integer count : kama.getCountOfEachTermInExperiment("E-TEST-1", Scope.idf, idSets.get(name))
+          .values()) {
+        idf += count;
+      }
+      assertEquals(Integer.toString(idf), row[2]);
+    }
+    // The journals of a run that completed are removed
+    assertFalse(new File(root, "output.blood.txt.journal").exists());
+  }
+  
+  @Test
+  public void testMainRejectsPipelineAndExportWithIdSets() throws Exception {
+    write(new File(root, "blood.txt"), "EFO_0000798\n");
+    write(new File(root, "input.txt"), "E-TEST-1\n");
+    for (String option : new String[] {"-pipeline", "-export"}) {
+      App.main(new String[] {"-input", root + "/input.txt", "-output", root + "/output.txt", "-idset",
+                             "blood=" + root + "/blood.txt", "-s", option, "-cache", cacheRoot.getPath(),
+                             "-offline"});
+      assertFalse(new File(root, "output.blood.txt").exists());
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KamaCacheTest {
+  
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() {
+    KamaCache<String,Integer> cache = new KamaCache<String,Integer>("test", 2);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    assertNotNull(cache.get("a"));
+    cache.put("c", 3);
+    
+    assertNull(cache.get("b"));
+    assertEquals(Integer.valueOf(1), cache.get("a"));
+    assertEquals(Integer.valueOf(3), cache.get("c"));
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getEvictions());
+  }
+  
+  @Test
+  public void testEntriesAreWeighed() {
+    KamaCache<String,String> cache = new KamaCache<String,String>("test", 10, new KamaCache.Weigher<String>() {
+      public long weigh(String value) {
+        return value.length();
+      }
+    });
+    cache.put("a", "blood");
+    cache.put("b", "thymus");
+    assertEquals(1, cache.size());
+    assertEquals(6, cache.getWeight());
+    
+    // The newest entry stays even if it is over the limit on its own
+    cache.put("c", "peripheral blood mononuclear cell");
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get("c"));
+  }
+  
+  @Test
+  public void testLoweringTheLimitEvictsTheLeastRecentlyUsedEntries() {
+    KamaCache<String,Integer> cache = new KamaCache<String,Integer>("test", 3);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    assertNotNull(cache.get("a"));
+    cache.setMaxWeight(2);
+    
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2, cache.getMaxWeight());
+  }
+  
+  @Test
+  public void testKeysAreComparedByContent() {
+    KamaCache<List<String>,String> cache = new KamaCache<List<String>,String>("test", 10);
+    cache.put(new ArrayList<String>(Arrays.asList("EFO_0000798", "EFO_0000403")), "both");
+    assertEquals("both", cache.get(Arrays.asList("EFO_0000798", "EFO_0000403")));
+    assertNull(cache.get(Arrays.asList("EFO_0000403", "EFO_0000798")));
+  }
+}
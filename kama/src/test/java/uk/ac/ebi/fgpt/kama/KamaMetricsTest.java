@@ -0,0 +1,84 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.KamaMetrics.Phase;
+
+public class KamaMetricsTest {
+  
+  @Test
+  public void testPhasesAreTimedSeparately() {
+    KamaMetrics metrics = new KamaMetrics();
+    metrics.recordTime(Phase.scan, 3000000);
+    metrics.recordTime(Phase.scan, 2000000);
+    metrics.recordTime(Phase.ftp, 7000000);
+    
+    assertEquals(5, metrics.getScanMillis());
+    assertEquals(2, metrics.getCalls(Phase.scan));
+    assertEquals(7, metrics.getFtpMillis());
+    assertEquals(0, metrics.getCompileMillis());
+  }
+  
+  @Test
+  public void testSummaryHasALinePerPhase() throws Exception {
+    KamaMetrics metrics = new KamaMetrics();
+    metrics.recordDownload(100);
+    metrics.recordDownload(50);
+    metrics.recordScan(120);
+    metrics.recordDfaCompile(new AhoCorasickEngine().compile(new String[] {"blood"}, new int[] {0}, null));
+    metrics.recordDfaCacheHit();
+    metrics.recordFailedAccession("E-GEOD-1000");
+    metrics.recordFailedAccession("E-GEOD-1000");
+    
+    String summary = metrics.getSummary();
+    assertTrue(summary.contains("\nftp: 0 ms in 0 calls, 2 files, 150 bytes\n"));
+    assertTrue(summary.contains("\nscan: 0 ms in 0 calls, 1 passages, 120 bytes\n"));
+    // The root and one state for each character of "blood"
+    assertTrue(summary.contains(", 1 compiled, 0 loaded from the store, 1 cache hits, 6 states\n"));
+    assertTrue(summary.endsWith("failed accessions: 1 (E-GEOD-1000)\n"));
+    assertArrayEquals(new String[] {"E-GEOD-1000"}, metrics.getFailedAccessions());
+  }
+  
+  @Test
+  public void testMetricsArePublishedOverJmx() throws JMException {
+    KamaMetrics metrics = new KamaMetrics();
+    metrics.recordScan(42);
+    metrics.register();
+    ObjectName name = metrics.getObjectName();
+    assertNotNull(name);
+    
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertEquals(Long.valueOf(42), server.getAttribute(name, "BytesScanned"));
+    
+    metrics.unregister();
+    assertFalse(server.isRegistered(name));
+    assertNull(metrics.getObjectName());
+  }
+  
+  @Test
+  public void testWriterRecordsTheOutputPhase() throws IOException {
+    KamaMetrics metrics = new KamaMetrics();
+    TsvWriter writer = new TsvWriter(new ByteArrayOutputStream(), true);
+    writer.setMetrics(metrics);
+    writer.writeRow("E-TABM-721", "3");
+    writer.flush();
+    writer.close();
+    
+    assertEquals(2, metrics.getCalls(Phase.output));
+  }
+}
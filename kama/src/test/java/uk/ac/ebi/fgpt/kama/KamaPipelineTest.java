@@ -0,0 +1,101 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+public class KamaPipelineTest {
+  private static final int EXPERIMENTS = 100;
+  
+  private File root = new File("target/pipelinecache");
+  private Kama kama;
+  private String input;
+  
+  @Before
+  public void initialize() throws IOException, OntologyServiceException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    // Every experiment is in the cache, so nothing is downloaded
+    StringBuilder accessions = new StringBuilder();
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      String accession = "E-TEST-" + i;
+      for (Scope scope : new Scope[] {Scope.sdrf, Scope.idf}) {
+        File file = new File(root, MageTabCache.getRelativePath(accession, scope));
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write("blood");
+        writer.close();
+      }
+      accessions.append(accession).append("\n");
+    }
+    input = accessions.toString();
+    kama = new Kama();
+    kama.setMageTabCache(new MageTabCache(root, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+    kama.setWorkers(4);
+  }
+  
+  @Test
+  public void testRowsAreWrittenInInputOrder() throws IOException, MonqException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TsvWriter writer = new TsvWriter(out, true);
+    // A small capacity makes the fetch stage wait for the writer
+    long written = new KamaPipeline(kama, 3).run(new BufferedReader(new StringReader(input)),
+      new KamaPipeline.ExperimentReport() {
+        public List<String[]> getRows(String experimentAccession) {
+          // Finish the experiments out of order
+          try {
+            Thread.sleep((experimentAccession.hashCode() & 7));
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          List<String[]> rows = new ArrayList<String[]>();
+          rows.add(new String[] {experimentAccession});
+          return rows;
+        }
+      }, writer);
+    writer.close();
+    
+    assertEquals(EXPERIMENTS, written);
+    String[] lines = out.toString().split("\n");
+    assertEquals(EXPERIMENTS, lines.length);
+    for (int i = 0; i < EXPERIMENTS; i++) {
+      assertEquals("E-TEST-" + i, lines[i]);
+    }
+  }
+  
+  @Test
+  public void testFailureOfAnExperimentStopsThePipeline() throws IOException {
+    TsvWriter writer = new TsvWriter(new ByteArrayOutputStream(), true);
+    try {
+      new KamaPipeline(kama, 5).run(new BufferedReader(new StringReader(input)),
+        new KamaPipeline.ExperimentReport() {
+          public List<String[]> getRows(String experimentAccession) throws MonqException {
+            if (experimentAccession.equals("E-TEST-50")) {
+              throw new MonqException("Could not scan " + experimentAccession);
+            }
+            return new ArrayList<String[]>();
+          }
+        }, writer);
+      fail();
+    } catch (MonqException e) {
+      assertEquals("Could not scan E-TEST-50", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+public class KamaServerTest {
+  private File root = new File("target/servercache");
+  private Kama kama;
+  private KamaServer server;
+  
+  @Before
+  public void initialize() throws IOException, OntologyServiceException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+    // Every experiment is in the cache, so nothing is downloaded
+    for (String accession : new String[] {"E-TEST-1", "E-TEST-2"}) {
+      for (Scope scope : new Scope[] {Scope.sdrf, Scope.idf}) {
+        File file = new File(root, MageTabCache.getRelativePath(accession, scope));
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write(scope == Scope.sdrf ? "Source Name\tArray Data File\nperipheral blood\ta.CEL\n" : "blood");
+        writer.close();
+      }
+    }
+    kama = new Kama();
+    kama.setMageTabCache(new MageTabCache(root, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+    server = new KamaServer(kama, 0, 2, 4);
+    server.start();
+  }
+  
+  @After
+  public void shutdown() {
+    server.stop(0);
+    kama.close();
+  }
+  
+  private HttpURLConnection post(String path, String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path)
+        .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    OutputStream out = connection.getOutputStream();
+    out.write(body.getBytes("UTF-8"));
+    out.close();
+    return connection;
+  }
+  
+  private String read(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getInputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, read);
+    }
+    in.close();
+    return bytes.toString("UTF-8");
+  }
+  
+  @Test
+  public void testSummaryRowsAreTheRowsOfTheSummaryMode() throws IOException, MonqException {
+    HttpURLConnection connection = post("/summary?ids=EFO_0000798", "E-TEST-1\nE-TEST-2\n");
+    assertEquals(200, connection.getResponseCode());
+    String[] lines = read(connection).split("\n");
+    
+    assertEquals(3, lines.length);
+    assertEquals("#AccessionId\tAssays\tIDF\tSDRF\tTerms", lines[0]);
+    String[] expected = App.getSummaryReport(kama, Collections.singletonList("EFO_0000798"))
+        .getRows("E-TEST-1").get(0);
+    assertEquals(expected.length, lines[1].split("\t").length);
+    assertEquals(expected[0], lines[1].split("\t")[0]);
+    assertEquals(expected[2], lines[1].split("\t")[2]);
+    assertTrue(lines[2].startsWith("E-TEST-2\t"));
+  }
+  
+  @Test
+  public void testSampleRowsTakeAccessionsFromTheQuery() throws IOException {
+    HttpURLConnection connection = post("/sample?ids=EFO_0000798&accessions=E-TEST-2", "");
+    assertEquals(200, connection.getResponseCode());
+    String[] lines = read(connection).split("\n");
+    
+    assertEquals("#AccessionId\tSample\tEFO_0000798_idf\tEFO_0000798_sample\tTerms", lines[0]);
+    assertEquals(2, lines.length);
+    assertTrue(lines[1].startsWith("E-TEST-2\ta.CEL\t"));
+  }
+  
+  @Test
+  public void testRequestWithoutIdsIsRefused() throws IOException {
+    assertEquals(400, post("/summary", "E-TEST-1\n").getResponseCode());
+  }
+  
+  @Test
+  public void testStatusShowsTheRequests() throws IOException {
+    read(post("/summary?ids=EFO_0000798", "E-TEST-1\n"));
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort()
+                                                               + "/status").openConnection();
+    String status = read(connection);
+    assertTrue(status.startsWith("Requests: "));
+    assertTrue(status.contains("Cache statistics:"));
+  }
+}
@@ -1,6 +1,7 @@
 package uk.ac.ebi.fgpt.kama;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
@@ -225,6 +226,29 @@ public class KamaTest {
     // following
   }
   
+  @Test
+  public void testSingleScanAttributesMatchesToEachOntologyId() throws OntologyServiceException, MonqException {
+    Kama kama = new Kama();
+    List<String> listOfOntologyIds = new ArrayList<String>();
+    listOfOntologyIds.add("EFO_0000798");
+    listOfOntologyIds.add("EFO_0000403");
+    
+    String passage = "thymus and blood taken from a diffuse large B-cell lymphoma patient. ";
+    OntologyIdCounts counts = kama.getOntologyIdCountsInPassage(passage, listOfOntologyIds);
+    
+    assertEquals(2, counts.getCount("EFO_0000798"));
+    assertEquals(1, counts.getCount("EFO_0000403"));
+    assertEquals(1, counts.getTermCounts().get("thymus").intValue());
+    
+    // The attributed counts agree with scanning for each id on its own
+    List<String> lymphoma = new ArrayList<String>();
+    lymphoma.add("EFO_0000403");
+    assertEquals(kama.getTotalCountOfRelatedOntologyTermsInPassage(passage, listOfOntologyIdsForBlood), counts
+        .getCount("EFO_0000798"));
+    assertEquals(kama.getTotalCountOfRelatedOntologyTermsInPassage(passage, lymphoma), counts
+        .getCount("EFO_0000403"));
+  }
+  
   @Test
   public void testFTP() {
     
@@ -353,6 +377,58 @@ public class KamaTest {
     assertEquals(false, sdrf.get("E-MEXP-2895")); // Should fail because there is no reference to blood
   }
   
+  @Test
+  public void testWorkersGiveTheSameCountsAsOneThread() throws OntologyServiceException, MonqException {
+    Kama kama = new Kama();
+    ArrayList<String> accessionIDS = new ArrayList<String>();
+    accessionIDS.add("E-TABM-721");
+    accessionIDS.add("E-MEXP-2895");
+    accessionIDS.add("E-GEOD-26672");
+    
+    kama.setWorkers(1);
+    Map<String,Integer> sequential = kama.getCountMapForListOfAccessions(accessionIDS, Scope.both,
+      listOfOntologyIdsForBlood);
+    kama.setWorkers(4);
+    Map<String,Integer> parallel = kama.getCountMapForListOfAccessions(accessionIDS, Scope.both,
+      listOfOntologyIdsForBlood);
+    kama.close();
+    
+    assertEquals(sequential, parallel);
+  }
+  
+  @Test
+  public void testAhoCorasickEngineAgreesWithMonq() throws OntologyServiceException, MonqException {
+    Kama kama = new Kama();
+    ArrayList<String> accessionIDS = new ArrayList<String>();
+    accessionIDS.add("E-TABM-721");
+    accessionIDS.add("E-MEXP-2895");
+    accessionIDS.add("E-GEOD-26672");
+    
+    Map<String,Integer> monq = kama.getCountMapForListOfAccessions(accessionIDS, Scope.both,
+      listOfOntologyIdsForBlood);
+    Map<String,Map<String,Integer>> monqSamples = kama.getCountOfEachTermPerSample("E-TABM-721",
+      listOfOntologyIdsForBlood);
+    kama.setEngine(new AhoCorasickEngine());
+    Map<String,Integer> ahoCorasick = kama.getCountMapForListOfAccessions(accessionIDS, Scope.both,
+      listOfOntologyIdsForBlood);
+    Map<String,Map<String,Integer>> ahoCorasickSamples = kama.getCountOfEachTermPerSample("E-TABM-721",
+      listOfOntologyIdsForBlood);
+    kama.close();
+    
+    assertEquals(monq, ahoCorasick);
+    assertEquals(monqSamples, ahoCorasickSamples);
+  }
+  
+  @Test
+  public void testDictionaryFingerprintChangesWithTheDictionary() throws OntologyServiceException {
+    Kama kama = new Kama();
+    String blood = kama.getDictionaryFingerprint(listOfOntologyIdsForBlood);
+    assertEquals(blood, new Kama().getDictionaryFingerprint(listOfOntologyIdsForBlood));
+    assertFalse(blood.equals(kama.getDictionaryFingerprint(listOfOntologyIdsForNull)));
+    kama.setEngine(new AhoCorasickEngine());
+    assertFalse(blood.equals(kama.getDictionaryFingerprint(listOfOntologyIdsForBlood)));
+  }
+  
   @Test
   public void getTrueFalseHashMapForListOfAccessions_both() throws OntologyServiceException, MonqException {
     Kama kama = new Kama();
@@ -460,6 +536,26 @@ public class KamaTest {
     
   }
   
+  @Test
+  public void testPerSampleMethodsOnAnSdrfWithOnlyAHeader() throws OntologyServiceException, MonqException,
+                                                            IOException {
+    File root = new File("target/headeronly");
+    File sdrf = new File(root, MageTabCache.getRelativePath("E-TEST-1", Scope.sdrf));
+    sdrf.getParentFile().mkdirs();
+    FileOutputStream out = new FileOutputStream(sdrf);
+    out.write("Source Name\tCharacteristics[OrganismPart]\tArray Data File\n".getBytes("UTF-8"));
+    out.close();
+    Kama kama = new Kama();
+    kama.setMageTabCache(new MageTabCache(root, MageTabCache.DEFAULT_MAX_BYTES));
+    kama.setCheckCachedFiles(false);
+    
+    assertEquals(0, kama.getTrueFalseMapForExperimentCELFiles("E-TEST-1", listOfOntologyIdsForBlood).size());
+    assertEquals(0, kama.getCountMapForExperimentCELFiles("E-TEST-1", listOfOntologyIdsForBlood).size());
+    assertEquals(0, kama.getCountOfEachTermPerSample("E-TEST-1", listOfOntologyIdsForBlood).size());
+    assertEquals(0, kama.getOntologyIdCountsPerSample("E-TEST-1", listOfOntologyIdsForBlood).size());
+    kama.close();
+  }
+  
   @Test
   public void testGetCountOfEachTermInExperimentAsString() throws OntologyServiceException, MonqException {
     Kama kama = new Kama();
@@ -0,0 +1,103 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.ebi.fgpt.kama.Kama.Scope;
+
+public class MageTabCacheTest {
+  private File root = new File("target/magetabcache");
+  
+  @Before
+  public void initialize() throws IOException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+  
+  @Test
+  public void testLayoutFollowsArrayExpress() {
+    assertEquals("GEOD/E-GEOD-10001/E-GEOD-10001.sdrf.txt", MageTabCache.getRelativePath("E-GEOD-10001",
+      Scope.sdrf));
+    assertEquals("TABM/E-TABM-721/E-TABM-721.idf.txt", MageTabCache.getRelativePath("E-TABM-721", Scope.idf));
+  }
+  
+  @Test
+  public void testCommittedFilesSurviveReopening() throws IOException {
+    MageTabCache cache = new MageTabCache(root, 1000);
+    assertNull(cache.getFile("E-TABM-721", Scope.sdrf));
+    
+    cache.commit(write(cache.createDownloadTarget("E-TABM-721", Scope.sdrf), 100), "E-TABM-721", Scope.sdrf);
+    assertEquals(100, cache.getSize());
+    
+    MageTabCache reopened = new MageTabCache(root, 1000);
+    assertNotNull(reopened.getFile("E-TABM-721", Scope.sdrf));
+    assertEquals(100, reopened.getSize());
+  }
+  
+  @Test
+  public void testLeastRecentlyUsedFileIsEvicted() throws IOException {
+    MageTabCache cache = new MageTabCache(root, 250);
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-1", Scope.sdrf), 100), "E-GEOD-1", Scope.sdrf);
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-2", Scope.sdrf), 100), "E-GEOD-2", Scope.sdrf);
+    
+    // Touch the first file so that the second one becomes the eldest
+    assertNotNull(cache.getFile("E-GEOD-1", Scope.sdrf));
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-3", Scope.sdrf), 100), "E-GEOD-3", Scope.sdrf);
+    
+    assertNotNull(cache.getFile("E-GEOD-1", Scope.sdrf));
+    assertNull(cache.getFile("E-GEOD-2", Scope.sdrf));
+    assertNotNull(cache.getFile("E-GEOD-3", Scope.sdrf));
+    assertTrue(cache.getSize() <= 250);
+  }
+  
+  @Test
+  public void testDiscardedDownloadsAreNotCached() throws IOException {
+    MageTabCache cache = new MageTabCache(root, 1000);
+    File download = write(cache.createDownloadTarget("E-MEXP-2895", Scope.idf), 10);
+    cache.discard(download);
+    assertNull(cache.getFile("E-MEXP-2895", Scope.idf));
+    assertEquals(0, cache.getSize());
+  }
+  
+  @Test
+  public void testValidatorIsKeptWithTheFile() throws IOException {
+    MageTabCache cache = new MageTabCache(root, 150);
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-1", Scope.sdrf), 100), "E-GEOD-1", Scope.sdrf,
+      "100\t1325376000000");
+    assertEquals("100\t1325376000000", new MageTabCache(root, 150).getValidator("E-GEOD-1", Scope.sdrf));
+    // The validator is not counted as a cached file
+    assertEquals(100, new MageTabCache(root, 150).getSize());
+    
+    // A file downloaded without a validator drops the old one
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-1", Scope.sdrf), 100), "E-GEOD-1", Scope.sdrf);
+    assertNull(cache.getValidator("E-GEOD-1", Scope.sdrf));
+    
+    // An evicted file takes its validator with it
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-2", Scope.sdrf), 100), "E-GEOD-2", Scope.sdrf,
+      "100\t1325376000000");
+    cache.commit(write(cache.createDownloadTarget("E-GEOD-3", Scope.sdrf), 100), "E-GEOD-3", Scope.sdrf);
+    assertNull(cache.getValidator("E-GEOD-2", Scope.sdrf));
+    assertFalse(new File(root, MageTabCache.getRelativePath("E-GEOD-2", Scope.sdrf) + ".remote").exists());
+  }
+  
+  private File write(File file, int bytes) throws IOException {
+    FileWriter writer = new FileWriter(file);
+    for (int i = 0; i < bytes; i++) {
+      writer.write('a');
+    }
+    writer.close();
+    return file;
+  }
+}
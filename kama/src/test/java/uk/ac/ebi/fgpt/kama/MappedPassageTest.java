@@ -0,0 +1,35 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class MappedPassageTest {
+  
+  @Test
+  public void testLineBreaksAreShownWithASpace() throws IOException {
+    MappedPassage passage = new MappedPassage(write("\n  Source Name\tArray Data File\r\ns1\ta.CEL\n\n"));
+    assertEquals("Source Name\tArray Data File \ns1\ta.CEL", passage.toString());
+    assertEquals(' ', passage.charAt(27));
+    assertEquals('\n', passage.charAt(28));
+    assertEquals("s1", passage.subSequence(29, 31).toString());
+  }
+  
+  @Test
+  public void testEmptyFile() throws IOException {
+    assertEquals(0, new MappedPassage(write(" \n\n")).length());
+  }
+  
+  private File write(String text) throws IOException {
+    File file = new File("target/mappedpassage.txt");
+    file.getParentFile().mkdirs();
+    FileWriter writer = new FileWriter(file);
+    writer.write(text);
+    writer.close();
+    return file;
+  }
+}
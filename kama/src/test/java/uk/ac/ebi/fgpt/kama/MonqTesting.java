@@ -2,10 +2,8 @@ package uk.ac.ebi.fgpt.kama;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import monq.ie.Term2Re;
@@ -35,12 +33,12 @@ public class MonqTesting {
   private int getCountFromPassage(String passage,String... terms) throws MonqException {
     
     try {
-      Map<String,Integer> map = new HashMap<String,Integer>();
+      TermCounter counter = new TermCounter(terms.length);
       
       Nfa nfa = new Nfa(Nfa.NOTHING);
       int i= 0;
       for(String item: terms){
-        nfa = nfa.or(Term2Re.convert(item),new DoCount(item).setPriority(i));
+        nfa = nfa.or(Term2Re.convert(item),new DoCount(i).setPriority(i));
         i++;
       }
       //Use only complete matches
@@ -52,12 +50,12 @@ public class MonqTesting {
       
       // get a machinery (DfaRun) to operate the Dfa
       DfaRun r = new DfaRun(dfa);
-      r.clientData = map;
+      r.clientData = counter;
       
       // Get only the filtered text
       r.filter(passage);
-      for(String key :map.keySet()){
-        System.out.println(key + " " + map.get(key));
+      for(int j = 0; j < counter.getFoundTermCount(); j++){
+        System.out.println(terms[counter.getFoundTerm(j)] + " " + counter.getCount(counter.getFoundTerm(j)));
       }
       return 0;
     } catch (ReSyntaxException e) {
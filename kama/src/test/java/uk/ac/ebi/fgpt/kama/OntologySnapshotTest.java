@@ -0,0 +1,35 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.ebi.ontocat.OntologyServiceException;
+
+public class OntologySnapshotTest {
+  
+  @Test
+  public void testSnapshotGivesTheSameTermsAsTheOntology() throws OntologyServiceException, IOException,
+                                                          MonqException {
+    Kama kama = new Kama();
+    File file = new File("target/efo.snapshot");
+    kama.createOntologySnapshot().write(file);
+    
+    OntologySnapshot snapshot = OntologySnapshot.read(file);
+    List<String> ids = Arrays.asList("EFO_0000798", "EFO_0000403");
+    assertEquals(new HashSet<String>(Arrays.asList(kama.getDictionaryOfTermsFromOntologyIds(ids))),
+      new HashSet<String>(Arrays.asList(new Kama(snapshot).getDictionaryOfTermsFromOntologyIds(ids))));
+    assertNull(snapshot.getChildrenAndRelatedTerms("NOT_AN_ACCESSION"));
+    
+    String passage = "Sample from peripheral blood and bone marrow";
+    assertEquals(kama.getTotalCountOfRelatedOntologyTermsInPassage(passage, ids), new Kama(snapshot)
+        .getTotalCountOfRelatedOntologyTermsInPassage(passage, ids));
+  }
+}
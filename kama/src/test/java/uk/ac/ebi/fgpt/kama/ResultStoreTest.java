@@ -0,0 +1,79 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResultStoreTest {
+  private static final String[] SIGNATURE = {"summary", "0123456789abcdef", "EFO_0000798"};
+  
+  private File root = new File("target/results");
+  
+  @Before
+  public void initialize() throws IOException {
+    if (root.exists()) {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+  
+  private List<String[]> getSummaryRows(String accession, String sdrf) {
+    List<String[]> rows = new ArrayList<String[]>();
+    rows.add(new String[] {accession, "12", "1", sdrf, "blood:4;"});
+    return rows;
+  }
+  
+  @Test
+  public void testRowsAreKeptBetweenRuns() throws IOException {
+    ResultStore.Results results = new ResultStore(root).open(SIGNATURE);
+    results.store("E-GEOD-1000", "sdrf1", "idf1", getSummaryRows("E-GEOD-1000", "3"));
+    // An experiment without samples has no rows, which is a result as well
+    results.store("E-GEOD-1001", "sdrf2", "idf2", new ArrayList<String[]>());
+    results.close();
+    
+    results = new ResultStore(root).open(SIGNATURE);
+    assertEquals(2, results.size());
+    assertArrayEquals(getSummaryRows("E-GEOD-1000", "3").get(0), results.getRows("E-GEOD-1000", "sdrf1",
+      "idf1").get(0));
+    assertTrue(results.contains("E-GEOD-1001", "sdrf2", "idf2"));
+    assertEquals(0, results.getRows("E-GEOD-1001", "sdrf2", "idf2").size());
+    results.close();
+  }
+  
+  @Test
+  public void testChangedFilesAreNotServed() throws IOException {
+    ResultStore.Results results = new ResultStore(root).open(SIGNATURE);
+    results.store("E-GEOD-1000", "sdrf1", "idf1", getSummaryRows("E-GEOD-1000", "3"));
+    
+    assertFalse(results.contains("E-GEOD-1000", "sdrf2", "idf1"));
+    assertNull(results.getRows("E-GEOD-1000", "sdrf1", "idf2"));
+    
+    // The new version of the experiment is stored next to the old one
+    results.store("E-GEOD-1000", "sdrf2", "idf1", getSummaryRows("E-GEOD-1000", "5"));
+    assertEquals("5", results.getRows("E-GEOD-1000", "sdrf2", "idf1").get(0)[3]);
+    assertEquals("3", results.getRows("E-GEOD-1000", "sdrf1", "idf1").get(0)[3]);
+    results.close();
+  }
+  
+  @Test
+  public void testEachDictionaryHasItsOwnRows() throws IOException {
+    ResultStore.Results results = new ResultStore(root).open(SIGNATURE);
+    results.store("E-GEOD-1000", "sdrf1", "idf1", getSummaryRows("E-GEOD-1000", "3"));
+    results.close();
+    
+    results = new ResultStore(root).open(new String[] {"summary", "fedcba9876543210", "EFO_0000798"});
+    assertEquals(0, results.size());
+    assertFalse(results.contains("E-GEOD-1000", "sdrf1", "idf1"));
+    results.close();
+  }
+}
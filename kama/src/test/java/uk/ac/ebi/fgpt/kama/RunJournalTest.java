@@ -0,0 +1,105 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RunJournalTest {
+  private static final String[] SIGNATURE = {"sample", "monq", "EFO_0000798"};
+  
+  private File file = new File("target/test.journal");
+  
+  @Before
+  public void initialize() {
+    file.getParentFile().mkdirs();
+    file.delete();
+  }
+  
+  private List<String[]> rows(String... rows) {
+    List<String[]> list = new ArrayList<String[]>();
+    for (String row : rows) {
+      list.add(row.split(",", -1));
+    }
+    return list;
+  }
+  
+  @Test
+  public void testCompletedExperimentsAreResumed() throws IOException {
+    RunJournal journal = new RunJournal(file, SIGNATURE, false);
+    journal.record("E-GEOD-1000", rows("E-GEOD-1000,a.CEL,1,2,blood:2;", "E-GEOD-1000,b.CEL,0,0,"));
+    journal.record("E-GEOD-1001", rows("E-GEOD-1001,c.CEL,3,1,blood cell:1;"));
+    journal.close(false);
+    
+    journal = new RunJournal(file, SIGNATURE, true);
+    assertEquals(2, journal.getCompletedCount());
+    assertTrue(journal.isCompleted("E-GEOD-1001"));
+    List<String[]> rows = journal.getRows("E-GEOD-1000");
+    assertEquals(2, rows.size());
+    assertArrayEquals(new String[] {"E-GEOD-1000", "b.CEL", "0", "0", ""}, rows.get(1));
+    assertArrayEquals(new String[] {"E-GEOD-1001", "c.CEL", "3", "1", "blood cell:1;"}, journal.getRows(
+      "E-GEOD-1001").get(0));
+    assertNull(journal.getRows("E-GEOD-1002"));
+    
+    // Records made after resuming are read back as well
+    journal.record("E-GEOD-1002", rows("E-GEOD-1002,d.CEL,0,0,"));
+    assertArrayEquals(new String[] {"E-GEOD-1002", "d.CEL", "0", "0", ""}, journal.getRows("E-GEOD-1002")
+        .get(0));
+    journal.close(false);
+  }
+  
+  @Test
+  public void testIncompleteExperimentIsDropped() throws IOException {
+    RunJournal journal = new RunJournal(file, SIGNATURE, false);
+    journal.record("E-GEOD-1000", rows("E-GEOD-1000,a.CEL,1,2,blood:2;"));
+    journal.close(false);
+    long complete = file.length();
+    // The run died while it was writing the rows of the next experiment
+    FileWriter writer = new FileWriter(file, true);
+    writer.write("R\tE-GEOD-1001\tb.CEL\t0\t0\t\nR\tE-GEOD-10");
+    writer.close();
+    
+    journal = new RunJournal(file, SIGNATURE, true);
+    assertEquals(1, journal.getCompletedCount());
+    assertFalse(journal.isCompleted("E-GEOD-1001"));
+    assertEquals(complete, file.length());
+    journal.record("E-GEOD-1001", rows("E-GEOD-1001,b.CEL,0,0,"));
+    journal.close(false);
+    
+    journal = new RunJournal(file, SIGNATURE, true);
+    assertEquals(2, journal.getCompletedCount());
+    assertEquals(1, journal.getRows("E-GEOD-1001").size());
+    journal.close(true);
+    assertFalse(file.exists());
+  }
+  
+  @Test
+  public void testJournalOfAnotherReportIsNotResumed() throws IOException {
+    RunJournal journal = new RunJournal(file, SIGNATURE, false);
+    journal.record("E-GEOD-1000", Collections.<String[]> emptyList());
+    journal.close(false);
+    try {
+      new RunJournal(file, new String[] {"summary", "monq", "EFO_0000798"}, true);
+      fail("The journal was written by the sample mode");
+    } catch (IOException e) {
+      // expected
+    }
+    
+    // Without -resume the journal starts again
+    journal = new RunJournal(file, new String[] {"summary", "monq", "EFO_0000798"}, false);
+    assertEquals(0, journal.getCompletedCount());
+    journal.close(false);
+  }
+}
@@ -0,0 +1,51 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SdrfTableTest {
+  private static final String SDRF = "Source Name\tCharacteristics [OrganismPart]\tArray Data File\tComment \n"
+                                     + "s1\tthymus\ta.CEL\tx \n" + "s2\tspleen\tb.CEL\ty \n"
+                                     + "s3\tblood\ta.CEL\tz \n";
+  
+  @Test
+  public void testRowsAndHeader() {
+    SdrfTable sdrf = new SdrfTable(SDRF);
+    assertEquals(3, sdrf.getRowCount());
+    assertEquals("Source Name", sdrf.getHeader()[0]);
+    assertEquals(2, sdrf.getColumnIndex("Array Data File"));
+    assertEquals(-1, sdrf.getColumnIndex("Scan Name"));
+    assertEquals("s2\tspleen\tb.CEL\ty ", sdrf.getRow(1).toString());
+    assertEquals("spleen", sdrf.getCell(1, 1));
+  }
+  
+  @Test
+  public void testRowsAreGroupedByArrayDataFile() {
+    SdrfTable sdrf = new SdrfTable(SDRF);
+    assertTrue(sdrf.hasArrayDataFileColumn());
+    assertEquals(2, sdrf.getArrayDataFiles().length);
+    assertEquals("a.CEL", sdrf.getArrayDataFile(0));
+    assertEquals("b.CEL", sdrf.getArrayDataFile(1));
+    assertEquals(sdrf.getArrayDataFileIndex(0), sdrf.getArrayDataFileIndex(2));
+  }
+  
+  @Test
+  public void testRowsAreOnePassageWithRowSeparators() {
+    SdrfTable sdrf = new SdrfTable(SDRF);
+    String rows = sdrf.getRows().toString();
+    assertEquals("s1\tthymus\ta.CEL\tx " + SdrfTable.ROW_SEPARATOR + "s2\tspleen\tb.CEL\ty "
+                 + SdrfTable.ROW_SEPARATOR + "s3\tblood\ta.CEL\tz", rows);
+    assertEquals(sdrf.getRow(1).toString(), sdrf.getRows().subSequence(18, 37).toString());
+    assertEquals(0, new SdrfTable("Source Name\tArray Data File\n").getRows().length());
+  }
+  
+  @Test
+  public void testMissingArrayDataFileColumn() {
+    SdrfTable sdrf = new SdrfTable("Source Name\tCharacteristics [OrganismPart]\ns1\tthymus\n");
+    assertFalse(sdrf.hasArrayDataFileColumn());
+    assertEquals(1, sdrf.getRowCount());
+  }
+}
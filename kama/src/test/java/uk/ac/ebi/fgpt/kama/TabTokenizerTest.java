@@ -0,0 +1,43 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TabTokenizerTest {
+  
+  @Test
+  public void testRowsAndCells() {
+    String text = "a\tb\tc\r\nd\te\tf\ng\th\ti";
+    TabTokenizer tokenizer = new TabTokenizer(text);
+    assertEquals(3, tokenizer.getRowCount());
+    assertEquals("c", tokenizer.getCell(0, 2));
+    assertEquals("e", tokenizer.getCell(1, 1));
+    assertEquals("a\tb\tc", text.substring(tokenizer.getRowStart(0), tokenizer.getRowEnd(0)));
+    assertEquals("g\th\ti", text.substring(tokenizer.getRowStart(2), tokenizer.getRowEnd(2)));
+    assertTrue(tokenizer.cellEquals(2, 2, "i"));
+    assertFalse(tokenizer.cellEquals(2, 2, "ii"));
+  }
+  
+  @Test
+  public void testRaggedRows() {
+    TabTokenizer tokenizer = new TabTokenizer("a\tb\tc\nd\ne\tf\tg\th\n\t\t");
+    assertEquals(4, tokenizer.getRowCount());
+    
+    // A short row is padded with empty cells
+    assertEquals(1, tokenizer.getCellCount(1));
+    assertEquals("", tokenizer.getCell(1, 2));
+    assertEquals(-1, tokenizer.getCellStart(1, 2));
+    assertTrue(tokenizer.cellEquals(1, 2, ""));
+    
+    // A long row keeps its extra cells
+    assertEquals(4, tokenizer.getCellCount(2));
+    assertEquals("h", tokenizer.getCell(2, 3));
+    
+    // A row of empty cells
+    assertEquals(3, tokenizer.getCellCount(3));
+    assertEquals("", tokenizer.getCell(3, 1));
+  }
+}
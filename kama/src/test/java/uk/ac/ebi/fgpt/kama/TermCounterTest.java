@@ -0,0 +1,72 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TermCounterTest {
+  
+  @Test
+  public void testCountsAndFoundTerms() {
+    TermCounter counter = new TermCounter(4);
+    counter.increment(2);
+    counter.increment(0);
+    counter.increment(2);
+    
+    assertEquals(3, counter.getTotal());
+    assertEquals(2, counter.getCount(2));
+    assertEquals(1, counter.getCount(0));
+    assertEquals(0, counter.getCount(1));
+    assertEquals(2, counter.getFoundTermCount());
+    assertEquals(2, counter.getFoundTerm(0));
+    assertEquals(0, counter.getFoundTerm(1));
+  }
+  
+  @Test
+  public void testResetClearsEveryCount() {
+    TermCounter counter = new TermCounter(4);
+    counter.increment(3);
+    counter.increment(3);
+    counter.reset();
+    
+    assertEquals(0, counter.getTotal());
+    assertEquals(0, counter.getCount(3));
+    assertEquals(0, counter.getFoundTermCount());
+    counter.increment(3);
+    assertEquals(1, counter.getCount(3));
+  }
+  
+  @Test
+  public void testRowListenerGetsTheCountsOfEachRow() {
+    final List<String> rows = new ArrayList<String>();
+    TermCounter counter = new TermCounter(4);
+    counter.setRowListener(new TermCounter.RowListener() {
+      public void endRow(int row, TermCounter counter) {
+        rows.add(row + ":" + counter.getTotal());
+      }
+    });
+    counter.increment(1);
+    counter.increment(1);
+    counter.endRow();
+    counter.endRow();
+    counter.increment(2);
+    counter.endRow();
+    
+    assertEquals(Arrays.asList("0:2", "1:0", "2:1"), rows);
+    assertEquals(0, counter.getCount(2));
+  }
+  
+  @Test
+  public void testRowBreaksAreIgnoredWithoutListener() {
+    TermCounter counter = new TermCounter(4);
+    counter.increment(1);
+    counter.endRow();
+    counter.increment(1);
+    
+    assertEquals(2, counter.getTotal());
+  }
+}
@@ -0,0 +1,48 @@
+package uk.ac.ebi.fgpt.kama;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TsvWriterTest {
+  
+  @Test
+  public void testRowsAreTabSeparated() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TsvWriter writer = new TsvWriter(out, true);
+    writer.writeHeader("AccessionId", "IDF");
+    writer.field("E-TABM-721").field(3);
+    writer.endRow();
+    writer.close();
+    
+    assertEquals("#AccessionId\tIDF\nE-TABM-721\t3\n", out.toString());
+    assertEquals(2, writer.getRowCount());
+  }
+  
+  @Test
+  public void testSeparatorsInFieldsAreReplaced() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TsvWriter writer = new TsvWriter(out, true);
+    writer.field("blood\tcell").field("line\r\nbreak").field((String) null);
+    writer.endRow();
+    writer.close();
+    
+    assertEquals("blood cell\tline  break\t\n", out.toString());
+  }
+  
+  @Test
+  public void testRowsAreFlushedEveryInterval() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TsvWriter writer = new TsvWriter(out, false);
+    writer.setFlushInterval(2, Long.MAX_VALUE);
+    writer.field("a");
+    writer.endRow();
+    assertEquals("", out.toString());
+    writer.field("b");
+    writer.endRow();
+    assertEquals("a\nb\n", out.toString());
+  }
+}